@@ -0,0 +1,101 @@
+package io.prometheus.jmx;
+
+import io.prometheus.client.Collector.MetricFamilySamples;
+import io.prometheus.client.Collector.Type;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Encodes a response of 200k series in each exposition format, as the HTTP server does.
+ *
+ * The sizes of the encodings, plain and gzip compressed, are printed at setup.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ExpositionFormatBenchmark {
+
+    private static final String[] ATTRIBUTES = {
+        "Count", "MeanRate", "OneMinuteRate", "FiveMinuteRate", "FifteenMinuteRate", "Value", "Mean", "Max",
+        "Min", "99thPercentile",
+    };
+
+    @Param({"text", "openmetrics", "protobuf"})
+    public String format;
+
+    // 400 families of 500 series each, as a Kafka broker with many partitions would have.
+    private final List<MetricFamilySamples> families = new ArrayList<MetricFamilySamples>();
+    private final StreamingTextWriter textWriter = new StreamingTextWriter();
+    private final OpenMetricsTextWriter openMetricsWriter = new OpenMetricsTextWriter();
+    private final ProtobufWriter protobufWriter = new ProtobufWriter();
+    private final ByteArrayOutputStream body = new ByteArrayOutputStream(64 * 1024 * 1024);
+
+    @Setup
+    public void setUp() throws IOException {
+        List<String> labelNames = Arrays.asList("topic", "partition");
+        for (int f = 0; f < 400; f++) {
+            String attribute = ATTRIBUTES[f % ATTRIBUTES.length];
+            boolean counter = attribute.equals("Count");
+            String name = "kafka_log_log_" + (f / ATTRIBUTES.length) + "_" + attribute.toLowerCase();
+            List<MetricFamilySamples.Sample> samples = new ArrayList<MetricFamilySamples.Sample>();
+            for (int s = 0; s < 500; s++) {
+                List<String> labelValues = Arrays.asList("topic-" + (s / 10), Integer.toString(s % 10));
+                double value = counter ? 1000L * f + s : (f * 500 + s) / 7.0;
+                samples.add(new MetricFamilySamples.Sample(name, labelNames, labelValues, value));
+            }
+            families.add(new MetricFamilySamples(name, counter ? Type.COUNTER : Type.GAUGE,
+                "Kafka log attribute " + attribute, samples));
+        }
+
+        encode();
+        ByteArrayOutputStream gzipped = new ByteArrayOutputStream();
+        GZIPOutputStream gzip = new GZIPOutputStream(gzipped, 8192);
+        body.writeTo(gzip);
+        gzip.close();
+        System.out.println();
+        System.out.println(format + ": " + body.size() + " bytes, " + gzipped.size() + " bytes gzipped");
+    }
+
+    @Benchmark
+    public int encode() throws IOException {
+        body.reset();
+        if (format.equals("protobuf")) {
+            protobufWriter.write(body, families);
+        } else {
+            Writer writer = new OutputStreamWriter(body, "UTF-8");
+            if (format.equals("openmetrics")) {
+                openMetricsWriter.write(writer, families);
+            } else {
+                textWriter.reset();
+                for (MetricFamilySamples mfs : families) {
+                    textWriter.addFamily(mfs);
+                }
+                textWriter.writeTo(writer);
+            }
+            writer.flush();
+        }
+        return body.size();
+    }
+}
@@ -0,0 +1,95 @@
+package io.prometheus.jmx;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Transforms the names of a scrape, as the rules do on every scrape, with and without the name caches. The cached
+ * variants count their hits as a scrape does, adding them to the counters once per op.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class NameTransformBenchmark {
+
+    private static final String[] ATTRIBUTES = {
+        "Count", "MeanRate", "OneMinuteRate", "FiveMinuteRate", "FifteenMinuteRate", "Value", "Mean", "Max",
+        "Min", "StdDev", "50thPercentile", "75thPercentile", "95thPercentile", "98thPercentile", "99thPercentile",
+        "999thPercentile", "HeapMemoryUsage", "CollectionCount", "CollectionTime", "ThreadCount",
+    };
+
+    // As built by the default export format and the rule name templates.
+    private String[] names;
+    private String[] attributes;
+    private final JmxCollector.NameCacheHits hits = new JmxCollector.NameCacheHits();
+
+    @Setup
+    public void setUp() {
+        names = new String[2000];
+        attributes = new String[2000];
+        for (int i = 0; i < names.length; i++) {
+            String attribute = ATTRIBUTES[i % ATTRIBUTES.length];
+            names[i] = "kafka.server_BrokerTopicMetrics-" + (i / ATTRIBUTES.length) + "_" + attribute;
+            attributes[i] = attribute + (i / ATTRIBUTES.length);
+        }
+    }
+
+    @Benchmark
+    public void safeNameUncached(Blackhole blackhole) {
+        for (String name : names) {
+            blackhole.consume(JmxCollector.computeSafeName(name));
+        }
+    }
+
+    @Benchmark
+    public void safeNameCached(Blackhole blackhole) {
+        for (String name : names) {
+            blackhole.consume(JmxCollector.safeName(name, hits));
+        }
+        hits.flush();
+    }
+
+    @Benchmark
+    public void snakeCaseUncached(Blackhole blackhole) {
+        for (String attribute : attributes) {
+            blackhole.consume(JmxCollector.computeSnakeAndLowerCase(attribute));
+        }
+    }
+
+    @Benchmark
+    public void snakeCaseCached(Blackhole blackhole) {
+        for (String attribute : attributes) {
+            blackhole.consume(JmxCollector.toSnakeAndLowerCase(attribute, hits));
+        }
+        hits.flush();
+    }
+
+    @Benchmark
+    public void lowerCaseUncached(Blackhole blackhole) {
+        for (String name : names) {
+            blackhole.consume(name.toLowerCase());
+        }
+    }
+
+    @Benchmark
+    public void lowerCaseCached(Blackhole blackhole) {
+        for (String name : names) {
+            blackhole.consume(JmxCollector.toLowerCase(name, hits));
+        }
+        hits.flush();
+    }
+}
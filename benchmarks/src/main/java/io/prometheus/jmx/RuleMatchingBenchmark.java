@@ -0,0 +1,108 @@
+package io.prometheus.jmx;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import javax.management.ObjectName;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Scanner;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Matches the attributes of a scrape against the rules of an example config, with each rule engine.
+ *
+ * The matched rules cache is cleared for every scrape, so this measures the cost of a scrape after the beans or
+ * the config changed, and of rules that look at the attribute value.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RuleMatchingBenchmark {
+
+    private static final String[] BEANS = {
+        "kafka.server:type=BrokerTopicMetrics,name=MessagesInPerSec,topic=foo",
+        "kafka.server:type=BrokerTopicMetrics,name=BytesOutPerSec",
+        "kafka.server:type=ReplicaManager,name=PartitionCount",
+        "kafka.server:type=FetcherLagMetrics,name=ConsumerLag,clientId=ReplicaFetcherThread-0-1,topic=foo,partition=0",
+        "kafka.network:type=RequestMetrics,name=RequestsPerSec,request=Produce",
+        "kafka.network:type=RequestMetrics,name=TotalTimeMs,request=Fetch",
+        "kafka.network:type=SocketServer,name=NetworkProcessorAvgIdlePercent",
+        "kafka.log:type=Log,name=Size,topic=foo,partition=0",
+        "kafka.cluster:type=Partition,name=UnderReplicated,topic=foo,partition=0",
+        "kafka.controller:type=KafkaController,name=ActiveControllerCount",
+        "org.apache.cassandra.metrics:type=ColumnFamily,keyspace=ks,scope=tbl,name=ReadLatency",
+        "org.apache.cassandra.metrics:type=ColumnFamily,keyspace=ks,scope=tbl,name=WriteLatency",
+        "org.apache.cassandra.metrics:type=ClientRequest,scope=Read,name=Latency",
+        "org.apache.cassandra.metrics:type=Connection,scope=127.0.0.1,name=Timeouts",
+        "org.apache.cassandra.metrics:type=ThreadPools,path=request,scope=MutationStage,name=PendingTasks",
+        "com.bea:ServerRuntime=AdminServer,Name=ds,Type=JDBCDataSourceRuntime",
+        "com.bea:ServerRuntime=AdminServer,Name=default,Type=ThreadPoolRuntime",
+        "com.bea:ServerRuntime=AdminServer,Name=app,ApplicationRuntime=app,Type=WebAppComponentRuntime",
+        "com.bea:ServerRuntime=AdminServer,Name=AdminServer,Type=JVMRuntime",
+        "java.lang:type=Memory",
+        "java.lang:type=GarbageCollector,name=G1 Young Generation",
+        "java.lang:type=Threading",
+        "java.nio:type=BufferPool,name=direct",
+    };
+
+    private static final String[] ATTRIBUTES = {
+        "Count", "Value", "MeanRate", "OneMinuteRate", "99thPercentile", "Mean", "Max", "OpenSessionsCurrentCount",
+        "ActiveConnectionsCurrentCount", "HeapSizeCurrent",
+    };
+
+    @Param({"kafka-0-8-2.yml", "cassandra.yml", "weblogic.yml"})
+    public String config;
+
+    @Param({"regex", "prefilter"})
+    public String ruleEngine;
+
+    private JmxCollector collector;
+    private final List<ObjectName> mbeanNames = new ArrayList<ObjectName>();
+    private final List<Map<String, String>> beanProperties = new ArrayList<Map<String, String>>();
+    private final LinkedList<String> attrKeys = new LinkedList<String>();
+
+    @Setup
+    public void setUp() throws Exception {
+        InputStream in = getClass().getResourceAsStream("/example_configs/" + config);
+        String yaml = new Scanner(in, "UTF-8").useDelimiter("\\A").next();
+        in.close();
+        collector = new JmxCollector(yaml + "\nruleEngine: " + ruleEngine + "\n");
+
+        JmxMBeanPropertyCache propertyCache = new JmxMBeanPropertyCache();
+        for (String bean : BEANS) {
+            ObjectName mbeanName = new ObjectName(bean);
+            mbeanNames.add(mbeanName);
+            beanProperties.add(propertyCache.getKeyPropertyList(mbeanName));
+        }
+    }
+
+    @Benchmark
+    public Object scrape() {
+        collector.getMatchedRulesCache().getMatchedRulesPerBean().clear();
+        JmxCollector.Receiver receiver = collector.new Receiver();
+        for (int i = 0; i < mbeanNames.size(); i++) {
+            ObjectName mbeanName = mbeanNames.get(i);
+            for (int j = 0; j < ATTRIBUTES.length; j++) {
+                receiver.recordBean(mbeanName, mbeanName.getDomain(), beanProperties.get(i), attrKeys,
+                    ATTRIBUTES[j], "long", "An attribute", (long) j);
+            }
+        }
+        return receiver.sink;
+    }
+}
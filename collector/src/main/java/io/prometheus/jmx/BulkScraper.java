@@ -0,0 +1,59 @@
+package io.prometheus.jmx;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.MalformedObjectNameException;
+import javax.management.ObjectName;
+import java.util.Arrays;
+
+/**
+ * An mBean that the javaagent can register in the JVM it runs in, so that a remote exporter can fetch all the
+ * values it needs with one call instead of a few calls per mBean.
+ *
+ * Requests and responses only use JDK types, as the two sides can run different versions of this code, and the
+ * javaagent relocates its classes.
+ */
+class BulkScraper implements BulkScraperMBean {
+    static final ObjectName OBJECT_NAME;
+    static {
+        try {
+            OBJECT_NAME = new ObjectName("io.prometheus.jmx:type=BulkScraper");
+        } catch (MalformedObjectNameException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private final JmxConnectionManager connectionManager = new JmxConnectionManager("", "", "", false, 0);
+    private final JmxMBeanPropertyCache jmxMBeanPropertyCache = new JmxMBeanPropertyCache();
+    private final JmxMBeanInfoCache jmxMBeanInfoCache = new JmxMBeanInfoCache();
+
+    // The filter of the last request, as the filtered attributes of the mBeans are cached per filter.
+    private Object[] lastWireFilter;
+    private ScrapeFilter lastFilter;
+
+    static void register(MBeanServer mbs) throws JMException {
+        mbs.registerMBean(new BulkScraper(), OBJECT_NAME);
+    }
+
+    public Object[] scrape(ObjectName[] whitelistObjectNames, ObjectName[] blacklistObjectNames,
+                           Object[] scrapeFilter) {
+        JmxScraper scraper = new JmxScraper(connectionManager, Arrays.asList(whitelistObjectNames),
+            Arrays.asList(blacklistObjectNames), scrapeFilter(scrapeFilter), null, jmxMBeanPropertyCache,
+            jmxMBeanInfoCache);
+        try {
+            return scraper.fetchForBulkScrape();
+        } catch (RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private synchronized ScrapeFilter scrapeFilter(Object[] wireFilter) {
+        if (!Arrays.deepEquals(wireFilter, lastWireFilter)) {
+            lastFilter = ScrapeFilter.fromWire(wireFilter);
+            lastWireFilter = wireFilter;
+        }
+        return lastFilter;
+    }
+}
@@ -0,0 +1,17 @@
+package io.prometheus.jmx;
+
+import javax.management.ObjectName;
+
+/**
+ * Scrapes many mBeans in a single call, see {@link BulkScraper}.
+ */
+public interface BulkScraperMBean {
+    /**
+     * Returns the readable attributes of the mBeans matching the whitelist and not the blacklist that the
+     * filter lets through.
+     *
+     * @param scrapeFilter a {@link ScrapeFilter} in the form returned by {@link ScrapeFilter#toWire()}.
+     * @return per mBean, an array of its name, the names, types and descriptions of its attributes, and the values.
+     */
+    Object[] scrape(ObjectName[] whitelistObjectNames, ObjectName[] blacklistObjectNames, Object[] scrapeFilter);
+}
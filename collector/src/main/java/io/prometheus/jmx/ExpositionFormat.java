@@ -0,0 +1,71 @@
+package io.prometheus.jmx;
+
+/**
+ * The formats metrics can be served in, and picking one from the Accept header of a request.
+ */
+enum ExpositionFormat {
+    TEXT_004("text/plain; version=0.0.4; charset=utf-8"),
+    OPENMETRICS("application/openmetrics-text; version=1.0.0; charset=utf-8"),
+    PROTOBUF("application/vnd.google.protobuf; proto=io.prometheus.client.MetricFamily; encoding=delimited");
+
+    final String contentType;
+
+    ExpositionFormat(String contentType) {
+        this.contentType = contentType;
+    }
+
+    /**
+     * Returns the format the Accept header prefers, by quality and then by order, or the 0.0.4 text format if it
+     * doesn't accept any other.
+     */
+    static ExpositionFormat negotiate(String accept) {
+        if (accept == null) {
+            return TEXT_004;
+        }
+        ExpositionFormat best = TEXT_004;
+        double bestQuality = -1;
+        for (String mediaRange : accept.split(",")) {
+            String[] params = mediaRange.split(";");
+            String type = params[0].trim().toLowerCase();
+            double quality = 1;
+            String proto = null;
+            String encoding = null;
+            for (int i = 1; i < params.length; i++) {
+                int eq = params[i].indexOf('=');
+                if (eq < 0) {
+                    continue;
+                }
+                String name = params[i].substring(0, eq).trim().toLowerCase();
+                String value = params[i].substring(eq + 1).trim();
+                if (name.equals("q")) {
+                    try {
+                        quality = Double.parseDouble(value);
+                    } catch (NumberFormatException e) {
+                        quality = 0;
+                    }
+                } else if (name.equals("proto")) {
+                    proto = value;
+                } else if (name.equals("encoding")) {
+                    encoding = value;
+                }
+            }
+
+            ExpositionFormat format;
+            if (type.equals("application/vnd.google.protobuf")
+                && "io.prometheus.client.MetricFamily".equals(proto) && "delimited".equals(encoding)) {
+                format = PROTOBUF;
+            } else if (type.equals("application/openmetrics-text")) {
+                format = OPENMETRICS;
+            } else if (type.equals("text/plain") || type.equals("text/*") || type.equals("*/*")) {
+                format = TEXT_004;
+            } else {
+                continue;
+            }
+            if (quality > 0 && quality > bestQuality) {
+                best = format;
+                bestQuality = quality;
+            }
+        }
+        return best;
+    }
+}
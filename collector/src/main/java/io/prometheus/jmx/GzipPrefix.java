@@ -0,0 +1,97 @@
+package io.prometheus.jmx;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+/**
+ * Gzip compresses bodies that start with the same bytes, compressing the start only once.
+ *
+ * The start is compressed into deflate blocks that end on a byte boundary and aren't marked final, so the
+ * compressed rest of each body can follow them in the same gzip member. Clients see one ordinary gzip stream.
+ */
+class GzipPrefix {
+    private static final byte[] HEADER = {0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, 0};
+    private static final int[] CRC_TABLE = new int[256];
+    static {
+        for (int n = 0; n < 256; n++) {
+            int c = n;
+            for (int k = 0; k < 8; k++) {
+                c = (c & 1) != 0 ? 0xedb88320 ^ (c >>> 1) : c >>> 1;
+            }
+            CRC_TABLE[n] = c;
+        }
+    }
+
+    private final ByteArrayOutputStream compressed;
+    private final int crc;
+    private final long size;
+
+    GzipPrefix(ByteArrayOutputStream prefix) throws IOException {
+        compressed = new ByteArrayOutputStream(Math.max(1024, prefix.size() / 4));
+        compressed.write(HEADER);
+        Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        try {
+            DeflaterOutputStream deflate = new DeflaterOutputStream(compressed, deflater, 8192, true);
+            CRC32 checksum = new CRC32();
+            prefix.writeTo(new CheckedOutputStream(deflate, checksum));
+            // Ends the blocks on a byte boundary, without finishing the stream.
+            deflate.flush();
+            crc = (int) checksum.getValue();
+        } finally {
+            deflater.end();
+        }
+        size = prefix.size();
+    }
+
+    /**
+     * The header and compressed start, to be written before the output of {@link #finish}.
+     */
+    ByteArrayOutputStream getCompressed() {
+        return compressed;
+    }
+
+    /**
+     * Returns the compressed rest of a body, and the gzip trailer.
+     */
+    ByteArrayOutputStream finish(ByteArrayOutputStream rest) throws IOException {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream(Math.max(512, rest.size() / 4));
+        Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        try {
+            DeflaterOutputStream deflate = new DeflaterOutputStream(buffer, deflater, 8192);
+            rest.writeTo(deflate);
+            deflate.finish();
+        } finally {
+            deflater.end();
+        }
+        // The CRC of the start is continued over the rest, which java.util.zip.CRC32 can't do.
+        final int[] c = {~crc};
+        rest.writeTo(new OutputStream() {
+            public void write(int b) {
+                c[0] = CRC_TABLE[(c[0] ^ b) & 0xff] ^ (c[0] >>> 8);
+            }
+
+            public void write(byte[] b, int off, int len) {
+                int value = c[0];
+                for (int i = off; i < off + len; i++) {
+                    value = CRC_TABLE[(value ^ b[i]) & 0xff] ^ (value >>> 8);
+                }
+                c[0] = value;
+            }
+        });
+        writeIntLE(buffer, ~c[0]);
+        writeIntLE(buffer, (int) (size + rest.size()));
+        return buffer;
+    }
+
+    private static void writeIntLE(ByteArrayOutputStream out, int value) {
+        out.write(value);
+        out.write(value >>> 8);
+        out.write(value >>> 16);
+        out.write(value >>> 24);
+    }
+}
@@ -1,6 +1,7 @@
 package io.prometheus.jmx;
 
 import io.prometheus.client.Collector;
+import io.prometheus.client.CollectorRegistry;
 import io.prometheus.client.Counter;
 import org.yaml.snakeyaml.Yaml;
 
@@ -11,15 +12,29 @@ import java.io.FileReader;
 import java.io.IOException;
 import java.io.PrintWriter;
 import java.io.StringWriter;
+import java.io.Writer;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
-import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
@@ -47,47 +62,278 @@ public class JmxCollector extends Collector implements Collector.Describable {
       Type type = Type.UNTYPED;
       ArrayList<String> labelNames;
       ArrayList<String> labelValues;
+      // Whether the pattern or a $0 in the templates may look at the attribute value, such rules are not cached.
+      boolean matchesValue;
+      // Matches the domains of the beans this rule can apply to, null if it can apply to any bean.
+      Pattern domainPattern;
+      // A string every input matched by the pattern contains, or null.
+      String requiredLiteral;
+      // The name, value, help and labels compiled against the pattern.
+      ReplacementTemplate nameTemplate;
+      ReplacementTemplate valueTemplate;
+      ReplacementTemplate helpTemplate;
+      List<ReplacementTemplate> labelNameTemplates;
+      List<ReplacementTemplate> labelValueTemplates;
+      // Matches the names the rule can produce, null for the default format.
+      Pattern namePattern;
+
+      void compileTemplates() {
+        int groupCount = pattern == null ? 0 : pattern.matcher("").groupCount();
+        if (name != null) {
+          nameTemplate = ReplacementTemplate.compile(name, groupCount);
+        }
+        if (value != null && !value.isEmpty()) {
+          valueTemplate = ReplacementTemplate.compile(value, groupCount);
+        }
+        if (help != null) {
+          helpTemplate = ReplacementTemplate.compile(help, groupCount);
+        }
+        if (labelNames != null) {
+          labelNameTemplates = new ArrayList<ReplacementTemplate>();
+          labelValueTemplates = new ArrayList<ReplacementTemplate>();
+          for (int i = 0; i < labelNames.size(); i++) {
+            if (labelValues.get(i) == null) {
+              throw new IllegalArgumentException("Missing value for label: " + labelNames.get(i));
+            }
+            labelNameTemplates.add(ReplacementTemplate.compile(labelNames.get(i), groupCount));
+            labelValueTemplates.add(ReplacementTemplate.compile(labelValues.get(i), groupCount));
+          }
+        }
+      }
+
+      /**
+       * Whether a template refers to $0, the whole input including the value.
+       */
+      boolean refersToWholeMatch() {
+        List<ReplacementTemplate> templates = new ArrayList<ReplacementTemplate>();
+        templates.add(nameTemplate);
+        templates.add(valueTemplate);
+        templates.add(helpTemplate);
+        if (labelNameTemplates != null) {
+          templates.addAll(labelNameTemplates);
+          templates.addAll(labelValueTemplates);
+        }
+        for (ReplacementTemplate template : templates) {
+          if (template != null && template.refersTo(0)) {
+            return true;
+          }
+        }
+        return false;
+      }
     }
 
     private static class Config {
       Integer startDelaySeconds = 0;
+      int mbeanInfoCacheTtlSeconds = 0;
       String jmxUrl = "";
       String username = "";
       String password = "";
       boolean ssl = false;
+      int connectionIdleTimeoutSeconds = 0;
+      int scrapeParallelism = 1;
+      int mbeanDiscoveryResyncSeconds = 300;
+      int backgroundScrapeIntervalSeconds = 0;
+      double scrapeTimeoutSeconds = 0;
+      double beanTimeoutSeconds = 0;
+      int quarantineSeconds = 0;
+      int quarantineMaxSeconds = 3600;
+      double quarantineLatencyThresholdSeconds = 0;
       boolean lowercaseOutputName;
       boolean lowercaseOutputLabelNames;
       List<ObjectName> whitelistObjectNames = new ArrayList<ObjectName>();
+      // The scrape interval of each whitelist entry, 0 to scrape it every time.
+      List<Integer> whitelistScrapeIntervalSeconds = new ArrayList<Integer>();
       List<ObjectName> blacklistObjectNames = new ArrayList<ObjectName>();
       List<Rule> rules = new ArrayList<Rule>();
       long lastUpdate = 0L;
+
+      // Set if the prefilter rule engine is configured.
+      LiteralPrefilter prefilter;
+      ScrapeFilter scrapeFilter = ScrapeFilter.ALL;
+      // What each rule can match, in the order of the rules.
+      List<ScrapeFilter.RuleFilter> ruleFilters;
+      // The filters for the names of recent name[] requests, which are mostly the same from scrape to scrape.
+      Map<Set<String>, ScrapeFilter> scrapeFiltersPerNames = new ConcurrentHashMap<Set<String>, ScrapeFilter>();
+      // Set if some whitelist entries have a scrape interval.
+      JmxMBeanValueCache mbeanValueCache;
+      // Set if quarantineSeconds is configured.
+      JmxMBeanQuarantine quarantine;
+      MatchedRulesCache rulesCache = new MatchedRulesCache();
+      // Indexes into rules of the rules that can apply to beans of a domain, in order.
+      Map<String, int[]> rulesPerDomain = new ConcurrentHashMap<String, int[]>();
+      int[] allRules;
+
+      int[] candidateRules(String domain) {
+        int[] candidates = rulesPerDomain.get(domain);
+        if (candidates == null) {
+          int count = 0;
+          candidates = new int[rules.size()];
+          for (int i = 0; i < rules.size(); i++) {
+            Pattern domainPattern = rules.get(i).domainPattern;
+            if (domainPattern == null || domainPattern.matcher(domain).find()) {
+              candidates[count++] = i;
+            }
+          }
+          candidates = Arrays.copyOf(candidates, count);
+          rulesPerDomain.put(domain, candidates);
+        }
+        return candidates;
+      }
+
+      /**
+       * Returns the scrape filter for the rules that can produce samples with one of the names.
+       *
+       * The other rules are still tried in order when matching, as an attribute is exported by the first rule
+       * that matches it, but the attributes only they can match are not fetched.
+       */
+      ScrapeFilter scrapeFilter(Set<String> names) {
+        ScrapeFilter filter = scrapeFiltersPerNames.get(names);
+        if (filter == null) {
+          List<ScrapeFilter.RuleFilter> filters = new ArrayList<ScrapeFilter.RuleFilter>();
+          Pattern defaultExportDomains = null;
+          for (int i = 0; i < rules.size(); i++) {
+            Rule rule = rules.get(i);
+            if (rule.namePattern != null) {
+              for (String name : names) {
+                if (rule.namePattern.matcher(name).matches()) {
+                  filters.add(ruleFilters.get(i));
+                  break;
+                }
+              }
+              continue;
+            }
+            if (defaultExportDomains == null) {
+              defaultExportDomains = RuleNameAnalyzer.defaultExportDomainPattern(names, lowercaseOutputName);
+              if (defaultExportDomains == null) {
+                // No name has the shape of the default format.
+                defaultExportDomains = NO_DOMAINS;
+              }
+            }
+            if (defaultExportDomains != NO_DOMAINS) {
+              filters.add(ruleFilters.get(i).withDomains(defaultExportDomains));
+            }
+          }
+          filter = scrapeFilter.withRuleFilters(filters);
+          if (scrapeFiltersPerNames.size() < MAX_SCRAPE_FILTERS_PER_NAMES) {
+            scrapeFiltersPerNames.put(Collections.unmodifiableSet(new HashSet<String>(names)), filter);
+          }
+        }
+        return filter;
+      }
     }
 
-    private Config config;
+    private static final Pattern NO_DOMAINS = Pattern.compile("(?!)");
+    private static final int MAX_SCRAPE_FILTERS_PER_NAMES = 100;
+
+    // A Config is not changed once it's published here. A reload swaps in a new one, so that a scrape that read it
+    // sees the same configuration throughout.
+    private final AtomicReference<Config> config = new AtomicReference<Config>();
     private File configFile;
+    // Only try the rules that can apply to the domain of a bean. Disabled in tests to compare against the full scan.
+    boolean ruleIndexEnabled = true;
+    // Only fetch the mBeans and attributes the rules can apply to. Disabled in tests to compare against a full scrape.
+    boolean scrapeFilterEnabled = true;
     private long createTimeNanoSecs = System.nanoTime();
 
     private final JmxMBeanPropertyCache jmxMBeanPropertyCache = new JmxMBeanPropertyCache();
+    private final JmxMBeanInfoCache jmxMBeanInfoCache = new JmxMBeanInfoCache();
+    private JmxConnectionManager connectionManager;
+    private JmxMBeanDiscovery mbeanDiscovery;
+    private ExecutorService scrapeExecutor;
+    private int scrapeExecutorThreads;
+    private boolean scrapeExecutorForTimeouts;
+    private final Set<ObjectName> beansBeingFetched =
+        Collections.newSetFromMap(new ConcurrentHashMap<ObjectName, Boolean>());
+
+    /**
+     * The result of a background scrape.
+     */
+    static class Snapshot {
+      final SampleBuffer samples;
+      // The generation of the buffer the samples are in, it's reused once the snapshot is replaced.
+      final long generation;
+      // The scrape's own metrics.
+      final List<MetricFamilySamples> scrapeMetrics;
+      final long takenAtNanos;
+
+      Snapshot(SampleBuffer samples, long generation, List<MetricFamilySamples> scrapeMetrics, long takenAtNanos) {
+        this.samples = samples;
+        this.generation = generation;
+        this.scrapeMetrics = scrapeMetrics;
+        this.takenAtNanos = takenAtNanos;
+      }
+    }
+
+    private volatile Snapshot snapshot;
+    // Reused by writeText().
+    private final StreamingTextWriter textWriter = new StreamingTextWriter();
+    // Whether the text writer holds a complete scrape, and the background snapshot it is from, if any.
+    private boolean textWriterFilled;
+    private Snapshot textWriterSnapshot;
+    // Writes the age of the snapshot after it.
+    private final StreamingTextWriter snapshotAgeWriter = new StreamingTextWriter();
+    // Set while collectOthers() collects the other collectors of a registry.
+    private final ThreadLocal<Boolean> leftOut = new ThreadLocal<Boolean>();
+    // Sample buffers of earlier scrapes. Two are kept, so that a background scrape can fill one while the other
+    // holds the snapshot being served.
+    private final LinkedList<SampleBuffer> spareSampleBuffers = new LinkedList<SampleBuffer>();
+    private static final int SPARE_SAMPLE_BUFFERS = 2;
+    // Label name lists shared by all samples with the same label names.
+    private final ConcurrentHashMap<List<String>, List<String>> labelNameLists =
+        new ConcurrentHashMap<List<String>, List<String>>();
+    private static final int MAX_LABEL_NAME_LISTS = 10000;
+    private ScheduledExecutorService backgroundScraper;
+    private final Set<String> declaredNames = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    // Cleared if the families of the rules clash with those of another collector of the registry.
+    private volatile boolean describeRuleFamilies = true;
 
     public JmxCollector(File in) throws IOException, MalformedObjectNameException {
+        this(in, readConfig(in));
+    }
+
+    /**
+     * Start with a config already read from the file with {@link #readConfig(File)}. Changes to the file are
+     * reloaded as usual.
+     */
+    JmxCollector(File in, Map<String, Object> yamlConfig) throws MalformedObjectNameException {
         configFile = in;
-        config = loadConfig((Map<String, Object>)new Yaml().load(new FileReader(in)));
-        config.lastUpdate = configFile.lastModified();
+        Config cfg = loadConfig(yamlConfig);
+        cfg.lastUpdate = configFile.lastModified();
+        config.set(cfg);
     }
 
     public JmxCollector(String yamlConfig) throws MalformedObjectNameException {
-        config = loadConfig((Map<String, Object>)new Yaml().load(yamlConfig));
+        config.set(loadConfig((Map<String, Object>)new Yaml().load(yamlConfig)));
+    }
+
+    /**
+     * Read a config file, for the collector and the other settings in it. An empty file is an empty config.
+     */
+    @SuppressWarnings("unchecked")
+    static Map<String, Object> readConfig(File in) throws IOException {
+      FileReader fr = new FileReader(in);
+      try {
+        Map<String, Object> yamlConfig = (Map<String, Object>) new Yaml().load(fr);
+        return yamlConfig == null ? new HashMap<String, Object>() : yamlConfig;
+      } finally {
+        fr.close();
+      }
     }
 
-    private void reloadConfig() {
+    /**
+     * Replace the previous config with the one in the config file, unless a concurrent scrape already did.
+     */
+    private void reloadConfig(Config previous) {
       try {
         FileReader fr = new FileReader(configFile);
 
         try {
           Map<String, Object> newYamlConfig = (Map<String, Object>)new Yaml().load(fr);
-          config = loadConfig(newYamlConfig);
-          config.lastUpdate = configFile.lastModified();
-          configReloadSuccess.inc();
+          Config cfg = loadConfig(newYamlConfig);
+          cfg.lastUpdate = configFile.lastModified();
+          if (config.compareAndSet(previous, cfg)) {
+            configReloadSuccess.inc();
+          }
         } catch (Exception e) {
           LOGGER.severe("Configuration reload failed: " + e.toString());
           configReloadFailure.inc();
@@ -115,6 +361,12 @@ public class JmxCollector extends Collector implements Collector.Describable {
             throw new IllegalArgumentException("Invalid number provided for startDelaySeconds", e);
           }
         }
+        if (yamlConfig.containsKey("mbeanInfoCacheTtlSeconds")) {
+          cfg.mbeanInfoCacheTtlSeconds = (Integer) yamlConfig.get("mbeanInfoCacheTtlSeconds");
+          if (cfg.mbeanInfoCacheTtlSeconds < 0) {
+            throw new IllegalArgumentException("mbeanInfoCacheTtlSeconds must not be negative");
+          }
+        }
         if (yamlConfig.containsKey("hostPort")) {
           if (yamlConfig.containsKey("jmxUrl")) {
             throw new IllegalArgumentException("At most one of hostPort and jmxUrl must be provided");
@@ -135,6 +387,74 @@ public class JmxCollector extends Collector implements Collector.Describable {
         if (yamlConfig.containsKey("ssl")) {
           cfg.ssl = (Boolean)yamlConfig.get("ssl");
         }
+
+        if (yamlConfig.containsKey("mbeanDiscoveryResyncSeconds")) {
+          cfg.mbeanDiscoveryResyncSeconds = (Integer)yamlConfig.get("mbeanDiscoveryResyncSeconds");
+          if (cfg.mbeanDiscoveryResyncSeconds < 0) {
+            throw new IllegalArgumentException("mbeanDiscoveryResyncSeconds must not be negative");
+          }
+        }
+
+        if (yamlConfig.containsKey("backgroundScrapeIntervalSeconds")) {
+          cfg.backgroundScrapeIntervalSeconds = (Integer)yamlConfig.get("backgroundScrapeIntervalSeconds");
+          if (cfg.backgroundScrapeIntervalSeconds < 0) {
+            throw new IllegalArgumentException("backgroundScrapeIntervalSeconds must not be negative");
+          }
+        }
+
+        if (yamlConfig.containsKey("scrapeTimeoutSeconds")) {
+          cfg.scrapeTimeoutSeconds = ((Number)yamlConfig.get("scrapeTimeoutSeconds")).doubleValue();
+          if (cfg.scrapeTimeoutSeconds < 0) {
+            throw new IllegalArgumentException("scrapeTimeoutSeconds must not be negative");
+          }
+        }
+
+        if (yamlConfig.containsKey("beanTimeoutSeconds")) {
+          cfg.beanTimeoutSeconds = ((Number)yamlConfig.get("beanTimeoutSeconds")).doubleValue();
+          if (cfg.beanTimeoutSeconds < 0) {
+            throw new IllegalArgumentException("beanTimeoutSeconds must not be negative");
+          }
+        }
+
+        if (yamlConfig.containsKey("quarantineSeconds")) {
+          cfg.quarantineSeconds = (Integer)yamlConfig.get("quarantineSeconds");
+          if (cfg.quarantineSeconds < 0) {
+            throw new IllegalArgumentException("quarantineSeconds must not be negative");
+          }
+        }
+
+        if (yamlConfig.containsKey("quarantineMaxSeconds")) {
+          cfg.quarantineMaxSeconds = (Integer)yamlConfig.get("quarantineMaxSeconds");
+          if (cfg.quarantineMaxSeconds < 0) {
+            throw new IllegalArgumentException("quarantineMaxSeconds must not be negative");
+          }
+        }
+
+        if (yamlConfig.containsKey("quarantineLatencyThresholdSeconds")) {
+          cfg.quarantineLatencyThresholdSeconds = ((Number)yamlConfig.get("quarantineLatencyThresholdSeconds")).doubleValue();
+          if (cfg.quarantineLatencyThresholdSeconds < 0) {
+            throw new IllegalArgumentException("quarantineLatencyThresholdSeconds must not be negative");
+          }
+        }
+
+        if (cfg.quarantineSeconds > 0) {
+          cfg.quarantine = new JmxMBeanQuarantine(cfg.quarantineLatencyThresholdSeconds, cfg.quarantineSeconds,
+              cfg.quarantineMaxSeconds);
+        }
+
+        if (yamlConfig.containsKey("scrapeParallelism")) {
+          cfg.scrapeParallelism = (Integer)yamlConfig.get("scrapeParallelism");
+          if (cfg.scrapeParallelism < 1) {
+            throw new IllegalArgumentException("scrapeParallelism must be at least 1");
+          }
+        }
+
+        if (yamlConfig.containsKey("connectionIdleTimeoutSeconds")) {
+          cfg.connectionIdleTimeoutSeconds = (Integer)yamlConfig.get("connectionIdleTimeoutSeconds");
+          if (cfg.connectionIdleTimeoutSeconds < 0) {
+            throw new IllegalArgumentException("connectionIdleTimeoutSeconds must not be negative");
+          }
+        }
         
         if (yamlConfig.containsKey("lowercaseOutputName")) {
           cfg.lowercaseOutputName = (Boolean)yamlConfig.get("lowercaseOutputName");
@@ -147,10 +467,30 @@ public class JmxCollector extends Collector implements Collector.Describable {
         if (yamlConfig.containsKey("whitelistObjectNames")) {
           List<Object> names = (List<Object>) yamlConfig.get("whitelistObjectNames");
           for(Object name : names) {
+            int scrapeIntervalSeconds = 0;
+            if (name instanceof Map) {
+              Map<?, ?> entry = (Map<?, ?>) name;
+              if (!entry.containsKey("objectName")) {
+                throw new IllegalArgumentException("Whitelist entry must have an objectName: " + entry);
+              }
+              if (entry.containsKey("scrapeIntervalSeconds")) {
+                scrapeIntervalSeconds = (Integer) entry.get("scrapeIntervalSeconds");
+                if (scrapeIntervalSeconds < 0) {
+                  throw new IllegalArgumentException("scrapeIntervalSeconds must not be negative");
+                }
+              }
+              name = entry.get("objectName");
+            }
             cfg.whitelistObjectNames.add(new ObjectName((String)name));
+            cfg.whitelistScrapeIntervalSeconds.add(scrapeIntervalSeconds);
           }
         } else {
           cfg.whitelistObjectNames.add(null);
+          cfg.whitelistScrapeIntervalSeconds.add(0);
+        }
+        if (!cfg.whitelistScrapeIntervalSeconds.isEmpty()
+            && Collections.max(cfg.whitelistScrapeIntervalSeconds) > 0) {
+          cfg.mbeanValueCache = new JmxMBeanValueCache(cfg.whitelistObjectNames, cfg.whitelistScrapeIntervalSeconds);
         }
 
         if (yamlConfig.containsKey("blacklistObjectNames")) {
@@ -160,6 +500,7 @@ public class JmxCollector extends Collector implements Collector.Describable {
           }
         }
 
+        List<ScrapeFilter.RuleFilter> ruleFilters = new ArrayList<ScrapeFilter.RuleFilter>();
         if (yamlConfig.containsKey("rules")) {
           List<Map<String,Object>> configRules = (List<Map<String,Object>>) yamlConfig.get("rules");
           for (Map<String, Object> ruleObject : configRules) {
@@ -168,6 +509,12 @@ public class JmxCollector extends Collector implements Collector.Describable {
             cfg.rules.add(rule);
             if (yamlRule.containsKey("pattern")) {
               rule.pattern = Pattern.compile("^.*(?:" + (String)yamlRule.get("pattern") + ").*$");
+              rule.matchesValue = RulePatternAnalyzer.matchesValue((String)yamlRule.get("pattern"));
+              rule.requiredLiteral = RulePatternAnalyzer.requiredLiteral((String)yamlRule.get("pattern"));
+              String domainPattern = RulePatternAnalyzer.domainPattern((String)yamlRule.get("pattern"));
+              if (domainPattern != null) {
+                rule.domainPattern = Pattern.compile("(?:" + domainPattern + ")$");
+              }
             }
             if (yamlRule.containsKey("name")) {
               rule.name = (String)yamlRule.get("name");
@@ -209,17 +556,186 @@ public class JmxCollector extends Collector implements Collector.Describable {
             if (rule.name != null && rule.pattern == null) {
               throw new IllegalArgumentException("Must provide pattern, if name is given: " + yamlRule);
             }
+            ruleFilters.add(ruleFilter(rule, (String)yamlRule.get("pattern")));
+            try {
+              rule.compileTemplates();
+            } catch (IllegalArgumentException e) {
+              throw new IllegalArgumentException("Invalid replacement in rule: " + yamlRule + ": " + e.getMessage(), e);
+            }
+            // The rule is then matched against the value too, whatever its pattern.
+            if (rule.refersToWholeMatch()) {
+              rule.matchesValue = true;
+            }
+            if (rule.nameTemplate != null) {
+              rule.namePattern = RuleNameAnalyzer.namePattern(rule.nameTemplate, cfg.lowercaseOutputName);
+            }
           }
         } else {
           // Default to a single default rule.
           cfg.rules.add(new Rule());
+          ruleFilters.add(ruleFilter(cfg.rules.get(0), null));
+        }
+        cfg.scrapeFilter = new ScrapeFilter(ruleFilters);
+        cfg.ruleFilters = ruleFilters;
+
+        if (yamlConfig.containsKey("ruleEngine")) {
+          String ruleEngine = (String)yamlConfig.get("ruleEngine");
+          if ("prefilter".equals(ruleEngine)) {
+            List<String> literals = new ArrayList<String>();
+            for (Rule rule : cfg.rules) {
+              literals.add(rule.requiredLiteral);
+            }
+            cfg.prefilter = new LiteralPrefilter(literals);
+          } else if (!"regex".equals(ruleEngine)) {
+            throw new IllegalArgumentException("Unknown ruleEngine: " + ruleEngine);
+          }
+        }
+
+        cfg.allRules = new int[cfg.rules.size()];
+        for (int i = 0; i < cfg.allRules.length; i++) {
+          cfg.allRules[i] = i;
         }
 
         return cfg;
 
     }
 
+    /**
+     * Works out which mBeans and attributes a rule can apply to.
+     */
+    private static ScrapeFilter.RuleFilter ruleFilter(Rule rule, String pattern) {
+      ObjectName domainQuery = null;
+      String domainWildcard = RulePatternAnalyzer.domainWildcard(RulePatternAnalyzer.domainPattern(pattern));
+      if (domainWildcard != null) {
+        try {
+          domainQuery = new ObjectName(domainWildcard + ":*");
+        } catch (MalformedObjectNameException e) {
+          // Query all domains.
+        }
+      }
+      return new ScrapeFilter.RuleFilter(rule.domainPattern, domainQuery, RulePatternAnalyzer.attributeNames(pattern),
+          rule.attrNameSnakeCase);
+    }
+
+    JmxMBeanInfoCache getMBeanInfoCache() {
+      return jmxMBeanInfoCache;
+    }
+
+    /**
+     * Returns the connection manager for the connection settings of the config, replacing the previous one if
+     * they changed.
+     */
+    private synchronized JmxConnectionManager getConnectionManager(Config config) {
+      if (connectionManager == null || !connectionManager.isFor(config.jmxUrl, config.username, config.password,
+          config.ssl, config.connectionIdleTimeoutSeconds)) {
+        if (connectionManager != null) {
+          connectionManager.close();
+        }
+        connectionManager = new JmxConnectionManager(config.jmxUrl, config.username, config.password,
+            config.ssl, config.connectionIdleTimeoutSeconds);
+      }
+      return connectionManager;
+    }
+
+    /**
+     * Returns the discovery of the mBeans to scrape, or null to query them on every scrape.
+     */
+    private synchronized JmxMBeanDiscovery getMBeanDiscovery(Config config, ScrapeFilter scrapeFilter) {
+      if (mbeanDiscovery != null && !mbeanDiscovery.isFor(config.whitelistObjectNames, config.blacklistObjectNames,
+          scrapeFilter, config.mbeanDiscoveryResyncSeconds)) {
+        mbeanDiscovery.close();
+        mbeanDiscovery = null;
+      }
+      if (mbeanDiscovery == null && config.mbeanDiscoveryResyncSeconds > 0) {
+        mbeanDiscovery = new JmxMBeanDiscovery(config.whitelistObjectNames, config.blacklistObjectNames,
+            scrapeFilter, config.mbeanDiscoveryResyncSeconds);
+      }
+      return mbeanDiscovery;
+    }
+
+    /**
+     * Returns the executor to fetch mBeans on, or null to fetch them on the scraping thread.
+     */
+    private synchronized ExecutorService getScrapeExecutor(Config config) {
+      boolean timeouts = config.scrapeTimeoutSeconds > 0 || config.beanTimeoutSeconds > 0;
+      int threads = config.scrapeParallelism > 1 || timeouts ? config.scrapeParallelism : 0;
+      if (scrapeExecutorThreads != threads || scrapeExecutorForTimeouts != timeouts) {
+        if (scrapeExecutor != null) {
+          scrapeExecutor.shutdown();
+          scrapeExecutor = null;
+        }
+        ThreadFactory threadFactory = new ThreadFactory() {
+          private final AtomicInteger count = new AtomicInteger();
+
+          public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "jmx-scrape-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+          }
+        };
+        if (timeouts) {
+          // Threads stuck on an mBean that doesn't return must not hold up later scrapes, so threads are added as
+          // needed. The number of mBeans fetched at once is still bounded by the scraper.
+          scrapeExecutor = new ThreadPoolExecutor(0, Integer.MAX_VALUE, 60, TimeUnit.SECONDS,
+              new SynchronousQueue<Runnable>(), threadFactory);
+        } else if (threads > 0) {
+          scrapeExecutor = Executors.newFixedThreadPool(threads, threadFactory);
+        }
+        scrapeExecutorThreads = threads;
+        scrapeExecutorForTimeouts = timeouts;
+      }
+      return scrapeExecutor;
+    }
+
+    MatchedRulesCache getMatchedRulesCache() {
+      return config.get().rulesCache;
+    }
+
+    // The names transformed on a scrape are mostly the same as on the previous one.
+    private static final int NAME_CACHE_SIZE = 10000;
+    private static final NameCache SNAKE_CASE_NAMES = new NameCache("snake_case", NAME_CACHE_SIZE) {
+      protected String transform(String input) {
+        return computeSnakeAndLowerCase(input);
+      }
+    };
+    private static final NameCache SAFE_NAMES = new NameCache("safe_name", NAME_CACHE_SIZE) {
+      protected String transform(String input) {
+        return computeSafeName(input);
+      }
+    };
+    private static final NameCache LOWER_CASE_NAMES = new NameCache("lower_case", NAME_CACHE_SIZE) {
+      protected String transform(String input) {
+        return input.toLowerCase();
+      }
+    };
+
+    /**
+     * The hits on the name caches of one scrape, added to their counters when it's done.
+     */
+    static class NameCacheHits {
+      final NameCache.Hits snakeCase = SNAKE_CASE_NAMES.newHits();
+      final NameCache.Hits safeName = SAFE_NAMES.newHits();
+      final NameCache.Hits lowerCase = LOWER_CASE_NAMES.newHits();
+
+      void flush() {
+        snakeCase.flush();
+        safeName.flush();
+        lowerCase.flush();
+      }
+    }
+
     static String toSnakeAndLowerCase(String attrName) {
+      return toSnakeAndLowerCase(attrName, null);
+    }
+
+    static String toSnakeAndLowerCase(String attrName, NameCacheHits hits) {
+      if (attrName == null || attrName.isEmpty()) {
+        return attrName;
+      }
+      return SNAKE_CASE_NAMES.get(attrName, hits == null ? null : hits.snakeCase);
+    }
+
+    static String computeSnakeAndLowerCase(String attrName) {
       if (attrName == null || attrName.isEmpty()) {
         return attrName;
       }
@@ -243,6 +759,17 @@ public class JmxCollector extends Collector implements Collector.Describable {
    * @return
    */
   static String safeName(String name) {
+      return safeName(name, null);
+    }
+
+    static String safeName(String name, NameCacheHits hits) {
+      if (name == null) {
+        return null;
+      }
+      return SAFE_NAMES.get(name, hits == null ? null : hits.safeName);
+    }
+
+    static String computeSafeName(String name) {
       if (name == null) {
         return null;
       }
@@ -266,37 +793,55 @@ public class JmxCollector extends Collector implements Collector.Describable {
       return safeNameBuilder.toString();
     }
 
+    static String toLowerCase(String name) {
+      return toLowerCase(name, null);
+    }
+
+    static String toLowerCase(String name, NameCacheHits hits) {
+      return LOWER_CASE_NAMES.get(name, hits == null ? null : hits.lowerCase);
+    }
+
     class Receiver implements JmxScraper.MBeanReceiver {
-      Map<String, MetricFamilySamples> metricFamilySamplesMap =
-        new HashMap<String, MetricFamilySamples>();
+      final SampleSink sink;
 
       private static final char SEP = '_';
 
+      // The configuration at the start of the scrape, in case it's reloaded concurrently.
+      private final Config config;
+      // Per rule matchers and a scratch buffer for expanding templates, reused across the attributes of a scrape.
+      private final Matcher[] matchers;
+      private final StringBuilder buffer = new StringBuilder();
+      final NameCacheHits nameCacheHits = new NameCacheHits();
+      // Prefilter scans of the plain and the snake case input.
+      private final LiteralPrefilter.Scan[] scans;
 
+      // The labels of the last bean exported with the default format, as the attributes of a bean come in a row.
+      private Map<String, String> lastBeanProperties;
+      private List<String> lastLabelNames;
+      private List<String> lastLabelValues;
 
-      // [] and () are special in regexes, so swtich to <>.
-      private String angleBrackets(String s) {
-        return "<" + s.substring(1, s.length() - 1) + ">";
+      Receiver() {
+        this(JmxCollector.this.config.get(), new SampleBuffer());
       }
 
-      void addSample(MetricFamilySamples.Sample sample, Type type, String help) {
-        MetricFamilySamples mfs = metricFamilySamplesMap.get(sample.name);
-        if (mfs == null) {
-          // JmxScraper.MBeanReceiver is only called from one thread,
-          // so there's no race here.
-          mfs = new MetricFamilySamples(sample.name, type, help, new ArrayList<MetricFamilySamples.Sample>());
-          metricFamilySamplesMap.put(sample.name, mfs);
-        }
-        mfs.samples.add(sample);
+      Receiver(Config config, SampleSink sink) {
+        this.config = config;
+        this.sink = sink;
+        this.matchers = new Matcher[config.rules.size()];
+        this.scans = config.prefilter == null ? null
+            : new LiteralPrefilter.Scan[] { config.prefilter.newScan(), config.prefilter.newScan() };
       }
 
-      private void defaultExport(
+
+      private MatchedRule defaultExport(
+          ObjectName mbeanName,
           String domain,
-          LinkedHashMap<String, String> beanProperties,
+          Map<String, String> beanProperties,
           LinkedList<String> attrKeys,
           String attrName,
           String help,
-          Object value,
+          Double value,
+          double valueFactor,
           Type type) {
         StringBuilder name = new StringBuilder();
         name.append(domain);
@@ -310,142 +855,623 @@ public class JmxCollector extends Collector implements Collector.Describable {
         }
         name.append(SEP);
         name.append(attrName);
-        String fullname = safeName(name.toString());
+        String fullname = safeName(name.toString(), nameCacheHits);
 
         if (config.lowercaseOutputName) {
-          fullname = fullname.toLowerCase();
-        }
-
-        List<String> labelNames = new ArrayList<String>();
-        List<String> labelValues = new ArrayList<String>();
-        if (beanProperties.size() > 1) {
-            Iterator<Map.Entry<String, String>> iter = beanProperties.entrySet().iterator();
-            // Skip the first one, it's been used in the name.
-            iter.next();
-            while (iter.hasNext()) {
-              Map.Entry<String, String> entry = iter.next();
-              String labelName = safeName(entry.getKey());
-              if (config.lowercaseOutputLabelNames) {
-                labelName = labelName.toLowerCase();
+          fullname = toLowerCase(fullname, nameCacheHits);
+        }
+
+        // The property cache hands out the same map for a bean every time. Those of tabular data are changed
+        // from row to row though.
+        if (beanProperties != lastBeanProperties || !jmxMBeanPropertyCache.isKeyPropertyList(mbeanName, beanProperties)) {
+          List<String> labelNames = new ArrayList<String>();
+          List<String> labelValues = new ArrayList<String>();
+          if (beanProperties.size() > 1) {
+              Iterator<Map.Entry<String, String>> iter = beanProperties.entrySet().iterator();
+              // Skip the first one, it's been used in the name.
+              iter.next();
+              while (iter.hasNext()) {
+                Map.Entry<String, String> entry = iter.next();
+                String labelName = safeName(entry.getKey(), nameCacheHits);
+                if (config.lowercaseOutputLabelNames) {
+                  labelName = toLowerCase(labelName, nameCacheHits);
+                }
+                labelNames.add(labelName);
+                labelValues.add(entry.getValue());
               }
-              labelNames.add(labelName);
-              labelValues.add(entry.getValue());
-            }
+          }
+          lastBeanProperties = beanProperties;
+          lastLabelNames = internLabelNames(labelNames);
+          lastLabelValues = Collections.unmodifiableList(labelValues);
         }
 
-        addSample(new MetricFamilySamples.Sample(fullname, labelNames, labelValues, ((Number)value).doubleValue()),
-          type, help);
+        return new MatchedRule(fullname, lastLabelNames, lastLabelValues, help, type, value, valueFactor);
       }
 
       public void recordBean(
+          ObjectName mbeanName,
           String domain,
-          LinkedHashMap<String, String> beanProperties,
+          Map<String, String> beanProperties,
           LinkedList<String> attrKeys,
           String attrName,
           String attrType,
           String attrDescription,
           Object beanValue) {
 
-        String beanName = domain + angleBrackets(beanProperties.toString()) + angleBrackets(attrKeys.toString());
+        String beanName = jmxMBeanPropertyCache.getBeanName(mbeanName, domain, beanProperties, attrKeys);
+        String attrPath = beanName + attrName;
+
+        // Matches against values that may contain structural characters can't be reused, nor can they be
+        // matched without the value, see RulePatternAnalyzer.
+        boolean plainValue = RulePatternAnalyzer.isPlainValue(beanValue);
+
+        // Rules are only re-evaluated from the first one that looks at the value.
+        int firstRule = 0;
+        MatchedRule cached = plainValue ? config.rulesCache.get(mbeanName, attrPath) : null;
+        if (cached != null) {
+          if (!cached.isPartial()) {
+            addMatchedSample(cached, attrPath, beanValue);
+            return;
+          }
+          firstRule = cached.resumeAt;
+        }
+        boolean cacheable = plainValue && cached == null;
+
         // attrDescription tends not to be useful, so give the fully qualified name too.
-        String help = attrDescription + " (" + beanName + attrName + ")";
-        String attrNameSnakeCase = toSnakeAndLowerCase(attrName);
+        String help = attrDescription + " (" + attrPath + ")";
+        // Only computed if a rule asks for it.
+        String attrNameSnakeCase = null;
+
+        // Rules that don't look at the value are matched against "name: " only, the value is appended
+        // for the rules that do. All are built when first needed.
+        String[] keys = new String[2];
+        String[] inputs = new String[2];
+        if (scans != null) {
+          scans[0].reset();
+          scans[1].reset();
+        }
+
+        for (int i : rulesToTry(domain, attrPath, plainValue)) {
+          if (i < firstRule) {
+            continue;
+          }
+          Rule rule = config.rules.get(i);
+          if (rule.attrNameSnakeCase && attrNameSnakeCase == null) {
+            attrNameSnakeCase = toSnakeAndLowerCase(attrName, nameCacheHits);
+          }
+          if (cacheable && rule.matchesValue) {
+            config.rulesCache.put(mbeanName, attrPath, MatchedRule.resumeAt(i));
+            cacheable = false;
+          }
 
-        for (Rule rule : config.rules) {
           Matcher matcher = null;
-          String matchName = beanName + (rule.attrNameSnakeCase ? attrNameSnakeCase : attrName);
+          String input = null;
           if (rule.pattern != null) {
-            matcher = rule.pattern.matcher(matchName + ": " + beanValue);
+            int variant = rule.attrNameSnakeCase ? 1 : 0;
+            if (keys[variant] == null) {
+              keys[variant] = beanName + (rule.attrNameSnakeCase ? attrNameSnakeCase : attrName) + ": ";
+            }
+            if (plainValue && !rule.matchesValue) {
+              input = keys[variant];
+            } else {
+              if (inputs[variant] == null) {
+                inputs[variant] = keys[variant] + beanValue;
+              }
+              input = inputs[variant];
+            }
+            if (scans != null) {
+              // The scan is extended as the input grows from the key to the key and value.
+              LiteralPrefilter.Scan scan = scans[variant];
+              if (scan.length() < input.length()) {
+                scan.feed(input, scan.length());
+              }
+              if (!scan.mayMatch(i, input.length())) {
+                continue;
+              }
+            }
+            matcher = matcher(i, input);
             if (!matcher.matches()) {
               continue;
             }
           }
 
-          Number value;
-          if (rule.value != null && !rule.value.isEmpty()) {
-            String val = matcher.replaceAll(rule.value);
-
-            try {
-              beanValue = Double.valueOf(val);
-            } catch (NumberFormatException e) {
-              LOGGER.fine("Unable to parse configured value '" + val + "' to number for bean: " + beanName + attrName + ": " + beanValue);
-              return;
-            }
-          }
-          if (beanValue instanceof Number) {
-            value = ((Number)beanValue).doubleValue() * rule.valueFactor;
-          } else if (beanValue instanceof Boolean) {
-            value = (Boolean)beanValue ? 1 : 0;
-          } else {
-            LOGGER.fine("Ignoring unsupported bean: " + beanName + attrName + ": " + beanValue);
-            return;
+          MatchedRule matchedRule = resolveRule(rule, matcher, input, mbeanName, domain, beanProperties, attrKeys,
+              rule.attrNameSnakeCase ? attrNameSnakeCase : attrName, attrPath, help, beanValue);
+          if (cacheable) {
+            config.rulesCache.put(mbeanName, attrPath, matchedRule);
           }
+          addMatchedSample(matchedRule, attrPath, beanValue);
+          return;
+        }
+        if (cacheable) {
+          config.rulesCache.put(mbeanName, attrPath, MatchedRule.unmatched());
+        }
+      }
 
-          // If there's no name provided, use default export format.
-          if (rule.name == null) {
-            defaultExport(domain, beanProperties, attrKeys, rule.attrNameSnakeCase ? attrNameSnakeCase : attrName, help, value, rule.type);
-            return;
-          }
+      private Matcher matcher(int ruleIndex, String input) {
+        Matcher matcher = matchers[ruleIndex];
+        if (matcher == null) {
+          matcher = config.rules.get(ruleIndex).pattern.matcher(input);
+          matchers[ruleIndex] = matcher;
+          return matcher;
+        }
+        return matcher.reset(input);
+      }
 
-          // Matcher is set below here due to validation in the constructor.
-          String name = safeName(matcher.replaceAll(rule.name));
-          if (name.isEmpty()) {
-            return;
-          }
-          if (config.lowercaseOutputName) {
-            name = name.toLowerCase();
+      /**
+       * The rules that can match an attribute, in order.
+       */
+      private int[] rulesToTry(String domain, String attrPath, boolean plainValue) {
+        // The domain index relies on the bean name containing only the two structural '<' and the value
+        // containing none, see RulePatternAnalyzer.domainPattern.
+        if (!ruleIndexEnabled || !plainValue) {
+          return config.allRules;
+        }
+        int brackets = 0;
+        for (int i = 0; i < attrPath.length() && brackets <= 2; i++) {
+          if (attrPath.charAt(i) == '<') {
+            brackets++;
           }
+        }
+        if (brackets != 2) {
+          return config.allRules;
+        }
+        return config.candidateRules(domain);
+      }
 
-          // Set the help.
-          if (rule.help != null) {
-            help = matcher.replaceAll(rule.help);
+      /**
+       * Work out the name, labels, help and configured value for an attribute matched by a rule.
+       */
+      private MatchedRule resolveRule(
+          Rule rule,
+          Matcher matcher,
+          String input,
+          ObjectName mbeanName,
+          String domain,
+          Map<String, String> beanProperties,
+          LinkedList<String> attrKeys,
+          String attrName,
+          String attrPath,
+          String help,
+          Object beanValue) {
+        Double value = null;
+        if (rule.valueTemplate != null) {
+          String val = rule.valueTemplate.expand(input, matcher, buffer);
+
+          try {
+            value = Double.valueOf(val);
+          } catch (NumberFormatException e) {
+            LOGGER.fine("Unable to parse configured value '" + val + "' to number for bean: " + attrPath + ": " + beanValue);
+            return MatchedRule.unmatched();
           }
+        }
 
-          // Set the labels.
-          ArrayList<String> labelNames = new ArrayList<String>();
-          ArrayList<String> labelValues = new ArrayList<String>();
-          if (rule.labelNames != null) {
-            for (int i = 0; i < rule.labelNames.size(); i++) {
-              final String unsafeLabelName = rule.labelNames.get(i);
-              final String labelValReplacement = rule.labelValues.get(i);
-              try {
-                String labelName = safeName(matcher.replaceAll(unsafeLabelName));
-                String labelValue = matcher.replaceAll(labelValReplacement);
-                if (config.lowercaseOutputLabelNames) {
-                  labelName = labelName.toLowerCase();
-                }
-                if (!labelName.isEmpty() && !labelValue.isEmpty()) {
-                  labelNames.add(labelName);
-                  labelValues.add(labelValue);
-                }
-              } catch (Exception e) {
-                throw new RuntimeException(
-                  format("Matcher '%s' unable to use: '%s' value: '%s'", matcher, unsafeLabelName, labelValReplacement), e);
+        // If there's no name provided, use default export format.
+        if (rule.name == null) {
+          return defaultExport(mbeanName, domain, beanProperties, attrKeys, attrName, help, value, rule.valueFactor, rule.type);
+        }
+
+        // Matcher is set below here due to validation in the constructor.
+        String name = safeName(rule.nameTemplate.expand(input, matcher, buffer), nameCacheHits);
+        if (name.isEmpty()) {
+          return MatchedRule.unmatched();
+        }
+        if (config.lowercaseOutputName) {
+          name = toLowerCase(name, nameCacheHits);
+        }
+
+        // Set the help.
+        if (rule.helpTemplate != null) {
+          help = rule.helpTemplate.expand(input, matcher, buffer);
+        }
+
+        // Set the labels.
+        ArrayList<String> labelNames = new ArrayList<String>();
+        ArrayList<String> labelValues = new ArrayList<String>();
+        if (rule.labelNames != null) {
+          for (int i = 0; i < rule.labelNames.size(); i++) {
+            final String unsafeLabelName = rule.labelNames.get(i);
+            final String labelValReplacement = rule.labelValues.get(i);
+            try {
+              String labelName = safeName(rule.labelNameTemplates.get(i).expand(input, matcher, buffer), nameCacheHits);
+              String labelValue = rule.labelValueTemplates.get(i).expand(input, matcher, buffer);
+              if (config.lowercaseOutputLabelNames) {
+                labelName = toLowerCase(labelName, nameCacheHits);
+              }
+              if (!labelName.isEmpty() && !labelValue.isEmpty()) {
+                labelNames.add(labelName);
+                labelValues.add(labelValue);
               }
+            } catch (Exception e) {
+              throw new RuntimeException(
+                format("Matcher '%s' unable to use: '%s' value: '%s'", matcher, unsafeLabelName, labelValReplacement), e);
             }
           }
+        }
+
+        return new MatchedRule(name, internLabelNames(labelNames), labelValues, help, rule.type, value, rule.valueFactor);
+      }
 
-          // Add to samples.
-          LOGGER.fine("add metric sample: " + name + " " + labelNames + " " + labelValues + " " + value.doubleValue());
-          addSample(new MetricFamilySamples.Sample(name, labelNames, labelValues, value.doubleValue()), rule.type, help);
+      /**
+       * Apply the attribute value to a matched rule, and add the resulting sample.
+       */
+      private void addMatchedSample(MatchedRule matchedRule, String attrPath, Object beanValue) {
+        if (!matchedRule.isMatched()) {
+          return;
+        }
+        Object sampleValue = matchedRule.value != null ? matchedRule.value : beanValue;
+        double value;
+        if (sampleValue instanceof Number) {
+          value = ((Number)sampleValue).doubleValue() * matchedRule.valueFactor;
+        } else if (sampleValue instanceof Boolean) {
+          value = (Boolean)sampleValue ? 1 : 0;
+        } else {
+          LOGGER.fine("Ignoring unsupported bean: " + attrPath + ": " + beanValue);
           return;
         }
+
+        // Add to samples.
+        if (LOGGER.isLoggable(Level.FINE)) {
+          LOGGER.fine("add metric sample: " + matchedRule.name + " " + matchedRule.labelNames + " " + matchedRule.labelValues + " " + value);
+        }
+        sink.addSample(matchedRule.name, matchedRule.labelNames, matchedRule.labelValues, value,
+          matchedRule.type, matchedRule.help);
       }
 
     }
 
+    // Concurrent calls of collect() and writeText() share a scrape.
+    private final SingleFlight<List<MetricFamilySamples>> collectFlight = new SingleFlight<List<MetricFamilySamples>>() {
+      protected List<MetricFamilySamples> run() {
+        return collectOnce();
+      }
+    };
+    private final SingleFlight<Void> writeTextFlight = new SingleFlight<Void>() {
+      protected Void run() {
+        synchronized (textWriter) {
+          fillTextWriter();
+        }
+        return null;
+      }
+    };
+
     public List<MetricFamilySamples> collect() {
+      if (leftOut.get() != null) {
+        return new ArrayList<MetricFamilySamples>();
+      }
+      // A list of its own for each caller.
+      return new ArrayList<MetricFamilySamples>(collectFlight.get());
+    }
+
+    /**
+     * Collect the other collectors of a registry this collector is registered in, for a response that has the
+     * samples of this one written by {@link #writeText(Writer)}.
+     */
+    List<MetricFamilySamples> collectOthers(CollectorRegistry registry) {
+      leftOut.set(Boolean.TRUE);
+      try {
+        return Collections.list(registry.metricFamilySamples());
+      } finally {
+        leftOut.remove();
+      }
+    }
+
+    /**
+     * Collect only the samples with one of the names, as asked for with name[]. Only the attributes that rules
+     * which can produce those names can match are fetched, so this is cheaper than filtering the result of
+     * {@link #collect()}. With background scrapes the latest snapshot is filtered instead.
+     */
+    public List<MetricFamilySamples> collect(Set<String> names) {
+      if (names.isEmpty()) {
+        return collect();
+      }
+      List<MetricFamilySamples> mfsList;
+      if (config.get().backgroundScrapeIntervalSeconds == 0) {
+        SampleBuffer samples = takeSampleBuffer();
+        samples.reset();
+        try {
+          List<MetricFamilySamples> scrapeMetrics = scrape(new NameFilteringSink(samples, names), names);
+          mfsList = samples.toMetricFamilySamples();
+          mfsList.addAll(scrapeMetrics);
+        } finally {
+          returnSampleBuffer(samples);
+        }
+      } else {
+        mfsList = collect();
+      }
+      List<MetricFamilySamples> filtered = new ArrayList<MetricFamilySamples>();
+      for (MetricFamilySamples mfs : mfsList) {
+        // The samples of a family all have its name.
+        if (names.contains(mfs.name)) {
+          filtered.add(mfs);
+        }
+      }
+      return filtered;
+    }
+
+    /**
+     * Passes on the samples with one of the names.
+     */
+    private static class NameFilteringSink implements SampleSink {
+      private final SampleSink sink;
+      private final Set<String> names;
+
+      NameFilteringSink(SampleSink sink, Set<String> names) {
+        this.sink = sink;
+        this.names = names;
+      }
+
+      public void addSample(String name, List<String> labelNames, List<String> labelValues, double value,
+                            Type type, String help) {
+        if (names.contains(name)) {
+          sink.addSample(name, labelNames, labelValues, value, type, help);
+        }
+      }
+    }
+
+    private List<MetricFamilySamples> collectOnce() {
+      if (config.get().backgroundScrapeIntervalSeconds == 0) {
+        SampleBuffer samples = takeSampleBuffer();
+        samples.reset();
+        try {
+          List<MetricFamilySamples> scrapeMetrics = scrape(samples, null);
+          List<MetricFamilySamples> mfsList = samples.toMetricFamilySamples();
+          mfsList.addAll(scrapeMetrics);
+          return mfsList;
+        } finally {
+          returnSampleBuffer(samples);
+        }
+      }
+      startBackgroundScrapes();
+      while (true) {
+        Snapshot latest = latestSnapshot();
+        synchronized (latest.samples) {
+          if (latest.samples.getGeneration() != latest.generation) {
+            // Replaced and reused since, try the newer one.
+            continue;
+          }
+          List<MetricFamilySamples> mfsList = latest.samples.toMetricFamilySamples();
+          mfsList.addAll(latest.scrapeMetrics);
+          mfsList.add(snapshotAge(latest));
+          return mfsList;
+        }
+      }
+    }
+
+    /**
+     * Returns the latest background snapshot, or null if there is none yet or scrapes aren't in the background.
+     */
+    Snapshot getSnapshot() {
+      return snapshot;
+    }
+
+    private Snapshot latestSnapshot() {
+      Snapshot latest = snapshot;
+      if (latest == null) {
+        // Nothing scraped yet.
+        latest = takeSnapshot();
+      }
+      return latest;
+    }
+
+    static MetricFamilySamples snapshotAge(Snapshot snapshot) {
+      List<MetricFamilySamples.Sample> samples = new ArrayList<MetricFamilySamples.Sample>();
+      samples.add(new MetricFamilySamples.Sample(
+          "jmx_scrape_snapshot_age_seconds", new ArrayList<String>(), new ArrayList<String>(),
+          (System.nanoTime() - snapshot.takenAtNanos) / 1.0E9));
+      return new MetricFamilySamples("jmx_scrape_snapshot_age_seconds", Type.GAUGE,
+          "Time since the background JMX scrape these metrics are from, in seconds.", samples);
+    }
+
+    private Snapshot takeSnapshot() {
+      SampleBuffer samples = takeSampleBuffer();
+      Snapshot latest;
+      // Readers of an older snapshot in this buffer wait, and then see that it was reused.
+      synchronized (samples) {
+        long generation = samples.reset();
+        List<MetricFamilySamples> scrapeMetrics;
+        try {
+          scrapeMetrics = scrape(samples, null);
+        } catch (RuntimeException e) {
+          returnSampleBuffer(samples);
+          throw e;
+        }
+        latest = new Snapshot(samples, generation, Collections.unmodifiableList(scrapeMetrics), System.nanoTime());
+      }
+      Snapshot previous;
+      synchronized (this) {
+        previous = snapshot;
+        snapshot = latest;
+      }
+      if (previous != null) {
+        returnSampleBuffer(previous.samples);
+      }
+      return latest;
+    }
+
+    private SampleBuffer takeSampleBuffer() {
+      synchronized (spareSampleBuffers) {
+        if (!spareSampleBuffers.isEmpty()) {
+          return spareSampleBuffers.removeFirst();
+        }
+      }
+      return new SampleBuffer();
+    }
+
+    private void returnSampleBuffer(SampleBuffer samples) {
+      synchronized (spareSampleBuffers) {
+        if (spareSampleBuffers.size() < SPARE_SAMPLE_BUFFERS) {
+          spareSampleBuffers.add(samples);
+        }
+      }
+    }
+
+    /**
+     * Returns the shared list equal to the given label names.
+     */
+    List<String> internLabelNames(List<String> labelNames) {
+      List<String> interned = labelNameLists.get(labelNames);
+      if (interned != null) {
+        return interned;
+      }
+      interned = Collections.unmodifiableList(new ArrayList<String>(labelNames));
+      if (labelNameLists.size() < MAX_LABEL_NAME_LISTS) {
+        List<String> previous = labelNameLists.putIfAbsent(interned, interned);
+        if (previous != null) {
+          return previous;
+        }
+      }
+      return interned;
+    }
+
+    private synchronized void startBackgroundScrapes() {
+      if (backgroundScraper != null) {
+        return;
+      }
+      backgroundScraper = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        public Thread newThread(Runnable runnable) {
+          Thread thread = new Thread(runnable, "jmx-background-scrape");
+          thread.setDaemon(true);
+          return thread;
+        }
+      });
+      scheduleBackgroundScrape();
+    }
+
+    /**
+     * Schedule the next background scrape, or stop if they've been turned off by a config reload.
+     */
+    private synchronized void scheduleBackgroundScrape() {
+      if (config.get().backgroundScrapeIntervalSeconds == 0) {
+        backgroundScraper.shutdown();
+        backgroundScraper = null;
+        snapshot = null;
+        return;
+      }
+      backgroundScraper.schedule(new Runnable() {
+        public void run() {
+          try {
+            takeSnapshot();
+          } catch (RuntimeException e) {
+            // Such as still waiting for startDelaySeconds, keep the previous snapshot.
+            LOGGER.fine("Background JMX scrape failed: " + e);
+          }
+          scheduleBackgroundScrape();
+        }
+      }, config.get().backgroundScrapeIntervalSeconds, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Scrape and write the samples in the text exposition format. Unlike writing the result of {@link #collect()},
+     * this doesn't build MetricFamilySamples for the samples of the mBeans, but writes them to reused buffers.
+     * Concurrent calls share a scrape.
+     */
+    public void writeText(Writer writer) throws IOException {
+      Snapshot written = writeSnapshotText(writer);
+      if (written != null) {
+        synchronized (snapshotAgeWriter) {
+          snapshotAgeWriter.reset();
+          snapshotAgeWriter.addFamily(snapshotAge(written));
+          snapshotAgeWriter.writeTo(writer);
+        }
+      }
+    }
+
+    /**
+     * Write the samples like {@link #writeText(Writer)}, without the age of the background snapshot they are from.
+     * Returns that snapshot, or null if the samples were scraped for this call. The samples of a snapshot are only
+     * written into the buffers once, and what is written stays the same until the next snapshot.
+     */
+    Snapshot writeSnapshotText(Writer writer) throws IOException {
+      writeTextFlight.get();
+      synchronized (textWriter) {
+        if (!textWriterFilled) {
+          // A later scrape failed half way.
+          fillTextWriter();
+        }
+        textWriter.writeTo(writer);
+        return textWriterSnapshot;
+      }
+    }
+
+    /**
+     * Scrape into the text writer, the caller holds its lock.
+     */
+    private void fillTextWriter() {
+      if (config.get().backgroundScrapeIntervalSeconds == 0) {
+        textWriterFilled = false;
+        textWriterSnapshot = null;
+        textWriter.reset();
+        for (MetricFamilySamples mfs : scrape(textWriter, null)) {
+          textWriter.addFamily(mfs);
+        }
+        textWriterFilled = true;
+        return;
+      }
+      startBackgroundScrapes();
+      while (true) {
+        Snapshot latest = latestSnapshot();
+        if (textWriterFilled && textWriterSnapshot == latest) {
+          // Still holds it.
+          return;
+        }
+        textWriterFilled = false;
+        textWriter.reset();
+        synchronized (latest.samples) {
+          if (latest.samples.getGeneration() != latest.generation) {
+            continue;
+          }
+          latest.samples.replayTo(textWriter);
+        }
+        for (MetricFamilySamples mfs : latest.scrapeMetrics) {
+          textWriter.addFamily(mfs);
+        }
+        textWriterSnapshot = latest;
+        textWriterFilled = true;
+        return;
+      }
+    }
+
+    /**
+     * Scrape the mBeans into the sink, and return the scrape's own metrics.
+     *
+     * @param names if not null, only fetch what the rules that can produce samples with these names can match.
+     */
+    private List<MetricFamilySamples> scrape(SampleSink sink, Set<String> names) {
+      Config config = this.config.get();
       if (configFile != null) {
         long mtime = configFile.lastModified();
         if (mtime > config.lastUpdate) {
           LOGGER.fine("Configuration file changed, reloading...");
-          reloadConfig();
+          reloadConfig(config);
+          config = this.config.get();
         }
       }
 
-      Receiver receiver = new Receiver();
-      JmxScraper scraper = new JmxScraper(config.jmxUrl, config.username, config.password, config.ssl,
-              config.whitelistObjectNames, config.blacklistObjectNames, receiver, jmxMBeanPropertyCache);
+      Receiver receiver = new Receiver(config, sink);
+      ScrapeFilter scrapeFilter = scrapeFilterEnabled ? config.scrapeFilter : ScrapeFilter.ALL;
+      ScrapeFilter fetchFilter = scrapeFilter;
+      if (names != null && scrapeFilterEnabled) {
+        fetchFilter = config.scrapeFilter(names);
+      }
+      JmxScraper scraper = new JmxScraper(getConnectionManager(config),
+              config.whitelistObjectNames, config.blacklistObjectNames,
+              fetchFilter, receiver, jmxMBeanPropertyCache,
+              jmxMBeanInfoCache);
+      // The discovery is kept for the full filter, which queries the same mBeans.
+      scraper.setMBeanDiscovery(getMBeanDiscovery(config, scrapeFilter));
+      // Values fetched for some names only must not be served to later full scrapes.
+      scraper.setMBeanValueCache(names == null ? config.mbeanValueCache : null);
+      scraper.setQuarantine(config.quarantine);
+      ExecutorService executor = getScrapeExecutor(config);
+      if (executor != null) {
+        scraper.setExecutor(executor, config.scrapeParallelism);
+        if (config.scrapeTimeoutSeconds > 0 || config.beanTimeoutSeconds > 0) {
+          scraper.setTimeouts((long) (config.scrapeTimeoutSeconds * 1.0E9), (long) (config.beanTimeoutSeconds * 1.0E9),
+              beansBeingFetched);
+        }
+      }
+      jmxMBeanInfoCache.setTtlSeconds(config.mbeanInfoCacheTtlSeconds);
       long start = System.nanoTime();
       double error = 0;
       if ((config.startDelaySeconds > 0) &&
@@ -453,15 +1479,27 @@ public class JmxCollector extends Collector implements Collector.Describable {
         throw new IllegalStateException("JMXCollector waiting for startDelaySeconds");
       }
       try {
-        scraper.doScrape();
+        if (!fetchFilter.isEmpty()) {
+          scraper.doScrape();
+        }
+        // Forget rule matches of mBeans that have gone away.
+        List<ObjectName> removedMBeans = scraper.getRemovedMBeans();
+        if (removedMBeans != null) {
+          for (ObjectName mbeanName : removedMBeans) {
+            config.rulesCache.invalidate(mbeanName);
+          }
+        } else if (names == null) {
+          // A scrape for some names may not have seen all mBeans, that's left to the next full one.
+          config.rulesCache.onlyKeepMBeans(jmxMBeanPropertyCache.getKeyPropertiesPerBean().keySet());
+        }
       } catch (Exception e) {
         error = 1;
         StringWriter sw = new StringWriter();
         e.printStackTrace(new PrintWriter(sw));
         LOGGER.severe("JMX scrape failed: " + sw.toString());
       }
+      receiver.nameCacheHits.flush();
       List<MetricFamilySamples> mfsList = new ArrayList<MetricFamilySamples>();
-      mfsList.addAll(receiver.metricFamilySamplesMap.values());
       List<MetricFamilySamples.Sample> samples = new ArrayList<MetricFamilySamples.Sample>();
       samples.add(new MetricFamilySamples.Sample(
           "jmx_scrape_duration_seconds", new ArrayList<String>(), new ArrayList<String>(), (System.nanoTime() - start) / 1.0E9));
@@ -471,16 +1509,118 @@ public class JmxCollector extends Collector implements Collector.Describable {
       samples.add(new MetricFamilySamples.Sample(
           "jmx_scrape_error", new ArrayList<String>(), new ArrayList<String>(), error));
       mfsList.add(new MetricFamilySamples("jmx_scrape_error", Type.GAUGE, "Non-zero if this scrape failed.", samples));
+
+      samples = new ArrayList<MetricFamilySamples.Sample>();
+      samples.add(new MetricFamilySamples.Sample(
+          "jmx_scrape_timed_out", new ArrayList<String>(), new ArrayList<String>(), scraper.isTimedOut() ? 1 : 0));
+      mfsList.add(new MetricFamilySamples("jmx_scrape_timed_out", Type.GAUGE, "Non-zero if this scrape reached its deadline and is partial.", samples));
+
+      samples = new ArrayList<MetricFamilySamples.Sample>();
+      samples.add(new MetricFamilySamples.Sample(
+          "jmx_scrape_beans_skipped", new ArrayList<String>(), new ArrayList<String>(), scraper.getSkippedBeans()));
+      mfsList.add(new MetricFamilySamples("jmx_scrape_beans_skipped", Type.GAUGE, "Number of mBeans left out of this scrape because of timeouts.", samples));
+
+      JmxMBeanQuarantine quarantine = config.quarantine;
+      if (quarantine != null) {
+        samples = new ArrayList<MetricFamilySamples.Sample>();
+        samples.add(new MetricFamilySamples.Sample(
+            "jmx_scrape_beans_quarantined", new ArrayList<String>(), new ArrayList<String>(), scraper.getQuarantinedBeans()));
+        mfsList.add(new MetricFamilySamples("jmx_scrape_beans_quarantined", Type.GAUGE, "Number of mBeans left out of this scrape because they are quarantined.", samples));
+
+        samples = new ArrayList<MetricFamilySamples.Sample>();
+        long now = System.nanoTime();
+        for (Map.Entry<ObjectName, JmxMBeanQuarantine.Entry> entry : new TreeMap<ObjectName, JmxMBeanQuarantine.Entry>(quarantine.getEntries()).entrySet()) {
+          if (!JmxMBeanQuarantine.isActive(entry.getValue(), now)) {
+            continue;
+          }
+          samples.add(new MetricFamilySamples.Sample(
+              "jmx_mbean_quarantine_remaining_seconds", Arrays.asList("mbean", "reason"),
+              Arrays.asList(entry.getKey().toString(), entry.getValue().reason), entry.getValue().remainingSeconds(now)));
+        }
+        mfsList.add(new MetricFamilySamples("jmx_mbean_quarantine_remaining_seconds", Type.GAUGE, "Time until a quarantined mBean is scraped again, in seconds.", samples));
+      }
       return mfsList;
     }
 
+    /**
+     * The quarantined mBeans, or null if quarantining is not configured.
+     */
+    JmxMBeanQuarantine getQuarantine() {
+      return config.get().quarantine;
+    }
+
     public List<MetricFamilySamples> describe() {
+      Config config = this.config.get();
       List<MetricFamilySamples> sampleFamilies = new ArrayList<MetricFamilySamples>();
       sampleFamilies.add(new MetricFamilySamples("jmx_scrape_duration_seconds", Type.GAUGE, "Time this JMX scrape took, in seconds.", new ArrayList<MetricFamilySamples.Sample>()));
       sampleFamilies.add(new MetricFamilySamples("jmx_scrape_error", Type.GAUGE, "Non-zero if this scrape failed.", new ArrayList<MetricFamilySamples.Sample>()));
+      sampleFamilies.add(new MetricFamilySamples("jmx_scrape_timed_out", Type.GAUGE, "Non-zero if this scrape reached its deadline and is partial.", new ArrayList<MetricFamilySamples.Sample>()));
+      sampleFamilies.add(new MetricFamilySamples("jmx_scrape_beans_skipped", Type.GAUGE, "Number of mBeans left out of this scrape because of timeouts.", new ArrayList<MetricFamilySamples.Sample>()));
+      if (config.quarantine != null) {
+        sampleFamilies.add(new MetricFamilySamples("jmx_scrape_beans_quarantined", Type.GAUGE, "Number of mBeans left out of this scrape because they are quarantined.", new ArrayList<MetricFamilySamples.Sample>()));
+        sampleFamilies.add(new MetricFamilySamples("jmx_mbean_quarantine_remaining_seconds", Type.GAUGE, "Time until a quarantined mBean is scraped again, in seconds.", new ArrayList<MetricFamilySamples.Sample>()));
+      }
+      if (config.backgroundScrapeIntervalSeconds > 0) {
+        sampleFamilies.add(new MetricFamilySamples("jmx_scrape_snapshot_age_seconds", Type.GAUGE, "Time since the background JMX scrape these metrics are from, in seconds.", new ArrayList<MetricFamilySamples.Sample>()));
+      }
+      // The families of rules with a fixed name. Other names depend on the mBeans, and can't be known up front.
+      Set<String> names = new HashSet<String>();
+      for (MetricFamilySamples mfs : sampleFamilies) {
+        names.add(mfs.name);
+      }
+      for (Rule rule : describeRuleFamilies ? config.rules : Collections.<Rule>emptyList()) {
+        if (rule.nameTemplate == null || !rule.nameTemplate.isConstant()) {
+          continue;
+        }
+        String name = safeName(rule.nameTemplate.getLiterals().get(0));
+        if (config.lowercaseOutputName) {
+          name = toLowerCase(name);
+        }
+        if (name.isEmpty() || !names.add(name)) {
+          continue;
+        }
+        String help = rule.helpTemplate != null && rule.helpTemplate.isConstant()
+            ? rule.helpTemplate.getLiterals().get(0) : "";
+        sampleFamilies.add(new MetricFamilySamples(name, rule.type, help, new ArrayList<MetricFamilySamples.Sample>()));
+        // A registry also expects the samples of these types under their own names.
+        if (rule.type == Type.SUMMARY || rule.type == Type.HISTOGRAM) {
+          declaredNames.add(name + "_count");
+          declaredNames.add(name + "_sum");
+          declaredNames.add(name + "_bucket");
+        }
+      }
+      declaredNames.addAll(names);
       return sampleFamilies;
     }
 
+    /**
+     * Registers the collector, without the families of its rules if a rule is named like a metric of another
+     * collector of the registry. The registry refuses names that two collectors declare, and rules could always
+     * produce such names before their families were declared.
+     */
+    @Override
+    public <T extends Collector> T register(CollectorRegistry registry) {
+      try {
+        return super.register(registry);
+      } catch (IllegalArgumentException e) {
+        if (!describeRuleFamilies) {
+          throw e;
+        }
+        LOGGER.warning("Not declaring the metric families of the rules: " + e.getMessage());
+        describeRuleFamilies = false;
+        declaredNames.clear();
+        return super.register(registry);
+      }
+    }
+
+    /**
+     * All names describe() has returned so far. A registry routes requests for those names to collect(), so
+     * a caller that asked {@link #collect(Set)} for them must not ask the registry for them too.
+     */
+    Set<String> getDeclaredNames() {
+      return declaredNames;
+    }
+
     /**
      * Convenience function to run standalone.
      */
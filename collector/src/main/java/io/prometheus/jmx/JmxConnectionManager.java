@@ -0,0 +1,295 @@
+package io.prometheus.jmx;
+
+import io.prometheus.client.Counter;
+import io.prometheus.client.Summary;
+
+import javax.management.MBeanServerConnection;
+import javax.management.Notification;
+import javax.management.NotificationListener;
+import javax.management.remote.JMXConnectionNotification;
+import javax.management.remote.JMXConnector;
+import javax.management.remote.JMXConnectorFactory;
+import javax.management.remote.JMXServiceURL;
+import javax.management.remote.rmi.RMIConnectorServer;
+import javax.naming.Context;
+import javax.rmi.ssl.SslRMIClientSocketFactory;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * Keeps a remote JMX connection open across scrapes.
+ *
+ * The connection is dropped when the connector reports that it failed or was closed, or when a scrape fails with
+ * an IOException, and is re-established by the next scrape. After a failed connect, further attempts are delayed
+ * with an exponential backoff. Optionally, a connection that is idle for too long is closed.
+ */
+class JmxConnectionManager implements NotificationListener {
+    static final Summary connectDuration = Summary.build()
+      .name("jmx_connect_duration_seconds")
+      .help("Time taken to establish remote JMX connections, in seconds.").register();
+
+    static final Counter connectFailures = Counter.build()
+      .name("jmx_connect_failures_total")
+      .help("Number of times a remote JMX connection could not be established.").register();
+
+    static final Counter reconnects = Counter.build()
+      .name("jmx_reconnects_total")
+      .help("Number of times a remote JMX connection was established again after it was lost or closed.").register();
+
+    private static final Logger LOGGER = Logger.getLogger(JmxConnectionManager.class.getName());
+
+    static final long MIN_BACKOFF_MILLIS = 1000;
+    static final long MAX_BACKOFF_MILLIS = 60000;
+
+    private static ScheduledExecutorService idleCloser;
+
+    private final String jmxUrl;
+    private final String username;
+    private final String password;
+    private final boolean ssl;
+    private final long idleTimeoutMillis;
+
+    private JMXConnector connector;
+    private MBeanServerConnection connection;
+    private boolean connectedBefore;
+    private boolean notificationsLost;
+    // Whether the BulkScraper is to be used on the connection, null until checked.
+    private Boolean bulkScraper;
+    // Number of scrapes using the connection, and when the last one ended.
+    private int users;
+    private long lastUsedMillis;
+    private long backoffMillis;
+    private long nextAttemptMillis;
+
+    /**
+     * @param idleTimeoutSeconds close the connection after it hasn't been used for this long, 0 to keep it open.
+     */
+    public JmxConnectionManager(String jmxUrl, String username, String password, boolean ssl, int idleTimeoutSeconds) {
+        this.jmxUrl = jmxUrl;
+        this.username = username;
+        this.password = password;
+        this.ssl = ssl;
+        this.idleTimeoutMillis = TimeUnit.SECONDS.toMillis(idleTimeoutSeconds);
+    }
+
+    /**
+     * Whether this manager connects with the given settings.
+     */
+    boolean isFor(String jmxUrl, String username, String password, boolean ssl, int idleTimeoutSeconds) {
+        return equal(this.jmxUrl, jmxUrl) && equal(this.username, username) && equal(this.password, password)
+            && this.ssl == ssl && this.idleTimeoutMillis == TimeUnit.SECONDS.toMillis(idleTimeoutSeconds);
+    }
+
+    /**
+     * Whether the connection is to another JVM.
+     */
+    boolean isRemote() {
+        return !jmxUrl.isEmpty();
+    }
+
+    private static boolean equal(String a, String b) {
+        return a == null ? b == null : a.equals(b);
+    }
+
+    /**
+     * Returns the connection to scrape, connecting if needed. With an empty jmxUrl this is the local platform
+     * mBean server. Each successful call must be followed by a call to {@link #release()}.
+     */
+    public synchronized MBeanServerConnection getConnection() throws IOException {
+        if (jmxUrl.isEmpty()) {
+            return ManagementFactory.getPlatformMBeanServer();
+        }
+        if (connection == null) {
+            connect();
+        }
+        users++;
+        return connection;
+    }
+
+    /**
+     * Signal that a scrape is done with the connection.
+     */
+    public synchronized void release() {
+        if (jmxUrl.isEmpty()) {
+            return;
+        }
+        users--;
+        lastUsedMillis = System.currentTimeMillis();
+    }
+
+    private void connect() throws IOException {
+        long now = System.currentTimeMillis();
+        if (now < nextAttemptMillis) {
+            throw new IOException("Not connecting to " + jmxUrl + " for another "
+                + (nextAttemptMillis - now) + "ms after the last attempt failed");
+        }
+
+        Map<String, Object> environment = new HashMap<String, Object>();
+        if (username != null && username.length() != 0 && password != null && password.length() != 0) {
+          String[] credent = new String[] {username, password};
+          environment.put(javax.management.remote.JMXConnector.CREDENTIALS, credent);
+        }
+        if (ssl) {
+            environment.put(Context.SECURITY_PROTOCOL, "ssl");
+            SslRMIClientSocketFactory clientSocketFactory = new SslRMIClientSocketFactory();
+            environment.put(RMIConnectorServer.RMI_CLIENT_SOCKET_FACTORY_ATTRIBUTE, clientSocketFactory);
+            environment.put("com.sun.jndi.rmi.factory.socket", clientSocketFactory);
+        }
+
+        long start = System.nanoTime();
+        JMXConnector jmxc = null;
+        MBeanServerConnection beanConn;
+        try {
+            jmxc = JMXConnectorFactory.connect(new JMXServiceURL(jmxUrl), environment);
+            jmxc.addConnectionNotificationListener(this, null, jmxc);
+            beanConn = jmxc.getMBeanServerConnection();
+        } catch (IOException e) {
+            closeQuietly(jmxc);
+            connectFailures.inc();
+            backoffMillis = backoffMillis == 0 ? MIN_BACKOFF_MILLIS : Math.min(backoffMillis * 2, MAX_BACKOFF_MILLIS);
+            nextAttemptMillis = System.currentTimeMillis() + backoffMillis;
+            throw e;
+        } catch (RuntimeException e) {
+            closeQuietly(jmxc);
+            connectFailures.inc();
+            throw e;
+        }
+        connectDuration.observe((System.nanoTime() - start) / 1.0E9);
+        if (connectedBefore) {
+            reconnects.inc();
+        }
+        connectedBefore = true;
+        connector = jmxc;
+        connection = beanConn;
+        lastUsedMillis = System.currentTimeMillis();
+        backoffMillis = 0;
+        nextAttemptMillis = 0;
+        scheduleIdleCheck();
+    }
+
+    synchronized boolean isConnected() {
+        return connection != null;
+    }
+
+    /**
+     * Drop the connection after a scrape failed on it, so the next scrape reconnects.
+     */
+    public synchronized void connectionFailed() {
+        close();
+    }
+
+    /**
+     * Close the connection, if any.
+     */
+    public synchronized void close() {
+        if (connector != null) {
+            try {
+                connector.removeConnectionNotificationListener(this);
+            } catch (Exception e) {
+                // Already removed.
+            }
+            closeQuietly(connector);
+        }
+        connector = null;
+        connection = null;
+        bulkScraper = null;
+    }
+
+    private void closeQuietly(JMXConnector jmxc) {
+        if (jmxc == null) {
+            return;
+        }
+        try {
+            jmxc.close();
+        } catch (IOException e) {
+            LOGGER.fine("Closing JMX connection to " + jmxUrl + " failed: " + e);
+        }
+    }
+
+    /**
+     * Returns whether the {@link BulkScraper} on the other side of the connection is to be used, or null if that
+     * isn't known yet. This is kept until the connection is closed.
+     */
+    synchronized Boolean getBulkScraper() {
+        return bulkScraper;
+    }
+
+    /**
+     * Records whether the {@link BulkScraper} is to be used, unless the connection was replaced in the meantime.
+     */
+    synchronized void setBulkScraper(MBeanServerConnection beanConn, boolean use) {
+        if (beanConn == connection) {
+            bulkScraper = use;
+        }
+    }
+
+    /**
+     * Returns whether the connector reported that notifications were lost since the last call.
+     */
+    synchronized boolean takeNotificationsLost() {
+        boolean lost = notificationsLost;
+        notificationsLost = false;
+        return lost;
+    }
+
+    public synchronized void handleNotification(Notification notification, Object handback) {
+        String type = notification.getType();
+        if (handback != connector) {
+            return;
+        }
+        if (JMXConnectionNotification.FAILED.equals(type) || JMXConnectionNotification.CLOSED.equals(type)) {
+            LOGGER.fine("JMX connection to " + jmxUrl + " lost: " + type);
+            close();
+        } else if (JMXConnectionNotification.NOTIFS_LOST.equals(type)) {
+            notificationsLost = true;
+        }
+    }
+
+    private void scheduleIdleCheck() {
+        if (idleTimeoutMillis <= 0) {
+            return;
+        }
+        synchronized (JmxConnectionManager.class) {
+            if (idleCloser == null) {
+                idleCloser = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                    public Thread newThread(Runnable runnable) {
+                        Thread thread = new Thread(runnable, "jmx-connection-idle-closer");
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+            }
+        }
+        final JMXConnector scheduledFor = connector;
+        idleCloser.schedule(new Runnable() {
+            public void run() {
+                closeIfIdle(scheduledFor);
+            }
+        }, idleTimeoutMillis, TimeUnit.MILLISECONDS);
+    }
+
+    private synchronized void closeIfIdle(JMXConnector scheduledFor) {
+        if (connector != scheduledFor) {
+            return;
+        }
+        long idleMillis = users > 0 ? 0 : System.currentTimeMillis() - lastUsedMillis;
+        if (idleMillis >= idleTimeoutMillis) {
+            LOGGER.fine("Closing JMX connection to " + jmxUrl + " after " + idleMillis + "ms idle");
+            close();
+        } else {
+            final JMXConnector connector = this.connector;
+            idleCloser.schedule(new Runnable() {
+                public void run() {
+                    closeIfIdle(connector);
+                }
+            }, idleTimeoutMillis - idleMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+}
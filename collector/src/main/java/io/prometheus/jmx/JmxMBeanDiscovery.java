@@ -0,0 +1,191 @@
+package io.prometheus.jmx;
+
+import javax.management.MBeanServerConnection;
+import javax.management.MBeanServerDelegate;
+import javax.management.MBeanServerNotification;
+import javax.management.Notification;
+import javax.management.NotificationListener;
+import javax.management.ObjectInstance;
+import javax.management.ObjectName;
+import javax.management.relation.MBeanServerNotificationFilter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * Keeps track of the whitelisted mBeans across scrapes, so they don't have to be queried on every scrape.
+ *
+ * After an initial query, the set is updated from the registration and unregistration notifications of the
+ * MBeanServerDelegate. As notifications can be lost, all mBeans are queried again periodically, after the
+ * connector reported lost notifications, and when the connection changes.
+ */
+class JmxMBeanDiscovery implements NotificationListener {
+    private static final Logger LOGGER = Logger.getLogger(JmxMBeanDiscovery.class.getName());
+
+    /**
+     * How the mBeans changed in an update.
+     */
+    static class Changes {
+        // Whether all mBeans were queried, in which case removed is empty.
+        final boolean resynced;
+        final List<ObjectName> removed;
+
+        Changes(boolean resynced, List<ObjectName> removed) {
+            this.resynced = resynced;
+            this.removed = removed;
+        }
+    }
+
+    private final List<ObjectName> whitelistObjectNames, blacklistObjectNames;
+    private final ScrapeFilter scrapeFilter;
+    private final long resyncIntervalNanos;
+
+    // Sorted, so that the mBeans are scraped in the same order whatever the history of the set.
+    private final Map<ObjectName, ObjectInstance> mBeans = new ConcurrentSkipListMap<ObjectName, ObjectInstance>();
+    private final Queue<MBeanServerNotification> notifications = new ConcurrentLinkedQueue<MBeanServerNotification>();
+    private MBeanServerConnection listeningTo;
+    private long lastResyncNanos;
+
+    JmxMBeanDiscovery(List<ObjectName> whitelistObjectNames, List<ObjectName> blacklistObjectNames,
+                      ScrapeFilter scrapeFilter, int resyncIntervalSeconds) {
+        this.whitelistObjectNames = whitelistObjectNames;
+        this.blacklistObjectNames = blacklistObjectNames;
+        this.scrapeFilter = scrapeFilter;
+        this.resyncIntervalNanos = TimeUnit.SECONDS.toNanos(resyncIntervalSeconds);
+    }
+
+    /**
+     * Whether this discovers the mBeans for the given settings.
+     */
+    boolean isFor(List<ObjectName> whitelistObjectNames, List<ObjectName> blacklistObjectNames,
+                  ScrapeFilter scrapeFilter, int resyncIntervalSeconds) {
+        return this.whitelistObjectNames == whitelistObjectNames && this.blacklistObjectNames == blacklistObjectNames
+            && this.scrapeFilter.hasSameMBeans(scrapeFilter) && this.resyncIntervalNanos == TimeUnit.SECONDS.toNanos(resyncIntervalSeconds);
+    }
+
+    /**
+     * The whitelisted mBeans as of the last update. The map is updated in place by later updates.
+     */
+    Map<ObjectName, ObjectInstance> getMBeans() {
+        return Collections.unmodifiableMap(mBeans);
+    }
+
+    /**
+     * Bring the mBeans up to date with the connection.
+     *
+     * @param notificationsLost whether notifications may have been lost since the last update.
+     */
+    synchronized Changes update(MBeanServerConnection beanConn, boolean notificationsLost) throws IOException {
+        long now = System.nanoTime();
+        if (beanConn != listeningTo) {
+            stopListening();
+            listenTo(beanConn);
+            resync(beanConn, now);
+            return new Changes(true, Collections.<ObjectName>emptyList());
+        }
+        if (notificationsLost || now - lastResyncNanos >= resyncIntervalNanos) {
+            resync(beanConn, now);
+            return new Changes(true, Collections.<ObjectName>emptyList());
+        }
+
+        List<ObjectName> removed = new ArrayList<ObjectName>();
+        MBeanServerNotification notification;
+        while ((notification = notifications.poll()) != null) {
+            ObjectName mbeanName = notification.getMBeanName();
+            if (MBeanServerNotification.UNREGISTRATION_NOTIFICATION.equals(notification.getType())) {
+                if (mBeans.remove(mbeanName) != null) {
+                    removed.add(mbeanName);
+                }
+            } else if (isWhitelisted(mbeanName) && scrapeFilter.isNeeded(mbeanName)) {
+                // The query tells whether the mBean is still there.
+                Set<ObjectInstance> instances = beanConn.queryMBeans(mbeanName, null);
+                if (instances.isEmpty()) {
+                    if (mBeans.remove(mbeanName) != null) {
+                        removed.add(mbeanName);
+                    }
+                } else {
+                    mBeans.put(mbeanName, instances.iterator().next());
+                }
+            }
+        }
+        return new Changes(false, removed);
+    }
+
+    private boolean isWhitelisted(ObjectName mbeanName) {
+        for (ObjectName name : blacklistObjectNames) {
+            if (name == null || name.apply(mbeanName)) {
+                return false;
+            }
+        }
+        for (ObjectName name : whitelistObjectNames) {
+            if (name == null || name.apply(mbeanName)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void resync(MBeanServerConnection beanConn, long now) throws IOException {
+        // Events up to here are covered by the query.
+        notifications.clear();
+        Map<ObjectName, ObjectInstance> latest = new HashMap<ObjectName, ObjectInstance>();
+        for (ObjectName name : whitelistObjectNames) {
+            scrapeFilter.queryMBeans(beanConn, name, latest);
+        }
+
+        for (ObjectName name : blacklistObjectNames) {
+            for (ObjectInstance instance : beanConn.queryMBeans(name, null)) {
+                latest.remove(instance.getObjectName());
+            }
+        }
+        mBeans.keySet().retainAll(latest.keySet());
+        mBeans.putAll(latest);
+        lastResyncNanos = now;
+    }
+
+    private void listenTo(MBeanServerConnection beanConn) {
+        MBeanServerNotificationFilter filter = new MBeanServerNotificationFilter();
+        filter.enableAllObjectNames();
+        try {
+            beanConn.addNotificationListener(MBeanServerDelegate.DELEGATE_NAME, this, filter, null);
+            listeningTo = beanConn;
+        } catch (Exception e) {
+            // Query all mBeans on every scrape instead.
+            LOGGER.fine("Unable to listen for mBean registration: " + e);
+            listeningTo = null;
+        }
+    }
+
+    private void stopListening() {
+        if (listeningTo != null) {
+            try {
+                listeningTo.removeNotificationListener(MBeanServerDelegate.DELEGATE_NAME, this);
+            } catch (Exception e) {
+                // The connection is gone.
+            }
+            listeningTo = null;
+        }
+    }
+
+    /**
+     * Stop listening for notifications.
+     */
+    synchronized void close() {
+        stopListening();
+    }
+
+    public void handleNotification(Notification notification, Object handback) {
+        if (notification instanceof MBeanServerNotification) {
+            notifications.add((MBeanServerNotification) notification);
+        }
+    }
+}
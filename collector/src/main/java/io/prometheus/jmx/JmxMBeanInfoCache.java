@@ -0,0 +1,178 @@
+package io.prometheus.jmx;
+
+import io.prometheus.client.Counter;
+
+import javax.management.JMException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanServerConnection;
+import javax.management.MBeanServerDelegate;
+import javax.management.MBeanServerNotification;
+import javax.management.Notification;
+import javax.management.NotificationListener;
+import javax.management.ObjectInstance;
+import javax.management.ObjectName;
+import javax.management.relation.MBeanServerNotificationFilter;
+import java.io.IOException;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * This object stores the MBeanInfo of each mBean across scrapes, as fetching it is a remote call per mBean and can
+ * be expensive to build for model mBeans.
+ *
+ * An entry is dropped when the mBean is unregistered, when it is registered again with a different class, or once
+ * it is older than the TTL. MBeanInfo that its descriptor declares immutable doesn't expire.
+ */
+class JmxMBeanInfoCache implements NotificationListener {
+    static final Counter cacheHits = Counter.build()
+      .name("jmx_mbean_info_cache_hits_total")
+      .help("Number of times the MBeanInfo of an mBean was taken from the cache.").register();
+
+    static final Counter cacheMisses = Counter.build()
+      .name("jmx_mbean_info_cache_misses_total")
+      .help("Number of times the MBeanInfo of an mBean had to be fetched.").register();
+
+    private static final Logger LOGGER = Logger.getLogger(JmxMBeanInfoCache.class.getName());
+
+    /**
+     * The MBeanInfo of an mBean, and what's derived from it.
+     */
+    static class Entry {
+        final String className;
+        final MBeanInfo info;
+        final long loadedAtNanos;
+        final boolean immutable;
+        private volatile FilteredAttributes filteredAttributes;
+
+        Entry(String className, MBeanInfo info, long loadedAtNanos) {
+            this.className = className;
+            this.info = info;
+            this.loadedAtNanos = loadedAtNanos;
+            Object immutableInfo = info.getDescriptor().getFieldValue("immutableInfo");
+            this.immutable = immutableInfo != null && Boolean.valueOf(immutableInfo.toString());
+        }
+
+        /**
+         * Returns the attributes previously stored for the filter, or null.
+         */
+        FilteredAttributes getAttributes(ScrapeFilter filter) {
+            FilteredAttributes filteredAttributes = this.filteredAttributes;
+            return filteredAttributes != null && filteredAttributes.filter == filter ? filteredAttributes : null;
+        }
+
+        void setAttributes(FilteredAttributes filteredAttributes) {
+            this.filteredAttributes = filteredAttributes;
+        }
+    }
+
+    /**
+     * The readable attributes of an mBean that a filter lets through.
+     */
+    static class FilteredAttributes {
+        final ScrapeFilter filter;
+        final Map<String, MBeanAttributeInfo> byName;
+        final String[] names;
+
+        FilteredAttributes(ScrapeFilter filter, Map<String, MBeanAttributeInfo> byName) {
+            this.filter = filter;
+            this.byName = byName;
+            this.names = byName.keySet().toArray(new String[0]);
+        }
+    }
+
+    private final Map<ObjectName, Entry> entries = new ConcurrentHashMap<ObjectName, Entry>();
+    private volatile long ttlNanos = 0;
+    private MBeanServerConnection listeningTo;
+
+    Map<ObjectName, Entry> getEntries() {
+        return entries;
+    }
+
+    /**
+     * Set how long entries are kept, 0 to not cache at all. Nothing is cached until this is called.
+     */
+    public void setTtlSeconds(long ttlSeconds) {
+        ttlNanos = TimeUnit.SECONDS.toNanos(ttlSeconds);
+    }
+
+    /**
+     * Returns the cached MBeanInfo of an mBean, fetching it if needed.
+     */
+    public Entry get(MBeanServerConnection beanConn, ObjectInstance instance) throws IOException, JMException {
+        ObjectName mbeanName = instance.getObjectName();
+        long now = System.nanoTime();
+        Entry entry = entries.get(mbeanName);
+        if (entry != null && entry.className.equals(instance.getClassName())
+            && (entry.immutable || now - entry.loadedAtNanos < ttlNanos)) {
+            cacheHits.inc();
+            return entry;
+        }
+        cacheMisses.inc();
+        entry = new Entry(instance.getClassName(), beanConn.getMBeanInfo(mbeanName), now);
+        if (ttlNanos > 0) {
+            entries.put(mbeanName, entry);
+        }
+        return entry;
+    }
+
+    public void invalidate(ObjectName mbeanName) {
+        entries.remove(mbeanName);
+    }
+
+    public void onlyKeepMBeans(Set<ObjectName> latestBeans) {
+        for (ObjectName prevName : entries.keySet()) {
+            if (!latestBeans.contains(prevName)) {
+                entries.remove(prevName);
+            }
+        }
+    }
+
+    /**
+     * Listen for unregistration of mBeans on the connection, if not done yet.
+     */
+    public synchronized void listenTo(MBeanServerConnection beanConn) {
+        if (beanConn == listeningTo) {
+            return;
+        }
+        stopListening();
+        MBeanServerNotificationFilter filter = new MBeanServerNotificationFilter();
+        filter.enableAllObjectNames();
+        filter.disableType(MBeanServerNotification.REGISTRATION_NOTIFICATION);
+        try {
+            beanConn.addNotificationListener(MBeanServerDelegate.DELEGATE_NAME, this, filter, null);
+            listeningTo = beanConn;
+        } catch (Exception e) {
+            // Entries still expire with the TTL.
+            LOGGER.fine("Unable to listen for mBean unregistration: " + e);
+        }
+    }
+
+    private void stopListening() {
+        if (listeningTo != null) {
+            try {
+                listeningTo.removeNotificationListener(MBeanServerDelegate.DELEGATE_NAME, this);
+            } catch (Exception e) {
+                // The connection is gone.
+            }
+            listeningTo = null;
+        }
+    }
+
+    /**
+     * Stop listening for notifications.
+     */
+    synchronized void close() {
+        stopListening();
+    }
+
+    public void handleNotification(Notification notification, Object handback) {
+        if (notification instanceof MBeanServerNotification
+            && MBeanServerNotification.UNREGISTRATION_NOTIFICATION.equals(notification.getType())) {
+            invalidate(((MBeanServerNotification) notification).getMBeanName());
+        }
+    }
+}
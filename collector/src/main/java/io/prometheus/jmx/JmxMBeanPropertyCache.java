@@ -1,70 +1,116 @@
 package io.prometheus.jmx;
 
 import javax.management.ObjectName;
-import java.util.LinkedHashMap;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 /**
  * This object stores a mapping of mBean objectNames to mBean key property lists. The main purpose of it is to reduce
- * the frequency with which we invoke PROPERTY_PATTERN when discovering mBeans.
+ * the frequency with which we parse the key property lists when discovering mBeans.
+ *
+ * It also stores the bean names that rules are matched against, as building them for every attribute takes a
+ * good share of the garbage of a scrape.
  */
 class JmxMBeanPropertyCache {
-    private static final Pattern PROPERTY_PATTERN = Pattern.compile(
-            "([^,=:\\*\\?]+)" + // Name - non-empty, anything but comma, equals, colon, star, or question mark
-                    "=" +  // Equals
-                    "(" + // Either
-                    "\"" + // Quoted
-                    "(?:" + // A possibly empty sequence of
-                    "[^\\\\\"]*" + // Greedily match anything but backslash or quote
-                    "(?:\\\\.)?" + // Greedily see if we can match an escaped sequence
-                    ")*" +
-                    "\"" +
-                    "|" + // Or
-                    "[^,=:\"]*" + // Unquoted - can be empty, anything but comma, equals, colon, or quote
-                    ")");
-
     // Implement a version of ObjectName.getKeyPropertyList that returns the
     // properties in the ordered they were added (the ObjectName stores them
     // in the order they were added).
-    private final Map<ObjectName, LinkedHashMap<String, String>> keyPropertiesPerBean;
+    private final Map<ObjectName, KeyPropertyList> keyPropertiesPerBean;
+    private final Map<ObjectName, BeanNames> beanNamesPerBean;
+
+    /**
+     * The bean names of the attributes of an mBean with some key property list.
+     */
+    private static class BeanNames {
+        final KeyPropertyList keyProperties;
+        // "domain<key=value, ...>", which is followed by the attrKeys.
+        final String prefix;
+        final String withoutAttrKeys;
+        // For the attributes within composite and tabular data.
+        final Map<List<String>, String> withAttrKeys = new ConcurrentHashMap<List<String>, String>();
+
+        BeanNames(String domain, KeyPropertyList keyProperties) {
+            this.keyProperties = keyProperties;
+            this.prefix = domain + angleBrackets(keyProperties.toString());
+            this.withoutAttrKeys = prefix + "<>";
+        }
+
+        String get(List<String> attrKeys) {
+            if (attrKeys.isEmpty()) {
+                return withoutAttrKeys;
+            }
+            String beanName = withAttrKeys.get(attrKeys);
+            if (beanName == null) {
+                beanName = prefix + angleBrackets(attrKeys.toString());
+                withAttrKeys.put(new ArrayList<String>(attrKeys), beanName);
+            }
+            return beanName;
+        }
+    }
 
     public JmxMBeanPropertyCache() {
-        this.keyPropertiesPerBean = new ConcurrentHashMap<ObjectName, LinkedHashMap<String, String>>();
+        this.keyPropertiesPerBean = new ConcurrentHashMap<ObjectName, KeyPropertyList>();
+        this.beanNamesPerBean = new ConcurrentHashMap<ObjectName, BeanNames>();
+    }
+
+    // [] and () are special in regexes, so switch to <>.
+    private static String angleBrackets(String s) {
+        return "<" + s.substring(1, s.length() - 1) + ">";
+    }
+
+    /**
+     * Returns "domain<key=value, ...><attrKey, ...>", the start of what rules are matched against for an attribute.
+     * It is cached if the properties are the key property list of the mBean from this cache, rather than those
+     * extended with the index of tabular data.
+     */
+    public String getBeanName(ObjectName mbeanName, String domain, Map<String, String> beanProperties,
+                              List<String> attrKeys) {
+        BeanNames beanNames = beanNamesPerBean.get(mbeanName);
+        if (beanNames == null || beanNames.keyProperties != beanProperties) {
+            if (!isKeyPropertyList(mbeanName, beanProperties)) {
+                return domain + angleBrackets(beanProperties.toString()) + angleBrackets(attrKeys.toString());
+            }
+            beanNames = new BeanNames(domain, (KeyPropertyList) beanProperties);
+            beanNamesPerBean.put(mbeanName, beanNames);
+        }
+        return beanNames.get(attrKeys);
     }
 
-    Map<ObjectName, LinkedHashMap<String, String>> getKeyPropertiesPerBean() {
+    /**
+     * Whether the properties are the cached key property list of the mBean, and so don't change.
+     */
+    boolean isKeyPropertyList(ObjectName mbeanName, Map<String, String> beanProperties) {
+        return keyPropertiesPerBean.get(mbeanName) == beanProperties;
+    }
+
+    Map<ObjectName, KeyPropertyList> getKeyPropertiesPerBean() {
         return keyPropertiesPerBean;
     }
 
-    public LinkedHashMap<String, String> getKeyPropertyList(ObjectName mbeanName) {
-        LinkedHashMap<String, String> keyProperties = keyPropertiesPerBean.get(mbeanName);
+    public KeyPropertyList getKeyPropertyList(ObjectName mbeanName) {
+        KeyPropertyList keyProperties = keyPropertiesPerBean.get(mbeanName);
         if (keyProperties == null) {
-            keyProperties = new LinkedHashMap<String, String>();
-            String properties = mbeanName.getKeyPropertyListString();
-            Matcher match = PROPERTY_PATTERN.matcher(properties);
-            while (match.lookingAt()) {
-                keyProperties.put(match.group(1), match.group(2));
-                properties = properties.substring(match.end());
-                if (properties.startsWith(",")) {
-                    properties = properties.substring(1);
-                }
-                match.reset(properties);
-            }
+            keyProperties = KeyPropertyList.parse(mbeanName.getKeyPropertyListString());
             keyPropertiesPerBean.put(mbeanName, keyProperties);
         }
         return keyProperties;
     }
 
+    public void invalidate(ObjectName mbeanName) {
+        keyPropertiesPerBean.remove(mbeanName);
+        beanNamesPerBean.remove(mbeanName);
+    }
+
     public void onlyKeepMBeans(Set<ObjectName> latestBeans) {
         for (ObjectName prevName : keyPropertiesPerBean.keySet()) {
             if (!latestBeans.contains(prevName)) {
                 keyPropertiesPerBean.remove(prevName);
             }
         }
+        beanNamesPerBean.keySet().retainAll(latestBeans);
     }
 
 
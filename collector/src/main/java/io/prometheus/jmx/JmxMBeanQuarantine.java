@@ -0,0 +1,123 @@
+package io.prometheus.jmx;
+
+import javax.management.ObjectName;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps mBeans that are slow or fail out of scrapes for a while, so that one misbehaving mBean doesn't slow down
+ * every scrape.
+ *
+ * An mBean is quarantined when fetching it fails, times out, or takes longer than the latency threshold. Each
+ * offence in a row doubles the time it is quarantined for, up to a maximum. A fetch without offence once the
+ * quarantine is over starts again from the initial time.
+ */
+class JmxMBeanQuarantine {
+    /**
+     * Why and until when an mBean is quarantined.
+     */
+    static class Entry {
+        final int offences;
+        final long untilNanos;
+        // One of "slow", "failed" and "timeout".
+        final String reason;
+        final String detail;
+
+        Entry(int offences, long untilNanos, String reason, String detail) {
+            this.offences = offences;
+            this.untilNanos = untilNanos;
+            this.reason = reason;
+            this.detail = detail;
+        }
+
+        /**
+         * The time left in quarantine, in seconds, 0 if it is over.
+         */
+        double remainingSeconds(long now) {
+            return Math.max(0, untilNanos - now) / 1.0E9;
+        }
+    }
+
+    private final long latencyThresholdNanos;
+    private final long initialNanos;
+    private final long maxNanos;
+    private final Map<ObjectName, Entry> entries = new ConcurrentHashMap<ObjectName, Entry>();
+
+    /**
+     * @param latencyThresholdSeconds fetches that take longer are offences, 0 to only count failures and timeouts.
+     */
+    JmxMBeanQuarantine(double latencyThresholdSeconds, int initialSeconds, int maxSeconds) {
+        this((long) (latencyThresholdSeconds * 1.0E9), TimeUnit.SECONDS.toNanos(initialSeconds),
+            TimeUnit.SECONDS.toNanos(maxSeconds));
+    }
+
+    JmxMBeanQuarantine(long latencyThresholdNanos, long initialNanos, long maxNanos) {
+        this.latencyThresholdNanos = latencyThresholdNanos;
+        this.initialNanos = initialNanos;
+        this.maxNanos = Math.max(initialNanos, maxNanos);
+    }
+
+    /**
+     * The mBeans that are or were quarantined and haven't been fetched fine since.
+     */
+    Map<ObjectName, Entry> getEntries() {
+        return entries;
+    }
+
+    boolean isQuarantined(ObjectName mbeanName) {
+        Entry entry = entries.get(mbeanName);
+        return entry != null && isActive(entry, System.nanoTime());
+    }
+
+    static boolean isActive(Entry entry, long now) {
+        return entry.untilNanos - now > 0;
+    }
+
+    /**
+     * Record that fetching an mBean completed, with or without having failed.
+     */
+    void fetched(ObjectName mbeanName, long latencyNanos) {
+        if (latencyThresholdNanos > 0 && latencyNanos > latencyThresholdNanos) {
+            offence(mbeanName, "slow", "took " + TimeUnit.NANOSECONDS.toMillis(latencyNanos) + "ms");
+            return;
+        }
+        Entry entry = entries.get(mbeanName);
+        if (entry != null && !isActive(entry, System.nanoTime())) {
+            entries.remove(mbeanName);
+        }
+    }
+
+    void failed(ObjectName mbeanName, String error) {
+        offence(mbeanName, "failed", error);
+    }
+
+    void timedOut(ObjectName mbeanName) {
+        offence(mbeanName, "timeout", "no answer within the timeout");
+    }
+
+    private synchronized void offence(ObjectName mbeanName, String reason, String detail) {
+        long now = System.nanoTime();
+        Entry entry = entries.get(mbeanName);
+        if (entry != null && isActive(entry, now)) {
+            // Such as a fetch that failed after the scrape timed out waiting for it.
+            return;
+        }
+        int offences = entry == null ? 1 : entry.offences + 1;
+        long duration = initialNanos;
+        for (int i = 1; i < offences && duration < maxNanos; i++) {
+            duration *= 2;
+        }
+        duration = Math.min(duration, maxNanos);
+        entries.put(mbeanName, new Entry(offences, now + duration, reason, detail));
+    }
+
+    public void invalidate(ObjectName mbeanName) {
+        entries.remove(mbeanName);
+    }
+
+    public void onlyKeepMBeans(Set<ObjectName> latestBeans) {
+        entries.keySet().retainAll(latestBeans);
+    }
+}
@@ -0,0 +1,93 @@
+package io.prometheus.jmx;
+
+import javax.management.ObjectName;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * This object stores the fetched attribute values of mBeans that are to be scraped less often than every scrape,
+ * as configured per whitelist entry. An mBean matching several entries is scraped at the shortest of their
+ * intervals, so one without an interval is scraped every time.
+ */
+class JmxMBeanValueCache {
+    private static class Entry {
+        final JmxScraper.FetchedBean bean;
+        final long fetchedAtNanos;
+
+        Entry(JmxScraper.FetchedBean bean, long fetchedAtNanos) {
+            this.bean = bean;
+            this.fetchedAtNanos = fetchedAtNanos;
+        }
+    }
+
+    private final List<ObjectName> whitelistObjectNames;
+    private final long[] intervalNanos;
+    private final Map<ObjectName, Long> intervalPerBean = new ConcurrentHashMap<ObjectName, Long>();
+    private final Map<ObjectName, Entry> entries = new ConcurrentHashMap<ObjectName, Entry>();
+
+    /**
+     * @param scrapeIntervalSeconds the interval of each whitelist entry, 0 to scrape it every time.
+     */
+    JmxMBeanValueCache(List<ObjectName> whitelistObjectNames, List<Integer> scrapeIntervalSeconds) {
+        this.whitelistObjectNames = whitelistObjectNames;
+        this.intervalNanos = new long[scrapeIntervalSeconds.size()];
+        for (int i = 0; i < intervalNanos.length; i++) {
+            intervalNanos[i] = TimeUnit.SECONDS.toNanos(scrapeIntervalSeconds.get(i));
+        }
+    }
+
+    private long intervalNanos(ObjectName mbeanName) {
+        Long interval = intervalPerBean.get(mbeanName);
+        if (interval == null) {
+            interval = Long.MAX_VALUE;
+            for (int i = 0; i < intervalNanos.length; i++) {
+                ObjectName name = whitelistObjectNames.get(i);
+                if (name == null || name.apply(mbeanName)) {
+                    interval = Math.min(interval, intervalNanos[i]);
+                }
+            }
+            intervalPerBean.put(mbeanName, interval);
+        }
+        return interval;
+    }
+
+    /**
+     * Returns the values fetched within the interval of the mBean, or null if they need to be fetched.
+     */
+    JmxScraper.FetchedBean get(ObjectName mbeanName) {
+        Entry entry = entries.get(mbeanName);
+        if (entry != null && System.nanoTime() - entry.fetchedAtNanos < intervalNanos(mbeanName)) {
+            return entry.bean;
+        }
+        return null;
+    }
+
+    void put(JmxScraper.FetchedBean bean) {
+        if (intervalNanos(bean.mbeanName) > 0) {
+            entries.put(bean.mbeanName, new Entry(bean, System.nanoTime()));
+        }
+    }
+
+    public void invalidate(ObjectName mbeanName) {
+        intervalPerBean.remove(mbeanName);
+        entries.remove(mbeanName);
+    }
+
+    /**
+     * Forget the mBeans that aren't there anymore, including the intervals looked up for them.
+     */
+    public void onlyKeepMBeans(Set<ObjectName> latestBeans) {
+        intervalPerBean.keySet().retainAll(latestBeans);
+        entries.keySet().retainAll(latestBeans);
+    }
+
+    /**
+     * The number of mBeans whose interval is known.
+     */
+    int size() {
+        return intervalPerBean.size();
+    }
+}
@@ -4,7 +4,6 @@ import javax.management.Attribute;
 import javax.management.AttributeList;
 import javax.management.JMException;
 import javax.management.MBeanAttributeInfo;
-import javax.management.MBeanInfo;
 import javax.management.MBeanServerConnection;
 import javax.management.ObjectInstance;
 import javax.management.ObjectName;
@@ -12,22 +11,26 @@ import javax.management.openmbean.CompositeData;
 import javax.management.openmbean.CompositeType;
 import javax.management.openmbean.TabularData;
 import javax.management.openmbean.TabularType;
-import javax.management.remote.JMXConnector;
-import javax.management.remote.JMXConnectorFactory;
-import javax.management.remote.JMXServiceURL;
-import javax.management.remote.rmi.RMIConnectorServer;
-import javax.naming.Context;
-import javax.rmi.ssl.SslRMIClientSocketFactory;
 import java.io.IOException;
-import java.lang.management.ManagementFactory;
-import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.TreeMap;
 import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -38,8 +41,9 @@ class JmxScraper {
 
     public static interface MBeanReceiver {
         void recordBean(
+            ObjectName mbeanName,
             String domain,
-            LinkedHashMap<String, String> beanProperties,
+            Map<String, String> beanProperties,
             LinkedList<String> attrKeys,
             String attrName,
             String attrType,
@@ -48,115 +52,642 @@ class JmxScraper {
     }
 
     private final MBeanReceiver receiver;
-    private final String jmxUrl;
-    private final String username;
-    private final String password;
-    private final boolean ssl;
+    private final JmxConnectionManager connectionManager;
     private final List<ObjectName> whitelistObjectNames, blacklistObjectNames;
+    private final ScrapeFilter scrapeFilter;
     private final JmxMBeanPropertyCache jmxMBeanPropertyCache;
+    private final JmxMBeanInfoCache jmxMBeanInfoCache;
+    private ExecutorService executor;
+    private int fetchAhead;
+    private JmxMBeanDiscovery mbeanDiscovery;
+    private JmxMBeanValueCache mbeanValueCache;
+    private long scrapeTimeoutNanos;
+    private long beanTimeoutNanos;
+    private Set<ObjectName> beansBeingFetched;
+    private JmxMBeanQuarantine quarantine;
+    private int quarantinedBeans;
+    private boolean timedOut;
+    private int skippedBeans;
+    private List<ObjectName> removedMBeans;
 
-    public JmxScraper(String jmxUrl, String username, String password, boolean ssl,
+    public JmxScraper(JmxConnectionManager connectionManager,
                       List<ObjectName> whitelistObjectNames, List<ObjectName> blacklistObjectNames,
-                      MBeanReceiver receiver, JmxMBeanPropertyCache jmxMBeanPropertyCache) {
-        this.jmxUrl = jmxUrl;
+                      ScrapeFilter scrapeFilter, MBeanReceiver receiver, JmxMBeanPropertyCache jmxMBeanPropertyCache,
+                      JmxMBeanInfoCache jmxMBeanInfoCache) {
+        this.connectionManager = connectionManager;
         this.receiver = receiver;
-        this.username = username;
-        this.password = password;
-        this.ssl = ssl;
         this.whitelistObjectNames = whitelistObjectNames;
         this.blacklistObjectNames = blacklistObjectNames;
+        this.scrapeFilter = scrapeFilter;
         this.jmxMBeanPropertyCache = jmxMBeanPropertyCache;
+        this.jmxMBeanInfoCache = jmxMBeanInfoCache;
+    }
+
+    /**
+     * Fetch the mBeans on the threads of an executor, instead of one after the other.
+     *
+     * @param parallelism the number of threads of the executor.
+     */
+    public void setExecutor(ExecutorService executor, int parallelism) {
+        this.executor = executor;
+        this.fetchAhead = 2 * parallelism;
+    }
+
+    /**
+     * Take the mBeans to scrape from a discovery that is kept across scrapes, instead of querying them.
+     */
+    public void setMBeanDiscovery(JmxMBeanDiscovery mbeanDiscovery) {
+        this.mbeanDiscovery = mbeanDiscovery;
+    }
+
+    /**
+     * Stop waiting for the values of an mBean after a timeout, and for those of all remaining mBeans after the
+     * deadline of the scrape, using what was fetched until then. These need an executor to fetch the mBeans on.
+     *
+     * @param scrapeTimeoutNanos the time from the start of the scrape to its deadline, 0 for none.
+     * @param beanTimeoutNanos how long to wait for one mBean, 0 for no limit.
+     * @param beansBeingFetched the mBeans being fetched, shared across scrapes. An mBean that is still being
+     *                          fetched since an earlier scrape is skipped.
+     */
+    public void setTimeouts(long scrapeTimeoutNanos, long beanTimeoutNanos, Set<ObjectName> beansBeingFetched) {
+        this.scrapeTimeoutNanos = scrapeTimeoutNanos;
+        this.beanTimeoutNanos = beanTimeoutNanos;
+        this.beansBeingFetched = beansBeingFetched;
+    }
+
+    /**
+     * Whether the scrape was cut short by its deadline.
+     */
+    public boolean isTimedOut() {
+        return timedOut;
+    }
+
+    /**
+     * The number of mBeans that were skipped because of timeouts.
+     */
+    public int getSkippedBeans() {
+        return skippedBeans;
+    }
+
+    /**
+     * Leave out mBeans that are slow or failing for a while.
+     */
+    public void setQuarantine(JmxMBeanQuarantine quarantine) {
+        this.quarantine = quarantine;
+    }
+
+    /**
+     * The number of mBeans that were left out because they are quarantined.
+     */
+    public int getQuarantinedBeans() {
+        return quarantinedBeans;
+    }
+
+    /**
+     * Reuse the values of mBeans that are to be scraped less often than every scrape.
+     */
+    public void setMBeanValueCache(JmxMBeanValueCache mbeanValueCache) {
+        this.mbeanValueCache = mbeanValueCache;
+    }
+
+    /**
+     * Returns the mBeans that went away since the previous scrape, or null if that's not known and only the mBeans
+     * of this scrape are to be kept.
+     */
+    public List<ObjectName> getRemovedMBeans() {
+        return removedMBeans;
     }
 
     /**
       * Get a list of mbeans on host_port and scrape their values.
       *
-      * Values are passed to the receiver in a single thread.
+      * Values are passed to the receiver in a single thread, the one calling this method.
       */
     public void doScrape() throws Exception {
-        MBeanServerConnection beanConn;
-        JMXConnector jmxc = null;
-        if (jmxUrl.isEmpty()) {
-          beanConn = ManagementFactory.getPlatformMBeanServer();
-        } else {
-          Map<String, Object> environment = new HashMap<String, Object>();
-          if (username != null && username.length() != 0 && password != null && password.length() != 0) {
-            String[] credent = new String[] {username, password};
-            environment.put(javax.management.remote.JMXConnector.CREDENTIALS, credent);
-          }
-          if (ssl) {
-              environment.put(Context.SECURITY_PROTOCOL, "ssl");
-              SslRMIClientSocketFactory clientSocketFactory = new SslRMIClientSocketFactory();
-              environment.put(RMIConnectorServer.RMI_CLIENT_SOCKET_FACTORY_ATTRIBUTE, clientSocketFactory);
-              environment.put("com.sun.jndi.rmi.factory.socket", clientSocketFactory);
-          }
-
-          jmxc = JMXConnectorFactory.connect(new JMXServiceURL(jmxUrl), environment);
-          beanConn = jmxc.getMBeanServerConnection();
-        }
+        long startNanos = System.nanoTime();
+        MBeanServerConnection beanConn = connectionManager.getConnection();
         try {
-            // Query MBean names, see #89 for reasons queryMBeans() is used instead of queryNames()
-            Set<ObjectName> mBeanNames = new HashSet<ObjectName>();
-            for (ObjectName name : whitelistObjectNames) {
-                for (ObjectInstance instance : beanConn.queryMBeans(name, null)) {
-                    mBeanNames.add(instance.getObjectName());
+            Map<ObjectName, ObjectInstance> mBeans;
+            try {
+                if (canBulkScrape() && bulkScrape(beanConn, startNanos)) {
+                    return;
+                }
+                if (mbeanDiscovery == null) {
+                    mBeans = queryMBeans(beanConn);
+                } else {
+                    JmxMBeanDiscovery.Changes changes =
+                        mbeanDiscovery.update(beanConn, connectionManager.takeNotificationsLost());
+                    mBeans = mbeanDiscovery.getMBeans();
+                    if (!changes.resynced) {
+                        removedMBeans = changes.removed;
+                    }
                 }
+            } catch (IOException e) {
+                // The connection is likely broken, get a new one on the next scrape.
+                connectionManager.connectionFailed();
+                throw e;
             }
 
-            for (ObjectName name : blacklistObjectNames) {
-                for (ObjectInstance instance : beanConn.queryMBeans(name, null)) {
-                    mBeanNames.remove(instance.getObjectName());
+            if (removedMBeans == null) {
+                // Now that we have *only* the whitelisted mBeans, remove any old ones from the cache:
+                onlyKeepMBeans(mBeans.keySet());
+            } else {
+                for (ObjectName mbeanName : removedMBeans) {
+                    invalidate(mbeanName);
+                }
+            }
+            if (mbeanValueCache != null) {
+                // On every scrape, as beans may come and go between the listings of the discovery.
+                mbeanValueCache.onlyKeepMBeans(mBeans.keySet());
+            }
+            jmxMBeanInfoCache.listenTo(beanConn);
+
+            if (executor == null) {
+                for (ObjectInstance instance : mBeans.values()) {
+                    if (quarantine != null && quarantine.isQuarantined(instance.getObjectName())) {
+                        quarantinedBeans++;
+                        continue;
+                    }
+                    long start = System.nanoTime();
+                    processBean(fetchOrReuseBean(beanConn, instance));
+                    if (logger.isLoggable(Level.FINE)) {
+                        logger.fine("TIME: " + (System.nanoTime() - start) + " ns for " + instance.getObjectName().toString());
+                    }
                 }
+            } else {
+                fetchInParallel(beanConn, mBeans.values(), startNanos);
             }
+        } finally {
+            connectionManager.release();
+        }
+    }
+
+    /**
+     * Remove the mBeans that aren't there anymore from the caches.
+     */
+    private void onlyKeepMBeans(Set<ObjectName> latestBeans) {
+        jmxMBeanPropertyCache.onlyKeepMBeans(latestBeans);
+        jmxMBeanInfoCache.onlyKeepMBeans(latestBeans);
+        if (quarantine != null) {
+            quarantine.onlyKeepMBeans(latestBeans);
+        }
+    }
+
+    private void invalidate(ObjectName mbeanName) {
+        jmxMBeanPropertyCache.invalidate(mbeanName);
+        jmxMBeanInfoCache.invalidate(mbeanName);
+        if (mbeanValueCache != null) {
+            mbeanValueCache.invalidate(mbeanName);
+        }
+        if (quarantine != null) {
+            quarantine.invalidate(mbeanName);
+        }
+    }
 
-            // Now that we have *only* the whitelisted mBeans, remove any old ones from the cache:
-            jmxMBeanPropertyCache.onlyKeepMBeans(mBeanNames);
+    private Map<ObjectName, ObjectInstance> queryMBeans(MBeanServerConnection beanConn) throws IOException {
+        Map<ObjectName, ObjectInstance> mBeans = new TreeMap<ObjectName, ObjectInstance>();
+        for (ObjectName name : whitelistObjectNames) {
+            scrapeFilter.queryMBeans(beanConn, name, mBeans);
+        }
 
-            for (ObjectName objectName : mBeanNames) {
-                long start = System.nanoTime();
-                scrapeBean(beanConn, objectName);
-                logger.fine("TIME: " + (System.nanoTime() - start) + " ns for " + objectName.toString());
+        for (ObjectName name : blacklistObjectNames) {
+            for (ObjectInstance instance : beanConn.queryMBeans(name, null)) {
+                mBeans.remove(instance.getObjectName());
             }
+        }
+        return mBeans;
+    }
+
+    /**
+     * Whether the mBeans may be fetched with one call to a {@link BulkScraper}. That call can only be bounded by
+     * the scrape deadline, so the bean timeout, the quarantine and the value cache need the mBeans to be fetched
+     * one by one.
+     */
+    private boolean canBulkScrape() {
+        return connectionManager.isRemote() && beanTimeoutNanos == 0 && quarantine == null && mbeanValueCache == null;
+    }
+
+    /**
+     * Scrape with the {@link BulkScraper} registered on the other side of the connection. Returns false if there
+     * is none, or if it failed or timed out, in which case the mBeans need to be fetched one by one.
+     *
+     * Whether the bulk scraper is there is only checked once per connection. Once it failed or timed out, the
+     * mBeans are fetched one by one until the connection is re-established. As that then starts within the same
+     * scrape, the bulk scraper only gets half of the scrape timeout.
+     */
+    private boolean bulkScrape(MBeanServerConnection beanConn, long startNanos) throws Exception {
+        Boolean use = connectionManager.getBulkScraper();
+        if (use == null) {
+            use = beanConn.isRegistered(BulkScraper.OBJECT_NAME);
+            connectionManager.setBulkScraper(beanConn, use);
+        }
+        if (!use) {
+            return false;
+        }
+
+        List<FetchedBean> beans;
+        try {
+            Object[] response = invokeBulkScraper(beanConn, startNanos);
+            beans = new ArrayList<FetchedBean>(response.length);
+            for (Object wire : response) {
+                beans.add(FetchedBean.fromWire((Object[]) wire));
+            }
+        } catch (IOException e) {
+            throw e;
+        } catch (RejectedExecutionException e) {
+            // The executor was shut down by a config reload.
+            throw e;
+        } catch (TimeoutException e) {
+            logger.fine("Bulk scrape timed out, scraping mBeans one by one from now on");
+            connectionManager.setBulkScraper(beanConn, false);
+            return false;
+        } catch (Exception e) {
+            // For example a version of the bulk scraper that doesn't understand the request.
+            logger.log(Level.FINE, "Bulk scrape failed, scraping mBeans one by one from now on", e);
+            connectionManager.setBulkScraper(beanConn, false);
+            return false;
+        }
+
+        Set<ObjectName> mbeanNames = new HashSet<ObjectName>();
+        for (FetchedBean bean : beans) {
+            mbeanNames.add(bean.mbeanName);
+        }
+        jmxMBeanPropertyCache.onlyKeepMBeans(mbeanNames);
+        for (FetchedBean bean : beans) {
+            processBean(bean);
+        }
+        return true;
+    }
+
+    /**
+     * Calls the {@link BulkScraper}, on the executor until half of the scrape timeout has passed if the scrape has
+     * a deadline.
+     */
+    private Object[] invokeBulkScraper(final MBeanServerConnection beanConn, long startNanos) throws Exception {
+        Callable<Object[]> invoke = new Callable<Object[]>() {
+            public Object[] call() throws Exception {
+                return (Object[]) beanConn.invoke(BulkScraper.OBJECT_NAME, "scrape",
+                    new Object[] {
+                        whitelistObjectNames.toArray(new ObjectName[0]),
+                        blacklistObjectNames.toArray(new ObjectName[0]),
+                        scrapeFilter.toWire()
+                    },
+                    new String[] {ObjectName[].class.getName(), ObjectName[].class.getName(), Object[].class.getName()});
+            }
+        };
+        if (executor == null || scrapeTimeoutNanos == 0) {
+            return invoke.call();
+        }
+        Future<Object[]> future = executor.submit(invoke);
+        try {
+            return future.get(deadlineWaitNanos(startNanos) - scrapeTimeoutNanos / 2, TimeUnit.NANOSECONDS);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof Exception) {
+                throw (Exception) e.getCause();
+            }
+            throw e;
         } finally {
-          if (jmxc != null) {
-            jmxc.close();
-          }
+            future.cancel(true);
         }
     }
 
-    private void scrapeBean(MBeanServerConnection beanConn, ObjectName mbeanName) {
-        MBeanInfo info;
+    /**
+     * Fetch the mBeans for a {@link BulkScraper}, in the form described by {@link BulkScraperMBean#scrape}.
+     */
+    Object[] fetchForBulkScrape() throws Exception {
+        MBeanServerConnection beanConn = connectionManager.getConnection();
         try {
-          info = beanConn.getMBeanInfo(mbeanName);
+            Map<ObjectName, ObjectInstance> mBeans = queryMBeans(beanConn);
+            jmxMBeanInfoCache.onlyKeepMBeans(mBeans.keySet());
+            jmxMBeanInfoCache.listenTo(beanConn);
+
+            List<Object> response = new ArrayList<Object>(mBeans.size());
+            for (ObjectInstance instance : mBeans.values()) {
+                FetchedBean bean = fetchBean(beanConn, instance);
+                if (bean != null) {
+                    response.add(bean.toWire());
+                }
+            }
+            return response.toArray();
+        } finally {
+            connectionManager.release();
+        }
+    }
+
+    /**
+     * Fetch beans on the executor, while passing the values to the receiver on this thread, in the same order as
+     * when scraping serially. Only a few beans per thread are fetched ahead, so the values of all beans are
+     * never held at once.
+     *
+     * Beans that take longer than the bean timeout from when their fetch starts running are skipped, and once the
+     * scrape deadline passes the remaining beans are skipped too.
+     */
+    private void fetchInParallel(final MBeanServerConnection beanConn, Collection<ObjectInstance> instances,
+                                 long startNanos) throws Exception {
+        Iterator<ObjectInstance> toFetch = instances.iterator();
+        int submitted = 0;
+        LinkedList<Future<FetchedBean>> inFlight = new LinkedList<Future<FetchedBean>>();
+        LinkedList<BeanFetch> inFlightFetches = new LinkedList<BeanFetch>();
+        try {
+            while (toFetch.hasNext() || !inFlight.isEmpty()) {
+                while (toFetch.hasNext() && inFlight.size() < fetchAhead) {
+                    ObjectInstance instance = toFetch.next();
+                    submitted++;
+                    if (quarantine != null && quarantine.isQuarantined(instance.getObjectName())) {
+                        quarantinedBeans++;
+                        continue;
+                    }
+                    if (beansBeingFetched != null && !beansBeingFetched.add(instance.getObjectName())) {
+                        // Still hanging since an earlier scrape, don't tie up another thread.
+                        skippedBeans++;
+                        continue;
+                    }
+                    BeanFetch fetch = new BeanFetch(beanConn, instance);
+                    try {
+                        inFlight.add(executor.submit(fetch));
+                    } catch (RuntimeException e) {
+                        // The executor was shut down by a config reload, the bean was never fetched.
+                        fetch.cancel();
+                        throw e;
+                    }
+                    inFlightFetches.add(fetch);
+                }
+                if (inFlight.isEmpty()) {
+                    continue;
+                }
+                Future<FetchedBean> future = inFlight.removeFirst();
+                BeanFetch fetch = inFlightFetches.removeFirst();
+                FetchedBean bean;
+                try {
+                    bean = awaitBean(future, fetch, startNanos);
+                } catch (ExecutionException e) {
+                    if (e.getCause() instanceof Exception) {
+                        throw (Exception) e.getCause();
+                    }
+                    throw e;
+                } catch (TimeoutException e) {
+                    future.cancel(true);
+                    fetch.cancel();
+                    skippedBeans++;
+                    if (quarantine != null) {
+                        quarantine.timedOut(fetch.instance.getObjectName());
+                    }
+                    if (scrapeTimeoutNanos > 0 && System.nanoTime() - startNanos >= scrapeTimeoutNanos) {
+                        logger.fine("Scrape deadline passed, skipping the remaining beans");
+                        timedOut = true;
+                        skippedBeans += inFlight.size() + instances.size() - submitted;
+                        return;
+                    }
+                    logger.fine("Timed out fetching a bean, skipping it");
+                    continue;
+                }
+                processBean(bean);
+            }
+        } finally {
+            for (Future<FetchedBean> future : inFlight) {
+                future.cancel(true);
+            }
+            for (BeanFetch fetch : inFlightFetches) {
+                fetch.cancel();
+            }
+        }
+    }
+
+    /**
+     * Fetches one bean on the executor. The bean stays in beansBeingFetched until the fetch is done, or until
+     * it is cancelled before it started, in which case it never runs.
+     */
+    private class BeanFetch implements Callable<FetchedBean> {
+        final MBeanServerConnection beanConn;
+        final ObjectInstance instance;
+        private final AtomicBoolean started = new AtomicBoolean();
+        private volatile boolean running;
+        private volatile long runningSinceNanos;
+
+        BeanFetch(MBeanServerConnection beanConn, ObjectInstance instance) {
+            this.beanConn = beanConn;
+            this.instance = instance;
+        }
+
+        public FetchedBean call() throws Exception {
+            if (!started.compareAndSet(false, true)) {
+                return null;
+            }
+            runningSinceNanos = System.nanoTime();
+            running = true;
+            try {
+                return fetchOrReuseBean(beanConn, instance);
+            } finally {
+                release();
+            }
+        }
+
+        /**
+         * How long the fetch has been running, or -1 if it hasn't started yet.
+         */
+        long runningNanos() {
+            return running ? System.nanoTime() - runningSinceNanos : -1;
+        }
+
+        /**
+         * Releases the bean if the fetch hasn't started. One that has releases it when it's done.
+         */
+        void cancel() {
+            if (started.compareAndSet(false, true)) {
+                release();
+            }
+        }
+
+        private void release() {
+            if (beansBeingFetched != null) {
+                beansBeingFetched.remove(instance.getObjectName());
+            }
+        }
+    }
+
+    /**
+     * Waits for a bean until it has been fetched for longer than the bean timeout, or until the scrape deadline.
+     * A fetch still queued on the executor has not used any of its bean timeout yet.
+     */
+    private FetchedBean awaitBean(Future<FetchedBean> future, BeanFetch fetch, long startNanos) throws Exception {
+        while (true) {
+            long wait = deadlineWaitNanos(startNanos);
+            if (beanTimeoutNanos > 0) {
+                long running = fetch.runningNanos();
+                // Until the fetch starts, check again after the bean timeout.
+                wait = Math.min(wait, running < 0 ? beanTimeoutNanos : beanTimeoutNanos - running);
+            }
+            try {
+                return future.get(wait, TimeUnit.NANOSECONDS);
+            } catch (TimeoutException e) {
+                boolean beanTimedOut = beanTimeoutNanos > 0 && fetch.runningNanos() >= beanTimeoutNanos;
+                if (beanTimedOut || deadlineWaitNanos(startNanos) <= 0) {
+                    throw e;
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns how long until the scrape deadline.
+     */
+    private long deadlineWaitNanos(long startNanos) {
+        if (scrapeTimeoutNanos == 0) {
+            return Long.MAX_VALUE;
+        }
+        return scrapeTimeoutNanos - (System.nanoTime() - startNanos);
+    }
+
+    /**
+     * The attribute values of one mBean, as fetched from the mBean server.
+     */
+    static class FetchedBean {
+        final ObjectName mbeanName;
+        final Map<String, MBeanAttributeInfo> name2AttrInfo;
+        final AttributeList attributes;
+
+        FetchedBean(ObjectName mbeanName, Map<String, MBeanAttributeInfo> name2AttrInfo, AttributeList attributes) {
+            this.mbeanName = mbeanName;
+            this.name2AttrInfo = name2AttrInfo;
+            this.attributes = attributes;
+        }
+
+        /**
+         * Returns the bean as JDK types, leaving out the values that processBeanValue() ignores, as they may not
+         * be serializable.
+         */
+        Object[] toWire() {
+            List<Attribute> exported = new ArrayList<Attribute>();
+            for (Attribute attribute : attributes.asList()) {
+                Object value = attribute.getValue();
+                if (value instanceof Number || value instanceof String || value instanceof Boolean
+                    || value instanceof CompositeData || value instanceof TabularData) {
+                    exported.add(attribute);
+                }
+            }
+            String[] names = new String[exported.size()];
+            String[] types = new String[exported.size()];
+            String[] descriptions = new String[exported.size()];
+            Object[] values = new Object[exported.size()];
+            for (int i = 0; i < names.length; i++) {
+                MBeanAttributeInfo attr = name2AttrInfo.get(exported.get(i).getName());
+                names[i] = attr.getName();
+                types[i] = attr.getType();
+                descriptions[i] = attr.getDescription();
+                values[i] = exported.get(i).getValue();
+            }
+            return new Object[] {mbeanName, names, types, descriptions, values};
+        }
+
+        static FetchedBean fromWire(Object[] wire) {
+            String[] names = (String[]) wire[1];
+            String[] types = (String[]) wire[2];
+            String[] descriptions = (String[]) wire[3];
+            Object[] values = (Object[]) wire[4];
+            Map<String, MBeanAttributeInfo> name2AttrInfo = new LinkedHashMap<String, MBeanAttributeInfo>();
+            AttributeList attributes = new AttributeList();
+            for (int i = 0; i < names.length; i++) {
+                name2AttrInfo.put(names[i], new MBeanAttributeInfo(names[i], types[i], descriptions[i], true, false, false));
+                attributes.add(new Attribute(names[i], values[i]));
+            }
+            return new FetchedBean((ObjectName) wire[0], name2AttrInfo, attributes);
+        }
+    }
+
+    /**
+     * Returns the attribute values of an mBean like fetchBean(), reusing those of a previous scrape if the mBean
+     * is scraped less often.
+     */
+    private FetchedBean fetchOrReuseBean(MBeanServerConnection beanConn, ObjectInstance instance) {
+        FetchedBean bean = mbeanValueCache == null ? null : mbeanValueCache.get(instance.getObjectName());
+        if (bean == null) {
+            long start = System.nanoTime();
+            bean = fetchBean(beanConn, instance);
+            if (quarantine != null) {
+                quarantine.fetched(instance.getObjectName(), System.nanoTime() - start);
+            }
+            if (bean != null && mbeanValueCache != null) {
+                mbeanValueCache.put(bean);
+            }
+        }
+        return bean;
+    }
+
+    /**
+     * Returns the attribute values of an mBean, or null if there are none to process. This may be called from
+     * several threads at once.
+     */
+    private FetchedBean fetchBean(MBeanServerConnection beanConn, ObjectInstance instance) {
+        ObjectName mbeanName = instance.getObjectName();
+        JmxMBeanInfoCache.Entry entry;
+        try {
+          entry = jmxMBeanInfoCache.get(beanConn, instance);
         } catch (IOException e) {
           logScrape(mbeanName.toString(), "getMBeanInfo Fail: " + e);
-          return;
+          fetchFailed(mbeanName, e);
+          return null;
         } catch (JMException e) {
           logScrape(mbeanName.toString(), "getMBeanInfo Fail: " + e);
-          return;
+          fetchFailed(mbeanName, e);
+          return null;
         }
-        MBeanAttributeInfo[] attrInfos = info.getAttributes();
 
-        Map<String, MBeanAttributeInfo> name2AttrInfo = new LinkedHashMap<String, MBeanAttributeInfo>();
-        for (int idx = 0; idx < attrInfos.length; ++idx) {
-            MBeanAttributeInfo attr = attrInfos[idx];
-            if (!attr.isReadable()) {
-                logScrape(mbeanName, attr, "not readable");
-                continue;
+        JmxMBeanInfoCache.FilteredAttributes filteredAttributes = entry.getAttributes(scrapeFilter);
+        if (filteredAttributes == null) {
+            MBeanAttributeInfo[] attrInfos = entry.info.getAttributes();
+            ScrapeFilter.AttributeFilter attributeFilter = scrapeFilter.attributeFilter(mbeanName);
+
+            Map<String, MBeanAttributeInfo> name2AttrInfo = new LinkedHashMap<String, MBeanAttributeInfo>();
+            for (int idx = 0; idx < attrInfos.length; ++idx) {
+                MBeanAttributeInfo attr = attrInfos[idx];
+                if (!attr.isReadable()) {
+                    logScrape(mbeanName, attr, "not readable");
+                    continue;
+                }
+                if (attributeFilter != null && !attributeFilter.isNeeded(attr)) {
+                    logScrape(mbeanName, attr, "not matched by any rule");
+                    continue;
+                }
+                name2AttrInfo.put(attr.getName(), attr);
             }
-            name2AttrInfo.put(attr.getName(), attr);
+            filteredAttributes = new JmxMBeanInfoCache.FilteredAttributes(scrapeFilter, name2AttrInfo);
+            entry.setAttributes(filteredAttributes);
+        }
+        Map<String, MBeanAttributeInfo> name2AttrInfo = filteredAttributes.byName;
+        if (name2AttrInfo.isEmpty()) {
+            return null;
         }
         final AttributeList attributes;
         try {
-            attributes = beanConn.getAttributes(mbeanName, name2AttrInfo.keySet().toArray(new String[0]));
+            attributes = beanConn.getAttributes(mbeanName, filteredAttributes.names);
         } catch (Exception e) {
+            // The cached MBeanInfo may be out of date.
+            jmxMBeanInfoCache.invalidate(mbeanName);
             logScrape(mbeanName, name2AttrInfo.keySet(), "Fail: " + e);
+            fetchFailed(mbeanName, e);
+            return null;
+        }
+        return new FetchedBean(mbeanName, name2AttrInfo, attributes);
+    }
+
+    private void fetchFailed(ObjectName mbeanName, Exception e) {
+        if (quarantine != null) {
+            quarantine.failed(mbeanName, e.toString());
+        }
+    }
+
+    private void processBean(FetchedBean bean) {
+        if (bean == null) {
             return;
         }
-        for (Attribute attribute : attributes.asList()) {
-            MBeanAttributeInfo attr = name2AttrInfo.get(attribute.getName());
-            logScrape(mbeanName, attr, "process");
+        ObjectName mbeanName = bean.mbeanName;
+        for (Attribute attribute : bean.attributes.asList()) {
+            MBeanAttributeInfo attr = bean.name2AttrInfo.get(attribute.getName());
+            if (logger.isLoggable(Level.FINE)) {
+                logScrape(mbeanName, attr, "process");
+            }
             processBeanValue(
+                    mbeanName,
                     mbeanName.getDomain(),
                     jmxMBeanPropertyCache.getKeyPropertyList(mbeanName),
                     new LinkedList<String>(),
@@ -177,18 +708,26 @@ class JmxScraper {
      * out in a way it can be processed elsewhere easily.
      */
     private void processBeanValue(
+            ObjectName mbeanName,
             String domain,
-            LinkedHashMap<String, String> beanProperties,
+            Map<String, String> beanProperties,
             LinkedList<String> attrKeys,
             String attrName,
             String attrType,
             String attrDescription,
             Object value) {
+        // The names logged are built only when needed, as this runs for every attribute.
+        boolean logging = logger.isLoggable(Level.FINE);
         if (value == null) {
-            logScrape(domain + beanProperties + attrName, "null");
+            if (logging) {
+                logScrape(domain + beanProperties + attrName, "null");
+            }
         } else if (value instanceof Number || value instanceof String || value instanceof Boolean) {
-            logScrape(domain + beanProperties + attrName, value.toString());
+            if (logging) {
+                logScrape(domain + beanProperties + attrName, value.toString());
+            }
             this.receiver.recordBean(
+                    mbeanName,
                     domain,
                     beanProperties,
                     attrKeys,
@@ -197,7 +736,9 @@ class JmxScraper {
                     attrDescription,
                     value);
         } else if (value instanceof CompositeData) {
-            logScrape(domain + beanProperties + attrName, "compositedata");
+            if (logging) {
+                logScrape(domain + beanProperties + attrName, "compositedata");
+            }
             CompositeData composite = (CompositeData) value;
             CompositeType type = composite.getCompositeType();
             attrKeys = new LinkedList<String>(attrKeys);
@@ -206,6 +747,7 @@ class JmxScraper {
                 String typ = type.getType(key).getTypeName();
                 Object valu = composite.get(key);
                 processBeanValue(
+                        mbeanName,
                         domain,
                         beanProperties,
                         attrKeys,
@@ -220,7 +762,9 @@ class JmxScraper {
             // meant to be used according to the docs. I've only seen them
             // used as 'key' 'value' pairs even when 'value' is itself a
             // CompositeData of multiple values.
-            logScrape(domain + beanProperties + attrName, "tabulardata");
+            if (logging) {
+                logScrape(domain + beanProperties + attrName, "tabulardata");
+            }
             TabularData tds = (TabularData) value;
             TabularType tt = tds.getTabularType();
 
@@ -252,6 +796,7 @@ class JmxScraper {
                             name = attrName;
                         } 
                         processBeanValue(
+                            mbeanName,
                             domain,
                             l2s,
                             attrNames,
@@ -286,8 +831,9 @@ class JmxScraper {
 
     private static class StdoutWriter implements MBeanReceiver {
         public void recordBean(
+            ObjectName mbeanName,
             String domain,
-            LinkedHashMap<String, String> beanProperties,
+            Map<String, String> beanProperties,
             LinkedList<String> attrKeys,
             String attrName,
             String attrType,
@@ -308,16 +854,16 @@ class JmxScraper {
       List<ObjectName> objectNames = new LinkedList<ObjectName>();
       objectNames.add(null);
       if (args.length >= 3){
-            new JmxScraper(args[0], args[1], args[2], false, objectNames, new LinkedList<ObjectName>(),
-                    new StdoutWriter(), new JmxMBeanPropertyCache()).doScrape();
+            new JmxScraper(new JmxConnectionManager(args[0], args[1], args[2], false, 0), objectNames, new LinkedList<ObjectName>(),
+                    ScrapeFilter.ALL, new StdoutWriter(), new JmxMBeanPropertyCache(), new JmxMBeanInfoCache()).doScrape();
         }
       else if (args.length > 0){
-          new JmxScraper(args[0], "", "", false, objectNames, new LinkedList<ObjectName>(),
-                  new StdoutWriter(), new JmxMBeanPropertyCache()).doScrape();
+          new JmxScraper(new JmxConnectionManager(args[0], "", "", false, 0), objectNames, new LinkedList<ObjectName>(),
+                  ScrapeFilter.ALL, new StdoutWriter(), new JmxMBeanPropertyCache(), new JmxMBeanInfoCache()).doScrape();
       }
       else {
-          new JmxScraper("", "", "", false, objectNames, new LinkedList<ObjectName>(),
-                  new StdoutWriter(), new JmxMBeanPropertyCache()).doScrape();
+          new JmxScraper(new JmxConnectionManager("", "", "", false, 0), objectNames, new LinkedList<ObjectName>(),
+                  ScrapeFilter.ALL, new StdoutWriter(), new JmxMBeanPropertyCache(), new JmxMBeanInfoCache()).doScrape();
       }
     }
 }
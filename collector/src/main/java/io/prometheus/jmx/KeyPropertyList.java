@@ -0,0 +1,203 @@
+package io.prometheus.jmx;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The key properties of an mBean, in the order they appear in its name, as an immutable map.
+ *
+ * The keys and values are kept in two arrays, which takes a fraction of the memory of a LinkedHashMap, and the keys
+ * are shared between mBeans as most of them use the same few. Lookups are linear, which is as fast as hashing for
+ * the handful of properties an mBean name has.
+ */
+final class KeyPropertyList extends AbstractMap<String, String> {
+    static final KeyPropertyList EMPTY = new KeyPropertyList(new String[0], new String[0], 0);
+
+    // Bounds the shared keys in case mBean names are made up of arbitrary keys.
+    private static final int MAX_INTERNED_KEYS = 10000;
+    private static final ConcurrentHashMap<String, String> internedKeys = new ConcurrentHashMap<String, String>();
+
+    private final String[] keys;
+    private final String[] values;
+
+    private KeyPropertyList(String[] keys, String[] values, int size) {
+        this.keys = keys.length == size ? keys : Arrays.copyOf(keys, size);
+        this.values = values.length == size ? values : Arrays.copyOf(values, size);
+    }
+
+    /**
+     * Parses the result of ObjectName.getKeyPropertyListString(), in a single pass.
+     *
+     * Quoted values are kept with their quotes and escapes. Like the regex this replaces, parsing stops without an
+     * error at the first property that isn't "key=value", and a quoted value without a closing quote is taken to
+     * be empty.
+     */
+    static KeyPropertyList parse(String properties) {
+        int length = properties.length();
+        if (length == 0) {
+            return EMPTY;
+        }
+        String[] keys = new String[4];
+        String[] values = new String[4];
+        int size = 0;
+        int pos = 0;
+        while (pos < length) {
+            // The key runs up to the first of ",=:*?", which has to be the "=".
+            int keyEnd = pos;
+            while (keyEnd < length && !isKeyDelimiter(properties.charAt(keyEnd))) {
+                keyEnd++;
+            }
+            if (keyEnd == pos || keyEnd == length || properties.charAt(keyEnd) != '=') {
+                break;
+            }
+            int valueStart = keyEnd + 1;
+            int valueEnd = quotedValueEnd(properties, valueStart);
+            if (valueEnd < 0) {
+                valueEnd = valueStart;
+                while (valueEnd < length && !isUnquotedValueDelimiter(properties.charAt(valueEnd))) {
+                    valueEnd++;
+                }
+            }
+
+            String key = intern(properties.substring(pos, keyEnd));
+            String value = properties.substring(valueStart, valueEnd);
+            int index = indexOf(keys, size, key);
+            if (index >= 0) {
+                values[index] = value;
+            } else {
+                if (size == keys.length) {
+                    keys = Arrays.copyOf(keys, size * 2);
+                    values = Arrays.copyOf(values, size * 2);
+                }
+                keys[size] = key;
+                values[size] = value;
+                size++;
+            }
+
+            pos = valueEnd;
+            if (pos < length && properties.charAt(pos) == ',') {
+                pos++;
+            }
+        }
+        return size == 0 ? EMPTY : new KeyPropertyList(keys, values, size);
+    }
+
+    private static boolean isKeyDelimiter(char c) {
+        return c == ',' || c == '=' || c == ':' || c == '*' || c == '?';
+    }
+
+    private static boolean isUnquotedValueDelimiter(char c) {
+        return c == ',' || c == '=' || c == ':' || c == '"';
+    }
+
+    /**
+     * Returns the end of the quoted value starting at start, after its closing quote, or -1 if there isn't one.
+     */
+    private static int quotedValueEnd(String properties, int start) {
+        int length = properties.length();
+        if (start >= length || properties.charAt(start) != '"') {
+            return -1;
+        }
+        int pos = start + 1;
+        while (pos < length) {
+            char c = properties.charAt(pos);
+            if (c == '"') {
+                return pos + 1;
+            }
+            if (c == '\\') {
+                // As with the regex's ".", line terminators can't be escaped.
+                if (pos + 1 >= length || isLineTerminator(properties.charAt(pos + 1))) {
+                    return -1;
+                }
+                pos += 2;
+            } else {
+                pos++;
+            }
+        }
+        return -1;
+    }
+
+    private static boolean isLineTerminator(char c) {
+        return c == '\n' || c == '\r' || c == '\u0085' || c == '\u2028' || c == '\u2029';
+    }
+
+    private static String intern(String key) {
+        String interned = internedKeys.get(key);
+        if (interned != null) {
+            return interned;
+        }
+        if (internedKeys.size() >= MAX_INTERNED_KEYS) {
+            return key;
+        }
+        interned = internedKeys.putIfAbsent(key, key);
+        return interned == null ? key : interned;
+    }
+
+    private static int indexOf(String[] keys, int size, Object key) {
+        for (int i = 0; i < size; i++) {
+            if (keys[i].equals(key)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    @Override
+    public int size() {
+        return keys.length;
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return indexOf(keys, keys.length, key) >= 0;
+    }
+
+    @Override
+    public String get(Object key) {
+        int index = indexOf(keys, keys.length, key);
+        return index < 0 ? null : values[index];
+    }
+
+    String getKey(int index) {
+        return keys[index];
+    }
+
+    @Override
+    public Set<Entry<String, String>> entrySet() {
+        return new AbstractSet<Entry<String, String>>() {
+            @Override
+            public int size() {
+                return keys.length;
+            }
+
+            @Override
+            public Iterator<Entry<String, String>> iterator() {
+                return new Iterator<Entry<String, String>>() {
+                    private int next;
+
+                    public boolean hasNext() {
+                        return next < keys.length;
+                    }
+
+                    public Entry<String, String> next() {
+                        if (next >= keys.length) {
+                            throw new NoSuchElementException();
+                        }
+                        Entry<String, String> entry = new SimpleImmutableEntry<String, String>(keys[next], values[next]);
+                        next++;
+                        return entry;
+                    }
+
+                    public void remove() {
+                        throw new UnsupportedOperationException();
+                    }
+                };
+            }
+        };
+    }
+}
@@ -0,0 +1,193 @@
+package io.prometheus.jmx;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Finds out in a single pass over an input which of a list of rules can possibly match it.
+ *
+ * Each rule may have a literal that every input it matches contains, see
+ * {@link RulePatternAnalyzer#requiredLiteral(String)}. All literals are compiled into one Aho-Corasick automaton,
+ * so the input is scanned once regardless of the number of rules. Rules without a literal are always candidates.
+ */
+class LiteralPrefilter {
+    // Index of the literal of each rule, or -1.
+    private final int[] literalOfRule;
+    // Maps characters to columns of the transition table, column 0 is any character not in a literal.
+    private final int[] asciiColumns = new int[128];
+    private final Map<Character, Integer> otherColumns = new HashMap<Character, Integer>();
+    private final int columns;
+    // transitions[state * columns + column] is the next state.
+    private final int[] transitions;
+    // The literals that end in each state.
+    private final int[][] outputs;
+    private final int literalCount;
+
+    LiteralPrefilter(List<String> ruleLiterals) {
+        literalOfRule = new int[ruleLiterals.size()];
+        Map<String, Integer> literalIndex = new HashMap<String, Integer>();
+        List<String> literals = new ArrayList<String>();
+        for (int i = 0; i < ruleLiterals.size(); i++) {
+            String literal = ruleLiterals.get(i);
+            if (literal == null || literal.isEmpty()) {
+                literalOfRule[i] = -1;
+                continue;
+            }
+            Integer index = literalIndex.get(literal);
+            if (index == null) {
+                index = literals.size();
+                literalIndex.put(literal, index);
+                literals.add(literal);
+            }
+            literalOfRule[i] = index;
+        }
+
+        int nextColumn = 1;
+        for (String literal : literals) {
+            for (int i = 0; i < literal.length(); i++) {
+                if (column(literal.charAt(i)) == 0) {
+                    char c = literal.charAt(i);
+                    if (c < asciiColumns.length) {
+                        asciiColumns[c] = nextColumn++;
+                    } else {
+                        otherColumns.put(c, nextColumn++);
+                    }
+                }
+            }
+        }
+        columns = nextColumn;
+
+        // Build the trie, with -1 for missing edges.
+        List<int[]> edges = new ArrayList<int[]>();
+        List<List<Integer>> ends = new ArrayList<List<Integer>>();
+        edges.add(newRow());
+        ends.add(new ArrayList<Integer>());
+        literalCount = literals.size();
+        for (int l = 0; l < literals.size(); l++) {
+            String literal = literals.get(l);
+            int state = 0;
+            for (int i = 0; i < literal.length(); i++) {
+                int column = column(literal.charAt(i));
+                if (edges.get(state)[column] < 0) {
+                    edges.get(state)[column] = edges.size();
+                    edges.add(newRow());
+                    ends.add(new ArrayList<Integer>());
+                }
+                state = edges.get(state)[column];
+            }
+            ends.get(state).add(l);
+        }
+
+        // Breadth first, fill in the failure transitions and merge the outputs of suffixes.
+        int states = edges.size();
+        int[] fail = new int[states];
+        transitions = new int[states * columns];
+        LinkedList<Integer> queue = new LinkedList<Integer>();
+        for (int column = 0; column < columns; column++) {
+            int next = edges.get(0)[column];
+            if (next < 0) {
+                transitions[column] = 0;
+            } else {
+                transitions[column] = next;
+                fail[next] = 0;
+                queue.add(next);
+            }
+        }
+        while (!queue.isEmpty()) {
+            int state = queue.removeFirst();
+            ends.get(state).addAll(ends.get(fail[state]));
+            for (int column = 0; column < columns; column++) {
+                int next = edges.get(state)[column];
+                if (next < 0) {
+                    transitions[state * columns + column] = transitions[fail[state] * columns + column];
+                } else {
+                    transitions[state * columns + column] = next;
+                    fail[next] = transitions[fail[state] * columns + column];
+                    queue.add(next);
+                }
+            }
+        }
+        outputs = new int[states][];
+        for (int state = 0; state < states; state++) {
+            outputs[state] = new int[ends.get(state).size()];
+            for (int i = 0; i < outputs[state].length; i++) {
+                outputs[state][i] = ends.get(state).get(i);
+            }
+        }
+    }
+
+    private int[] newRow() {
+        int[] row = new int[columns];
+        Arrays.fill(row, -1);
+        return row;
+    }
+
+    private int column(char c) {
+        if (c < asciiColumns.length) {
+            return asciiColumns[c];
+        }
+        Integer column = otherColumns.get(c);
+        return column == null ? 0 : column;
+    }
+
+    /**
+     * Creates a scan, which can be reused for many inputs.
+     */
+    Scan newScan() {
+        return new Scan();
+    }
+
+    /**
+     * The state of scanning one input, which can be fed in several parts.
+     */
+    class Scan {
+        private int state;
+        private int length;
+        // The end offset of the first occurrence of each literal, or -1.
+        private final int[] firstEnd = new int[literalCount];
+
+        private Scan() {
+            reset();
+        }
+
+        void reset() {
+            state = 0;
+            length = 0;
+            Arrays.fill(firstEnd, -1);
+        }
+
+        /**
+         * The number of characters fed since the last reset.
+         */
+        int length() {
+            return length;
+        }
+
+        /**
+         * Continue the scan with the characters of input from start.
+         */
+        void feed(CharSequence input, int start) {
+            for (int i = start; i < input.length(); i++) {
+                state = transitions[state * columns + column(input.charAt(i))];
+                length++;
+                for (int literal : outputs[state]) {
+                    if (firstEnd[literal] < 0) {
+                        firstEnd[literal] = length;
+                    }
+                }
+            }
+        }
+
+        /**
+         * Returns false if the rule can't match the first prefixLength characters of the input.
+         */
+        boolean mayMatch(int rule, int prefixLength) {
+            int literal = literalOfRule[rule];
+            return literal < 0 || (firstEnd[literal] >= 0 && firstEnd[literal] <= prefixLength);
+        }
+    }
+}
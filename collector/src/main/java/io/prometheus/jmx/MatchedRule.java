@@ -0,0 +1,62 @@
+package io.prometheus.jmx;
+
+import io.prometheus.client.Collector.Type;
+
+import java.util.List;
+
+/**
+ * The outcome of applying the rules to a bean attribute, with everything except the attribute value resolved.
+ */
+class MatchedRule {
+    private static final MatchedRule UNMATCHED = new MatchedRule(null, null, null, null, null, null, 1.0, -1);
+
+    final String name;
+    final List<String> labelNames;
+    final List<String> labelValues;
+    final String help;
+    final Type type;
+    // Value configured by the rule, or null to use the attribute value.
+    final Double value;
+    final double valueFactor;
+    // Index of the first rule that has to be evaluated on every scrape, or -1 if resolution is complete.
+    final int resumeAt;
+
+    MatchedRule(String name, List<String> labelNames, List<String> labelValues, String help, Type type,
+                Double value, double valueFactor) {
+        this(name, labelNames, labelValues, help, type, value, valueFactor, -1);
+    }
+
+    private MatchedRule(String name, List<String> labelNames, List<String> labelValues, String help, Type type,
+                        Double value, double valueFactor, int resumeAt) {
+        this.name = name;
+        this.labelNames = labelNames;
+        this.labelValues = labelValues;
+        this.help = help;
+        this.type = type;
+        this.value = value;
+        this.valueFactor = valueFactor;
+        this.resumeAt = resumeAt;
+    }
+
+    /**
+     * No rule produces a sample for the attribute.
+     */
+    static MatchedRule unmatched() {
+        return UNMATCHED;
+    }
+
+    /**
+     * The rules before ruleIndex are known not to match, the rest depend on the attribute value.
+     */
+    static MatchedRule resumeAt(int ruleIndex) {
+        return new MatchedRule(null, null, null, null, null, null, 1.0, ruleIndex);
+    }
+
+    boolean isMatched() {
+        return name != null;
+    }
+
+    boolean isPartial() {
+        return resumeAt >= 0;
+    }
+}
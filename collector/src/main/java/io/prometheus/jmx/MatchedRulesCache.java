@@ -0,0 +1,65 @@
+package io.prometheus.jmx;
+
+import javax.management.ObjectName;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Remembers which rule matched each bean attribute, so the rule patterns don't have to be evaluated again on
+ * every scrape. Entries are keyed by the mBean objectName and the attribute path within the bean.
+ *
+ * A cache belongs to one set of rules, a new one is created whenever the configuration is (re)loaded.
+ *
+ * The attribute paths of a bean include the indexes of its tabular data, whose rows may come and go while the bean
+ * stays. So a bean's entries are dropped once there are too many of them, and those still in use are matched again.
+ */
+class MatchedRulesCache {
+    static final int MAX_ENTRIES_PER_BEAN = 10000;
+
+    private final ConcurrentHashMap<ObjectName, Map<String, MatchedRule>> matchedRulesPerBean;
+
+    public MatchedRulesCache() {
+        this.matchedRulesPerBean = new ConcurrentHashMap<ObjectName, Map<String, MatchedRule>>();
+    }
+
+    Map<ObjectName, Map<String, MatchedRule>> getMatchedRulesPerBean() {
+        return matchedRulesPerBean;
+    }
+
+    public MatchedRule get(ObjectName mbeanName, String attrPath) {
+        Map<String, MatchedRule> matchedRules = matchedRulesPerBean.get(mbeanName);
+        if (matchedRules == null) {
+            return null;
+        }
+        return matchedRules.get(attrPath);
+    }
+
+    public void put(ObjectName mbeanName, String attrPath, MatchedRule matchedRule) {
+        Map<String, MatchedRule> matchedRules = matchedRulesPerBean.get(mbeanName);
+        if (matchedRules == null) {
+            matchedRules = new ConcurrentHashMap<String, MatchedRule>();
+            // Concurrent scrapes may both get here, use the map that won.
+            Map<String, MatchedRule> previous = matchedRulesPerBean.putIfAbsent(mbeanName, matchedRules);
+            if (previous != null) {
+                matchedRules = previous;
+            }
+        }
+        if (matchedRules.size() >= MAX_ENTRIES_PER_BEAN) {
+            matchedRules.clear();
+        }
+        matchedRules.put(attrPath, matchedRule);
+    }
+
+    public void invalidate(ObjectName mbeanName) {
+        matchedRulesPerBean.remove(mbeanName);
+    }
+
+    public void onlyKeepMBeans(Set<ObjectName> latestBeans) {
+        for (ObjectName prevName : matchedRulesPerBean.keySet()) {
+            if (!latestBeans.contains(prevName)) {
+                matchedRulesPerBean.remove(prevName);
+            }
+        }
+    }
+}
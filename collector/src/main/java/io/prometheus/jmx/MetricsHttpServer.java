@@ -0,0 +1,473 @@
+package io.prometheus.jmx;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import io.prometheus.client.Collector.MetricFamilySamples;
+import io.prometheus.client.CollectorRegistry;
+import io.prometheus.client.Counter;
+import io.prometheus.client.Summary;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.UnsupportedEncodingException;
+import java.io.Writer;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Serves the metrics of a registry over HTTP, in place of simpleclient's HTTPServer.
+ *
+ * Metrics are served in the 0.0.4 text format. With format negotiation on, the format is picked from the Accept
+ * header instead: OpenMetrics text or delimited protobuf for scrapers that ask for them, and 0.0.4 otherwise. It's
+ * off by default, as Prometheus asks for OpenMetrics, which renames counters without a _total suffix.
+ *
+ * Requests that arrive while a response is being prepared share it: the registry is collected once, and encoded
+ * and compressed at most once per format, for all of them. The connections are kept alive between scrapes.
+ *
+ * With a {@link JmxCollector} set, its samples are written by it in the text format, straight from its buffers. With
+ * background scrapes, they are encoded and compressed once per snapshot, and only the other collectors of the
+ * registry are encoded for each response.
+ */
+class MetricsHttpServer {
+    static final Counter requests = Counter.build()
+      .name("jmx_http_requests_total")
+      .help("Number of HTTP requests served by the exporter.")
+      .labelNames("path", "code").register();
+
+    static final Summary requestDuration = Summary.build()
+      .name("jmx_http_request_duration_seconds")
+      .help("Time taken to serve HTTP requests, in seconds.")
+      .labelNames("path").register();
+
+    static final Counter encodings = Counter.build()
+      .name("jmx_http_response_encodings_total")
+      .help("Number of times the metrics were encoded for HTTP responses, by format and content encoding.")
+      .labelNames("format", "encoding").register();
+
+    private static final Logger LOGGER = Logger.getLogger(MetricsHttpServer.class.getName());
+
+    static final int DEFAULT_THREADS = 5;
+
+    /**
+     * The collected metrics, and their encoding in each format a request asks for, plain and gzip compressed.
+     * The buffers are written out with writeTo(), which doesn't copy them.
+     */
+    class Response {
+        final List<MetricFamilySamples> families;
+        private final Map<ExpositionFormat, ByteArrayOutputStream> bodies =
+            new EnumMap<ExpositionFormat, ByteArrayOutputStream>(ExpositionFormat.class);
+        private final Map<ExpositionFormat, ByteArrayOutputStream> gzipped =
+            new EnumMap<ExpositionFormat, ByteArrayOutputStream>(ExpositionFormat.class);
+
+        Response(List<MetricFamilySamples> families) {
+            this.families = families;
+        }
+
+        synchronized ByteArrayOutputStream body(ExpositionFormat format) {
+            ByteArrayOutputStream body = bodies.get(format);
+            if (body == null) {
+                body = encode(families, format);
+                bodies.put(format, body);
+            }
+            return body;
+        }
+
+        synchronized ByteArrayOutputStream gzipped(ExpositionFormat format) throws IOException {
+            ByteArrayOutputStream buffer = gzipped.get(format);
+            if (buffer == null) {
+                ByteArrayOutputStream body = body(format);
+                buffer = new ByteArrayOutputStream(Math.max(1024, body.size() / 4));
+                GZIPOutputStream gzip = new GZIPOutputStream(buffer, 8192);
+                body.writeTo(gzip);
+                gzip.close();
+                encodings.labels(formatLabel(format), "gzip").inc();
+                gzipped.put(format, buffer);
+            }
+            return buffer;
+        }
+    }
+
+    /**
+     * The samples of the collector in the text format, encoded and compressed once for all responses until the
+     * next background snapshot.
+     */
+    private static class CollectorText {
+        final JmxCollector collector;
+        // The snapshot the samples are from, null if they were scraped for one response.
+        final JmxCollector.Snapshot snapshot;
+        final ByteArrayOutputStream body;
+        private GzipPrefix gzip;
+
+        CollectorText(JmxCollector collector, JmxCollector.Snapshot snapshot, ByteArrayOutputStream body) {
+            this.collector = collector;
+            this.snapshot = snapshot;
+            this.body = body;
+        }
+
+        synchronized GzipPrefix gzip() throws IOException {
+            if (gzip == null) {
+                gzip = new GzipPrefix(body);
+                encodings.labels("text", "gzip").inc();
+            }
+            return gzip;
+        }
+    }
+
+    /**
+     * A response in the text format: the samples of the collector, then the age of the snapshot they're from and
+     * the other collectors of the registry. Only the latter are encoded and compressed for each response.
+     */
+    private static class TextResponse {
+        final CollectorText collectorText;
+        final ByteArrayOutputStream rest;
+        private ByteArrayOutputStream gzippedRest;
+
+        TextResponse(CollectorText collectorText, ByteArrayOutputStream rest) {
+            this.collectorText = collectorText;
+            this.rest = rest;
+        }
+
+        ByteArrayOutputStream[] body() {
+            return new ByteArrayOutputStream[] {collectorText.body, rest};
+        }
+
+        synchronized ByteArrayOutputStream[] gzipped() throws IOException {
+            GzipPrefix gzip = collectorText.gzip();
+            if (gzippedRest == null) {
+                gzippedRest = gzip.finish(rest);
+            }
+            return new ByteArrayOutputStream[] {gzip.getCompressed(), gzippedRest};
+        }
+    }
+
+    private final CollectorRegistry registry;
+    private final boolean negotiateFormat;
+    // Writes its samples of text responses, and collects the name[] requests itself, see setJmxCollector().
+    private volatile JmxCollector jmxCollector;
+    private final HttpServer server;
+    private final ExecutorService executor;
+    // Reused by the encoding of each response, under their own lock.
+    private final StreamingTextWriter textWriter = new StreamingTextWriter();
+    private final OpenMetricsTextWriter openMetricsWriter = new OpenMetricsTextWriter();
+    private final ProtobufWriter protobufWriter = new ProtobufWriter();
+    // The size of the last response in each format, to size the buffer of the next. Only a hint, so it isn't
+    // synchronized.
+    private final int[] lastSizes = new int[ExpositionFormat.values().length];
+    private final SingleFlight<Response> responses = new SingleFlight<Response>() {
+        protected Response run() {
+            return new Response(Collections.list(registry.metricFamilySamples()));
+        }
+    };
+    // The text of the collector for the latest snapshot. Only used by runs of textResponses, which don't overlap.
+    private CollectorText collectorText;
+    private final SingleFlight<TextResponse> textResponses = new SingleFlight<TextResponse>() {
+        protected TextResponse run() {
+            JmxCollector collector = jmxCollector;
+            try {
+                CollectorText text = collectorText(collector);
+                List<MetricFamilySamples> rest = new ArrayList<MetricFamilySamples>();
+                if (text.snapshot != null) {
+                    rest.add(JmxCollector.snapshotAge(text.snapshot));
+                }
+                rest.addAll(collector.collectOthers(registry));
+                ByteArrayOutputStream restBody = new ByteArrayOutputStream(8192);
+                write(restBody, rest, ExpositionFormat.TEXT_004);
+                return new TextResponse(text, restBody);
+            } catch (IOException e) {
+                // Not thrown when writing to memory.
+                throw new IllegalStateException(e);
+            }
+        }
+    };
+
+    /**
+     * Starts serving the registry at "/" and "/metrics".
+     *
+     * @param negotiateFormat whether the format is picked from the Accept header, rather than always 0.0.4 text.
+     * @param daemon whether the worker threads are daemon threads, so that they don't keep the JVM running.
+     */
+    MetricsHttpServer(InetSocketAddress address, CollectorRegistry registry, int threads, boolean negotiateFormat,
+                      boolean daemon) throws IOException {
+        this.registry = registry;
+        this.negotiateFormat = negotiateFormat;
+        this.server = HttpServer.create(address, 3);
+        HttpHandler metricsHandler = new HttpHandler() {
+            public void handle(HttpExchange exchange) throws IOException {
+                serveMetrics(exchange);
+            }
+        };
+        addHandler("/", metricsHandler);
+        addHandler("/metrics", metricsHandler);
+        executor = Executors.newFixedThreadPool(threads, new DaemonThreadFactory(daemon));
+        server.setExecutor(executor);
+        server.start();
+    }
+
+    /**
+     * Starts the server with the httpServerThreads, httpServerKeepAliveSeconds and httpServerNegotiateFormat of the
+     * config.
+     *
+     * httpServerKeepAliveSeconds sets the JVM-wide sun.net.httpserver.idleInterval system property, so it's only
+     * applied when configured; otherwise the JDK's default of 30 seconds, or the value of the property, is kept.
+     */
+    static MetricsHttpServer start(InetSocketAddress address, CollectorRegistry registry,
+                                   Map<String, Object> yamlConfig, boolean daemon) throws IOException {
+        int threads = DEFAULT_THREADS;
+        if (yamlConfig != null && yamlConfig.containsKey("httpServerThreads")) {
+            threads = (Integer) yamlConfig.get("httpServerThreads");
+            if (threads < 1) {
+                throw new IllegalArgumentException("httpServerThreads must be at least 1");
+            }
+        }
+        if (yamlConfig != null && yamlConfig.containsKey("httpServerKeepAliveSeconds")) {
+            int keepAliveSeconds = (Integer) yamlConfig.get("httpServerKeepAliveSeconds");
+            if (keepAliveSeconds < 1) {
+                throw new IllegalArgumentException("httpServerKeepAliveSeconds must be at least 1");
+            }
+            // The JDK's HTTP server reads this once, when the first server of the JVM is created. A value set on
+            // the command line takes precedence.
+            if (System.getProperty("sun.net.httpserver.idleInterval") == null) {
+                System.setProperty("sun.net.httpserver.idleInterval", Integer.toString(keepAliveSeconds));
+            }
+        }
+        boolean negotiateFormat = false;
+        if (yamlConfig != null && yamlConfig.containsKey("httpServerNegotiateFormat")) {
+            negotiateFormat = (Boolean) yamlConfig.get("httpServerNegotiateFormat");
+        }
+        return new MetricsHttpServer(address, registry, threads, negotiateFormat, daemon);
+    }
+
+    private static class DaemonThreadFactory implements ThreadFactory {
+        private final AtomicInteger count = new AtomicInteger();
+        private final boolean daemon;
+
+        DaemonThreadFactory(boolean daemon) {
+            this.daemon = daemon;
+        }
+
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "jmx-http-" + count.incrementAndGet());
+            thread.setDaemon(daemon);
+            return thread;
+        }
+    }
+
+    /**
+     * Serve another path, with the same request metrics.
+     */
+    void addHandler(final String path, final HttpHandler handler) {
+        server.createContext(path, new HttpHandler() {
+            public void handle(HttpExchange exchange) throws IOException {
+                long start = System.nanoTime();
+                int code = 500;
+                try {
+                    handler.handle(exchange);
+                    code = exchange.getResponseCode();
+                } finally {
+                    exchange.close();
+                    requests.labels(path, Integer.toString(code)).inc();
+                    requestDuration.labels(path).observe((System.nanoTime() - start) / 1.0E9);
+                }
+            }
+        });
+    }
+
+    int getPort() {
+        return server.getAddress().getPort();
+    }
+
+    /**
+     * Has the collector, which is registered in the registry, write its own samples of responses in the text
+     * format, and collect name[] requests with only the names asked for, so that it scrapes just the beans that
+     * can produce them. The registry can't pass the names on to its collectors, and would collect all of it, or
+     * nothing for names the collector doesn't declare.
+     */
+    void setJmxCollector(JmxCollector collector) {
+        this.jmxCollector = collector;
+    }
+
+    /**
+     * Returns the text of the collector for the latest background snapshot, encoding it if it's a new one.
+     */
+    private CollectorText collectorText(JmxCollector collector) throws IOException {
+        CollectorText cached = collectorText;
+        if (cached != null && cached.collector == collector && cached.snapshot == collector.getSnapshot()) {
+            return cached;
+        }
+        int lastSize = Math.max(8192, lastSizes[ExpositionFormat.TEXT_004.ordinal()]);
+        ByteArrayOutputStream body = new ByteArrayOutputStream(lastSize + lastSize / 8);
+        Writer writer = new OutputStreamWriter(body, "UTF-8");
+        JmxCollector.Snapshot snapshot = collector.writeSnapshotText(writer);
+        writer.flush();
+        lastSizes[ExpositionFormat.TEXT_004.ordinal()] = body.size();
+        encodings.labels("text", "identity").inc();
+        cached = new CollectorText(collector, snapshot, body);
+        collectorText = snapshot == null ? null : cached;
+        return cached;
+    }
+
+    void stop() {
+        server.stop(0);
+        executor.shutdown();
+    }
+
+    private void serveMetrics(HttpExchange exchange) throws IOException {
+        Set<String> names = parseQuery(exchange.getRequestURI().getRawQuery());
+        ExpositionFormat format = negotiateFormat
+            ? ExpositionFormat.negotiate(exchange.getRequestHeaders().getFirst("Accept")) : ExpositionFormat.TEXT_004;
+        boolean gzip = acceptsGzip(exchange);
+        ByteArrayOutputStream[] body;
+        try {
+            JmxCollector collector = jmxCollector;
+            if (names.isEmpty() && collector != null && format == ExpositionFormat.TEXT_004) {
+                TextResponse response = textResponses.get();
+                body = gzip ? response.gzipped() : response.body();
+            } else {
+                // Only the full set of metrics is shared, filtered requests are collected on their own.
+                Response response = names.isEmpty() ? responses.get() : new Response(collectFiltered(names));
+                body = new ByteArrayOutputStream[] {gzip ? response.gzipped(format) : response.body(format)};
+            }
+        } catch (RuntimeException e) {
+            LOGGER.warning("Collecting metrics failed: " + e);
+            byte[] error = "Collecting metrics failed, see the exporter's log.\n".getBytes("UTF-8");
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+            exchange.sendResponseHeaders(500, error.length);
+            exchange.getResponseBody().write(error);
+            return;
+        }
+
+        if (gzip) {
+            exchange.getResponseHeaders().set("Content-Encoding", "gzip");
+        }
+        exchange.getResponseHeaders().set("Content-Type", format.contentType);
+        if ("HEAD".equals(exchange.getRequestMethod())) {
+            exchange.sendResponseHeaders(200, -1);
+            return;
+        }
+        long size = 0;
+        for (ByteArrayOutputStream part : body) {
+            size += part.size();
+        }
+        // A known length, rather than chunked, keeps the connection open.
+        exchange.sendResponseHeaders(200, size == 0 ? -1 : size);
+        for (ByteArrayOutputStream part : body) {
+            part.writeTo(exchange.getResponseBody());
+        }
+    }
+
+    private ByteArrayOutputStream encode(List<MetricFamilySamples> families, ExpositionFormat format) {
+        int lastSize = Math.max(8192, lastSizes[format.ordinal()]);
+        ByteArrayOutputStream body = new ByteArrayOutputStream(lastSize + lastSize / 8);
+        try {
+            write(body, families, format);
+        } catch (IOException e) {
+            // Not thrown when writing to memory.
+            throw new IllegalStateException(e);
+        }
+        lastSizes[format.ordinal()] = body.size();
+        encodings.labels(formatLabel(format), "identity").inc();
+        return body;
+    }
+
+    private void write(ByteArrayOutputStream body, List<MetricFamilySamples> families, ExpositionFormat format)
+        throws IOException {
+        switch (format) {
+            case OPENMETRICS:
+                synchronized (openMetricsWriter) {
+                    Writer writer = new OutputStreamWriter(body, "UTF-8");
+                    openMetricsWriter.write(writer, families);
+                    writer.flush();
+                }
+                break;
+            case PROTOBUF:
+                synchronized (protobufWriter) {
+                    protobufWriter.write(body, families);
+                }
+                break;
+            default:
+                synchronized (textWriter) {
+                    textWriter.reset();
+                    for (MetricFamilySamples mfs : families) {
+                        textWriter.addFamily(mfs);
+                    }
+                    Writer writer = new OutputStreamWriter(body, "UTF-8");
+                    textWriter.writeTo(writer);
+                    writer.flush();
+                }
+        }
+    }
+
+    private static String formatLabel(ExpositionFormat format) {
+        switch (format) {
+            case OPENMETRICS:
+                return "openmetrics";
+            case PROTOBUF:
+                return "protobuf";
+            default:
+                return "text";
+        }
+    }
+
+    private static boolean acceptsGzip(HttpExchange exchange) {
+        List<String> encodingHeaders = exchange.getRequestHeaders().get("Accept-Encoding");
+        if (encodingHeaders == null) {
+            return false;
+        }
+        for (String encodingHeader : encodingHeaders) {
+            for (String encoding : encodingHeader.split(",")) {
+                if (encoding.trim().toLowerCase().startsWith("gzip")) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private List<MetricFamilySamples> collectFiltered(Set<String> names) {
+        JmxCollector collector = jmxCollector;
+        if (collector == null) {
+            return Collections.list(registry.filteredMetricFamilySamples(names));
+        }
+        List<MetricFamilySamples> families = collector.collect(names);
+        // The other collectors of the registry, for the names the collector doesn't declare. An empty set would
+        // ask for all of them.
+        Set<String> others = new HashSet<String>(names);
+        others.removeAll(collector.getDeclaredNames());
+        if (!others.isEmpty()) {
+            families.addAll(Collections.list(registry.filteredMetricFamilySamples(others)));
+        }
+        return families;
+    }
+
+    /**
+     * Returns the metric names asked for with name[], as simpleclient's HTTPServer does.
+     */
+    static Set<String> parseQuery(String query) throws UnsupportedEncodingException {
+        Set<String> names = new HashSet<String>();
+        if (query == null) {
+            return names;
+        }
+        for (String pair : query.split("&")) {
+            int idx = pair.indexOf('=');
+            if (idx != -1 && URLDecoder.decode(pair.substring(0, idx), "UTF-8").equals("name[]")) {
+                names.add(URLDecoder.decode(pair.substring(idx + 1), "UTF-8"));
+            }
+        }
+        return names;
+    }
+}
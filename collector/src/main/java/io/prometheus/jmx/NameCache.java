@@ -0,0 +1,104 @@
+package io.prometheus.jmx;
+
+import io.prometheus.client.Counter;
+import io.prometheus.client.Gauge;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Remembers the results of a string transformation, for the names that are transformed again on every scrape.
+ *
+ * The number of entries is capped. Once the cache is full it is cleared, and refilled with the names used since.
+ *
+ * Hits are the common case, so a scrape counts them in a {@link Hits} of its own and adds them to the counter once
+ * it's done, rather than updating the shared counter on every lookup.
+ */
+abstract class NameCache {
+    static final Counter cacheHits = Counter.build()
+      .name("jmx_name_cache_hits_total").labelNames("cache")
+      .help("Number of times a transformed name was taken from the cache.").register();
+
+    static final Counter cacheMisses = Counter.build()
+      .name("jmx_name_cache_misses_total").labelNames("cache")
+      .help("Number of times a name had to be transformed.").register();
+
+    static final Gauge cacheSize = Gauge.build()
+      .name("jmx_name_cache_size").labelNames("cache")
+      .help("Number of transformed names in the cache.").register();
+
+    private final Map<String, String> cache = new ConcurrentHashMap<String, String>();
+    private final int maxSize;
+    private final Counter.Child hits;
+    private final Counter.Child misses;
+    private final Gauge.Child size;
+
+    NameCache(String name, int maxSize) {
+        this.maxSize = maxSize;
+        this.hits = cacheHits.labels(name);
+        this.misses = cacheMisses.labels(name);
+        this.size = cacheSize.labels(name);
+    }
+
+    /**
+     * Hits on the cache counted by one thread, not yet added to the counter.
+     */
+    static class Hits {
+        private final NameCache cache;
+        private long count;
+
+        private Hits(NameCache cache) {
+            this.cache = cache;
+        }
+
+        /**
+         * Add the hits counted so far to the counter.
+         */
+        void flush() {
+            if (count > 0) {
+                cache.hits.inc(count);
+                count = 0;
+            }
+        }
+    }
+
+    Hits newHits() {
+        return new Hits(this);
+    }
+
+    /**
+     * The transformation. It must only depend on the input.
+     */
+    protected abstract String transform(String input);
+
+    String get(String input) {
+        return get(input, null);
+    }
+
+    /**
+     * @param hits where to count a hit, or null to add it to the counter right away.
+     */
+    String get(String input, Hits hits) {
+        String result = cache.get(input);
+        if (result != null) {
+            if (hits != null) {
+                hits.count++;
+            } else {
+                this.hits.inc();
+            }
+            return result;
+        }
+        misses.inc();
+        result = transform(input);
+        if (cache.size() >= maxSize) {
+            cache.clear();
+        }
+        cache.put(input, result);
+        size.set(cache.size());
+        return result;
+    }
+
+    int size() {
+        return cache.size();
+    }
+}
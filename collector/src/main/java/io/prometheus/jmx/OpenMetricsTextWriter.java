@@ -0,0 +1,106 @@
+package io.prometheus.jmx;
+
+import io.prometheus.client.Collector.MetricFamilySamples;
+import io.prometheus.client.Collector.Type;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.List;
+
+/**
+ * Writes metric families in the OpenMetrics 1.0 text format.
+ *
+ * It differs from the 0.0.4 text format in that counter families are named without their _total suffix, which
+ * their samples have instead, untyped metrics are "unknown", label sets have no trailing comma, and the output
+ * ends with an EOF marker.
+ *
+ * Not thread safe, the line buffer is reused.
+ */
+class OpenMetricsTextWriter {
+    private final StringBuilder line = new StringBuilder(256);
+    private char[] chars = new char[256];
+
+    void write(Writer writer, List<MetricFamilySamples> families) throws IOException {
+        for (MetricFamilySamples mfs : families) {
+            String name = mfs.name;
+            if (mfs.type == Type.COUNTER && name.endsWith("_total")) {
+                name = name.substring(0, name.length() - 6);
+            }
+            line.setLength(0);
+            line.append("# TYPE ").append(name).append(' ').append(typeString(mfs.type)).append('\n');
+            line.append("# HELP ").append(name).append(' ');
+            appendEscapedHelp(line, mfs.help);
+            line.append('\n');
+            flush(writer);
+
+            for (MetricFamilySamples.Sample sample : mfs.samples) {
+                line.setLength(0);
+                // The value of a counter is its _total sample, whatever the name it was collected with.
+                if (mfs.type == Type.COUNTER && (sample.name.equals(name) || sample.name.equals(mfs.name))) {
+                    line.append(name).append("_total");
+                } else {
+                    line.append(sample.name);
+                }
+                if (!sample.labelNames.isEmpty()) {
+                    line.append('{');
+                    for (int i = 0; i < sample.labelNames.size(); i++) {
+                        if (i > 0) {
+                            line.append(',');
+                        }
+                        line.append(sample.labelNames.get(i)).append("=\"");
+                        SeriesRegistry.appendEscapedLabelValue(line, sample.labelValues.get(i));
+                        line.append('"');
+                    }
+                    line.append('}');
+                }
+                line.append(' ');
+                StreamingTextWriter.appendValue(line, sample.value);
+                line.append('\n');
+                flush(writer);
+            }
+        }
+        writer.write("# EOF\n");
+    }
+
+    private void flush(Writer writer) throws IOException {
+        if (chars.length < line.length()) {
+            chars = new char[Math.max(line.length(), chars.length * 2)];
+        }
+        line.getChars(0, line.length(), chars, 0);
+        writer.write(chars, 0, line.length());
+    }
+
+    private static void appendEscapedHelp(StringBuilder sb, String s) {
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            switch (c) {
+                case '\\':
+                    sb.append("\\\\");
+                    break;
+                case '\n':
+                    sb.append("\\n");
+                    break;
+                case '\"':
+                    sb.append("\\\"");
+                    break;
+                default:
+                    sb.append(c);
+            }
+        }
+    }
+
+    private static String typeString(Type t) {
+        switch (t) {
+            case GAUGE:
+                return "gauge";
+            case COUNTER:
+                return "counter";
+            case SUMMARY:
+                return "summary";
+            case HISTOGRAM:
+                return "histogram";
+            default:
+                return "unknown";
+        }
+    }
+}
@@ -0,0 +1,335 @@
+package io.prometheus.jmx;
+
+import io.prometheus.client.Collector.MetricFamilySamples;
+import io.prometheus.client.Collector.Type;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Writes metric families as length-delimited io.prometheus.client.MetricFamily protobuf messages, the format
+ * Prometheus asks for with {@code encoding=delimited}.
+ *
+ * The messages are few and fixed, so they are encoded by hand rather than through generated classes and a
+ * protobuf dependency. Field numbers are those of the client model's metrics.proto.
+ *
+ * Summaries and histograms are one message per label set, so their samples are grouped by their labels other
+ * than quantile and le. Samples that don't fit the type of their family, such as a value without a quantile in a
+ * summary, are written as untyped families of their own name.
+ *
+ * Not thread safe, the scratch buffers are reused.
+ */
+class ProtobufWriter {
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    // MetricType.
+    private static final int COUNTER = 0;
+    private static final int GAUGE = 1;
+    private static final int SUMMARY = 2;
+    private static final int UNTYPED = 3;
+    private static final int HISTOGRAM = 4;
+
+    // Wire types.
+    private static final int VARINT = 0;
+    private static final int FIXED64 = 1;
+    private static final int LENGTH_DELIMITED = 2;
+
+    /**
+     * A growable byte buffer, that messages are encoded into before their length is known.
+     */
+    static class Buffer {
+        byte[] bytes = new byte[256];
+        int size;
+
+        private void ensure(int extra) {
+            if (size + extra > bytes.length) {
+                byte[] grown = new byte[Math.max(size + extra, bytes.length * 2)];
+                System.arraycopy(bytes, 0, grown, 0, size);
+                bytes = grown;
+            }
+        }
+
+        void varint(long value) {
+            ensure(10);
+            while ((value & ~0x7FL) != 0) {
+                bytes[size++] = (byte) ((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            bytes[size++] = (byte) value;
+        }
+
+        void tag(int field, int wireType) {
+            varint((field << 3) | wireType);
+        }
+
+        void doubleField(int field, double value) {
+            tag(field, FIXED64);
+            ensure(8);
+            long bits = Double.doubleToRawLongBits(value);
+            for (int i = 0; i < 8; i++) {
+                bytes[size++] = (byte) (bits >>> (8 * i));
+            }
+        }
+
+        void varintField(int field, long value) {
+            tag(field, VARINT);
+            varint(value);
+        }
+
+        void stringField(int field, String value) {
+            tag(field, LENGTH_DELIMITED);
+            int length = value.length();
+            for (int i = 0; i < length; i++) {
+                if (value.charAt(i) >= 0x80) {
+                    byte[] utf8 = value.getBytes(UTF_8);
+                    varint(utf8.length);
+                    ensure(utf8.length);
+                    System.arraycopy(utf8, 0, bytes, size, utf8.length);
+                    size += utf8.length;
+                    return;
+                }
+            }
+            // ASCII, the usual case, is its own UTF-8.
+            varint(length);
+            ensure(length);
+            for (int i = 0; i < length; i++) {
+                bytes[size++] = (byte) value.charAt(i);
+            }
+        }
+
+        void messageField(int field, Buffer message) {
+            tag(field, LENGTH_DELIMITED);
+            varint(message.size);
+            ensure(message.size);
+            System.arraycopy(message.bytes, 0, bytes, size, message.size);
+            size += message.size;
+        }
+    }
+
+    /**
+     * The samples of one label set of a summary or histogram.
+     */
+    private static class Group {
+        final List<String> labelNames;
+        final List<String> labelValues;
+        double count;
+        double sum;
+        // The quantiles or bucket bounds, and their values.
+        final List<Double> bounds = new ArrayList<Double>();
+        final List<Double> values = new ArrayList<Double>();
+
+        Group(List<String> labelNames, List<String> labelValues) {
+            this.labelNames = labelNames;
+            this.labelValues = labelValues;
+        }
+    }
+
+    private final Buffer family = new Buffer();
+    private final Buffer metric = new Buffer();
+    private final Buffer inner = new Buffer();
+    private final Buffer delimiter = new Buffer();
+    private int familyMetrics;
+
+    void write(OutputStream out, List<MetricFamilySamples> families) throws IOException {
+        for (MetricFamilySamples mfs : families) {
+            // Samples that belong to no message of the family, by name.
+            Map<String, List<MetricFamilySamples.Sample>> strays =
+                new LinkedHashMap<String, List<MetricFamilySamples.Sample>>();
+            startFamily(mfs.name, mfs.help, mfs.type);
+            if (mfs.type == Type.SUMMARY || mfs.type == Type.HISTOGRAM) {
+                for (Group group : group(mfs, strays)) {
+                    addGroup(mfs.type, group);
+                }
+            } else {
+                int valueField = mfs.type == Type.GAUGE ? 2 : mfs.type == Type.COUNTER ? 3 : 5;
+                for (MetricFamilySamples.Sample sample : mfs.samples) {
+                    if (sample.name.equals(mfs.name)) {
+                        addValue(valueField, sample);
+                    } else {
+                        stray(strays, sample);
+                    }
+                }
+            }
+            endFamily(out);
+
+            for (Map.Entry<String, List<MetricFamilySamples.Sample>> stray : strays.entrySet()) {
+                startFamily(stray.getKey(), mfs.help, Type.UNTYPED);
+                for (MetricFamilySamples.Sample sample : stray.getValue()) {
+                    addValue(5, sample);
+                }
+                endFamily(out);
+            }
+        }
+    }
+
+    private void startFamily(String name, String help, Type type) {
+        family.size = 0;
+        family.stringField(1, name);
+        family.stringField(2, help);
+        family.varintField(3, metricType(type));
+        familyMetrics = 0;
+    }
+
+    private void endFamily(OutputStream out) throws IOException {
+        // Prometheus rejects families without metrics, so those without samples are left out.
+        if (familyMetrics == 0) {
+            return;
+        }
+        delimiter.size = 0;
+        delimiter.varint(family.size);
+        out.write(delimiter.bytes, 0, delimiter.size);
+        out.write(family.bytes, 0, family.size);
+    }
+
+    private void startMetric(List<String> labelNames, List<String> labelValues) {
+        metric.size = 0;
+        for (int i = 0; i < labelNames.size(); i++) {
+            inner.size = 0;
+            inner.stringField(1, labelNames.get(i));
+            inner.stringField(2, labelValues.get(i));
+            metric.messageField(1, inner);
+        }
+    }
+
+    /**
+     * Add a gauge, counter or untyped metric, which are the same message in different fields.
+     */
+    private void addValue(int field, MetricFamilySamples.Sample sample) {
+        startMetric(sample.labelNames, sample.labelValues);
+        inner.size = 0;
+        inner.doubleField(1, sample.value);
+        metric.messageField(field, inner);
+        family.messageField(4, metric);
+        familyMetrics++;
+    }
+
+    private void addGroup(Type type, Group group) {
+        startMetric(group.labelNames, group.labelValues);
+        inner.size = 0;
+        inner.varintField(1, (long) group.count);
+        inner.doubleField(2, group.sum);
+        for (int i = 0; i < group.bounds.size(); i++) {
+            double bound = group.bounds.get(i);
+            double value = group.values.get(i);
+            // Quantile and Bucket have the same size, a double and a double or varint.
+            inner.tag(3, LENGTH_DELIMITED);
+            if (type == Type.SUMMARY) {
+                inner.varint(18);
+                inner.doubleField(1, bound);
+                inner.doubleField(2, value);
+            } else {
+                long cumulativeCount = (long) value;
+                inner.varint(1 + varintSize(cumulativeCount) + 9);
+                inner.varintField(1, cumulativeCount);
+                inner.doubleField(2, bound);
+            }
+        }
+        metric.messageField(type == Type.SUMMARY ? 4 : 7, inner);
+        family.messageField(4, metric);
+        familyMetrics++;
+    }
+
+    /**
+     * Groups the samples of a summary or histogram by their labels, in the order they first appear.
+     */
+    private static List<Group> group(MetricFamilySamples mfs, Map<String, List<MetricFamilySamples.Sample>> strays) {
+        String valueName = mfs.type == Type.SUMMARY ? mfs.name : mfs.name + "_bucket";
+        String boundLabel = mfs.type == Type.SUMMARY ? "quantile" : "le";
+        Map<List<String>, Group> groups = new LinkedHashMap<List<String>, Group>();
+        for (MetricFamilySamples.Sample sample : mfs.samples) {
+            List<String> labelNames = sample.labelNames;
+            List<String> labelValues = sample.labelValues;
+            boolean isValue = sample.name.equals(valueName);
+            double boundValue = 0;
+            if (isValue) {
+                int bound = labelNames.indexOf(boundLabel);
+                if (bound < 0) {
+                    stray(strays, sample);
+                    continue;
+                }
+                try {
+                    boundValue = parseBound(labelValues.get(bound));
+                } catch (NumberFormatException e) {
+                    stray(strays, sample);
+                    continue;
+                }
+                labelNames = new ArrayList<String>(labelNames);
+                labelValues = new ArrayList<String>(labelValues);
+                labelNames.remove(bound);
+                labelValues.remove(bound);
+            } else if (!sample.name.equals(mfs.name + "_count") && !sample.name.equals(mfs.name + "_sum")) {
+                stray(strays, sample);
+                continue;
+            }
+
+            List<String> key = new ArrayList<String>(labelNames.size() * 2);
+            for (int i = 0; i < labelNames.size(); i++) {
+                key.add(labelNames.get(i));
+                key.add(labelValues.get(i));
+            }
+            Group group = groups.get(key);
+            if (group == null) {
+                group = new Group(labelNames, labelValues);
+                groups.put(key, group);
+            }
+            if (isValue) {
+                group.bounds.add(boundValue);
+                group.values.add(sample.value);
+            } else if (sample.name.endsWith("_count")) {
+                group.count = sample.value;
+            } else {
+                group.sum = sample.value;
+            }
+        }
+        return new ArrayList<Group>(groups.values());
+    }
+
+    private static void stray(Map<String, List<MetricFamilySamples.Sample>> strays,
+                              MetricFamilySamples.Sample sample) {
+        List<MetricFamilySamples.Sample> samples = strays.get(sample.name);
+        if (samples == null) {
+            samples = new ArrayList<MetricFamilySamples.Sample>();
+            strays.put(sample.name, samples);
+        }
+        samples.add(sample);
+    }
+
+    private static double parseBound(String s) {
+        if (s.equals("+Inf")) {
+            return Double.POSITIVE_INFINITY;
+        }
+        if (s.equals("-Inf")) {
+            return Double.NEGATIVE_INFINITY;
+        }
+        return Double.parseDouble(s);
+    }
+
+    private static int varintSize(long value) {
+        int size = 1;
+        while ((value & ~0x7FL) != 0) {
+            value >>>= 7;
+            size++;
+        }
+        return size;
+    }
+
+    private static int metricType(Type type) {
+        switch (type) {
+            case COUNTER:
+                return COUNTER;
+            case GAUGE:
+                return GAUGE;
+            case SUMMARY:
+                return SUMMARY;
+            case HISTOGRAM:
+                return HISTOGRAM;
+            default:
+                return UNTYPED;
+        }
+    }
+}
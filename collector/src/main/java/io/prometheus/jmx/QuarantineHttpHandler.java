@@ -0,0 +1,62 @@
+package io.prometheus.jmx;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+
+import javax.management.ObjectName;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Lists the quarantined mBeans of a collector, one per line, for debugging.
+ */
+class QuarantineHttpHandler implements HttpHandler {
+    static final String PATH = "/debug/quarantine";
+
+    private final JmxCollector collector;
+
+    QuarantineHttpHandler(JmxCollector collector) {
+        this.collector = collector;
+    }
+
+    /**
+     * Returns the listing served by the handler.
+     */
+    String report() {
+        JmxMBeanQuarantine quarantine = collector.getQuarantine();
+        if (quarantine == null) {
+            return "Quarantine is not enabled, see quarantineSeconds.\n";
+        }
+        StringBuilder sb = new StringBuilder();
+        long now = System.nanoTime();
+        Map<ObjectName, JmxMBeanQuarantine.Entry> entries =
+            new TreeMap<ObjectName, JmxMBeanQuarantine.Entry>(quarantine.getEntries());
+        for (Map.Entry<ObjectName, JmxMBeanQuarantine.Entry> e : entries.entrySet()) {
+            JmxMBeanQuarantine.Entry entry = e.getValue();
+            if (!JmxMBeanQuarantine.isActive(entry, now)) {
+                continue;
+            }
+            sb.append(e.getKey())
+                .append(" remaining=").append(String.format("%.1fs", entry.remainingSeconds(now)))
+                .append(" offences=").append(entry.offences)
+                .append(" reason=").append(entry.reason)
+                .append(" detail=").append(entry.detail)
+                .append('\n');
+        }
+        return sb.toString();
+    }
+
+    public void handle(HttpExchange exchange) throws IOException {
+        byte[] body = report().getBytes("UTF-8");
+        exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+        exchange.sendResponseHeaders(200, body.length);
+        OutputStream out = exchange.getResponseBody();
+        try {
+            out.write(body);
+        } finally {
+            out.close();
+        }
+    }
+}
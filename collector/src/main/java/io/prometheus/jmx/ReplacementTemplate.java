@@ -0,0 +1,186 @@
+package io.prometheus.jmx;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.regex.Matcher;
+
+/**
+ * A replacement string such as {@code cassandra_$1_$2}, parsed once into literal text and group references.
+ *
+ * The syntax is the same as for {@link Matcher#replaceAll(String)}: {@code $n} refers to a numbered group,
+ * {@code ${name}} to a named group, and a backslash escapes the next character. As there, mistakes in the
+ * replacement only fail when it is expanded, so a bad rule does not stop the rest of the config from loading.
+ */
+class ReplacementTemplate {
+    private final String replacement;
+    // Literal text, or null for group references.
+    private final String[] literals;
+    private final int[] groups;
+    private final String[] groupNames;
+    // Why the replacement is malformed, or null.
+    private final String error;
+
+    private ReplacementTemplate(String replacement, List<String> literals, List<Integer> groups, List<String> groupNames,
+                                String error) {
+        this.replacement = replacement;
+        this.error = error;
+        this.literals = literals.toArray(new String[0]);
+        this.groups = new int[groups.size()];
+        for (int i = 0; i < this.groups.length; i++) {
+            this.groups[i] = groups.get(i);
+        }
+        this.groupNames = groupNames.toArray(new String[0]);
+    }
+
+    /**
+     * Parse a replacement string for a pattern with the given number of groups.
+     *
+     * A malformed replacement is compiled into a template whose {@link #expand} throws
+     * {@link IllegalArgumentException}, and a reference to a group that does not exist into one whose
+     * {@link #expand} throws {@link IndexOutOfBoundsException}, the same as {@link Matcher#appendReplacement}.
+     */
+    static ReplacementTemplate compile(String replacement, int groupCount) {
+        try {
+            return parse(replacement, groupCount);
+        } catch (IllegalArgumentException e) {
+            List<String> literals = Collections.singletonList(null);
+            List<Integer> groups = Collections.singletonList(-1);
+            List<String> groupNames = Collections.singletonList(null);
+            return new ReplacementTemplate(replacement, literals, groups, groupNames, e.getMessage());
+        }
+    }
+
+    private static ReplacementTemplate parse(String replacement, int groupCount) {
+        List<String> literals = new ArrayList<String>();
+        List<Integer> groups = new ArrayList<Integer>();
+        List<String> groupNames = new ArrayList<String>();
+        StringBuilder literal = new StringBuilder();
+        int i = 0;
+        while (i < replacement.length()) {
+            char c = replacement.charAt(i);
+            if (c == '\\') {
+                i++;
+                if (i == replacement.length()) {
+                    throw new IllegalArgumentException("Character to be escaped is missing in: " + replacement);
+                }
+                literal.append(replacement.charAt(i));
+                i++;
+            } else if (c == '$') {
+                i++;
+                if (i == replacement.length()) {
+                    throw new IllegalArgumentException("Illegal group reference, group index is missing in: " + replacement);
+                }
+                int group = -1;
+                String groupName = null;
+                if (replacement.charAt(i) == '{') {
+                    int close = replacement.indexOf('}', i);
+                    if (close < 0 || close == i + 1) {
+                        throw new IllegalArgumentException("Illegal named group reference in: " + replacement);
+                    }
+                    groupName = replacement.substring(i + 1, close);
+                    i = close + 1;
+                } else {
+                    group = replacement.charAt(i) - '0';
+                    if (group < 0 || group > 9) {
+                        throw new IllegalArgumentException("Illegal group reference in: " + replacement);
+                    }
+                    i++;
+                    // As in Matcher.appendReplacement, further digits are part of the reference while they
+                    // still refer to an existing group.
+                    while (i < replacement.length()) {
+                        int digit = replacement.charAt(i) - '0';
+                        if (digit < 0 || digit > 9 || group * 10 + digit > groupCount) {
+                            break;
+                        }
+                        group = group * 10 + digit;
+                        i++;
+                    }
+                }
+                if (literal.length() > 0) {
+                    addSegment(literals, groups, groupNames, literal.toString(), -1, null);
+                    literal.setLength(0);
+                }
+                addSegment(literals, groups, groupNames, null, group, groupName);
+            } else {
+                literal.append(c);
+                i++;
+            }
+        }
+        if (literal.length() > 0 || literals.isEmpty()) {
+            addSegment(literals, groups, groupNames, literal.toString(), -1, null);
+        }
+        return new ReplacementTemplate(replacement, literals, groups, groupNames, null);
+    }
+
+    private static void addSegment(List<String> literals, List<Integer> groups, List<String> groupNames,
+                                   String literal, int group, String groupName) {
+        literals.add(literal);
+        groups.add(group);
+        groupNames.add(groupName);
+    }
+
+    /**
+     * Whether the template refers to no groups at all.
+     */
+    boolean isConstant() {
+        return literals.length == 1 && literals[0] != null;
+    }
+
+    /**
+     * Whether the template refers to the numbered group.
+     */
+    boolean refersTo(int group) {
+        for (int i = 0; i < literals.length; i++) {
+            if (literals[i] == null && groupNames[i] == null && groups[i] == group) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * The literal text of each segment in order, null for group references.
+     */
+    List<String> getLiterals() {
+        return Collections.unmodifiableList(Arrays.asList(literals));
+    }
+
+    /**
+     * Expand the template for the current match of matcher on input, using buffer as scratch space.
+     *
+     * @throws IllegalArgumentException if the replacement is malformed.
+     * @throws IndexOutOfBoundsException if the replacement refers to a group the matcher does not have.
+     */
+    String expand(CharSequence input, Matcher matcher, StringBuilder buffer) {
+        if (error != null) {
+            throw new IllegalArgumentException(error);
+        }
+        if (isConstant()) {
+            return literals[0];
+        }
+        buffer.setLength(0);
+        for (int i = 0; i < literals.length; i++) {
+            if (literals[i] != null) {
+                buffer.append(literals[i]);
+            } else if (groupNames[i] != null) {
+                String value = matcher.group(groupNames[i]);
+                if (value != null) {
+                    buffer.append(value);
+                }
+            } else {
+                int start = matcher.start(groups[i]);
+                if (start != -1) {
+                    buffer.append(input, start, matcher.end(groups[i]));
+                }
+            }
+        }
+        return buffer.toString();
+    }
+
+    @Override
+    public String toString() {
+        return replacement;
+    }
+}
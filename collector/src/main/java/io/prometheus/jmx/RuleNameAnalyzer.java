@@ -0,0 +1,107 @@
+package io.prometheus.jmx;
+
+import java.util.Collection;
+import java.util.regex.Pattern;
+
+/**
+ * Static analysis of the metric names rules produce, to tell which rules can produce a requested name.
+ *
+ * Names are built by expanding a rule's name template, or in the default format from the domain, bean properties
+ * and attribute of a bean. Either way they go through {@link JmxCollector#safeName}, which turns every run of
+ * characters other than letters, digits and {@code :} into one underscore, and optionally to lower case.
+ *
+ * The analysis is conservative: the patterns returned match every name that can be produced, and may match
+ * some that can't.
+ */
+final class RuleNameAnalyzer {
+    // A character safeName replaces. Like Character.isLetterOrDigit on each char, so supplementary characters,
+    // which are surrogate pairs, are replaced too.
+    private static final String UNSAFE = "(?:[^\\p{L}\\p{Nd}:]|[\\x{10000}-\\x{10FFFF}])";
+
+    private RuleNameAnalyzer() {
+    }
+
+    private static boolean isSafe(char c) {
+        return Character.isLetterOrDigit(c) || c == ':';
+    }
+
+    /**
+     * Returns a pattern matching the names a name template can produce.
+     *
+     * Group references can expand to anything, so they match any text. A run of other characters in the literal
+     * text becomes an underscore, which may be merged with one next to it if the run is at either end of the
+     * literal.
+     */
+    static Pattern namePattern(ReplacementTemplate nameTemplate, boolean lowercaseOutputName) {
+        StringBuilder regex = new StringBuilder(flags(lowercaseOutputName));
+        for (String literal : nameTemplate.getLiterals()) {
+            if (literal == null) {
+                regex.append(".*");
+                continue;
+            }
+            int i = 0;
+            while (i < literal.length()) {
+                char c = literal.charAt(i);
+                if (isSafe(c)) {
+                    // Letters, digits and colons have no special meaning in a regex.
+                    regex.append(c);
+                    i++;
+                    continue;
+                }
+                int start = i;
+                while (i < literal.length() && !isSafe(literal.charAt(i))) {
+                    i++;
+                }
+                regex.append(start == 0 || i == literal.length() ? "_?" : "_");
+            }
+        }
+        return Pattern.compile(regex.toString());
+    }
+
+    /**
+     * Returns a pattern matching the domains of the beans whose attributes can have one of the names in the
+     * default format, or null if none of the names has its shape.
+     *
+     * A name in the default format starts with the domain followed by an underscore, so each prefix of a name
+     * that ends before an underscore may be the domain, even an empty one for a domain that safeName replaces
+     * entirely. The domain matches if it is that prefix with each underscore standing for a run of replaced
+     * characters, and may end with such a run, which is merged with the separator.
+     */
+    static Pattern defaultExportDomainPattern(Collection<String> names, boolean lowercaseOutputName) {
+        StringBuilder alternatives = new StringBuilder();
+        int count = 0;
+        for (String name : names) {
+            for (int end = name.indexOf('_'); end >= 0; end = name.indexOf('_', end + 1)) {
+                String prefix = name.substring(0, end);
+                StringBuilder alternative = new StringBuilder();
+                boolean valid = true;
+                for (int i = 0; i < prefix.length() && valid; i++) {
+                    char c = prefix.charAt(i);
+                    if (c == '_') {
+                        alternative.append(UNSAFE).append('+');
+                    } else if (isSafe(c)) {
+                        alternative.append(c);
+                    } else {
+                        // Not a name safeName can produce.
+                        valid = false;
+                    }
+                }
+                if (valid) {
+                    alternatives.append(count++ == 0 ? "" : "|").append(alternative);
+                }
+            }
+        }
+        if (count == 0) {
+            return null;
+        }
+        return Pattern.compile(flags(lowercaseOutputName) + "^(?:" + alternatives + ")" + UNSAFE + "*$");
+    }
+
+    /**
+     * The flags of the patterns, inline so that they are kept when a pattern is passed on as a string.
+     */
+    private static String flags(boolean lowercaseOutputName) {
+        // Requested names in upper case can't be produced when lower casing, matching them anyway is harmless.
+        return lowercaseOutputName ? "(?iu)" : "";
+    }
+}
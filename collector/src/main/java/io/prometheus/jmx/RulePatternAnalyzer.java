@@ -0,0 +1,551 @@
+package io.prometheus.jmx;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Pattern;
+
+/**
+ * Static analysis of rule patterns.
+ *
+ * Rule patterns are matched against {@code domain<beanProperties><attrKeys>attrName: value}. Most patterns only
+ * look at the part before the {@code ": "} separator, and for those the match result is the same for every value
+ * an attribute can take. This class tells them apart from patterns that may look at the value.
+ *
+ * The analysis is conservative: when in doubt a pattern is assumed to depend on the value.
+ */
+final class RulePatternAnalyzer {
+
+    private RulePatternAnalyzer() {
+    }
+
+    /**
+     * Returns true if the result of matching the pattern (whether it matches, and what the groups capture)
+     * may depend on the {@code ": value"} suffix of the input.
+     *
+     * A pattern is treated as value independent if it contains a top level structural character of the bean
+     * name ({@code < > = ,}) or ends with the {@code :} separator, and nothing after the last such character can
+     * reach past the separator. Numeric and boolean values never contain those characters, so such a match has to
+     * end before the value starts.
+     */
+    static boolean matchesValue(String pattern) {
+        if (pattern == null || MATCH_ALL.equals(stripMatchAll(pattern))) {
+            return false;
+        }
+        List<Token> tokens = tokenize(pattern);
+        if (tokens == null) {
+            return true;
+        }
+
+        // The separator colon must be the last thing the pattern matches.
+        int last = lastNonClosing(tokens);
+        for (int i = 0; i < last; i++) {
+            if (tokens.get(i).isColon()) {
+                return true;
+            }
+        }
+
+        int anchor = -1;
+        for (int i = 0; i <= last; i++) {
+            Token token = tokens.get(i);
+            if (token.depth == 0 && !token.quantified && token.literal != 0 && STRUCTURAL.indexOf(token.literal) >= 0) {
+                anchor = i;
+            }
+        }
+        if (last >= 0 && tokens.get(last).isColon() && tokens.get(last).depth == 0) {
+            anchor = last;
+        }
+        if (anchor < 0) {
+            return true;
+        }
+        for (int i = anchor + 1; i < tokens.size(); i++) {
+            if (tokens.get(i).matchesColon) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns the part of the pattern that matches the end of the mBean domain, or null if there is none.
+     *
+     * This is the part before the first top level {@code <}, provided that the {@code <} is preceded by a literal
+     * character. A bean name contains exactly two {@code <} characters: one after the domain and one after the bean
+     * properties, which always follows a {@code >}. Such a pattern can therefore only match a bean if the returned
+     * part matches a suffix of its domain, or all of it if the pattern is anchored with {@code ^}.
+     */
+    static String domainPattern(String pattern) {
+        if (pattern == null || INLINE_FLAGS.matcher(pattern).find()) {
+            return null;
+        }
+        List<Token> tokens = tokenize(pattern);
+        if (tokens == null) {
+            return null;
+        }
+        for (int i = 0; i < tokens.size(); i++) {
+            Token token = tokens.get(i);
+            if (token.depth != 0 || token.literal != '<') {
+                continue;
+            }
+            if (token.quantified || i == 0) {
+                return null;
+            }
+            Token previous = tokens.get(i - 1);
+            if (previous.literal == 0 || previous.literal == '>' || previous.depth != 0 || previous.quantified) {
+                return null;
+            }
+            String domain = pattern.substring(0, token.start);
+            // Lookarounds and word boundaries could look past the end of the domain.
+            if (domain.contains("(?=") || domain.contains("(?!") || domain.contains("(?<=") || domain.contains("(?<!")
+                || domain.contains("\\b") || domain.contains("\\B")) {
+                return null;
+            }
+            return domain;
+        }
+        return null;
+    }
+
+    /**
+     * Translates a domain pattern, as returned by {@link #domainPattern(String)}, into an ObjectName domain
+     * wildcard that matches at least all the domains the pattern matches. Returns null if there is none.
+     */
+    static String domainWildcard(String domainPattern) {
+        if (domainPattern == null || INLINE_FLAGS.matcher(domainPattern).find()) {
+            return null;
+        }
+        boolean anchored = domainPattern.startsWith("^");
+        List<Token> tokens = tokenize(domainPattern);
+        if (tokens == null) {
+            return null;
+        }
+        StringBuilder wildcard = new StringBuilder();
+        if (!anchored) {
+            wildcard.append('*');
+        }
+        for (Token token : tokens) {
+            char c;
+            if (token.closing) {
+                continue;
+            } else if (token.depth != 0 || token.quantified) {
+                c = '*';
+            } else if (token.literal == 0 || token.literal == '*' || token.literal == '?') {
+                // A single character, which can't be expressed or escaped in a wildcard.
+                c = '?';
+            } else {
+                c = token.literal;
+            }
+            if (c != '*' || wildcard.length() == 0 || wildcard.charAt(wildcard.length() - 1) != '*') {
+                wildcard.append(c);
+            }
+        }
+        return wildcard.length() == 0 ? "*" : wildcard.toString();
+    }
+
+    /**
+     * Returns the names of the attributes the pattern can match, or null if it isn't limited to some.
+     *
+     * This looks for patterns that contain {@code ><>} followed by the attribute name, as in
+     * {@code kafka.server<type=(.+), name=(.+)><>(Count|Value)}. Each returned string is a prefix of the
+     * attribute name followed by a colon, so a name the pattern ends with is returned with the colon.
+     */
+    static List<String> attributeNames(String pattern) {
+        if (pattern == null || INLINE_FLAGS.matcher(pattern).find()) {
+            return null;
+        }
+        List<Token> tokens = tokenize(pattern);
+        if (tokens == null) {
+            return null;
+        }
+        int attrStart = -1;
+        for (int i = 0; i + 2 < tokens.size(); i++) {
+            Token first = tokens.get(i);
+            if (isAnchor(first, '>') && isAnchor(tokens.get(i + 1), '<') && isAnchor(tokens.get(i + 2), '>')
+                && tokens.get(i + 2).start == first.start + 2) {
+                attrStart = first.start + 3;
+                break;
+            }
+        }
+        if (attrStart < 0) {
+            return null;
+        }
+
+        String prefix = wordPrefix(pattern, attrStart);
+        int i = attrStart + prefix.length();
+        List<String> alternatives = new ArrayList<String>();
+        if (i < pattern.length() && pattern.charAt(i) == '(') {
+            int open = pattern.startsWith("(?:", i) ? i + 3 : i + 1;
+            int close = pattern.indexOf(')', open);
+            if (close < 0 || (close + 1 < pattern.length() && "?*+{".indexOf(pattern.charAt(close + 1)) >= 0)) {
+                alternatives.add("");
+            } else {
+                for (String alternative : pattern.substring(open, close).split("\\|", -1)) {
+                    if (!alternative.matches("\\w*")) {
+                        alternatives.clear();
+                        alternatives.add("");
+                        break;
+                    }
+                    alternatives.add(close + 1 < pattern.length() && pattern.charAt(close + 1) == ':'
+                        ? alternative + ":" : alternative);
+                }
+            }
+        } else if (i < pattern.length() && pattern.charAt(i) == ':') {
+            alternatives.add(":");
+        } else {
+            alternatives.add("");
+        }
+
+        List<String> names = new ArrayList<String>();
+        for (String alternative : alternatives) {
+            if (prefix.isEmpty() && alternative.isEmpty()) {
+                return null;
+            }
+            names.add(prefix + alternative);
+        }
+        return names;
+    }
+
+    private static boolean isAnchor(Token token, char literal) {
+        return token.depth == 0 && !token.quantified && token.literal == literal;
+    }
+
+    /**
+     * The word characters at start of the pattern that are matched literally.
+     */
+    private static String wordPrefix(String pattern, int start) {
+        int end = start;
+        while (end < pattern.length() && (Character.isLetterOrDigit(pattern.charAt(end)) || pattern.charAt(end) == '_')) {
+            end++;
+        }
+        // A quantifier applies to the last character only.
+        if (end < pattern.length() && end > start && "?*+{".indexOf(pattern.charAt(end)) >= 0) {
+            end--;
+        }
+        return pattern.substring(start, end);
+    }
+
+    /**
+     * Returns the longest literal string that any input matched by the pattern must contain, or null if none
+     * could be found.
+     *
+     * Only runs of top level, unquantified literal characters are considered.
+     */
+    static String requiredLiteral(String pattern) {
+        if (pattern == null || INLINE_FLAGS.matcher(pattern).find()) {
+            return null;
+        }
+        List<Token> tokens = tokenize(pattern);
+        if (tokens == null) {
+            return null;
+        }
+        String longest = null;
+        StringBuilder run = new StringBuilder();
+        for (int i = 0; i <= tokens.size(); i++) {
+            Token token = i < tokens.size() ? tokens.get(i) : null;
+            if (token != null && token.depth == 0 && !token.quantified && token.literal != 0) {
+                run.append(token.literal);
+                continue;
+            }
+            if (run.length() > 0 && (longest == null || run.length() > longest.length())) {
+                longest = run.toString();
+            }
+            run.setLength(0);
+        }
+        return longest;
+    }
+
+    /**
+     * Returns true if the string form of the value contains none of the characters the analysis relies on,
+     * so that the results of {@link #matchesValue} and {@link #domainPattern} hold for it. Line terminators are
+     * excluded too, as the {@code .*} that rule patterns are wrapped in does not match them.
+     */
+    static boolean isPlainValue(Object value) {
+        if (value == null || value instanceof Number || value instanceof Boolean) {
+            return true;
+        }
+        String string = value.toString();
+        for (int i = 0; i < string.length(); i++) {
+            char c = string.charAt(i);
+            if (STRUCTURAL.indexOf(c) >= 0 || c == ':' || LINE_TERMINATORS.indexOf(c) >= 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static final String MATCH_ALL = "";
+    // Flags such as case insensitivity change what a literal matches.
+    private static final Pattern INLINE_FLAGS = Pattern.compile("\\(\\?[a-zA-Z-]+[:)]");
+    private static final String STRUCTURAL = "<>=,";
+    private static final String LINE_TERMINATORS = "\n\r\u0085\u2028\u2029";
+
+    private static String stripMatchAll(String pattern) {
+        String stripped = pattern.startsWith("^") ? pattern.substring(1) : pattern;
+        return stripped.replace(".*", "");
+    }
+
+    private static int lastNonClosing(List<Token> tokens) {
+        for (int i = tokens.size() - 1; i >= 0; i--) {
+            if (!tokens.get(i).closing) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * A single matching element of a pattern.
+     */
+    static class Token {
+        // Offset of the token in the pattern.
+        final int start;
+        final int depth;
+        // The literal character this token matches, or 0 if it is not a literal.
+        final char literal;
+        // Whether this token can match a colon (and thereby the separator) without being a plain literal.
+        final boolean matchesColon;
+        final boolean closing;
+        boolean quantified;
+
+        Token(int start, int depth, char literal, boolean matchesColon, boolean closing) {
+            this.start = start;
+            this.depth = depth;
+            this.literal = literal;
+            this.matchesColon = matchesColon;
+            this.closing = closing;
+        }
+
+        boolean isColon() {
+            return literal == ':';
+        }
+    }
+
+    /**
+     * Splits a pattern into tokens. Returns null for constructs that are not analysed, such as
+     * top level alternation, end anchors, back references and quoting.
+     */
+    static List<Token> tokenize(String pattern) {
+        List<Token> tokens = new ArrayList<Token>();
+        int depth = 0;
+        int i = 0;
+        int n = pattern.length();
+        while (i < n) {
+            final int start = i;
+            char c = pattern.charAt(i);
+            switch (c) {
+                case '\\': {
+                    if (i + 1 >= n) {
+                        return null;
+                    }
+                    char d = pattern.charAt(i + 1);
+                    i += 2;
+                    if (Character.isDigit(d) || "kQEzZ".indexOf(d) >= 0) {
+                        return null;
+                    } else if ("bBAG".indexOf(d) >= 0) {
+                        // Zero width.
+                    } else if ("dwshv".indexOf(d) >= 0) {
+                        tokens.add(new Token(start, depth, (char) 0, false, false));
+                    } else if (d == 'x' || d == 'u' || d == 'c') {
+                        // A single character given by its code, which is then matched like a literal.
+                        int end;
+                        int code;
+                        try {
+                            if (d == 'c') {
+                                end = i + 1;
+                                code = end <= n ? pattern.charAt(i) ^ 64 : -1;
+                            } else if (d == 'x' && i < n && pattern.charAt(i) == '{') {
+                                end = pattern.indexOf('}', i) + 1;
+                                code = end > 0 ? Integer.parseInt(pattern.substring(i + 1, end - 1), 16) : -1;
+                            } else {
+                                end = i + (d == 'x' ? 2 : 4);
+                                code = end <= n ? Integer.parseInt(pattern.substring(i, end), 16) : -1;
+                            }
+                        } catch (NumberFormatException e) {
+                            return null;
+                        }
+                        if (code < 0 || code > Character.MAX_VALUE) {
+                            return null;
+                        }
+                        i = end;
+                        tokens.add(new Token(start, depth, (char) code, false, false));
+                    } else if (Character.isLetter(d)) {
+                        // Other escaped letters such as \D, \W, \S, \pL or \p{..} might all match a colon.
+                        if ((d == 'p' || d == 'P' || d == 'N') && i < n && pattern.charAt(i) == '{') {
+                            int close = pattern.indexOf('}', i);
+                            if (close < 0) {
+                                return null;
+                            }
+                            i = close + 1;
+                        } else if (d == 'p' || d == 'P') {
+                            // A single letter property name.
+                            if (i >= n) {
+                                return null;
+                            }
+                            i++;
+                        }
+                        tokens.add(new Token(start, depth, (char) 0, true, false));
+                    } else {
+                        tokens.add(new Token(start, depth, d, false, false));
+                    }
+                    break;
+                }
+                case '[': {
+                    int end = classEnd(pattern, i);
+                    if (end < 0) {
+                        return null;
+                    }
+                    tokens.add(new Token(start, depth, (char) 0, classMatchesColon(pattern.substring(i, end + 1)), false));
+                    i = end + 1;
+                    break;
+                }
+                case '(': {
+                    depth++;
+                    i++;
+                    if (i < n && pattern.charAt(i) == '?') {
+                        i++;
+                        if (i >= n) {
+                            return null;
+                        }
+                        char kind = pattern.charAt(i);
+                        if (kind == ':' || kind == '=' || kind == '!' || kind == '>') {
+                            i++;
+                        } else if (kind == '<') {
+                            if (i + 1 < n && (pattern.charAt(i + 1) == '=' || pattern.charAt(i + 1) == '!')) {
+                                i += 2;
+                            } else {
+                                int close = pattern.indexOf('>', i);
+                                if (close < 0) {
+                                    return null;
+                                }
+                                i = close + 1;
+                            }
+                        } else {
+                            // Inline flags, either (?flags) or (?flags:...).
+                            int flags = i;
+                            while (i < n && pattern.charAt(i) != ')' && pattern.charAt(i) != ':') {
+                                i++;
+                            }
+                            if (i >= n || pattern.substring(flags, i).indexOf('x') >= 0) {
+                                return null;
+                            }
+                            if (pattern.charAt(i) == ')') {
+                                depth--;
+                            }
+                            i++;
+                        }
+                    }
+                    break;
+                }
+                case ')': {
+                    depth--;
+                    tokens.add(new Token(start, depth, (char) 0, false, true));
+                    i++;
+                    break;
+                }
+                case '|': {
+                    if (depth == 0) {
+                        return null;
+                    }
+                    i++;
+                    break;
+                }
+                case '$':
+                    return null;
+                case '^': {
+                    i++;
+                    break;
+                }
+                case '.': {
+                    tokens.add(new Token(start, depth, (char) 0, true, false));
+                    i++;
+                    break;
+                }
+                case '*':
+                case '+':
+                case '?':
+                case '{': {
+                    if (c == '{') {
+                        int close = pattern.indexOf('}', i);
+                        if (close < 0) {
+                            return null;
+                        }
+                        i = close + 1;
+                    } else {
+                        i++;
+                    }
+                    // Lazy and possessive modifiers.
+                    if (i < n && (pattern.charAt(i) == '?' || pattern.charAt(i) == '+')) {
+                        i++;
+                    }
+                    if (!tokens.isEmpty()) {
+                        tokens.get(tokens.size() - 1).quantified = true;
+                    }
+                    break;
+                }
+                default: {
+                    tokens.add(new Token(start, depth, c, false, false));
+                    i++;
+                }
+            }
+        }
+        return tokens;
+    }
+
+    /**
+     * Returns the index of the closing bracket of the character class starting at start, or -1.
+     */
+    static int classEnd(String pattern, int start) {
+        int nesting = 0;
+        int i = start;
+        while (i < pattern.length()) {
+            char c = pattern.charAt(i);
+            if (c == '\\') {
+                i += 2;
+                continue;
+            }
+            if (c == '[') {
+                nesting++;
+                // A ']' directly after the opening bracket (or '[^') is a literal.
+                if (i + 1 < pattern.length() && pattern.charAt(i + 1) == '^') {
+                    i++;
+                }
+                if (i + 1 < pattern.length() && pattern.charAt(i + 1) == ']') {
+                    i++;
+                }
+            } else if (c == ']') {
+                nesting--;
+                if (nesting == 0) {
+                    return i;
+                }
+            }
+            i++;
+        }
+        return -1;
+    }
+
+    private static boolean classMatchesColon(String cls) {
+        if (cls.startsWith("[^") || cls.indexOf("&&") >= 0 || cls.indexOf('[', 1) >= 0) {
+            return true;
+        }
+        for (int i = 1; i < cls.length() - 1; i++) {
+            char c = cls.charAt(i);
+            if (c == '\\') {
+                char d = i + 1 < cls.length() ? cls.charAt(i + 1) : 0;
+                if (d == ':' || (Character.isLetter(d) && "dwshv".indexOf(d) < 0)) {
+                    return true;
+                }
+                i++;
+                continue;
+            }
+            if (c == ':') {
+                return true;
+            }
+            if (c == '-' && i > 1 && i + 1 < cls.length() - 1) {
+                char from = cls.charAt(i - 1);
+                char to = cls.charAt(i + 1);
+                if (from <= ':' && ':' <= to) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,121 @@
+package io.prometheus.jmx;
+
+import io.prometheus.client.Collector.MetricFamilySamples;
+import io.prometheus.client.Collector.Type;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Holds the samples of a scrape in columns per family: references to the label name and value lists, which are
+ * shared between samples and across scrapes, and the values as primitive doubles. After a {@link #reset()} the
+ * columns are reused, so that a scrape into a buffer that held a similar scrape before doesn't allocate.
+ *
+ * The samples are only turned into MetricFamilySamples when they're returned from the collector.
+ */
+class SampleBuffer implements SampleSink {
+    private static final int INITIAL_CAPACITY = 16;
+
+    /**
+     * The samples of a family.
+     */
+    private static class Family {
+        String name;
+        Type type;
+        String help;
+        int size;
+        List<String>[] labelNames = newListArray(INITIAL_CAPACITY);
+        List<String>[] labelValues = newListArray(INITIAL_CAPACITY);
+        double[] values = new double[INITIAL_CAPACITY];
+
+        void add(List<String> names, List<String> vals, double value) {
+            if (size == values.length) {
+                int capacity = size * 2;
+                labelNames = Arrays.copyOf(labelNames, capacity);
+                labelValues = Arrays.copyOf(labelValues, capacity);
+                values = Arrays.copyOf(values, capacity);
+            }
+            labelNames[size] = names;
+            labelValues[size] = vals;
+            values[size] = value;
+            size++;
+        }
+
+        void clear() {
+            // Don't keep the labels of mBeans that may be gone.
+            Arrays.fill(labelNames, 0, size, null);
+            Arrays.fill(labelValues, 0, size, null);
+            size = 0;
+        }
+    }
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private static List<String>[] newListArray(int size) {
+        return (List<String>[]) new List[size];
+    }
+
+    private final Map<String, Family> families = new LinkedHashMap<String, Family>();
+    private final List<Family> spareFamilies = new ArrayList<Family>();
+    private long generation;
+
+    /**
+     * Forget the samples, keeping the columns to reuse. Returns the new generation of the buffer, to tell
+     * whether it was reset since.
+     */
+    synchronized long reset() {
+        for (Family family : families.values()) {
+            family.clear();
+            spareFamilies.add(family);
+        }
+        families.clear();
+        return ++generation;
+    }
+
+    synchronized long getGeneration() {
+        return generation;
+    }
+
+    public void addSample(String name, List<String> labelNames, List<String> labelValues, double value,
+                          Type type, String help) {
+        Family family = families.get(name);
+        if (family == null) {
+            family = spareFamilies.isEmpty() ? new Family() : spareFamilies.remove(spareFamilies.size() - 1);
+            family.name = name;
+            family.type = type;
+            family.help = help;
+            families.put(name, family);
+        }
+        family.add(labelNames, labelValues, value);
+    }
+
+    /**
+     * Returns the samples as simpleclient types, in the order their families first appeared.
+     */
+    List<MetricFamilySamples> toMetricFamilySamples() {
+        List<MetricFamilySamples> mfsList = new ArrayList<MetricFamilySamples>(families.size());
+        for (Family family : families.values()) {
+            List<MetricFamilySamples.Sample> samples = new ArrayList<MetricFamilySamples.Sample>(family.size);
+            for (int i = 0; i < family.size; i++) {
+                samples.add(new MetricFamilySamples.Sample(
+                    family.name, family.labelNames[i], family.labelValues[i], family.values[i]));
+            }
+            mfsList.add(new MetricFamilySamples(family.name, family.type, family.help, samples));
+        }
+        return mfsList;
+    }
+
+    /**
+     * Pass the samples on to another sink, in the same order as {@link #toMetricFamilySamples()}.
+     */
+    void replayTo(SampleSink sink) {
+        for (Family family : families.values()) {
+            for (int i = 0; i < family.size; i++) {
+                sink.addSample(family.name, family.labelNames[i], family.labelValues[i], family.values[i],
+                    family.type, family.help);
+            }
+        }
+    }
+}
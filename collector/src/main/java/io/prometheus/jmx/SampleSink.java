@@ -0,0 +1,16 @@
+package io.prometheus.jmx;
+
+import io.prometheus.client.Collector.Type;
+
+import java.util.List;
+
+/**
+ * Where the samples of a scrape go.
+ */
+interface SampleSink {
+    /**
+     * Add a sample. The label lists are not copied, so they must not be changed afterwards.
+     */
+    void addSample(String name, List<String> labelNames, List<String> labelValues, double value,
+                   Type type, String help);
+}
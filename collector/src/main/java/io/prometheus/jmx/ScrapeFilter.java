@@ -0,0 +1,260 @@
+package io.prometheus.jmx;
+
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanServerConnection;
+import javax.management.ObjectInstance;
+import javax.management.ObjectName;
+import javax.management.Query;
+import javax.management.QueryExp;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+/**
+ * Which mBeans and attributes the rules can possibly produce samples for, so that the scraper doesn't fetch
+ * the others.
+ *
+ * The filter is conservative: it may let through beans and attributes that no rule matches, but never the other
+ * way around. mBeans with {@code <} or {@code >} in their domain or key properties don't follow the structure of
+ * the names the rules are analysed for, so all of them and their attributes are let through.
+ */
+class ScrapeFilter {
+    /**
+     * Lets everything through.
+     */
+    static final ScrapeFilter ALL = new ScrapeFilter(Arrays.asList(new RuleFilter(null, null, null, false)));
+
+    // Types of attributes that are passed to the rules under their own name, and whose values can't contain
+    // the structural characters the rules are analysed for. Others, such as tabular data, are always fetched.
+    private static final Set<String> FILTERED_TYPES = new HashSet<String>(Arrays.asList(
+        "boolean", "byte", "short", "int", "long", "float", "double",
+        Boolean.class.getName(), Byte.class.getName(), Short.class.getName(), Integer.class.getName(),
+        Long.class.getName(), Float.class.getName(), Double.class.getName(), Number.class.getName(),
+        javax.management.openmbean.CompositeData.class.getName()));
+
+    /**
+     * What a single rule can match.
+     */
+    static class RuleFilter {
+        // The domains the rule can match, null for all.
+        final Pattern domainPattern;
+        // An ObjectName pattern matching at least those domains, null for all.
+        final ObjectName domainQuery;
+        // Prefixes of the "attrName:" the rule can match, null for all.
+        final List<String> attributeNames;
+        final boolean attrNameSnakeCase;
+
+        RuleFilter(Pattern domainPattern, ObjectName domainQuery, List<String> attributeNames,
+                   boolean attrNameSnakeCase) {
+            this.domainPattern = domainPattern;
+            this.domainQuery = domainQuery;
+            this.attributeNames = attributeNames;
+            this.attrNameSnakeCase = attrNameSnakeCase;
+        }
+
+        /**
+         * Returns the filter narrowed down to the domains that also match the given pattern.
+         */
+        RuleFilter withDomains(Pattern domains) {
+            Pattern narrowed = domainPattern == null ? domains : Pattern.compile(
+                "(?s)^(?=.*?(?:" + domainPattern.pattern() + "))(?:" + domains.pattern() + ")");
+            return new RuleFilter(narrowed, domainQuery, attributeNames, attrNameSnakeCase);
+        }
+    }
+
+    private final List<RuleFilter> ruleFilters;
+    // The domains of the mBeans to scrape, null for all.
+    private final List<ObjectName> domainQueries;
+    // The same, as a query for the mBean server.
+    private final QueryExp query;
+
+    ScrapeFilter(List<RuleFilter> ruleFilters) {
+        this.ruleFilters = ruleFilters;
+        List<ObjectName> domainQueries = new ArrayList<ObjectName>();
+        QueryExp query = null;
+        for (RuleFilter ruleFilter : ruleFilters) {
+            if (ruleFilter.domainQuery == null) {
+                domainQueries = null;
+                query = null;
+                break;
+            }
+            domainQueries.add(ruleFilter.domainQuery);
+            query = query == null ? ruleFilter.domainQuery : Query.or(query, ruleFilter.domainQuery);
+        }
+        this.domainQueries = domainQueries;
+        this.query = query;
+    }
+
+    private ScrapeFilter(List<RuleFilter> ruleFilters, List<ObjectName> domainQueries, QueryExp query) {
+        this.ruleFilters = ruleFilters;
+        this.domainQueries = domainQueries;
+        this.query = query;
+    }
+
+    /**
+     * Returns a filter for a subset of the rules, that queries the same mBeans as this one. The scraper then
+     * sees the same mBeans come and go, and only the attributes fetched differ.
+     */
+    ScrapeFilter withRuleFilters(List<RuleFilter> ruleFilters) {
+        return new ScrapeFilter(ruleFilters, domainQueries, query);
+    }
+
+    /**
+     * Whether there are no rules, so that nothing needs to be fetched.
+     */
+    boolean isEmpty() {
+        return ruleFilters.isEmpty();
+    }
+
+    /**
+     * Returns the filter as an array of JDK types, to pass it to a {@link BulkScraper} that may run another
+     * version of this code.
+     */
+    Object[] toWire() {
+        Object[] wire = new Object[ruleFilters.size()];
+        for (int i = 0; i < wire.length; i++) {
+            RuleFilter ruleFilter = ruleFilters.get(i);
+            wire[i] = new Object[] {
+                ruleFilter.domainPattern == null ? null : ruleFilter.domainPattern.pattern(),
+                ruleFilter.domainQuery,
+                ruleFilter.attributeNames == null ? null : ruleFilter.attributeNames.toArray(new String[0]),
+                ruleFilter.attrNameSnakeCase
+            };
+        }
+        return wire;
+    }
+
+    /**
+     * The reverse of {@link #toWire()}.
+     */
+    static ScrapeFilter fromWire(Object[] wire) {
+        List<RuleFilter> ruleFilters = new ArrayList<RuleFilter>();
+        for (Object element : wire) {
+            Object[] fields = (Object[]) element;
+            ruleFilters.add(new RuleFilter(
+                fields[0] == null ? null : Pattern.compile((String) fields[0]),
+                (ObjectName) fields[1],
+                fields[2] == null ? null : Arrays.asList((String[]) fields[2]),
+                (Boolean) fields[3]));
+        }
+        return new ScrapeFilter(ruleFilters);
+    }
+
+    /**
+     * Whether this filter lets through the same mBeans as the other, as the filters returned by
+     * {@link #withRuleFilters} do.
+     */
+    boolean hasSameMBeans(ScrapeFilter other) {
+        return domainQueries == other.domainQueries;
+    }
+
+    /**
+     * Adds the mBeans matching name that rules can apply to. Only the domains the rules can apply to are queried
+     * from the mBean server. A query can't let through the mBeans with {@code <} or {@code >} in their key
+     * properties, which the domain part of a pattern may match in the middle of their name, so the names are
+     * then listed to find those.
+     */
+    void queryMBeans(MBeanServerConnection beanConn, ObjectName name, Map<ObjectName, ObjectInstance> mBeans)
+        throws IOException {
+        // Query MBean names, see #89 for reasons queryMBeans() is used instead of queryNames()
+        for (ObjectInstance instance : beanConn.queryMBeans(name, query)) {
+            mBeans.put(instance.getObjectName(), instance);
+        }
+        if (query == null) {
+            return;
+        }
+        for (ObjectName mbeanName : beanConn.queryNames(name, null)) {
+            if (!mBeans.containsKey(mbeanName) && hasAngleBrackets(mbeanName) && isNeeded(mbeanName)) {
+                for (ObjectInstance instance : beanConn.queryMBeans(mbeanName, null)) {
+                    mBeans.put(instance.getObjectName(), instance);
+                }
+            }
+        }
+    }
+
+    private static boolean hasAngleBrackets(ObjectName mbeanName) {
+        String name = mbeanName.getCanonicalName();
+        return name.indexOf('<') >= 0 || name.indexOf('>') >= 0;
+    }
+
+    /**
+     * Whether rules can apply to the mBean, so that it needs to be scraped. mBeans with {@code <} or {@code >}
+     * in their name always are.
+     */
+    boolean isNeeded(ObjectName mbeanName) {
+        if (domainQueries == null) {
+            return true;
+        }
+        if (hasAngleBrackets(mbeanName)) {
+            return true;
+        }
+        for (ObjectName domainQuery : domainQueries) {
+            if (domainQuery.apply(mbeanName)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns the filter for the attributes of an mBean, or null if all of them are needed.
+     */
+    AttributeFilter attributeFilter(ObjectName mbeanName) {
+        // The analysis relies on the bean name not containing the structural characters that precede the
+        // attribute name.
+        String name = mbeanName.getCanonicalName();
+        if (name.indexOf('<') >= 0 || name.indexOf('>') >= 0) {
+            return null;
+        }
+        List<RuleFilter> applicable = new ArrayList<RuleFilter>();
+        for (RuleFilter ruleFilter : ruleFilters) {
+            if (ruleFilter.domainPattern != null && !ruleFilter.domainPattern.matcher(mbeanName.getDomain()).find()) {
+                continue;
+            }
+            if (ruleFilter.attributeNames == null) {
+                return null;
+            }
+            applicable.add(ruleFilter);
+        }
+        return new AttributeFilter(applicable);
+    }
+
+    /**
+     * The attributes of one mBean that rules can produce samples for.
+     */
+    static class AttributeFilter {
+        private final List<RuleFilter> ruleFilters;
+
+        private AttributeFilter(List<RuleFilter> ruleFilters) {
+            this.ruleFilters = ruleFilters;
+        }
+
+        boolean isNeeded(MBeanAttributeInfo attr) {
+            if (!FILTERED_TYPES.contains(attr.getType())) {
+                return true;
+            }
+            String name = attr.getName() + ":";
+            String snakeCaseName = null;
+            for (RuleFilter ruleFilter : ruleFilters) {
+                String matchName = name;
+                if (ruleFilter.attrNameSnakeCase) {
+                    if (snakeCaseName == null) {
+                        snakeCaseName = JmxCollector.toSnakeAndLowerCase(attr.getName()) + ":";
+                    }
+                    matchName = snakeCaseName;
+                }
+                for (String attributeName : ruleFilter.attributeNames) {
+                    if (matchName.startsWith(attributeName)) {
+                        return true;
+                    }
+                }
+            }
+            return false;
+        }
+    }
+}
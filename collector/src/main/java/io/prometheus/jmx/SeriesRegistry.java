@@ -0,0 +1,147 @@
+package io.prometheus.jmx;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Gives each series, a metric name with a set of labels, a stable id the first time it's seen, and keeps its
+ * {@code name{labels} } prefix in the text exposition format.
+ *
+ * The series output by a scrape are mostly those of the previous one, so the prefixes are built and escaped once,
+ * and each scrape only formats the values. Series that haven't been seen for {@link #EXPIRE_AFTER_SCRAPES} scrapes
+ * are forgotten, and get a new id if they come back.
+ *
+ * Not thread safe, it belongs to one writer.
+ */
+class SeriesRegistry {
+    static final int EXPIRE_AFTER_SCRAPES = 10;
+
+    /**
+     * A name and labels, to look series up by.
+     */
+    static class Key {
+        String name;
+        List<String> labelNames;
+        List<String> labelValues;
+        int hash;
+
+        void set(String name, List<String> labelNames, List<String> labelValues) {
+            this.name = name;
+            this.labelNames = labelNames;
+            this.labelValues = labelValues;
+            this.hash = (name.hashCode() * 31 + labelNames.hashCode()) * 31 + labelValues.hashCode();
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            return hash == other.hash && name.equals(other.name) && labelNames.equals(other.labelNames)
+                && labelValues.equals(other.labelValues);
+        }
+    }
+
+    /**
+     * A series, and its encoded prefix.
+     */
+    static class Series extends Key {
+        final int id;
+        final String prefix;
+        long lastScrape;
+
+        Series(int id, String name, List<String> labelNames, List<String> labelValues) {
+            this.id = id;
+            set(name, labelNames, labelValues);
+            this.prefix = encodePrefix(name, labelNames, labelValues);
+        }
+    }
+
+    private final Map<Key, Series> series = new HashMap<Key, Series>();
+    // Reused to look up series, so that finding a known one doesn't allocate.
+    private final Key probe = new Key();
+    private int nextId;
+    private long scrape;
+
+    /**
+     * Returns the series with the name and labels, adding it if it's new. The label lists are kept, so they must
+     * not be changed afterwards.
+     */
+    Series get(String name, List<String> labelNames, List<String> labelValues) {
+        probe.set(name, labelNames, labelValues);
+        Series s = series.get(probe);
+        if (s == null) {
+            s = new Series(nextId++, name, labelNames, labelValues);
+            series.put(s, s);
+        }
+        s.lastScrape = scrape;
+        return s;
+    }
+
+    /**
+     * Start the next scrape, forgetting the series that haven't been seen for a while.
+     */
+    void nextScrape() {
+        scrape++;
+        // Every so often, as it goes through all the series.
+        if (scrape % EXPIRE_AFTER_SCRAPES != 0) {
+            return;
+        }
+        for (Iterator<Series> it = series.values().iterator(); it.hasNext(); ) {
+            if (scrape - it.next().lastScrape > EXPIRE_AFTER_SCRAPES) {
+                it.remove();
+            }
+        }
+    }
+
+    int size() {
+        return series.size();
+    }
+
+    /**
+     * Returns the start of the sample line of a series, up to the value.
+     */
+    static String encodePrefix(String name, List<String> labelNames, List<String> labelValues) {
+        StringBuilder sb = new StringBuilder(name.length() + 16 * labelNames.size() + 1);
+        sb.append(name);
+        if (labelNames.size() > 0) {
+            sb.append('{');
+            for (int i = 0; i < labelNames.size(); ++i) {
+                sb.append(labelNames.get(i));
+                sb.append("=\"");
+                appendEscapedLabelValue(sb, labelValues.get(i));
+                sb.append("\",");
+            }
+            sb.append('}');
+        }
+        sb.append(' ');
+        return sb.toString();
+    }
+
+    static void appendEscapedLabelValue(StringBuilder sb, String s) {
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            switch (c) {
+                case '\\':
+                    sb.append("\\\\");
+                    break;
+                case '\"':
+                    sb.append("\\\"");
+                    break;
+                case '\n':
+                    sb.append("\\n");
+                    break;
+                default:
+                    sb.append(c);
+            }
+        }
+    }
+}
@@ -0,0 +1,88 @@
+package io.prometheus.jmx;
+
+import io.prometheus.client.Counter;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Lets concurrent callers share one run of an operation: a caller that arrives while a run is in flight waits for
+ * it and gets its result, or its exception, rather than starting a run of its own.
+ *
+ * This is for scrapes, which several Prometheus servers may request at the same time, and which are expensive and
+ * give the same result when run at the same time.
+ */
+abstract class SingleFlight<T> {
+    static final Counter shared = Counter.build()
+      .name("jmx_scrapes_shared_total")
+      .help("Number of scrape requests that were served by a scrape already in progress.").register();
+
+    /**
+     * A run, and its outcome once done.
+     */
+    private static class Flight<T> {
+        final CountDownLatch done = new CountDownLatch(1);
+        T result;
+        RuntimeException exception;
+        Error error;
+
+        T await() {
+            boolean interrupted = false;
+            while (true) {
+                try {
+                    done.await();
+                    break;
+                } catch (InterruptedException e) {
+                    // Waiting is cheaper than running again, so keep waiting and keep the interrupt for later.
+                    interrupted = true;
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+            if (exception != null) {
+                throw exception;
+            }
+            if (error != null) {
+                throw error;
+            }
+            return result;
+        }
+    }
+
+    private final AtomicReference<Flight<T>> inFlight = new AtomicReference<Flight<T>>();
+
+    /**
+     * The operation to share.
+     */
+    protected abstract T run();
+
+    /**
+     * Returns the result of the run in flight, or of a new run if there is none.
+     */
+    T get() {
+        Flight<T> flight = new Flight<T>();
+        while (true) {
+            Flight<T> current = inFlight.get();
+            if (current != null) {
+                shared.inc();
+                return current.await();
+            }
+            if (inFlight.compareAndSet(null, flight)) {
+                break;
+            }
+        }
+        try {
+            flight.result = run();
+        } catch (RuntimeException e) {
+            flight.exception = e;
+        } catch (Error e) {
+            flight.error = e;
+        } finally {
+            // Later callers start a new run, as they may expect to see changes since this one started.
+            inFlight.set(null);
+            flight.done.countDown();
+        }
+        return flight.await();
+    }
+}
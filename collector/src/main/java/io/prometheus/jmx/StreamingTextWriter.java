@@ -0,0 +1,165 @@
+package io.prometheus.jmx;
+
+import io.prometheus.client.Collector;
+import io.prometheus.client.Collector.MetricFamilySamples;
+import io.prometheus.client.Collector.Type;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Writes samples in the 0.0.4 text exposition format as they are produced, without building MetricFamilySamples.
+ *
+ * Samples arrive in mBean order, not grouped by family, so each family's sample lines are appended to a buffer of
+ * their own, and the families are written out in the order they first appeared. This keeps one object per family
+ * rather than several per sample. The buffers are reused by the next scrape after a {@link #reset()}.
+ *
+ * The {@code name{labels} } start of each line is kept in a {@link SeriesRegistry} across scrapes, so only the
+ * values are formatted again.
+ *
+ * The output is the same as that of simpleclient's TextFormat.write004 for the same families.
+ */
+class StreamingTextWriter implements SampleSink {
+    /**
+     * A family and its sample lines so far.
+     */
+    private static class Family {
+        final String name;
+        final Type type;
+        final String help;
+        final StringBuilder samples;
+
+        Family(String name, Type type, String help, StringBuilder samples) {
+            this.name = name;
+            this.type = type;
+            this.help = help;
+            this.samples = samples;
+        }
+    }
+
+    private final Map<String, Family> families = new LinkedHashMap<String, Family>();
+    // Buffers of the families of previous scrapes, to reuse.
+    private final List<StringBuilder> spareBuffers = new ArrayList<StringBuilder>();
+    private final char[] chunk = new char[8192];
+    private final SeriesRegistry series = new SeriesRegistry();
+
+    /**
+     * Forget the samples of the previous scrape, keeping the buffers.
+     */
+    void reset() {
+        for (Family family : families.values()) {
+            family.samples.setLength(0);
+            spareBuffers.add(family.samples);
+        }
+        families.clear();
+        series.nextScrape();
+    }
+
+    public void addSample(String name, List<String> labelNames, List<String> labelValues, double value,
+                          Type type, String help) {
+        appendSample(family(name, type, help).samples, name, labelNames, labelValues, value);
+    }
+
+    /**
+     * Add a family that was built as MetricFamilySamples, such as the scrape's own metrics.
+     */
+    void addFamily(MetricFamilySamples mfs) {
+        // Also without samples, to write the header.
+        StringBuilder samples = family(mfs.name, mfs.type, mfs.help).samples;
+        for (MetricFamilySamples.Sample sample : mfs.samples) {
+            appendSample(samples, sample.name, sample.labelNames, sample.labelValues, sample.value);
+        }
+    }
+
+    private Family family(String name, Type type, String help) {
+        Family family = families.get(name);
+        if (family == null) {
+            StringBuilder samples = spareBuffers.isEmpty()
+                ? new StringBuilder() : spareBuffers.remove(spareBuffers.size() - 1);
+            family = new Family(name, type, help, samples);
+            families.put(name, family);
+        }
+        return family;
+    }
+
+    /**
+     * Write all families added since the last reset.
+     */
+    void writeTo(Writer writer) throws IOException {
+        for (Family family : families.values()) {
+            writer.write("# HELP ");
+            writer.write(family.name);
+            writer.write(' ');
+            writeEscapedHelp(writer, family.help);
+            writer.write('\n');
+
+            writer.write("# TYPE ");
+            writer.write(family.name);
+            writer.write(' ');
+            writer.write(typeString(family.type));
+            writer.write('\n');
+
+            // In chunks, as Writer.append would copy the whole buffer into a String.
+            StringBuilder samples = family.samples;
+            for (int start = 0; start < samples.length(); start += chunk.length) {
+                int end = Math.min(samples.length(), start + chunk.length);
+                samples.getChars(start, end, chunk, 0);
+                writer.write(chunk, 0, end - start);
+            }
+        }
+    }
+
+    private void appendSample(StringBuilder sb, String name, List<String> labelNames,
+                              List<String> labelValues, double value) {
+        sb.append(series.get(name, labelNames, labelValues).prefix);
+        appendValue(sb, value);
+        sb.append('\n');
+    }
+
+    /**
+     * Appends the value as Collector.doubleToGoString would, without building a String for whole numbers.
+     */
+    static void appendValue(StringBuilder sb, double value) {
+        // Double.toString switches to exponent notation from 10^7, and keeps the sign of -0.0.
+        if (value == (long) value && Math.abs(value) < 1.0E7 && Double.doubleToRawLongBits(value) != Long.MIN_VALUE) {
+            sb.append((long) value).append(".0");
+        } else {
+            sb.append(Collector.doubleToGoString(value));
+        }
+    }
+
+    private static void writeEscapedHelp(Writer writer, String s) throws IOException {
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            switch (c) {
+                case '\\':
+                    writer.append("\\\\");
+                    break;
+                case '\n':
+                    writer.append("\\n");
+                    break;
+                default:
+                    writer.append(c);
+            }
+        }
+    }
+
+    private static String typeString(Type t) {
+        switch (t) {
+            case GAUGE:
+                return "gauge";
+            case COUNTER:
+                return "counter";
+            case SUMMARY:
+                return "summary";
+            case HISTOGRAM:
+                return "histogram";
+            default:
+                return "untyped";
+        }
+    }
+}
@@ -0,0 +1,206 @@
+package io.prometheus.jmx;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
+import javax.management.remote.JMXConnectorServer;
+import javax.management.remote.JMXConnectorServerFactory;
+import javax.management.remote.JMXServiceURL;
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class BulkScraperTest {
+    private MBeanServer mbs;
+    private JMXConnectorServer server;
+    private String jmxUrl;
+
+    @Before
+    public void setUp() throws Exception {
+        mbs = ManagementFactory.getPlatformMBeanServer();
+        Example.registerBeans(mbs);
+        server = JMXConnectorServerFactory.newJMXConnectorServer(new JMXServiceURL("service:jmx:rmi://"), null, mbs);
+        server.start();
+        jmxUrl = server.getAddress().toString();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        server.stop();
+        if (mbs.isRegistered(BulkScraper.OBJECT_NAME)) {
+            mbs.unregisterMBean(BulkScraper.OBJECT_NAME);
+        }
+    }
+
+    @Test
+    public void testBulkScrapeEqualsLocalScrape() throws Exception {
+        BulkScraper.register(mbs);
+        File[] files = new File("../example_configs").listFiles();
+        assertNotNull(files);
+        for (File file : files) {
+            String config = RuleIndexTest.exampleConfig(file, "regex");
+            JmxCollector local = new JmxCollector(config);
+            JmxCollector remote = new JmxCollector(config + "jmxUrl: " + jmxUrl + "\nmbeanInfoCacheTtlSeconds: 60\n");
+
+            TreeSet<String> expected = RuleIndexTest.output(local.collect());
+            assertEquals(file.getName(), expected, RuleIndexTest.output(remote.collect()));
+            assertEquals(file.getName(), expected, RuleIndexTest.output(remote.collect()));
+            // The MBeanInfo was only fetched on the side of the bulk scraper.
+            assertTrue(file.getName(), remote.getMBeanInfoCache().getEntries().isEmpty());
+        }
+    }
+
+    @Test
+    public void testScrapesMBeansOneByOneWithoutBulkScraper() throws Exception {
+        File file = new File("../example_configs/cassandra.yml");
+        String config = RuleIndexTest.exampleConfig(file, "regex");
+        JmxCollector remote = new JmxCollector(config + "jmxUrl: " + jmxUrl + "\nmbeanInfoCacheTtlSeconds: 60\n");
+
+        assertEquals(RuleIndexTest.output(new JmxCollector(config).collect()), RuleIndexTest.output(remote.collect()));
+        assertFalse(remote.getMBeanInfoCache().getEntries().isEmpty());
+    }
+
+    private static JmxScraper scraper(JmxConnectionManager connectionManager, JmxMBeanInfoCache jmxMBeanInfoCache)
+        throws Exception {
+        return scraper(connectionManager, jmxMBeanInfoCache, new HashSet<ObjectName>());
+    }
+
+    private static JmxScraper scraper(JmxConnectionManager connectionManager, JmxMBeanInfoCache jmxMBeanInfoCache,
+                                      final Set<ObjectName> scraped) throws Exception {
+        JmxScraper.MBeanReceiver receiver = new JmxScraper.MBeanReceiver() {
+            public void recordBean(ObjectName mbeanName, String domain, Map<String, String> beanProperties,
+                LinkedList<String> attrKeys, String attrName, String attrType, String attrDescription, Object value) {
+                scraped.add(mbeanName);
+            }
+        };
+        // Cached MBeanInfo shows the mBeans were fetched one by one.
+        jmxMBeanInfoCache.setTtlSeconds(60);
+        return new JmxScraper(connectionManager, Arrays.asList(new ObjectName("org.apache.cassandra.metrics:*")),
+            new ArrayList<ObjectName>(), ScrapeFilter.ALL, receiver, new JmxMBeanPropertyCache(), jmxMBeanInfoCache);
+    }
+
+    @Test
+    public void testBulkScraperIsLookedUpOncePerConnection() throws Exception {
+        JmxConnectionManager connectionManager = new JmxConnectionManager(jmxUrl, "", "", false, 0);
+        try {
+            JmxMBeanInfoCache jmxMBeanInfoCache = new JmxMBeanInfoCache();
+            scraper(connectionManager, jmxMBeanInfoCache).doScrape();
+            assertFalse(connectionManager.getBulkScraper());
+            assertFalse(jmxMBeanInfoCache.getEntries().isEmpty());
+
+            // Not looked up again while connected.
+            BulkScraper.register(mbs);
+            jmxMBeanInfoCache = new JmxMBeanInfoCache();
+            scraper(connectionManager, jmxMBeanInfoCache).doScrape();
+            assertFalse(jmxMBeanInfoCache.getEntries().isEmpty());
+
+            connectionManager.close();
+            assertNull(connectionManager.getBulkScraper());
+            jmxMBeanInfoCache = new JmxMBeanInfoCache();
+            scraper(connectionManager, jmxMBeanInfoCache).doScrape();
+            assertTrue(connectionManager.getBulkScraper());
+            assertTrue(jmxMBeanInfoCache.getEntries().isEmpty());
+        } finally {
+            connectionManager.close();
+        }
+    }
+
+    @Test
+    public void testBulkScraperIsNotUsedWithQuarantine() throws Exception {
+        BulkScraper.register(mbs);
+        JmxConnectionManager connectionManager = new JmxConnectionManager(jmxUrl, "", "", false, 0);
+        try {
+            JmxMBeanInfoCache jmxMBeanInfoCache = new JmxMBeanInfoCache();
+            JmxScraper scraper = scraper(connectionManager, jmxMBeanInfoCache);
+            scraper.setQuarantine(new JmxMBeanQuarantine(0.0, 60, 3600));
+            scraper.doScrape();
+            assertNull(connectionManager.getBulkScraper());
+            assertFalse(jmxMBeanInfoCache.getEntries().isEmpty());
+        } finally {
+            connectionManager.close();
+        }
+    }
+
+    @Test
+    public void testMalformedBulkScrapeFallsBackToScrapingOneByOne() throws Exception {
+        mbs.registerMBean(new StandardMBean(new BulkScraperMBean() {
+            public Object[] scrape(ObjectName[] whitelistObjectNames, ObjectName[] blacklistObjectNames,
+                                   Object[] scrapeFilter) {
+                return new Object[] {"junk"};
+            }
+        }, BulkScraperMBean.class), BulkScraper.OBJECT_NAME);
+        JmxConnectionManager connectionManager = new JmxConnectionManager(jmxUrl, "", "", false, 0);
+        try {
+            Set<ObjectName> scraped = new HashSet<ObjectName>();
+            scraper(connectionManager, new JmxMBeanInfoCache(), scraped).doScrape();
+            assertFalse(connectionManager.getBulkScraper());
+            assertFalse(scraped.isEmpty());
+        } finally {
+            connectionManager.close();
+        }
+    }
+
+    @Test
+    public void testBulkScrapeIsBoundedByTheDeadline() throws Exception {
+        final CountDownLatch released = new CountDownLatch(1);
+        mbs.registerMBean(new StandardMBean(new BulkScraperMBean() {
+            public Object[] scrape(ObjectName[] whitelistObjectNames, ObjectName[] blacklistObjectNames,
+                                   Object[] scrapeFilter) {
+                try {
+                    released.await(10, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                return new Object[0];
+            }
+        }, BulkScraperMBean.class), BulkScraper.OBJECT_NAME);
+        JmxConnectionManager connectionManager = new JmxConnectionManager(jmxUrl, "", "", false, 0);
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            // The mBeans are fetched one by one in the second half of the scrape timeout.
+            Set<ObjectName> scraped = new HashSet<ObjectName>();
+            JmxScraper scraper = scraper(connectionManager, new JmxMBeanInfoCache(), scraped);
+            scraper.setExecutor(executor, 2);
+            scraper.setTimeouts(TimeUnit.SECONDS.toNanos(4), 0, null);
+            long start = System.nanoTime();
+            scraper.doScrape();
+            assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(4));
+            assertFalse(scraper.isTimedOut());
+            assertFalse(scraped.isEmpty());
+
+            // So does the next scrape.
+            assertFalse(connectionManager.getBulkScraper());
+            JmxMBeanInfoCache jmxMBeanInfoCache = new JmxMBeanInfoCache();
+            scraper = scraper(connectionManager, jmxMBeanInfoCache);
+            scraper.setExecutor(executor, 2);
+            scraper.setTimeouts(TimeUnit.SECONDS.toNanos(10), 0, null);
+            scraper.doScrape();
+            assertFalse(scraper.isTimedOut());
+            assertFalse(jmxMBeanInfoCache.getEntries().isEmpty());
+        } finally {
+            released.countDown();
+            executor.shutdownNow();
+            connectionManager.close();
+        }
+    }
+}
@@ -0,0 +1,34 @@
+package io.prometheus.jmx;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public interface CountingMBean {
+    public int getCount();
+    public int getExpensive();
+}
+
+/**
+ * A bean that counts how often its attributes are read.
+ */
+class Counting implements CountingMBean {
+    final AtomicInteger countReads = new AtomicInteger();
+    final AtomicInteger expensiveReads = new AtomicInteger();
+
+    public static Counting registerBean(MBeanServer mbs)
+            throws javax.management.JMException {
+        ObjectName mbeanName = new ObjectName("counting:type=Test");
+        Counting mbean = new Counting();
+        mbs.registerMBean(mbean, mbeanName);
+        return mbean;
+    }
+
+    public int getCount() {
+        return countReads.incrementAndGet();
+    }
+
+    public int getExpensive() {
+        return expensiveReads.incrementAndGet();
+    }
+}
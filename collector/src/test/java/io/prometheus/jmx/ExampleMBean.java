@@ -0,0 +1,99 @@
+package io.prometheus.jmx;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+public interface ExampleMBean {
+    public long getCount();
+    public double getValue();
+    public int getrequestCount();
+    public int getcurrentThreadCount();
+    public long getnumber_of_commits();
+    public long getbytes_sent();
+    public String getName();
+    public boolean getEnabled();
+}
+
+/**
+ * A bean that is registered under the names of the beans the configurations in example_configs are written for.
+ */
+class Example implements ExampleMBean {
+
+    static final String[] OBJECT_NAMES = {
+        "kafka.server:type=BrokerTopicMetrics,name=MessagesInPerSec,topic=foo",
+        "kafka.server:type=ReplicaManager,name=PartitionCount",
+        "kafka.server:type=FetcherLagMetrics,name=ConsumerLag,clientId=ReplicaFetcherThread-0-1,topic=foo,partition=0",
+        "kafka.network:type=RequestMetrics,name=RequestsPerSec,request=Produce",
+        "kafka.network:type=SocketServer,name=NetworkProcessorAvgIdlePercent",
+        "kafka.log:type=Log,name=Size,topic=foo,partition=0",
+        "kafka.cluster:type=Partition,name=UnderReplicated,topic=foo,partition=0",
+        "kafka.controller:type=KafkaController,name=ActiveControllerCount",
+        "\"kafka.server\":type=\"BrokerTopicMetrics\",name=\"foo-BytesInPerSec\"",
+        "\"kafka.log\":type=\"Log\",name=\"foo-0-LogEndOffset\"",
+        "org.apache.cassandra.metrics:type=ColumnFamily,keyspace=ks,scope=tbl,name=ReadLatency",
+        "org.apache.cassandra.metrics:type=Connection,scope=127.0.0.1,name=Timeouts",
+        "Catalina:type=GlobalRequestProcessor,name=\"http-nio-8080\"",
+        "Catalina:type=ThreadPool,name=\"http-nio-8080\"",
+        "com.bea:ServerRuntime=AdminServer,Name=ds,Type=JDBCDataSourceRuntime",
+        "com.bea:ServerRuntime=AdminServer,Name=default,Type=ThreadPoolRuntime",
+        "jboss.as:subsystem=datasources,data-source=ExampleDS,statistics=pool",
+        "jboss.as:subsystem=transactions",
+        "jboss.as:subsystem=undertow,server=default-server,http-listener=default",
+        "metrics:name=app-1.driver.DAGScheduler.stage.failedStages",
+        "metrics:name=master.workers",
+        "org.apache.ZooKeeperService:name0=ReplicatedServer_id1,name1=replica.1",
+        "org.apache.flink.metrics:key0=host,key1=jobmanager,name=numRunningJobs",
+        "org.apache.flink.metrics:key0=host,key1=taskmanager,key2=tm1,key3=job,key4=task,key5=0,name=numRecordsIn",
+        "org.apache.activemq.artemis:broker=\"b1\"",
+        "org.apache.activemq.artemis:broker=\"b1\",component=addresses,address=\"a1\"",
+    };
+
+    static final String[] DOMAINS = {
+        "kafka.server:*", "kafka.network:*", "kafka.log:*", "kafka.cluster:*", "kafka.controller:*",
+        "\"kafka.server\":*", "\"kafka.log\":*", "org.apache.cassandra.metrics:*", "Catalina:*", "com.bea:*",
+        "jboss.as:*", "metrics:*", "org.apache.ZooKeeperService:*", "org.apache.flink.metrics:*",
+        "org.apache.activemq.artemis:*",
+    };
+
+    public static void registerBeans(MBeanServer mbs)
+            throws javax.management.JMException {
+        for (String name : OBJECT_NAMES) {
+            ObjectName mbeanName = new ObjectName(name);
+            if (!mbs.isRegistered(mbeanName)) {
+                mbs.registerMBean(new Example(), mbeanName);
+            }
+        }
+    }
+
+    public long getCount() {
+        return 42;
+    }
+
+    public double getValue() {
+        return 3.5;
+    }
+
+    public int getrequestCount() {
+        return 7;
+    }
+
+    public int getcurrentThreadCount() {
+        return 4;
+    }
+
+    public long getnumber_of_commits() {
+        return 12;
+    }
+
+    public long getbytes_sent() {
+        return 1024;
+    }
+
+    public String getName() {
+        return "example";
+    }
+
+    public boolean getEnabled() {
+        return true;
+    }
+}
@@ -0,0 +1,150 @@
+package io.prometheus.jmx;
+
+import io.prometheus.client.Collector.MetricFamilySamples;
+import io.prometheus.client.Collector.Type;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class ExpositionFormatTest {
+
+    @Test
+    public void testNegotiate() {
+        assertEquals(ExpositionFormat.TEXT_004, ExpositionFormat.negotiate(null));
+        assertEquals(ExpositionFormat.TEXT_004, ExpositionFormat.negotiate("application/json"));
+        assertEquals(ExpositionFormat.TEXT_004, ExpositionFormat.negotiate("*/*"));
+        assertEquals(ExpositionFormat.OPENMETRICS, ExpositionFormat.negotiate(
+            "application/openmetrics-text;version=1.0.0,application/openmetrics-text;version=0.0.1;q=0.75,"
+                + "text/plain;version=0.0.4;q=0.5,*/*;q=0.1"));
+        assertEquals(ExpositionFormat.PROTOBUF, ExpositionFormat.negotiate(
+            "application/vnd.google.protobuf;proto=io.prometheus.client.MetricFamily;encoding=delimited;q=0.7,"
+                + "text/plain;version=0.0.4;q=0.3,*/*;q=0.1"));
+        assertEquals(ExpositionFormat.TEXT_004,
+            ExpositionFormat.negotiate("text/plain;q=1, application/openmetrics-text;q=0.5"));
+        assertEquals(ExpositionFormat.TEXT_004,
+            ExpositionFormat.negotiate("application/openmetrics-text;q=0, text/plain;q=0.1"));
+        // Only the delimited encoding of MetricFamily is served.
+        assertEquals(ExpositionFormat.TEXT_004, ExpositionFormat.negotiate(
+            "application/vnd.google.protobuf;proto=io.prometheus.client.MetricFamily;encoding=text"));
+    }
+
+    private static MetricFamilySamples.Sample sample(String name, double value, String... labels) {
+        List<String> labelNames = new ArrayList<String>();
+        List<String> labelValues = new ArrayList<String>();
+        for (int i = 0; i < labels.length; i += 2) {
+            labelNames.add(labels[i]);
+            labelValues.add(labels[i + 1]);
+        }
+        return new MetricFamilySamples.Sample(name, labelNames, labelValues, value);
+    }
+
+    private static MetricFamilySamples family(String name, Type type, String help,
+                                              MetricFamilySamples.Sample... samples) {
+        return new MetricFamilySamples(name, type, help, Arrays.asList(samples));
+    }
+
+    @Test
+    public void testOpenMetrics() throws Exception {
+        List<MetricFamilySamples> families = Arrays.asList(
+            family("c_total", Type.COUNTER, "a \"counter\"", sample("c_total", 1, "l", "x\"y\n")),
+            family("d", Type.COUNTER, "help", sample("d", 2)),
+            family("g", Type.GAUGE, "help", sample("g", 0.5, "a", "1", "b", "2")),
+            family("u", Type.UNTYPED, "back\\slash", sample("u", Double.POSITIVE_INFINITY)));
+        StringWriter writer = new StringWriter();
+        new OpenMetricsTextWriter().write(writer, families);
+        assertEquals("# TYPE c counter\n"
+                + "# HELP c a \\\"counter\\\"\n"
+                + "c_total{l=\"x\\\"y\\n\"} 1.0\n"
+                + "# TYPE d counter\n"
+                + "# HELP d help\n"
+                + "d_total 2.0\n"
+                + "# TYPE g gauge\n"
+                + "# HELP g help\n"
+                + "g{a=\"1\",b=\"2\"} 0.5\n"
+                + "# TYPE u unknown\n"
+                + "# HELP u back\\\\slash\n"
+                + "u +Inf\n"
+                + "# EOF\n",
+            writer.toString());
+    }
+
+    private static byte[] bytes(int... values) {
+        byte[] bytes = new byte[values.length];
+        for (int i = 0; i < values.length; i++) {
+            bytes[i] = (byte) values[i];
+        }
+        return bytes;
+    }
+
+    private static byte[] protobuf(MetricFamilySamples... families) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        new ProtobufWriter().write(out, Arrays.asList(families));
+        return out.toByteArray();
+    }
+
+    @Test
+    public void testProtobufGauge() throws Exception {
+        assertArrayEquals(bytes(
+                0x1D,                                            // Length of the MetricFamily.
+                0x0A, 0x01, 'a',                                 // name
+                0x12, 0x01, 'h',                                 // help
+                0x18, 0x01,                                      // type GAUGE
+                0x22, 0x13,                                      // metric
+                0x0A, 0x06, 0x0A, 0x01, 'l', 0x12, 0x01, 'x',    // label
+                0x12, 0x09, 0x09, 0, 0, 0, 0, 0, 0, 0xF0, 0x3F), // gauge, 1.0
+            protobuf(family("a", Type.GAUGE, "h", sample("a", 1, "l", "x"))));
+    }
+
+    @Test
+    public void testProtobufSummary() throws Exception {
+        assertArrayEquals(bytes(
+                0x2A,
+                0x0A, 0x01, 's',
+                0x12, 0x00,
+                0x18, 0x02,                                      // type SUMMARY
+                0x22, 0x21,
+                0x22, 0x1F,                                      // summary
+                0x08, 0x03,                                      // sample_count
+                0x11, 0, 0, 0, 0, 0, 0, 0x10, 0x40,              // sample_sum, 4.0
+                0x1A, 0x12,                                      // quantile
+                0x09, 0, 0, 0, 0, 0, 0, 0xE0, 0x3F,              // 0.5
+                0x11, 0, 0, 0, 0, 0, 0, 0x00, 0x40),             // 2.0
+            protobuf(family("s", Type.SUMMARY, "",
+                sample("s", 2, "quantile", "0.5"), sample("s_count", 3), sample("s_sum", 4))));
+    }
+
+    @Test
+    public void testProtobufHistogram() throws Exception {
+        assertArrayEquals(bytes(
+                0x2B,
+                0x0A, 0x01, 'h',
+                0x12, 0x00,
+                0x18, 0x04,                                      // type HISTOGRAM
+                0x22, 0x22,
+                0x0A, 0x06, 0x0A, 0x01, 'l', 0x12, 0x01, 'x',
+                0x3A, 0x18,                                      // histogram
+                0x08, 0x02,
+                0x11, 0, 0, 0, 0, 0, 0, 0x08, 0x40,              // 3.0
+                0x1A, 0x0B,                                      // bucket
+                0x08, 0x02,                                      // cumulative_count
+                0x11, 0, 0, 0, 0, 0, 0, 0xF0, 0x7F),             // upper_bound, +Inf
+            protobuf(family("h", Type.HISTOGRAM, "",
+                sample("h_bucket", 2, "l", "x", "le", "+Inf"), sample("h_count", 2, "l", "x"),
+                sample("h_sum", 3, "l", "x"))));
+    }
+
+    @Test
+    public void testProtobufSkipsEmptyFamiliesAndSeparatesStraySamples() throws Exception {
+        assertArrayEquals(
+            protobuf(family("o", Type.UNTYPED, "", sample("o", 1))),
+            protobuf(family("e", Type.GAUGE, "", new MetricFamilySamples.Sample[0]),
+                family("s", Type.SUMMARY, "", sample("o", 1))));
+    }
+}
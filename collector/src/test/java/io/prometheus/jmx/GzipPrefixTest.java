@@ -0,0 +1,55 @@
+package io.prometheus.jmx;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.util.Random;
+import java.util.zip.GZIPInputStream;
+
+import static org.junit.Assert.assertArrayEquals;
+
+public class GzipPrefixTest {
+
+    private static ByteArrayOutputStream text(Random random, int lines) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (int i = 0; i < lines; i++) {
+            out.write(("metric_" + random.nextInt(50) + "{l=\"é" + random.nextInt(1000) + "\",} "
+                + random.nextDouble() + "\n").getBytes("UTF-8"));
+        }
+        return out;
+    }
+
+    private static byte[] gunzip(ByteArrayOutputStream... parts) throws Exception {
+        ByteArrayOutputStream gzipped = new ByteArrayOutputStream();
+        for (ByteArrayOutputStream part : parts) {
+            part.writeTo(gzipped);
+        }
+        InputStream in = new GZIPInputStream(new ByteArrayInputStream(gzipped.toByteArray()));
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        int n;
+        while ((n = in.read(buffer)) >= 0) {
+            out.write(buffer, 0, n);
+        }
+        return out.toByteArray();
+    }
+
+    @Test
+    public void testBodiesDecompressToPrefixAndRest() throws Exception {
+        Random random = new Random(42);
+        for (int lines : new int[]{0, 1, 100, 20000}) {
+            ByteArrayOutputStream prefix = text(random, lines);
+            GzipPrefix gzip = new GzipPrefix(prefix);
+            // Several bodies share the compressed start.
+            for (int restLines : new int[]{0, 1, 300}) {
+                ByteArrayOutputStream rest = text(random, restLines);
+                ByteArrayOutputStream expected = new ByteArrayOutputStream();
+                prefix.writeTo(expected);
+                rest.writeTo(expected);
+                assertArrayEquals(expected.toByteArray(), gunzip(gzip.getCompressed(), gzip.finish(rest)));
+            }
+        }
+    }
+}
@@ -0,0 +1,19 @@
+package io.prometheus.jmx;
+
+import java.util.concurrent.CountDownLatch;
+
+public interface HangingMBean {
+    public int getValue() throws InterruptedException;
+}
+
+/**
+ * A bean whose attribute doesn't return until it is released.
+ */
+class Hanging implements HangingMBean {
+    final CountDownLatch released = new CountDownLatch(1);
+
+    public int getValue() throws InterruptedException {
+        released.await();
+        return 1;
+    }
+}
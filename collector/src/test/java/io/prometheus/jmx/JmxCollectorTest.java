@@ -1,14 +1,32 @@
 package io.prometheus.jmx;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
 import io.prometheus.client.Collector;
 import io.prometheus.client.CollectorRegistry;
+import io.prometheus.client.Gauge;
+import java.io.File;
 import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 import javax.management.MBeanServer;
+import javax.management.ObjectName;
 import org.junit.Test;
 import org.junit.Before;
 import org.junit.BeforeClass;
@@ -29,6 +47,7 @@ public class JmxCollectorTest {
         Hadoop.registerBean(mbs);
         TomcatServlet.registerBean(mbs);
         Bool.registerBean(mbs);
+        StringValue.registerBean(mbs);
     }
 
     @Before
@@ -51,6 +70,19 @@ public class JmxCollectorTest {
 	  JmxCollector jc = new JmxCollector("---\nrules:\n- name: foo");
     }
 
+    @Test
+    public void testEmptyConfigFile() throws Exception {
+      File file = File.createTempFile("jmx_exporter", ".yml");
+      try {
+        Map<String, Object> yamlConfig = JmxCollector.readConfig(file);
+        assertTrue(yamlConfig.isEmpty());
+        new JmxCollector(file, yamlConfig).register(registry);
+        assertEquals(1.0, registry.getSampleValue("boolean_Test_True", new String[]{}, new String[]{}), .001);
+      } finally {
+        file.delete();
+      }
+    }
+
     @Test
     public void testNameIsReplacedOnMatch() throws Exception {
       JmxCollector jc = new JmxCollector(
@@ -195,6 +227,17 @@ public class JmxCollectorTest {
       assertEquals(0.0, registry.getSampleValue("boolean_Test_False", new String[]{}, new String[]{}), .001);
     }
 
+    @Test
+    public void testRulesReferringToMissingGroupsOnlyFailWhenTheyMatch() throws Exception {
+      new JmxCollector("\n---\nrules:\n- pattern: `^nosuchdomain<(.+)>`\n  name: foo_$2\n- pattern: `^nosuchdomain<(.+)>`\n  name: bar_${\n- pattern: `^hadoop<service=DataNode, name=DataNodeActivity-ams-hdd001-50010><>replaceBlockOpMinTime:`\n  name: foo".replace('`','"')).register(registry);
+      assertEquals(0.0, registry.getSampleValue("jmx_scrape_error", new String[]{}, new String[]{}), .001);
+      assertEquals(200, registry.getSampleValue("foo", new String[]{}, new String[]{}), .001);
+
+      CollectorRegistry failing = new CollectorRegistry();
+      new JmxCollector("\n---\nrules:\n- pattern: `^hadoop<(.+)>`\n  name: foo_$2".replace('`','"')).register(failing);
+      assertEquals(1.0, failing.getSampleValue("jmx_scrape_error", new String[]{}, new String[]{}), .001);
+    }
+
     @Test
     public void testValueEmpty() throws Exception {
       JmxCollector jc = new JmxCollector("\n---\nrules:\n- pattern: `.*`\n  name: foo\n  value:".replace('`','"')).register(registry);
@@ -231,6 +274,102 @@ public class JmxCollectorTest {
       assertEquals(0.001, registry.getSampleValue("foo", new String[]{}, new String[]{}), .001);
     }
 
+    @Test
+    public void testDescribeDeclaresFamiliesOfConstantRuleNames() throws Exception {
+      JmxCollector jc = new JmxCollector(("\n---\nlowercaseOutputName: true\nrules:"
+          + "\n- pattern: `^hadoop<service=DataNode, name=(.+)><>replaceBlockOpMinTime:`\n  name: Hadoop.Min\n  help: Minimum\n  type: GAUGE"
+          + "\n- pattern: `^hadoop<service=DataNode, name=(.+)><>replaceBlockOpMaxTime:`\n  name: hadoop_min\n  type: COUNTER"
+          + "\n- pattern: `^hadoop<service=(.+)><>(.+):`\n  name: hadoop_$1_$2\n  help: $2\n  type: SUMMARY").replace('`','"'));
+      Map<String, Collector.MetricFamilySamples> described = new HashMap<String, Collector.MetricFamilySamples>();
+      for (Collector.MetricFamilySamples mfs : jc.describe()) {
+        described.put(mfs.name, mfs);
+      }
+      assertTrue(described.containsKey("jmx_scrape_error"));
+      assertEquals(Collector.Type.GAUGE, described.get("hadoop_min").type);
+      assertEquals("Minimum", described.get("hadoop_min").help);
+      assertEquals(5, described.size());
+      assertTrue(jc.getDeclaredNames().contains("hadoop_min"));
+
+      // Now routed to the collector by the registry.
+      jc.register(registry);
+      assertEquals(1, Collections.list(registry.filteredMetricFamilySamples(Collections.singleton("hadoop_min"))).size());
+    }
+
+    @Test
+    public void testRuleFamiliesClashingWithAnotherCollectorAreNotDeclared() throws Exception {
+      Gauge.build().name("foo").help("help").register(registry).set(1);
+      JmxCollector jc = new JmxCollector(
+              "\n---\nrules:\n- pattern: `^hadoop<service=DataNode, name=DataNodeActivity-ams-hdd001-50010><>replaceBlockOpMinTime:`\n  name: foo".replace('`','"')).register(registry);
+      assertTrue(jc.getDeclaredNames().contains("jmx_scrape_error"));
+      assertFalse(jc.getDeclaredNames().contains("foo"));
+      assertNotNull(registry.getSampleValue("jmx_scrape_error", new String[]{}, new String[]{}));
+    }
+
+    @Test
+    public void testStringValueWithStructuralCharacters() throws Exception {
+      JmxCollector jc = new JmxCollector(
+              "\n---\nwhitelistObjectNames:\n- `stringvalue:*`\nrules:\n- pattern: `(\\\\w+)>`\n  name: s_$1\n  value: 1".replace('`','"')).register(registry);
+      for (int i = 0; i < 2; i++) {
+        assertEquals(1.0, registry.getSampleValue("s_a", new String[]{}, new String[]{}), .001);
+        assertNull(registry.getSampleValue("s_Test", new String[]{}, new String[]{}));
+      }
+    }
+
+    @Test
+    public void testMatchedRulesAreCached() throws Exception {
+      JmxCollector jc = new JmxCollector(
+              "\n---\nrules:\n- pattern: `^hadoop<service=DataNode, name=DataNodeActivity-ams-hdd001-50010><>replaceBlockOpMinTime:`\n  name: foo\n  labels:\n    l: v".replace('`','"')).register(registry);
+      assertEquals(200, registry.getSampleValue("foo", new String[]{"l"}, new String[]{"v"}), .001);
+
+      ObjectName hadoop = new ObjectName("hadoop:service=DataNode,name=DataNodeActivity-ams-hdd001-50010");
+      MatchedRule matchedRule = jc.getMatchedRulesCache().get(hadoop, "hadoop<service=DataNode, name=DataNodeActivity-ams-hdd001-50010><>replaceBlockOpMinTime");
+      assertNotNull(matchedRule);
+      assertEquals("foo", matchedRule.name);
+      assertEquals(200, registry.getSampleValue("foo", new String[]{"l"}, new String[]{"v"}), .001);
+    }
+
+    @Test
+    public void testValuePatternIsNotCached() throws Exception {
+      JmxCollector jc = new JmxCollector(
+              "\n---\nrules:\n- pattern: '^hadoop<service=DataNode, name=DataNodeActivity-ams-hdd001-50010><>replaceBlockOpMinTime: (\\d+)'\n  name: foo\n  value: $1".replace('`','"')).register(registry);
+      assertEquals(200, registry.getSampleValue("foo", new String[]{}, new String[]{}), .001);
+
+      ObjectName hadoop = new ObjectName("hadoop:service=DataNode,name=DataNodeActivity-ams-hdd001-50010");
+      MatchedRule matchedRule = jc.getMatchedRulesCache().get(hadoop, "hadoop<service=DataNode, name=DataNodeActivity-ams-hdd001-50010><>replaceBlockOpMinTime");
+      assertTrue(matchedRule.isPartial());
+      assertEquals(0, matchedRule.resumeAt);
+      assertEquals(200, registry.getSampleValue("foo", new String[]{}, new String[]{}), .001);
+    }
+
+    @Test
+    public void testWholeMatchIncludesTheValue() throws Exception {
+      JmxCollector jc = new JmxCollector(
+              "\n---\nrules:\n- pattern: `^hadoop<service=DataNode, name=DataNodeActivity-ams-hdd001-50010><>replaceBlockOpMinTime:`\n  name: foo\n  labels:\n    l: $0".replace('`','"')).register(registry);
+      String input = "hadoop<service=DataNode, name=DataNodeActivity-ams-hdd001-50010><>replaceBlockOpMinTime: 200";
+      for (int i = 0; i < 2; i++) {
+        assertEquals(200, registry.getSampleValue("foo", new String[]{"l"}, new String[]{input}), .001);
+      }
+
+      ObjectName hadoop = new ObjectName("hadoop:service=DataNode,name=DataNodeActivity-ams-hdd001-50010");
+      assertTrue(jc.getMatchedRulesCache().get(hadoop, "hadoop<service=DataNode, name=DataNodeActivity-ams-hdd001-50010><>replaceBlockOpMinTime").isPartial());
+    }
+
+    @Test
+    public void testMatchedRulesOfUnregisteredBeansAreEvicted() throws Exception {
+      MBeanServer mbs = ManagementFactory.getPlatformMBeanServer();
+      ObjectName temporary = new ObjectName("boolean:Type=Temporary");
+      mbs.registerMBean(new Bool(), temporary);
+      JmxCollector jc = new JmxCollector("\n---\nwhitelistObjectNames:\n- boolean:*").register(registry);
+      try {
+        assertEquals(1.0, registry.getSampleValue("boolean_Temporary_True", new String[]{}, new String[]{}), .001);
+        assertNotNull(jc.getMatchedRulesCache().getMatchedRulesPerBean().get(temporary));
+      } finally {
+        mbs.unregisterMBean(temporary);
+      }
+      assertNull(registry.getSampleValue("boolean_Temporary_True", new String[]{}, new String[]{}));
+      assertNull(jc.getMatchedRulesCache().getMatchedRulesPerBean().get(temporary));
+    }
+
     @Test(expected=IllegalStateException.class)
     public void testDelayedStartNotReady() throws Exception {
       JmxCollector jc = new JmxCollector("---\nstartDelaySeconds: 1").register(registry);
@@ -244,4 +383,209 @@ public class JmxCollectorTest {
       Thread.sleep(2000);
       assertEquals(1.0, registry.getSampleValue("boolean_Test_True", new String[]{}, new String[]{}), .001);
     }
+
+    @Test
+    public void testBackgroundScrapesAreServedFromSnapshot() throws Exception {
+      MBeanServer mbs = ManagementFactory.getPlatformMBeanServer();
+      ObjectName mbeanName = new ObjectName("background:type=Test");
+      Counting counting = new Counting();
+      mbs.registerMBean(counting, mbeanName);
+      try {
+        JmxCollector jc = new JmxCollector(
+            "\n---\nbackgroundScrapeIntervalSeconds: 1\nwhitelistObjectNames:\n- background:*").register(registry);
+        assertEquals(1.0, registry.getSampleValue("background_Test_Count", new String[]{}, new String[]{}), .001);
+        assertEquals(1.0, registry.getSampleValue("background_Test_Count", new String[]{}, new String[]{}), .001);
+        assertEquals(1, counting.countReads.get());
+        double age = registry.getSampleValue("jmx_scrape_snapshot_age_seconds", new String[]{}, new String[]{});
+        assertTrue(age >= 0 && age < 1);
+
+        Thread.sleep(1500);
+        assertEquals(2, counting.countReads.get());
+        assertEquals(2.0, registry.getSampleValue("background_Test_Count", new String[]{}, new String[]{}), .001);
+      } finally {
+        mbs.unregisterMBean(mbeanName);
+      }
+    }
+
+    @Test
+    public void testWhitelistEntriesWithScrapeIntervalAreScrapedLessOften() throws Exception {
+      MBeanServer mbs = ManagementFactory.getPlatformMBeanServer();
+      ObjectName fastName = new ObjectName("tiered:type=Fast");
+      ObjectName slowName = new ObjectName("tiered:type=Slow");
+      Counting fast = new Counting();
+      Counting slow = new Counting();
+      mbs.registerMBean(fast, fastName);
+      mbs.registerMBean(slow, slowName);
+      try {
+        JmxCollector jc = new JmxCollector(("\n---\nwhitelistObjectNames:\n- tiered:type=Fast"
+            + "\n- objectName: tiered:type=Slow\n  scrapeIntervalSeconds: 60").replace('`','"')).register(registry);
+        assertEquals(1.0, registry.getSampleValue("tiered_Fast_Count", new String[]{}, new String[]{}), .001);
+        assertEquals(2.0, registry.getSampleValue("tiered_Fast_Count", new String[]{}, new String[]{}), .001);
+        // The values of the first scrape are reused.
+        assertEquals(1.0, registry.getSampleValue("tiered_Slow_Count", new String[]{}, new String[]{}), .001);
+        assertEquals(1, slow.countReads.get());
+        assertEquals(3, fast.countReads.get());
+      } finally {
+        mbs.unregisterMBean(fastName);
+        mbs.unregisterMBean(slowName);
+      }
+    }
+
+    @Test(expected=IllegalArgumentException.class)
+    public void testWhitelistEntriesMustHaveObjectName() throws Exception {
+      new JmxCollector("\n---\nwhitelistObjectNames:\n- scrapeIntervalSeconds: 60");
+    }
+
+    @Test
+    public void testHangingBeansAreSkippedAfterBeanTimeout() throws Exception {
+      MBeanServer mbs = ManagementFactory.getPlatformMBeanServer();
+      ObjectName fastName = new ObjectName("timeout:type=Fast");
+      ObjectName hangingName = new ObjectName("timeout:type=Hanging");
+      Hanging hanging = new Hanging();
+      mbs.registerMBean(new Counting(), fastName);
+      mbs.registerMBean(hanging, hangingName);
+      try {
+        JmxCollector jc = new JmxCollector(
+            "\n---\nbeanTimeoutSeconds: 0.2\nwhitelistObjectNames:\n- timeout:*").register(registry);
+        assertEquals(1.0, registry.getSampleValue("timeout_Fast_Count", new String[]{}, new String[]{}), .001);
+        assertEquals(1.0, registry.getSampleValue("jmx_scrape_beans_skipped", new String[]{}, new String[]{}), .001);
+        assertEquals(0.0, registry.getSampleValue("jmx_scrape_timed_out", new String[]{}, new String[]{}), .001);
+        assertEquals(0.0, registry.getSampleValue("jmx_scrape_error", new String[]{}, new String[]{}), .001);
+        assertNull(registry.getSampleValue("timeout_Hanging_Value", new String[]{}, new String[]{}));
+      } finally {
+        hanging.released.countDown();
+        mbs.unregisterMBean(fastName);
+        mbs.unregisterMBean(hangingName);
+      }
+    }
+
+    @Test
+    public void testBeanTimeoutCountsFromWhenTheFetchStarts() throws Exception {
+      MBeanServer mbs = ManagementFactory.getPlatformMBeanServer();
+      ObjectName firstName = new ObjectName("timeoutstart:type=First");
+      ObjectName secondName = new ObjectName("timeoutstart:type=Second");
+      final Hanging first = new Hanging();
+      final Hanging second = new Hanging();
+      mbs.registerMBean(first, firstName);
+      mbs.registerMBean(second, secondName);
+      ScheduledExecutorService releaser = Executors.newSingleThreadScheduledExecutor();
+      try {
+        JmxCollector jc = new JmxCollector(
+            "\n---\nbeanTimeoutSeconds: 0.8\nwhitelistObjectNames:\n- timeoutstart:*");
+        // Both are fetched at once. The second takes longer than the bean timeout, though less than that
+        // after the first returned.
+        releaser.schedule(new Runnable() {
+          public void run() {
+            first.released.countDown();
+          }
+        }, 600, TimeUnit.MILLISECONDS);
+        releaser.schedule(new Runnable() {
+          public void run() {
+            second.released.countDown();
+          }
+        }, 1200, TimeUnit.MILLISECONDS);
+        // Each lookup in a registry scrapes again, so look at the output of a single scrape.
+        Set<String> output = RuleIndexTest.output(jc.collect());
+        assertTrue(output.contains("timeoutstart_First_Value[][] 1.0"));
+        assertFalse(output.contains("timeoutstart_Second_Value[][] 1.0"));
+        assertTrue(output.contains("jmx_scrape_beans_skipped[][] 1.0"));
+      } finally {
+        releaser.shutdownNow();
+        first.released.countDown();
+        second.released.countDown();
+        mbs.unregisterMBean(firstName);
+        mbs.unregisterMBean(secondName);
+      }
+    }
+
+    @Test
+    public void testBeansAreReleasedWhenTheExecutorRejectsThem() throws Exception {
+      // As when a config reload shuts down the executor of a running scrape.
+      ExecutorService executor = Executors.newCachedThreadPool();
+      executor.shutdown();
+      Set<ObjectName> beansBeingFetched = Collections.newSetFromMap(new ConcurrentHashMap<ObjectName, Boolean>());
+      JmxScraper scraper = new JmxScraper(new JmxConnectionManager("", "", "", false, 0),
+          Arrays.asList(new ObjectName("boolean:*")), new ArrayList<ObjectName>(), ScrapeFilter.ALL,
+          new JmxScraper.MBeanReceiver() {
+            public void recordBean(ObjectName mbeanName, String domain, Map<String, String> beanProperties,
+                LinkedList<String> attrKeys, String attrName, String attrType, String attrDescription, Object value) {
+            }
+          }, new JmxMBeanPropertyCache(), new JmxMBeanInfoCache());
+      scraper.setExecutor(executor, 1);
+      scraper.setTimeouts(0, TimeUnit.SECONDS.toNanos(1), beansBeingFetched);
+      try {
+        scraper.doScrape();
+        fail();
+      } catch (RejectedExecutionException e) {
+      }
+      assertTrue(beansBeingFetched.isEmpty());
+    }
+
+    @Test
+    public void testScrapeDeadlineGivesPartialResults() throws Exception {
+      MBeanServer mbs = ManagementFactory.getPlatformMBeanServer();
+      ObjectName fastName = new ObjectName("deadline:type=Fast");
+      ObjectName hangingName = new ObjectName("deadline:type=Hanging");
+      Hanging hanging = new Hanging();
+      mbs.registerMBean(new Counting(), fastName);
+      mbs.registerMBean(hanging, hangingName);
+      try {
+        JmxCollector jc = new JmxCollector(
+            "\n---\nscrapeTimeoutSeconds: 0.5\nwhitelistObjectNames:\n- deadline:*").register(registry);
+        assertEquals(1.0, registry.getSampleValue("deadline_Fast_Count", new String[]{}, new String[]{}), .001);
+        assertEquals(1.0, registry.getSampleValue("jmx_scrape_timed_out", new String[]{}, new String[]{}), .001);
+        assertEquals(1.0, registry.getSampleValue("jmx_scrape_beans_skipped", new String[]{}, new String[]{}), .001);
+        double duration = registry.getSampleValue("jmx_scrape_duration_seconds", new String[]{}, new String[]{});
+        assertTrue(duration < 2);
+      } finally {
+        hanging.released.countDown();
+        mbs.unregisterMBean(fastName);
+        mbs.unregisterMBean(hangingName);
+      }
+    }
+
+    @Test
+    public void testTimedOutBeansAreQuarantined() throws Exception {
+      MBeanServer mbs = ManagementFactory.getPlatformMBeanServer();
+      ObjectName fastName = new ObjectName("quarantine:type=Fast");
+      ObjectName hangingName = new ObjectName("quarantine:type=Hanging");
+      Hanging hanging = new Hanging();
+      mbs.registerMBean(new Counting(), fastName);
+      mbs.registerMBean(hanging, hangingName);
+      try {
+        JmxCollector jc = new JmxCollector(
+            "\n---\nbeanTimeoutSeconds: 0.2\nquarantineSeconds: 60\nwhitelistObjectNames:\n- quarantine:*").register(registry);
+        // Each lookup is a scrape. The first one times out on the hanging bean.
+        assertEquals(1.0, registry.getSampleValue("jmx_scrape_beans_skipped", new String[]{}, new String[]{}), .001);
+        // Later ones don't even try it.
+        assertEquals(1.0, registry.getSampleValue("jmx_scrape_beans_quarantined", new String[]{}, new String[]{}), .001);
+        assertEquals(0.0, registry.getSampleValue("jmx_scrape_beans_skipped", new String[]{}, new String[]{}), .001);
+        assertNotNull(registry.getSampleValue("quarantine_Fast_Count", new String[]{}, new String[]{}));
+        double remaining = registry.getSampleValue("jmx_mbean_quarantine_remaining_seconds",
+            new String[]{"mbean", "reason"}, new String[]{"quarantine:type=Hanging", "timeout"});
+        assertTrue(remaining > 50 && remaining <= 60);
+
+        String report = new QuarantineHttpHandler(jc).report();
+        assertTrue(report, report.startsWith("quarantine:type=Hanging remaining="));
+        assertTrue(report, report.contains(" reason=timeout "));
+      } finally {
+        hanging.released.countDown();
+        mbs.unregisterMBean(fastName);
+        mbs.unregisterMBean(hangingName);
+      }
+    }
+
+    @Test
+    public void testTabularDataRowsGetTheirOwnLabels() throws Exception {
+      MBeanServer mbs = ManagementFactory.getPlatformMBeanServer();
+      ObjectName tabularName = new ObjectName("tabular:type=Test");
+      mbs.registerMBean(new Tabular(), tabularName);
+      try {
+        JmxCollector jc = new JmxCollector("\n---\nwhitelistObjectNames:\n- tabular:*").register(registry);
+        assertEquals(1.0, registry.getSampleValue("tabular_Test_Values", new String[]{"key"}, new String[]{"a"}), .001);
+        assertEquals(2.0, registry.getSampleValue("tabular_Test_Values", new String[]{"key"}, new String[]{"b"}), .001);
+      } finally {
+        mbs.unregisterMBean(tabularName);
+      }
+    }
 }
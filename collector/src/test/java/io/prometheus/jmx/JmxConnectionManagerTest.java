@@ -0,0 +1,108 @@
+package io.prometheus.jmx;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.management.MBeanServerConnection;
+import javax.management.remote.JMXConnectorServer;
+import javax.management.remote.JMXConnectorServerFactory;
+import javax.management.remote.JMXServiceURL;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class JmxConnectionManagerTest {
+    private JMXConnectorServer server;
+    private String jmxUrl;
+
+    @Before
+    public void setUp() throws Exception {
+        server = JMXConnectorServerFactory.newJMXConnectorServer(
+            new JMXServiceURL("service:jmx:rmi://"), null, ManagementFactory.getPlatformMBeanServer());
+        server.start();
+        jmxUrl = server.getAddress().toString();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        if (server.isActive()) {
+            server.stop();
+        }
+    }
+
+    @Test
+    public void testConnectionIsReused() throws Exception {
+        JmxConnectionManager manager = new JmxConnectionManager(jmxUrl, "", "", false, 0);
+        MBeanServerConnection connection = manager.getConnection();
+        manager.release();
+        assertSame(connection, manager.getConnection());
+        manager.release();
+        assertTrue(connection.getMBeanCount() > 0);
+        manager.close();
+    }
+
+    @Test
+    public void testReconnectsAfterFailure() throws Exception {
+        JmxConnectionManager manager = new JmxConnectionManager(jmxUrl, "", "", false, 0);
+        double reconnects = JmxConnectionManager.reconnects.get();
+        MBeanServerConnection connection = manager.getConnection();
+        manager.connectionFailed();
+        manager.release();
+        assertFalse(manager.isConnected());
+
+        assertNotSame(connection, manager.getConnection());
+        manager.release();
+        assertEquals(reconnects + 1, JmxConnectionManager.reconnects.get(), .001);
+        manager.close();
+    }
+
+    @Test
+    public void testConnectAttemptsBackOff() throws Exception {
+        server.stop();
+        JmxConnectionManager manager = new JmxConnectionManager(jmxUrl, "", "", false, 0);
+        double failures = JmxConnectionManager.connectFailures.get();
+        try {
+            manager.getConnection();
+            fail("Expected IOException");
+        } catch (IOException e) {
+            // Expected.
+        }
+        assertEquals(failures + 1, JmxConnectionManager.connectFailures.get(), .001);
+
+        // Within the backoff no connection is attempted.
+        try {
+            manager.getConnection();
+            fail("Expected IOException");
+        } catch (IOException e) {
+            // Expected.
+        }
+        assertEquals(failures + 1, JmxConnectionManager.connectFailures.get(), .001);
+    }
+
+    @Test
+    public void testIdleConnectionIsClosed() throws Exception {
+        JmxConnectionManager manager = new JmxConnectionManager(jmxUrl, "", "", false, 1);
+        manager.getConnection();
+        // Not idle while in use.
+        Thread.sleep(1500);
+        assertTrue(manager.isConnected());
+
+        manager.release();
+        Thread.sleep(1500);
+        assertFalse(manager.isConnected());
+    }
+
+    @Test
+    public void testLocalServerNeedsNoConnection() throws Exception {
+        JmxConnectionManager manager = new JmxConnectionManager("", "", "", false, 0);
+        assertSame(ManagementFactory.getPlatformMBeanServer(), manager.getConnection());
+        manager.release();
+    }
+}
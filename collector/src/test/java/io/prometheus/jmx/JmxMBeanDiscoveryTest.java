@@ -0,0 +1,118 @@
+package io.prometheus.jmx;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.management.MBeanServer;
+import javax.management.MBeanServerConnection;
+import javax.management.MBeanServerDelegate;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class JmxMBeanDiscoveryTest {
+    private MBeanServer mbs;
+    private final AtomicInteger queries = new AtomicInteger();
+    private MBeanServerConnection countingConn;
+    private ObjectName first, second, blacklisted;
+
+    @Before
+    public void setUp() throws Exception {
+        mbs = ManagementFactory.getPlatformMBeanServer();
+        // Counts the queries made through it.
+        countingConn = (MBeanServerConnection) Proxy.newProxyInstance(getClass().getClassLoader(),
+            new Class<?>[] {MBeanServerConnection.class}, new InvocationHandler() {
+                public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                    if (method.getName().equals("queryMBeans")) {
+                        queries.incrementAndGet();
+                    }
+                    try {
+                        return method.invoke(mbs, args);
+                    } catch (InvocationTargetException e) {
+                        throw e.getCause();
+                    }
+                }
+            });
+        first = new ObjectName("discovery:type=Test,name=first");
+        second = new ObjectName("discovery:type=Test,name=second");
+        blacklisted = new ObjectName("discovery:type=Blacklisted");
+        tearDown();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        for (ObjectName mbeanName : new ObjectName[] {first, second, blacklisted}) {
+            if (mbs.isRegistered(mbeanName)) {
+                mbs.unregisterMBean(mbeanName);
+            }
+        }
+    }
+
+    private JmxMBeanDiscovery newDiscovery() throws Exception {
+        return new JmxMBeanDiscovery(Arrays.asList(new ObjectName("discovery:*")),
+            Arrays.asList(new ObjectName("discovery:type=Blacklisted")), ScrapeFilter.ALL, 300);
+    }
+
+    @Test
+    public void testRegistrationsAreAppliedWithoutQueryingAllMBeans() throws Exception {
+        mbs.registerMBean(new Bool(), first);
+        JmxMBeanDiscovery discovery = newDiscovery();
+        assertTrue(discovery.update(countingConn, false).resynced);
+        assertEquals(Collections.singleton(first), discovery.getMBeans().keySet());
+
+        queries.set(0);
+        mbs.registerMBean(new Bool(), second);
+        mbs.registerMBean(new Bool(), blacklisted);
+        JmxMBeanDiscovery.Changes changes = discovery.update(countingConn, false);
+        assertFalse(changes.resynced);
+        assertTrue(changes.removed.isEmpty());
+        assertEquals(2, discovery.getMBeans().size());
+        assertTrue(discovery.getMBeans().containsKey(second));
+        // Only the registered, whitelisted mBean was queried.
+        assertEquals(1, queries.get());
+
+        mbs.unregisterMBean(first);
+        changes = discovery.update(countingConn, false);
+        assertEquals(Arrays.asList(first), changes.removed);
+        assertEquals(Collections.singleton(second), discovery.getMBeans().keySet());
+
+        queries.set(0);
+        assertTrue(discovery.update(countingConn, false).removed.isEmpty());
+        assertEquals(0, queries.get());
+        discovery.close();
+    }
+
+    @Test
+    public void testLostNotificationsCauseResync() throws Exception {
+        JmxMBeanDiscovery discovery = newDiscovery();
+        discovery.update(countingConn, false);
+        // Lose the notification of the registration.
+        mbs.removeNotificationListener(MBeanServerDelegate.DELEGATE_NAME, discovery);
+        mbs.registerMBean(new Bool(), first);
+        assertFalse(discovery.update(countingConn, false).resynced);
+        assertTrue(discovery.getMBeans().isEmpty());
+
+        assertTrue(discovery.update(countingConn, true).resynced);
+        assertEquals(Collections.singleton(first), discovery.getMBeans().keySet());
+    }
+
+    @Test
+    public void testNewConnectionCausesResync() throws Exception {
+        JmxMBeanDiscovery discovery = newDiscovery();
+        discovery.update(countingConn, false);
+        assertTrue(discovery.update(mbs, false).resynced);
+        assertFalse(discovery.update(mbs, false).resynced);
+        discovery.close();
+    }
+}
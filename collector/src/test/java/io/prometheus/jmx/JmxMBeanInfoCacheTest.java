@@ -0,0 +1,101 @@
+package io.prometheus.jmx;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.management.MBeanServer;
+import javax.management.MBeanServerFactory;
+import javax.management.ObjectInstance;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class JmxMBeanInfoCacheTest {
+    private MBeanServer mbs;
+    private ObjectName mbeanName;
+
+    @Before
+    public void setUp() throws Exception {
+        mbs = ManagementFactory.getPlatformMBeanServer();
+        mbeanName = new ObjectName("mbeaninfocache:type=Test");
+        if (mbs.isRegistered(mbeanName)) {
+            mbs.unregisterMBean(mbeanName);
+        }
+    }
+
+    @Test
+    public void testMBeanInfoIsCached() throws Exception {
+        JmxMBeanInfoCache cache = new JmxMBeanInfoCache();
+        cache.setTtlSeconds(60);
+        ObjectInstance instance = mbs.registerMBean(new Bool(), mbeanName);
+        double hits = JmxMBeanInfoCache.cacheHits.get();
+        double misses = JmxMBeanInfoCache.cacheMisses.get();
+
+        JmxMBeanInfoCache.Entry entry = cache.get(mbs, instance);
+        assertSame(entry, cache.get(mbs, instance));
+        assertEquals(hits + 1, JmxMBeanInfoCache.cacheHits.get(), .001);
+        assertEquals(misses + 1, JmxMBeanInfoCache.cacheMisses.get(), .001);
+        mbs.unregisterMBean(mbeanName);
+    }
+
+    @Test
+    public void testUnregisteredMBeanIsInvalidated() throws Exception {
+        JmxMBeanInfoCache cache = new JmxMBeanInfoCache();
+        cache.setTtlSeconds(60);
+        cache.listenTo(mbs);
+        ObjectInstance instance = mbs.registerMBean(new Bool(), mbeanName);
+        cache.get(mbs, instance);
+        assertTrue(cache.getEntries().containsKey(mbeanName));
+
+        mbs.unregisterMBean(mbeanName);
+        assertFalse(cache.getEntries().containsKey(mbeanName));
+    }
+
+    @Test
+    public void testMBeanOfOtherClassIsNotTakenFromCache() throws Exception {
+        JmxMBeanInfoCache cache = new JmxMBeanInfoCache();
+        cache.setTtlSeconds(60);
+        JmxMBeanInfoCache.Entry entry = cache.get(mbs, mbs.registerMBean(new Bool(), mbeanName));
+        mbs.unregisterMBean(mbeanName);
+
+        ObjectInstance instance = mbs.registerMBean(new Hadoop(), mbeanName);
+        assertNotSame(entry, cache.get(mbs, instance));
+        assertEquals(Hadoop.class.getName(), cache.get(mbs, instance).className);
+        mbs.unregisterMBean(mbeanName);
+    }
+
+    @Test
+    public void testNothingIsCachedWithoutTtl() throws Exception {
+        JmxMBeanInfoCache cache = new JmxMBeanInfoCache();
+        ObjectInstance instance = mbs.registerMBean(new Hadoop(), mbeanName);
+        cache.get(mbs, instance);
+        assertFalse(cache.getEntries().containsKey(mbeanName));
+        mbs.unregisterMBean(mbeanName);
+    }
+
+    @Test
+    public void testListenerIsMovedToTheNewConnection() throws Exception {
+        JmxMBeanInfoCache cache = new JmxMBeanInfoCache();
+        cache.setTtlSeconds(60);
+        cache.listenTo(mbs);
+        MBeanServer other = MBeanServerFactory.newMBeanServer();
+        cache.listenTo(other);
+        ObjectInstance instance = mbs.registerMBean(new Bool(), mbeanName);
+        cache.get(mbs, instance);
+
+        // No longer listening to the previous connection.
+        mbs.unregisterMBean(mbeanName);
+        assertTrue(cache.getEntries().containsKey(mbeanName));
+
+        other.registerMBean(new Bool(), mbeanName);
+        cache.get(other, other.getObjectInstance(mbeanName));
+        other.unregisterMBean(mbeanName);
+        assertFalse(cache.getEntries().containsKey(mbeanName));
+        cache.close();
+    }
+}
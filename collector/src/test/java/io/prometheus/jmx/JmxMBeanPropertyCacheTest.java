@@ -7,6 +7,7 @@ import java.util.*;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 
 public class JmxMBeanPropertyCacheTest {
@@ -14,63 +15,63 @@ public class JmxMBeanPropertyCacheTest {
     @Test
     public void testSingleObjectName() throws Throwable {
         JmxMBeanPropertyCache testCache = new JmxMBeanPropertyCache();
-        LinkedHashMap<String, String> parameterList = testCache.getKeyPropertyList(new ObjectName("com.organisation:name=value"));
+        Map<String, String> parameterList = testCache.getKeyPropertyList(new ObjectName("com.organisation:name=value"));
         assertSameElementsAndOrder(parameterList, "name", "value");
     }
 
     @Test
     public void testSimpleObjectName() throws Throwable {
         JmxMBeanPropertyCache testCache = new JmxMBeanPropertyCache();
-        LinkedHashMap<String, String> parameterList = testCache.getKeyPropertyList(new ObjectName("com.organisation:name=value,name2=value2"));
+        Map<String, String> parameterList = testCache.getKeyPropertyList(new ObjectName("com.organisation:name=value,name2=value2"));
         assertSameElementsAndOrder(parameterList, "name", "value", "name2", "value2");
     }
 
     @Test
     public void testQuotedObjectName() throws Throwable {
         JmxMBeanPropertyCache testCache = new JmxMBeanPropertyCache();
-        LinkedHashMap<String, String> parameterList = testCache.getKeyPropertyList(new ObjectName("com.organisation:name=value,name2=\"value2\""));
+        Map<String, String> parameterList = testCache.getKeyPropertyList(new ObjectName("com.organisation:name=value,name2=\"value2\""));
         assertSameElementsAndOrder(parameterList, "name", "value", "name2", "\"value2\"");
     }
 
     @Test
     public void testQuotedObjectNameWithComma() throws Throwable {
         JmxMBeanPropertyCache testCache = new JmxMBeanPropertyCache();
-        LinkedHashMap<String, String> parameterList = testCache.getKeyPropertyList(new ObjectName("com.organisation:name=\"value,more\",name2=value2"));
+        Map<String, String> parameterList = testCache.getKeyPropertyList(new ObjectName("com.organisation:name=\"value,more\",name2=value2"));
         assertSameElementsAndOrder(parameterList, "name", "\"value,more\"", "name2", "value2");
     }
 
     @Test
     public void testQuotedObjectNameWithEquals() throws Throwable {
         JmxMBeanPropertyCache testCache = new JmxMBeanPropertyCache();
-        LinkedHashMap<String, String> parameterList = testCache.getKeyPropertyList(new ObjectName("com.organisation:name=\"value=more\",name2=value2"));
+        Map<String, String> parameterList = testCache.getKeyPropertyList(new ObjectName("com.organisation:name=\"value=more\",name2=value2"));
         assertSameElementsAndOrder(parameterList, "name", "\"value=more\"", "name2", "value2");
     }
 
     @Test
     public void testQuotedObjectNameWithQuote() throws Throwable {
         JmxMBeanPropertyCache testCache = new JmxMBeanPropertyCache();
-        LinkedHashMap<String, String> parameterList = testCache.getKeyPropertyList(new ObjectName("com.organisation:name=\"value\\\"more\",name2=value2"));
+        Map<String, String> parameterList = testCache.getKeyPropertyList(new ObjectName("com.organisation:name=\"value\\\"more\",name2=value2"));
         assertSameElementsAndOrder(parameterList, "name", "\"value\\\"more\"", "name2", "value2");
     }
 
     @Test
     public void testQuotedObjectNameWithBackslash() throws Throwable {
         JmxMBeanPropertyCache testCache = new JmxMBeanPropertyCache();
-        LinkedHashMap<String, String> parameterList = testCache.getKeyPropertyList(new ObjectName("com.organisation:name=\"value\\\\more\",name2=value2"));
+        Map<String, String> parameterList = testCache.getKeyPropertyList(new ObjectName("com.organisation:name=\"value\\\\more\",name2=value2"));
         assertSameElementsAndOrder(parameterList, "name", "\"value\\\\more\"", "name2", "value2");
     }
 
     @Test
     public void testQuotedObjectNameWithMultipleQuoted() throws Throwable {
         JmxMBeanPropertyCache testCache = new JmxMBeanPropertyCache();
-        LinkedHashMap<String, String> parameterList = testCache.getKeyPropertyList(new ObjectName("com.organisation:name=\"value\\\\\\?\\*\\n\\\",:=more\",name2= value2 "));
+        Map<String, String> parameterList = testCache.getKeyPropertyList(new ObjectName("com.organisation:name=\"value\\\\\\?\\*\\n\\\",:=more\",name2= value2 "));
         assertSameElementsAndOrder(parameterList, "name", "\"value\\\\\\?\\*\\n\\\",:=more\"", "name2", " value2 ");
     }
 
     @Test
     public void testIssue52() throws Throwable {
         JmxMBeanPropertyCache testCache = new JmxMBeanPropertyCache();
-        LinkedHashMap<String, String> parameterList = testCache.getKeyPropertyList(
+        Map<String, String> parameterList = testCache.getKeyPropertyList(
                 new ObjectName("org.apache.camel:context=ourinternalname,type=endpoints,name=\"seda://endpointName\\?concurrentConsumers=8&size=50000\""));
         assertSameElementsAndOrder(parameterList,
                 "context", "ourinternalname",
@@ -82,8 +83,8 @@ public class JmxMBeanPropertyCacheTest {
     public void testIdempotentGet() throws Throwable {
         JmxMBeanPropertyCache testCache = new JmxMBeanPropertyCache();
         ObjectName testObjectName = new ObjectName("com.organisation:name=value");
-        LinkedHashMap<String, String> parameterListFirst = testCache.getKeyPropertyList(testObjectName);
-        LinkedHashMap<String, String> parameterListSecond = testCache.getKeyPropertyList(testObjectName);
+        Map<String, String> parameterListFirst = testCache.getKeyPropertyList(testObjectName);
+        Map<String, String> parameterListSecond = testCache.getKeyPropertyList(testObjectName);
         assertEquals(parameterListFirst, parameterListSecond);
     }
 
@@ -91,11 +92,11 @@ public class JmxMBeanPropertyCacheTest {
     public void testGetAfterDeleteOneObject() throws Throwable {
         JmxMBeanPropertyCache testCache = new JmxMBeanPropertyCache();
         ObjectName testObjectName = new ObjectName("com.organisation:name=value");
-        LinkedHashMap<String, String> parameterListFirst = testCache.getKeyPropertyList(testObjectName);
+        Map<String, String> parameterListFirst = testCache.getKeyPropertyList(testObjectName);
         assertNotNull(parameterListFirst);
         testCache.onlyKeepMBeans(Collections.<ObjectName>emptySet());
-        assertEquals(Collections.<ObjectName, LinkedHashMap<String,String>>emptyMap(), testCache.getKeyPropertiesPerBean());
-        LinkedHashMap<String, String> parameterListSecond = testCache.getKeyPropertyList(testObjectName);
+        assertEquals(Collections.<ObjectName, KeyPropertyList>emptyMap(), testCache.getKeyPropertiesPerBean());
+        Map<String, String> parameterListSecond = testCache.getKeyPropertyList(testObjectName);
         assertNotNull(parameterListSecond);
     }
 
@@ -125,7 +126,32 @@ public class JmxMBeanPropertyCacheTest {
         assertEquals(testCache.getKeyPropertiesPerBean().size(), 0);
     }
 
-    private void assertSameElementsAndOrder(LinkedHashMap<?, ?> actual, Object... expected) {
+    @Test
+    public void testBeanNamesAreCached() throws Throwable {
+        JmxMBeanPropertyCache testCache = new JmxMBeanPropertyCache();
+        ObjectName mBean = new ObjectName("com.organisation:type=a,name=b");
+        Map<String, String> properties = testCache.getKeyPropertyList(mBean);
+        String beanName = testCache.getBeanName(mBean, "com.organisation", properties, new LinkedList<String>());
+        assertEquals("com.organisation<type=a, name=b><>", beanName);
+        assertSame(beanName, testCache.getBeanName(mBean, "com.organisation", properties, new LinkedList<String>()));
+
+        List<String> attrKeys = Arrays.asList("Usage", "Detail");
+        String compositeName = testCache.getBeanName(mBean, "com.organisation", properties, attrKeys);
+        assertEquals("com.organisation<type=a, name=b><Usage, Detail>", compositeName);
+        assertSame(compositeName,
+            testCache.getBeanName(mBean, "com.organisation", properties, new LinkedList<String>(attrKeys)));
+
+        // The key properties extended with the index of tabular data aren't cached.
+        LinkedHashMap<String, String> row = new LinkedHashMap<String, String>(properties);
+        row.put("key", "x");
+        assertEquals("com.organisation<type=a, name=b, key=x><>",
+            testCache.getBeanName(mBean, "com.organisation", row, new LinkedList<String>()));
+        row.put("key", "y");
+        assertEquals("com.organisation<type=a, name=b, key=y><>",
+            testCache.getBeanName(mBean, "com.organisation", row, new LinkedList<String>()));
+    }
+
+    private void assertSameElementsAndOrder(Map<?, ?> actual, Object... expected) {
         assert expected.length % 2 == 0;
         List<Map.Entry<?,?>> actualList = new ArrayList<Map.Entry<?, ?>>(actual.entrySet());
         List<Map.Entry<?,?>> expectedList = new ArrayList<Map.Entry<?,?>>();
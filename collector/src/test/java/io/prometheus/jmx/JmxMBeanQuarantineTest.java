@@ -0,0 +1,89 @@
+package io.prometheus.jmx;
+
+import org.junit.Test;
+
+import javax.management.ObjectName;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class JmxMBeanQuarantineTest {
+    private static final long MS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    @Test
+    public void testFailuresQuarantineWithBackoff() throws Exception {
+        ObjectName name = new ObjectName("quarantine:type=Failing");
+        JmxMBeanQuarantine quarantine = new JmxMBeanQuarantine(0, 50 * MS, 120 * MS);
+        assertFalse(quarantine.isQuarantined(name));
+
+        quarantine.failed(name, "java.io.IOException");
+        assertTrue(quarantine.isQuarantined(name));
+        JmxMBeanQuarantine.Entry entry = quarantine.getEntries().get(name);
+        assertEquals(1, entry.offences);
+        assertEquals("failed", entry.reason);
+        assertEquals("java.io.IOException", entry.detail);
+
+        // Offences while quarantined don't count.
+        quarantine.timedOut(name);
+        assertEquals(1, quarantine.getEntries().get(name).offences);
+
+        Thread.sleep(60);
+        assertFalse(quarantine.isQuarantined(name));
+        long before = System.nanoTime();
+        quarantine.timedOut(name);
+        entry = quarantine.getEntries().get(name);
+        assertEquals(2, entry.offences);
+        assertEquals("timeout", entry.reason);
+        assertTrue(entry.untilNanos - before >= 100 * MS);
+
+        Thread.sleep(110);
+        quarantine.failed(name, "java.io.IOException");
+        long after = System.nanoTime();
+        entry = quarantine.getEntries().get(name);
+        assertEquals(3, entry.offences);
+        // Capped at the maximum.
+        assertTrue(entry.untilNanos - after <= 120 * MS);
+    }
+
+    @Test
+    public void testFetchWithoutOffenceAfterQuarantineResets() throws Exception {
+        ObjectName name = new ObjectName("quarantine:type=Failing");
+        JmxMBeanQuarantine quarantine = new JmxMBeanQuarantine(0, 20 * MS, 1000 * MS);
+        quarantine.failed(name, "java.io.IOException");
+        // Still quarantined, e.g. a fetch that was already under way.
+        quarantine.fetched(name, MS);
+        assertTrue(quarantine.isQuarantined(name));
+
+        Thread.sleep(30);
+        quarantine.fetched(name, MS);
+        assertTrue(quarantine.getEntries().isEmpty());
+        quarantine.failed(name, "java.io.IOException");
+        assertEquals(1, quarantine.getEntries().get(name).offences);
+    }
+
+    @Test
+    public void testSlowFetchesAreOffences() throws Exception {
+        ObjectName name = new ObjectName("quarantine:type=Slow");
+        JmxMBeanQuarantine quarantine = new JmxMBeanQuarantine(100 * MS, 1000 * MS, 1000 * MS);
+        quarantine.fetched(name, 50 * MS);
+        assertFalse(quarantine.isQuarantined(name));
+        quarantine.fetched(name, 150 * MS);
+        assertTrue(quarantine.isQuarantined(name));
+        assertEquals("slow", quarantine.getEntries().get(name).reason);
+        assertEquals("took 150ms", quarantine.getEntries().get(name).detail);
+
+        quarantine.onlyKeepMBeans(Collections.<ObjectName>emptySet());
+        assertFalse(quarantine.isQuarantined(name));
+    }
+
+    @Test
+    public void testNoLatencyThreshold() throws Exception {
+        ObjectName name = new ObjectName("quarantine:type=Slow");
+        JmxMBeanQuarantine quarantine = new JmxMBeanQuarantine(0, 1000 * MS, 1000 * MS);
+        quarantine.fetched(name, TimeUnit.SECONDS.toNanos(100));
+        assertFalse(quarantine.isQuarantined(name));
+    }
+}
@@ -0,0 +1,73 @@
+package io.prometheus.jmx;
+
+import org.junit.Test;
+
+import javax.management.AttributeList;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+public class JmxMBeanValueCacheTest {
+
+    private static JmxScraper.FetchedBean bean(ObjectName mbeanName) {
+        return new JmxScraper.FetchedBean(mbeanName, new HashMap<String, MBeanAttributeInfo>(), new AttributeList());
+    }
+
+    @Test
+    public void testValuesAreKeptForTheInterval() throws Exception {
+        ObjectName slow = new ObjectName("cache:type=Slow");
+        ObjectName fast = new ObjectName("cache:type=Fast");
+        JmxMBeanValueCache cache = new JmxMBeanValueCache(
+            Arrays.asList(new ObjectName("cache:type=Slow"), new ObjectName("cache:type=Fast")), Arrays.asList(60, 0));
+        cache.put(bean(slow));
+        cache.put(bean(fast));
+        assertNotNull(cache.get(slow));
+        assertNull(cache.get(fast));
+
+        cache.invalidate(slow);
+        assertNull(cache.get(slow));
+    }
+
+    @Test
+    public void testBeansGoneFromTheDiscoveryArePruned() throws Exception {
+        MBeanServer mbs = ManagementFactory.getPlatformMBeanServer();
+        ObjectName kept = new ObjectName("churn:name=kept");
+        mbs.registerMBean(new Counting(), kept);
+        try {
+            JmxMBeanValueCache cache = new JmxMBeanValueCache(Arrays.asList(new ObjectName("churn:*")),
+                Arrays.asList(60));
+            JmxMBeanDiscovery discovery = new JmxMBeanDiscovery(Arrays.asList(new ObjectName("churn:*")),
+                new ArrayList<ObjectName>(), ScrapeFilter.ALL, 300);
+            JmxScraper.MBeanReceiver receiver = new JmxScraper.MBeanReceiver() {
+                public void recordBean(ObjectName mbeanName, String domain, Map<String, String> beanProperties,
+                    LinkedList<String> attrKeys, String attrName, String attrType, String attrDescription,
+                    Object value) {
+                }
+            };
+            JmxConnectionManager connectionManager = new JmxConnectionManager("", "", "", false, 0);
+            for (int i = 0; i < 3; i++) {
+                // A bean that came and went between two scrapes, and was never reported removed.
+                cache.get(new ObjectName("churn:name=gone" + i));
+                JmxScraper scraper = new JmxScraper(connectionManager, Arrays.asList(new ObjectName("churn:*")),
+                    new ArrayList<ObjectName>(), ScrapeFilter.ALL, receiver, new JmxMBeanPropertyCache(),
+                    new JmxMBeanInfoCache());
+                scraper.setMBeanDiscovery(discovery);
+                scraper.setMBeanValueCache(cache);
+                scraper.doScrape();
+                assertEquals(1, cache.size());
+            }
+        } finally {
+            mbs.unregisterMBean(kept);
+        }
+    }
+}
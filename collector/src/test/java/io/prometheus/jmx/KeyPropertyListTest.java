@@ -0,0 +1,126 @@
+package io.prometheus.jmx;
+
+import org.junit.Test;
+
+import javax.management.ObjectName;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Random;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+public class KeyPropertyListTest {
+    // The regex the key property lists used to be parsed with, as the reference.
+    private static final Pattern PROPERTY_PATTERN = Pattern.compile(
+            "([^,=:\\*\\?]+)" + // Name - non-empty, anything but comma, equals, colon, star, or question mark
+                    "=" +  // Equals
+                    "(" + // Either
+                    "\"" + // Quoted
+                    "(?:" + // A possibly empty sequence of
+                    "[^\\\\\"]*" + // Greedily match anything but backslash or quote
+                    "(?:\\\\.)?" + // Greedily see if we can match an escaped sequence
+                    ")*" +
+                    "\"" +
+                    "|" + // Or
+                    "[^,=:\"]*" + // Unquoted - can be empty, anything but comma, equals, colon, or quote
+                    ")");
+
+    private static LinkedHashMap<String, String> parseWithRegex(String properties) {
+        LinkedHashMap<String, String> keyProperties = new LinkedHashMap<String, String>();
+        Matcher match = PROPERTY_PATTERN.matcher(properties);
+        while (match.lookingAt()) {
+            keyProperties.put(match.group(1), match.group(2));
+            properties = properties.substring(match.end());
+            if (properties.startsWith(",")) {
+                properties = properties.substring(1);
+            }
+            match.reset(properties);
+        }
+        return keyProperties;
+    }
+
+    private static void assertParsesLikeRegex(String properties) {
+        LinkedHashMap<String, String> expected = parseWithRegex(properties);
+        KeyPropertyList actual = KeyPropertyList.parse(properties);
+        assertEquals(properties, new ArrayList<Object>(expected.entrySet()), new ArrayList<Object>(actual.entrySet()));
+        assertEquals(properties, expected.toString(), actual.toString());
+    }
+
+    private static final String VALUE_CHARS = "ab ,=:*?\"\\\n";
+    private static final String RAW_CHARS = "ab,=:*?\"\\\n\r ";
+
+    private static String randomString(Random random, String chars, int maxLength) {
+        StringBuilder sb = new StringBuilder();
+        int length = random.nextInt(maxLength + 1);
+        for (int i = 0; i < length; i++) {
+            sb.append(chars.charAt(random.nextInt(chars.length())));
+        }
+        return sb.toString();
+    }
+
+    @Test
+    public void testParsesObjectNamesLikeRegex() throws Exception {
+        Random random = new Random(42);
+        for (int i = 0; i < 20000; i++) {
+            StringBuilder name = new StringBuilder("com.organisation:");
+            int properties = 1 + random.nextInt(4);
+            for (int j = 0; j < properties; j++) {
+                if (j > 0) {
+                    name.append(',');
+                }
+                name.append("key").append(j).append('=');
+                if (random.nextBoolean()) {
+                    name.append(ObjectName.quote(randomString(random, VALUE_CHARS, 8)));
+                } else {
+                    name.append(randomString(random, "ab .-_", 8));
+                }
+            }
+            assertParsesLikeRegex(new ObjectName(name.toString()).getKeyPropertyListString());
+        }
+    }
+
+    @Test
+    public void testParsesArbitraryStringsLikeRegex() {
+        Random random = new Random(42);
+        for (int i = 0; i < 100000; i++) {
+            assertParsesLikeRegex(randomString(random, RAW_CHARS, 16));
+        }
+        assertParsesLikeRegex("k=\"unterminated");
+        assertParsesLikeRegex("k=\"a\\\nb\",\"x=y");
+        assertParsesLikeRegex("k=a=b,c=d");
+        assertParsesLikeRegex("k=1,k=2,j=3");
+    }
+
+    @Test
+    public void testIsCompactMap() throws Exception {
+        KeyPropertyList list = KeyPropertyList.parse(
+            new ObjectName("com.organisation:type=a,name=\"b,c\"").getKeyPropertyListString());
+        assertEquals(2, list.size());
+        assertEquals("a", list.get("type"));
+        assertEquals("\"b,c\"", list.get("name"));
+        assertNull(list.get("other"));
+        assertEquals("{type=a, name=\"b,c\"}", list.toString());
+
+        LinkedHashMap<String, String> expected = new LinkedHashMap<String, String>();
+        expected.put("type", "a");
+        expected.put("name", "\"b,c\"");
+        assertEquals(expected, list);
+
+        // Keys are shared between mBeans.
+        KeyPropertyList other = KeyPropertyList.parse(new String("type=b"));
+        assertSame(list.getKey(0), other.getKey(0));
+
+        assertSame(KeyPropertyList.EMPTY, KeyPropertyList.parse(""));
+        try {
+            list.put("type", "b");
+            fail();
+        } catch (UnsupportedOperationException e) {
+            // Immutable.
+        }
+    }
+}
@@ -0,0 +1,59 @@
+package io.prometheus.jmx;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class LiteralPrefilterTest {
+
+    @Test
+    public void testRequiredLiteral() {
+        assertNull(RulePatternAnalyzer.requiredLiteral(null));
+        assertNull(RulePatternAnalyzer.requiredLiteral(".*"));
+        assertEquals("server<type=", RulePatternAnalyzer.requiredLiteral("kafka.server<type=(.+), name=(.+)><>Value"));
+        assertEquals("kafka.server<type=", RulePatternAnalyzer.requiredLiteral("kafka\\.server<type=(.+)><>Value"));
+        assertEquals("><>Value", RulePatternAnalyzer.requiredLiteral("kafka.(\\w+)<type=(.+), name=(.+)><>Value"));
+        assertEquals("<>Coun", RulePatternAnalyzer.requiredLiteral("<>Count?"));
+        assertEquals("type=Foo", RulePatternAnalyzer.requiredLiteral("(Bar|Baz)?type=Foo"));
+        assertNull(RulePatternAnalyzer.requiredLiteral("type=Bar|type=Foo"));
+        assertNull(RulePatternAnalyzer.requiredLiteral("(?i)type=Foo"));
+        assertNull(RulePatternAnalyzer.requiredLiteral("(Foo|Bar)+"));
+        // Escapes are taken whole, and the characters they stand for are literals.
+        assertEquals("kafka.server<type=", RulePatternAnalyzer.requiredLiteral("kafka\\x2eserver<type=(.+)"));
+        assertEquals("kafka.network<type=", RulePatternAnalyzer.requiredLiteral("kafka\\u002enetwork<type=(.+)"));
+        assertEquals("\tfoo", RulePatternAnalyzer.requiredLiteral("\\cIfoo"));
+        assertEquals("atalina<type=", RulePatternAnalyzer.requiredLiteral("\\pLatalina<type=(.+)"));
+        assertEquals("ount", RulePatternAnalyzer.requiredLiteral("\\P{Lu}ount"));
+        assertNull(RulePatternAnalyzer.requiredLiteral("com\\056bea<"));
+        assertNull(RulePatternAnalyzer.requiredLiteral("kafka\\x2"));
+    }
+
+    @Test
+    public void testScan() {
+        LiteralPrefilter prefilter = new LiteralPrefilter(Arrays.asList("he", null, "she", "hers", "his", "she"));
+        LiteralPrefilter.Scan scan = prefilter.newScan();
+        scan.feed("ushe", 0);
+        assertTrue(scan.mayMatch(0, 4));
+        assertTrue(scan.mayMatch(1, 4));
+        assertTrue(scan.mayMatch(2, 4));
+        assertFalse(scan.mayMatch(3, 4));
+        assertFalse(scan.mayMatch(4, 4));
+        assertTrue(scan.mayMatch(5, 4));
+        // Only literals that end within the prefix count.
+        assertFalse(scan.mayMatch(2, 3));
+
+        scan.feed("ushers", 4);
+        assertTrue(scan.mayMatch(3, 6));
+        assertFalse(scan.mayMatch(3, 5));
+
+        scan.reset();
+        scan.feed("éhis", 0);
+        assertFalse(scan.mayMatch(0, 4));
+        assertTrue(scan.mayMatch(4, 4));
+    }
+}
@@ -0,0 +1,72 @@
+package io.prometheus.jmx;
+
+import io.prometheus.client.Collector;
+import org.junit.Test;
+
+import javax.management.ObjectName;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class MatchedRulesCacheTest {
+
+    private static MatchedRule matchedRule(String name) {
+        return new MatchedRule(name, new ArrayList<String>(), new ArrayList<String>(), "help",
+            Collector.Type.UNTYPED, null, 1.0);
+    }
+
+    @Test
+    public void testGetAndPut() throws Throwable {
+        MatchedRulesCache cache = new MatchedRulesCache();
+        ObjectName mbeanName = new ObjectName("com.organisation:name=value");
+        MatchedRule matchedRule = matchedRule("foo");
+
+        assertNull(cache.get(mbeanName, "com.organisation<name=value><>attr"));
+        cache.put(mbeanName, "com.organisation<name=value><>attr", matchedRule);
+        assertSame(matchedRule, cache.get(mbeanName, "com.organisation<name=value><>attr"));
+        assertNull(cache.get(mbeanName, "com.organisation<name=value><>other"));
+    }
+
+    @Test
+    public void testUnmatchedAndPartial() throws Throwable {
+        assertFalse(MatchedRule.unmatched().isMatched());
+        assertFalse(MatchedRule.unmatched().isPartial());
+        assertFalse(MatchedRule.resumeAt(2).isMatched());
+        assertTrue(MatchedRule.resumeAt(2).isPartial());
+        assertEquals(2, MatchedRule.resumeAt(2).resumeAt);
+        assertTrue(matchedRule("foo").isMatched());
+    }
+
+    @Test
+    public void testOnlyKeepMBeans() throws Throwable {
+        MatchedRulesCache cache = new MatchedRulesCache();
+        ObjectName mbeanName1 = new ObjectName("com.organisation:name=value1");
+        ObjectName mbeanName2 = new ObjectName("com.organisation:name=value2");
+        cache.put(mbeanName1, "attr", matchedRule("foo"));
+        cache.put(mbeanName2, "attr", matchedRule("bar"));
+
+        Set<ObjectName> keep = new HashSet<ObjectName>(Collections.singleton(mbeanName2));
+        cache.onlyKeepMBeans(keep);
+        assertNull(cache.get(mbeanName1, "attr"));
+        assertEquals("bar", cache.get(mbeanName2, "attr").name);
+        assertEquals(1, cache.getMatchedRulesPerBean().size());
+    }
+
+    @Test
+    public void testEntriesPerBeanAreBounded() throws Throwable {
+        MatchedRulesCache cache = new MatchedRulesCache();
+        ObjectName mbeanName = new ObjectName("com.organisation:name=table");
+        for (int i = 0; i < MatchedRulesCache.MAX_ENTRIES_PER_BEAN + 10; i++) {
+            cache.put(mbeanName, "row" + i, matchedRule("foo"));
+        }
+        assertTrue(cache.getMatchedRulesPerBean().get(mbeanName).size() <= MatchedRulesCache.MAX_ENTRIES_PER_BEAN);
+        assertEquals("foo", cache.get(mbeanName, "row" + (MatchedRulesCache.MAX_ENTRIES_PER_BEAN + 9)).name);
+    }
+}
@@ -0,0 +1,324 @@
+package io.prometheus.jmx;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import io.prometheus.client.Collector;
+import io.prometheus.client.Collector.MetricFamilySamples;
+import io.prometheus.client.CollectorRegistry;
+import io.prometheus.client.Gauge;
+import io.prometheus.client.exporter.common.TextFormat;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StringWriter;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPInputStream;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class MetricsHttpServerTest {
+    private static final String PROMETHEUS_ACCEPT =
+        "application/openmetrics-text; version=0.0.1,text/plain;version=0.0.4;q=0.5,*/*;q=0.1";
+
+    private CollectorRegistry registry;
+    private MetricsHttpServer server;
+
+    @Before
+    public void setUp() throws Exception {
+        registry = new CollectorRegistry();
+        Gauge.build().name("a").help("help of a").labelNames("l").register(registry).labels("x\"y").set(1);
+        Gauge.build().name("b").help("help of b").register(registry).set(2);
+        server = new MetricsHttpServer(new InetSocketAddress("localhost", 0), registry, 2, false, true);
+    }
+
+    private void negotiateFormat() throws IOException {
+        server.stop();
+        server = new MetricsHttpServer(new InetSocketAddress("localhost", 0), registry, 2, true, true);
+    }
+
+    @After
+    public void tearDown() {
+        server.stop();
+    }
+
+    private HttpURLConnection request(String path, boolean gzip) throws IOException {
+        HttpURLConnection connection =
+            (HttpURLConnection) new URL("http://localhost:" + server.getPort() + path).openConnection();
+        if (gzip) {
+            connection.setRequestProperty("Accept-Encoding", "gzip");
+        }
+        return connection;
+    }
+
+    private static String read(InputStream in) throws IOException {
+        return readBytes(in).toString("UTF-8");
+    }
+
+    private static ByteArrayOutputStream readBytes(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        int n;
+        while ((n = in.read(buffer)) >= 0) {
+            out.write(buffer, 0, n);
+        }
+        in.close();
+        return out;
+    }
+
+    private static String withoutDuration(String text) {
+        return text.replaceAll("(?m)^jmx_scrape_duration_seconds .*$", "");
+    }
+
+    private static String withoutAge(String text) {
+        return text.replaceAll("(?m)^jmx_scrape_snapshot_age_seconds .*$", "");
+    }
+
+    private String expected(String... names) throws IOException {
+        StringWriter writer = new StringWriter();
+        TextFormat.write004(writer, names.length == 0 ? registry.metricFamilySamples()
+            : registry.filteredMetricFamilySamples(new HashSet<String>(Arrays.asList(names))));
+        return writer.toString();
+    }
+
+    @Test
+    public void testServesTextFormat() throws Exception {
+        HttpURLConnection connection = request("/metrics", false);
+        assertEquals(200, connection.getResponseCode());
+        assertEquals(TextFormat.CONTENT_TYPE_004, connection.getContentType());
+        assertNull(connection.getContentEncoding());
+        assertEquals(expected(), read(connection.getInputStream()));
+
+        assertEquals(expected(), read(request("/", false).getInputStream()));
+    }
+
+    @Test
+    public void testServesGzip() throws Exception {
+        HttpURLConnection connection = request("/metrics", true);
+        assertEquals("gzip", connection.getContentEncoding());
+        assertEquals(expected(), read(new GZIPInputStream(connection.getInputStream())));
+    }
+
+    @Test
+    public void testFiltersByName() throws Exception {
+        assertEquals(expected("b"), read(request("/metrics?name[]=b", false).getInputStream()));
+        assertEquals(expected("a", "b"), read(request("/metrics?name%5B%5D=a&name[]=b", false).getInputStream()));
+    }
+
+    @Test
+    public void testFiltersByNameThroughCollector() throws Exception {
+        JmxCollector collector = new JmxCollector(("\n---\nwhitelistObjectNames: [`java.lang:type=OperatingSystem`]"
+            + "\nrules:\n- pattern: `^java.lang<type=OperatingSystem><>AvailableProcessors`\n  name: processors"
+            + "\n- pattern: `.*`").replace('`','"')).register(registry);
+        server.setJmxCollector(collector);
+
+        String body = read(request("/metrics?name[]=processors&name[]=b"
+            + "&name[]=java_lang_OperatingSystem_TotalPhysicalMemorySize", false).getInputStream());
+        assertTrue(body, body.contains("# TYPE processors untyped\n"));
+        assertTrue(body, body.contains("\nprocessors " + (double) Runtime.getRuntime().availableProcessors() + "\n"));
+        assertTrue(body, body.contains("\njava_lang_OperatingSystem_TotalPhysicalMemorySize "));
+        assertTrue(body, body.endsWith(expected("b")));
+        assertEquals(-1, body.indexOf("jmx_scrape"));
+    }
+
+    @Test
+    public void testCollectorWritesItsText() throws Exception {
+        JmxCollector collector = new JmxCollector(("\n---\nwhitelistObjectNames: [`java.lang:type=OperatingSystem`]"
+            + "\nrules:\n- pattern: `^java.lang<type=OperatingSystem><>AvailableProcessors`\n  name: processors")
+            .replace('`','"')).register(registry);
+        server.setJmxCollector(collector);
+
+        String body = read(request("/metrics", false).getInputStream());
+        assertTrue(body, body.startsWith("# HELP processors "));
+        assertTrue(body, body.contains("\nprocessors " + (double) Runtime.getRuntime().availableProcessors() + "\n"));
+        assertEquals(body, 1, body.split("# TYPE processors ").length - 1);
+        assertTrue(body, body.endsWith(expected("a", "b")));
+
+        HttpURLConnection connection = request("/metrics", true);
+        assertEquals("gzip", connection.getContentEncoding());
+        String gunzipped = read(new GZIPInputStream(connection.getInputStream()));
+        assertEquals(withoutDuration(body), withoutDuration(gunzipped));
+
+        // Prometheus asks for OpenMetrics first, but gets the collector's text unless negotiation is on.
+        connection = request("/metrics", false);
+        connection.setRequestProperty("Accept", PROMETHEUS_ACCEPT);
+        assertEquals(TextFormat.CONTENT_TYPE_004, connection.getContentType());
+        assertTrue(read(connection.getInputStream()).startsWith("# HELP processors "));
+
+        // Other formats are collected from the registry.
+        negotiateFormat();
+        server.setJmxCollector(collector);
+        connection = request("/metrics", false);
+        connection.setRequestProperty("Accept", PROMETHEUS_ACCEPT);
+        assertEquals(ExpositionFormat.OPENMETRICS.contentType, connection.getContentType());
+        assertTrue(read(connection.getInputStream()).contains("\nprocessors "));
+    }
+
+    @Test
+    public void testSnapshotIsEncodedOnce() throws Exception {
+        JmxCollector collector = new JmxCollector(("\n---\nbackgroundScrapeIntervalSeconds: 3600"
+            + "\nwhitelistObjectNames: [`java.lang:type=OperatingSystem`]").replace('`','"')).register(registry);
+        server.setJmxCollector(collector);
+        String first = read(new GZIPInputStream(request("/metrics", true).getInputStream()));
+        assertTrue(first, first.contains("\njmx_scrape_snapshot_age_seconds "));
+        assertTrue(first, first.endsWith(expected("a", "b")));
+
+        double identityBefore = MetricsHttpServer.encodings.labels("text", "identity").get();
+        double gzipBefore = MetricsHttpServer.encodings.labels("text", "gzip").get();
+        Gauge.build().name("c").help("help of c").register(registry).set(3);
+        String second = read(new GZIPInputStream(request("/metrics", true).getInputStream()));
+        String third = read(request("/metrics", false).getInputStream());
+        assertEquals(identityBefore, MetricsHttpServer.encodings.labels("text", "identity").get(), .001);
+        assertEquals(gzipBefore, MetricsHttpServer.encodings.labels("text", "gzip").get(), .001);
+        // The other collectors are collected for each response.
+        assertTrue(second, second.endsWith(expected("a", "b", "c")));
+        assertEquals(withoutAge(first.substring(0, first.indexOf("# HELP jmx_scrape_snapshot_age_seconds"))),
+            withoutAge(second.substring(0, second.indexOf("# HELP jmx_scrape_snapshot_age_seconds"))));
+        assertEquals(withoutAge(second), withoutAge(third));
+    }
+
+    @Test
+    public void testNegotiatesFormat() throws Exception {
+        negotiateFormat();
+        List<MetricFamilySamples> families = Collections.list(registry.metricFamilySamples());
+
+        HttpURLConnection connection = request("/metrics", true);
+        connection.setRequestProperty("Accept", "application/openmetrics-text; version=1.0.0, text/plain;q=0.5");
+        assertEquals(ExpositionFormat.OPENMETRICS.contentType, connection.getContentType());
+        StringWriter openMetrics = new StringWriter();
+        new OpenMetricsTextWriter().write(openMetrics, families);
+        assertEquals(openMetrics.toString(), read(new GZIPInputStream(connection.getInputStream())));
+
+        connection = request("/metrics", false);
+        connection.setRequestProperty("Accept",
+            "application/vnd.google.protobuf;proto=io.prometheus.client.MetricFamily;encoding=delimited");
+        assertEquals(ExpositionFormat.PROTOBUF.contentType, connection.getContentType());
+        ByteArrayOutputStream protobuf = new ByteArrayOutputStream();
+        new ProtobufWriter().write(protobuf, families);
+        assertArrayEquals(protobuf.toByteArray(), readBytes(connection.getInputStream()).toByteArray());
+    }
+
+    @Test
+    public void testHeadHasNoBody() throws Exception {
+        HttpURLConnection connection = request("/metrics", false);
+        connection.setRequestMethod("HEAD");
+        assertEquals(200, connection.getResponseCode());
+        assertEquals("", read(connection.getInputStream()));
+    }
+
+    @Test
+    public void testConcurrentRequestsShareAnEncoding() throws Exception {
+        final CountDownLatch collecting = new CountDownLatch(1);
+        final CountDownLatch released = new CountDownLatch(1);
+        new Collector() {
+            public List<MetricFamilySamples> collect() {
+                collecting.countDown();
+                try {
+                    released.await();
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
+                return new ArrayList<MetricFamilySamples>();
+            }
+        }.register(registry);
+
+        ExecutorService executor = Executors.newCachedThreadPool();
+        try {
+            double identityBefore = MetricsHttpServer.encodings.labels("text", "identity").get();
+            double gzipBefore = MetricsHttpServer.encodings.labels("text", "gzip").get();
+            double sharedBefore = SingleFlight.shared.get();
+            Future<String> first = executor.submit(new Callable<String>() {
+                public String call() throws Exception {
+                    return read(new GZIPInputStream(request("/metrics", true).getInputStream()));
+                }
+            });
+            assertTrue(collecting.await(10, TimeUnit.SECONDS));
+            // The second worker thread joins the scrape in progress.
+            Future<String> second = executor.submit(new Callable<String>() {
+                public String call() throws Exception {
+                    return read(new GZIPInputStream(request("/metrics", true).getInputStream()));
+                }
+            });
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+            while (SingleFlight.shared.get() == sharedBefore && System.nanoTime() < deadline) {
+                Thread.sleep(1);
+            }
+            released.countDown();
+            assertEquals(first.get(10, TimeUnit.SECONDS), second.get(10, TimeUnit.SECONDS));
+            assertEquals(identityBefore + 1, MetricsHttpServer.encodings.labels("text", "identity").get(), .001);
+            assertEquals(gzipBefore + 1, MetricsHttpServer.encodings.labels("text", "gzip").get(), .001);
+        } finally {
+            released.countDown();
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testCountsRequestsOfAddedHandlers() throws Exception {
+        server.addHandler("/other", new HttpHandler() {
+            public void handle(HttpExchange exchange) throws IOException {
+                byte[] body = "other\n".getBytes("UTF-8");
+                exchange.sendResponseHeaders(200, body.length);
+                exchange.getResponseBody().write(body);
+            }
+        });
+        double before = MetricsHttpServer.requests.labels("/other", "200").get();
+        assertEquals("other\n", read(request("/other", false).getInputStream()));
+        // Counted once the exchange is closed, which may be after the client has read the response.
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (MetricsHttpServer.requests.labels("/other", "200").get() == before && System.nanoTime() < deadline) {
+            Thread.sleep(1);
+        }
+        assertEquals(before + 1, MetricsHttpServer.requests.labels("/other", "200").get(), .001);
+    }
+
+    @Test
+    public void testOptionsAreValidated() throws Exception {
+        Map<String, Object> yamlConfig = new HashMap<String, Object>();
+        yamlConfig.put("httpServerThreads", 0);
+        try {
+            MetricsHttpServer.start(new InetSocketAddress("localhost", 0), registry, yamlConfig, true);
+            fail();
+        } catch (IllegalArgumentException e) {
+            // Expected.
+        }
+        yamlConfig.put("httpServerThreads", 1);
+        yamlConfig.put("httpServerKeepAliveSeconds", 0);
+        try {
+            MetricsHttpServer.start(new InetSocketAddress("localhost", 0), registry, yamlConfig, true);
+            fail();
+        } catch (IllegalArgumentException e) {
+            // Expected.
+        }
+    }
+
+    @Test
+    public void testIdleIntervalIsLeftAloneUnlessConfigured() throws Exception {
+        String before = System.getProperty("sun.net.httpserver.idleInterval");
+        MetricsHttpServer.start(new InetSocketAddress("localhost", 0), registry, new HashMap<String, Object>(), true)
+            .stop();
+        assertEquals(before, System.getProperty("sun.net.httpserver.idleInterval"));
+    }
+}
@@ -0,0 +1,72 @@
+package io.prometheus.jmx;
+
+import org.junit.Test;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+
+public class NameCacheTest {
+
+    private static class CountingCache extends NameCache {
+        final AtomicInteger transforms = new AtomicInteger();
+
+        CountingCache(int maxSize) {
+            super("test", maxSize);
+        }
+
+        protected String transform(String input) {
+            transforms.incrementAndGet();
+            return input.toUpperCase();
+        }
+    }
+
+    @Test
+    public void testTransformsOnce() {
+        CountingCache cache = new CountingCache(10);
+        double hits = NameCache.cacheHits.labels("test").get();
+        assertEquals("A", cache.get("a"));
+        assertEquals("A", cache.get("a"));
+        assertEquals("B", cache.get("b"));
+        assertEquals(2, cache.transforms.get());
+        assertEquals(2, cache.size());
+        assertEquals(hits + 1, NameCache.cacheHits.labels("test").get(), 0);
+    }
+
+    @Test
+    public void testHitsAreCountedOnFlush() {
+        CountingCache cache = new CountingCache(10);
+        NameCache.Hits scrapeHits = cache.newHits();
+        double hits = NameCache.cacheHits.labels("test").get();
+        assertEquals("A", cache.get("a", scrapeHits));
+        assertEquals("A", cache.get("a", scrapeHits));
+        assertEquals("A", cache.get("a", scrapeHits));
+        assertEquals(hits, NameCache.cacheHits.labels("test").get(), 0);
+        scrapeHits.flush();
+        assertEquals(hits + 2, NameCache.cacheHits.labels("test").get(), 0);
+        scrapeHits.flush();
+        assertEquals(hits + 2, NameCache.cacheHits.labels("test").get(), 0);
+    }
+
+    @Test
+    public void testSizeIsCapped() {
+        CountingCache cache = new CountingCache(3);
+        for (int i = 0; i < 10; i++) {
+            assertEquals("N" + i, cache.get("n" + i));
+            assertEquals(i % 3 + 1, cache.size());
+        }
+        assertEquals(1.0, NameCache.cacheSize.labels("test").get(), 0);
+    }
+
+    @Test
+    public void testCachedTransformsMatchUncached() {
+        String[] names = {"", "a", "ABC", "fooBar", "foo_Bar", "HTTPServer", "Count", "with space", "a:b", "__x__"};
+        for (int i = 0; i < 2; i++) {
+            for (String name : names) {
+                assertEquals(JmxCollector.computeSafeName(name), JmxCollector.safeName(name));
+                assertEquals(JmxCollector.computeSnakeAndLowerCase(name), JmxCollector.toSnakeAndLowerCase(name));
+                assertEquals(name.toLowerCase(), JmxCollector.toLowerCase(name));
+            }
+        }
+    }
+}
@@ -0,0 +1,68 @@
+package io.prometheus.jmx;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+
+import java.util.Arrays;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(Parameterized.class)
+public class ReplacementTemplateTest {
+    private static final String INPUT = "org.apache.cassandra.metrics<type=Table, keyspace=system, scope=peers, name=ReadLatency><>Count: 12";
+
+    @Parameterized.Parameters(name = "{index}: testExpand(pattern={0} replacement={1}")
+    public static Iterable<Object[]> data() {
+        return Arrays.asList(new Object[][] {
+                { ".*", "foo" },
+                { ".*", "" },
+                { "type=(\\w+)", "cassandra_$1" },
+                { "type=(\\w+)", "$0" },
+                { "type=(\\w+), keyspace=(\\w+), scope=(\\w+)", "$1_$2_$3" },
+                { "type=(\\w+), keyspace=(\\w+), scope=(\\w+)", "$12" },
+                { "(T)(a)(b)(l)(e)(,)( )(k)(e)(y)(s)(p)", "$12$10_$1" },
+                { "type=(\\w+)", "\\$1 costs \\\\ $1" },
+                { "type=(\\w+)(, foo=(\\w+))?", "[$3]" },
+                { "type=(?<type>\\w+)", "${type}_$1" },
+                { "name=(\\w+)><>Count: (\\d+)", "$2" },
+        });
+    }
+
+    private final String pattern;
+    private final String replacement;
+
+    public ReplacementTemplateTest(String pattern, String replacement) {
+        this.pattern = pattern;
+        this.replacement = replacement;
+    }
+
+    @Test
+    public void testExpand() {
+        Matcher matcher = Pattern.compile("^.*(?:" + pattern + ").*$").matcher(INPUT);
+        assertTrue(matcher.matches());
+        ReplacementTemplate template = ReplacementTemplate.compile(replacement, matcher.groupCount());
+        String expanded = template.expand(INPUT, matcher, new StringBuilder("junk"));
+        assertEquals(matcher.replaceAll(replacement), expanded);
+        assertEquals(replacement.equals("$0"), template.refersTo(0));
+    }
+
+    @Test(expected = IndexOutOfBoundsException.class)
+    public void testMissingGroupFailsWhenExpanded() {
+        Matcher matcher = Pattern.compile("(a)(b)").matcher("ab");
+        assertTrue(matcher.matches());
+        ReplacementTemplate template = ReplacementTemplate.compile("$9" + replacement, 2);
+        template.expand("ab", matcher, new StringBuilder());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testMalformedReplacementFailsWhenExpanded() {
+        Matcher matcher = Pattern.compile("(a)(b)").matcher("ab");
+        assertTrue(matcher.matches());
+        ReplacementTemplate template = ReplacementTemplate.compile(replacement + "$", 2);
+        template.expand("ab", matcher, new StringBuilder());
+    }
+}
@@ -0,0 +1,201 @@
+package io.prometheus.jmx;
+
+import io.prometheus.client.Collector.MetricFamilySamples;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.yaml.snakeyaml.Yaml;
+
+import java.io.File;
+import java.io.FileReader;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that dispatching rules by domain, the prefilter rule engine, filtering the scrape by the rules or by the
+ * requested names and fetching beans in parallel give the same output as trying every rule on every attribute.
+ */
+public class RuleIndexTest {
+
+    @BeforeClass
+    public static void OneTimeSetUp() throws Exception {
+        Example.registerBeans(ManagementFactory.getPlatformMBeanServer());
+    }
+
+    /**
+     * Loads an example config, pointed at the local example beans.
+     */
+    static String exampleConfig(File file, String ruleEngine) throws Exception {
+        Map<String, Object> yamlConfig = (Map<String, Object>) new Yaml().load(new FileReader(file));
+        for (String key : new String[]{"hostPort", "jmxUrl", "username", "password", "ssl", "startDelaySeconds",
+            "blacklistObjectNames"}) {
+            yamlConfig.remove(key);
+        }
+        yamlConfig.put("whitelistObjectNames", Arrays.asList(Example.DOMAINS));
+        yamlConfig.put("ruleEngine", ruleEngine);
+        return new Yaml().dump(yamlConfig);
+    }
+
+    static TreeSet<String> output(List<MetricFamilySamples> mfsList) {
+        TreeSet<String> lines = new TreeSet<String>();
+        for (MetricFamilySamples mfs : mfsList) {
+            if (mfs.name.equals("jmx_scrape_duration_seconds")) {
+                continue;
+            }
+            lines.add("# " + mfs.name + " " + mfs.type + " " + mfs.help);
+            for (MetricFamilySamples.Sample sample : mfs.samples) {
+                lines.add(sample.name + sample.labelNames + sample.labelValues + " " + sample.value);
+            }
+        }
+        return lines;
+    }
+
+    @Test
+    public void testIndexedMatchingEqualsLinearMatching() throws Exception {
+        File[] files = new File("../example_configs").listFiles();
+        assertNotNull(files);
+        for (File file : files) {
+            String config = exampleConfig(file, "regex");
+            JmxCollector indexed = new JmxCollector(config);
+            JmxCollector linear = new JmxCollector(config);
+            linear.ruleIndexEnabled = false;
+            linear.scrapeFilterEnabled = false;
+
+            TreeSet<String> expected = output(linear.collect());
+            // Twice, to cover the cached rule matches too.
+            assertEquals(file.getName(), expected, output(indexed.collect()));
+            assertEquals(file.getName(), expected, output(indexed.collect()));
+            assertFalse(file.getName(), expected.size() <= 1);
+        }
+    }
+
+    /**
+     * Like output(), but keeps the order of families and samples.
+     */
+    static List<String> orderedOutput(List<MetricFamilySamples> mfsList) {
+        List<String> lines = new ArrayList<String>();
+        for (MetricFamilySamples mfs : mfsList) {
+            if (mfs.name.equals("jmx_scrape_duration_seconds")) {
+                continue;
+            }
+            lines.add("# " + mfs.name + " " + mfs.type + " " + mfs.help);
+            for (MetricFamilySamples.Sample sample : mfs.samples) {
+                lines.add(sample.name + sample.labelNames + sample.labelValues + " " + sample.value);
+            }
+        }
+        return lines;
+    }
+
+    @Test
+    public void testParallelScrapingEqualsSerialScraping() throws Exception {
+        File[] files = new File("../example_configs").listFiles();
+        assertNotNull(files);
+        for (File file : files) {
+            String config = exampleConfig(file, "regex");
+            JmxCollector parallel = new JmxCollector(config + "scrapeParallelism: 4\n");
+            JmxCollector serial = new JmxCollector(config);
+
+            List<String> expected = orderedOutput(serial.collect());
+            assertEquals(file.getName(), expected, orderedOutput(parallel.collect()));
+            assertEquals(file.getName(), expected, orderedOutput(parallel.collect()));
+        }
+    }
+
+    @Test
+    public void testPrefilterMatchingEqualsLinearMatching() throws Exception {
+        File[] files = new File("../example_configs").listFiles();
+        assertNotNull(files);
+        for (File file : files) {
+            JmxCollector prefiltered = new JmxCollector(exampleConfig(file, "prefilter"));
+            JmxCollector linear = new JmxCollector(exampleConfig(file, "regex"));
+            linear.ruleIndexEnabled = false;
+            linear.scrapeFilterEnabled = false;
+
+            TreeSet<String> expected = output(linear.collect());
+            assertEquals(file.getName(), expected, output(prefiltered.collect()));
+            assertEquals(file.getName(), expected, output(prefiltered.collect()));
+        }
+    }
+
+    @Test
+    public void testPatternsWithEscapesMatchTheSameEverywhere() throws Exception {
+        String[] patterns = {
+            "kafka\\x2eserver<type=(\\w+), name=PartitionCount><>Count",
+            "kafka\\u002enetwork<type=(\\w+), name=NetworkProcessorAvgIdlePercent><>Value",
+            "kafka\\.log<type=(\\w+)\\cI?, name=Size",
+            "\\pLatalina<type=(GlobalRequestProcessor)",
+            "com\\056bea<ServerRuntime=(\\w+)",
+            "kafka.controller<type=(\\w+), name=ActiveControllerCount><>\\x{43}ount",
+        };
+        List<Map<String, Object>> rules = new ArrayList<Map<String, Object>>();
+        for (int i = 0; i < patterns.length; i++) {
+            Map<String, Object> rule = new HashMap<String, Object>();
+            rule.put("pattern", patterns[i]);
+            rule.put("name", "escaped_" + i + "_$1");
+            rules.add(rule);
+        }
+        Map<String, Object> yamlConfig = new HashMap<String, Object>();
+        yamlConfig.put("whitelistObjectNames", Arrays.asList(Example.DOMAINS));
+        yamlConfig.put("rules", rules);
+        yamlConfig.put("ruleEngine", "regex");
+        JmxCollector linear = new JmxCollector(new Yaml().dump(yamlConfig));
+        linear.ruleIndexEnabled = false;
+        linear.scrapeFilterEnabled = false;
+        TreeSet<String> expected = output(linear.collect());
+        for (int i = 0; i < patterns.length; i++) {
+            assertNotNull(patterns[i], expected.ceiling("escaped_" + i + "_"));
+            assertTrue(patterns[i], expected.ceiling("escaped_" + i + "_").startsWith("escaped_" + i + "_"));
+        }
+
+        assertEquals(expected, output(new JmxCollector(new Yaml().dump(yamlConfig)).collect()));
+        yamlConfig.put("ruleEngine", "prefilter");
+        assertEquals(expected, output(new JmxCollector(new Yaml().dump(yamlConfig)).collect()));
+    }
+
+    private static List<MetricFamilySamples> filter(List<MetricFamilySamples> mfsList, Set<String> names) {
+        List<MetricFamilySamples> filtered = new ArrayList<MetricFamilySamples>();
+        for (MetricFamilySamples mfs : mfsList) {
+            if (names.contains(mfs.name)) {
+                filtered.add(mfs);
+            }
+        }
+        return filtered;
+    }
+
+    @Test
+    public void testNameFilteredScrapingEqualsFilteredFullScraping() throws Exception {
+        File[] files = new File("../example_configs").listFiles();
+        assertNotNull(files);
+        for (File file : files) {
+            String config = exampleConfig(file, "regex");
+            JmxCollector filtered = new JmxCollector(config);
+            JmxCollector full = new JmxCollector(config);
+            full.scrapeFilterEnabled = false;
+            List<MetricFamilySamples> expected = full.collect();
+
+            List<Set<String>> requests = new ArrayList<Set<String>>();
+            Set<String> all = new HashSet<String>();
+            for (MetricFamilySamples mfs : expected) {
+                requests.add(new HashSet<String>(Arrays.asList(mfs.name)));
+                all.add(mfs.name);
+            }
+            requests.add(all);
+            requests.add(new HashSet<String>(Arrays.asList("jmx_scrape_error", "no_such_metric")));
+            for (Set<String> names : requests) {
+                assertEquals(file.getName() + " " + names,
+                    output(filter(expected, names)), output(filtered.collect(names)));
+            }
+        }
+    }
+}
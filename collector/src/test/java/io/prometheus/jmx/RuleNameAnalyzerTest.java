@@ -0,0 +1,101 @@
+package io.prometheus.jmx;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Random;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class RuleNameAnalyzerTest {
+    // Letters, digits and colons that safeName keeps, some characters it replaces, a supplementary character it
+    // replaces too, and an upper case letter for lower casing.
+    private static final String[] PIECES = {
+        "a", "b", "Z", "7", ":", "_", ".", "-", " ", "é", "É", "😀", "$", "\\",
+    };
+
+    private static String random(Random random, int maxLength, String... pieces) {
+        StringBuilder sb = new StringBuilder();
+        int length = random.nextInt(maxLength + 1);
+        for (int i = 0; i < length; i++) {
+            sb.append(pieces[random.nextInt(pieces.length)]);
+        }
+        return sb.toString();
+    }
+
+    private static String name(String name, boolean lowercase) {
+        String safe = JmxCollector.safeName(name);
+        return lowercase ? JmxCollector.toLowerCase(safe) : safe;
+    }
+
+    @Test
+    public void testNamePatternMatchesExpandedNames() {
+        Random random = new Random(42);
+        for (int i = 0; i < 10000; i++) {
+            // A template of literal text, escaped characters and references to the two groups.
+            String replacement = random(random, 8, "a", "Z", "7", ":", "_", ".", "-", " ", "é", "\\$",
+                "\\\\", "$1", "$2");
+            Matcher matcher = Pattern.compile("(.*)/(.*)").matcher(
+                random(random, 4, PIECES) + "/" + random(random, 4, PIECES));
+            assertTrue(matcher.matches());
+            ReplacementTemplate template = ReplacementTemplate.compile(replacement, 2);
+            String expanded = template.expand(matcher.group(), matcher, new StringBuilder());
+            for (boolean lowercase : new boolean[]{false, true}) {
+                String name = name(expanded, lowercase);
+                assertTrue(replacement + " " + name,
+                    RuleNameAnalyzer.namePattern(template, lowercase).matcher(name).matches());
+            }
+        }
+    }
+
+    @Test
+    public void testNamePattern() {
+        Pattern pattern = RuleNameAnalyzer.namePattern(ReplacementTemplate.compile("kafka.server_$1_total", 1), false);
+        assertTrue(pattern.matcher("kafka_server_bytes_in_total").matches());
+        assertTrue(pattern.matcher("kafka_server__total").matches());
+        assertFalse(pattern.matcher("kafka_server_bytes_in").matches());
+        assertFalse(pattern.matcher("kafkaserver_bytes_total").matches());
+        assertFalse(pattern.matcher("Kafka_server_bytes_total").matches());
+
+        pattern = RuleNameAnalyzer.namePattern(ReplacementTemplate.compile("Cassandra_$1", 1), true);
+        assertTrue(pattern.matcher("cassandra_reads").matches());
+        assertFalse(pattern.matcher("hadoop_reads").matches());
+    }
+
+    @Test
+    public void testDefaultExportDomainPatternMatchesDomainsOfNames() {
+        Random random = new Random(42);
+        for (int i = 0; i < 10000; i++) {
+            String domain = random(random, 6, PIECES);
+            // The properties and attribute of the bean follow the domain, after at least an underscore.
+            String name = domain + "_" + random(random, 6, PIECES);
+            for (boolean lowercase : new boolean[]{false, true}) {
+                Pattern pattern = RuleNameAnalyzer.defaultExportDomainPattern(
+                    Collections.singleton(name(name, lowercase)), lowercase);
+                assertTrue(domain + " " + name, pattern.matcher(domain).matches());
+            }
+        }
+    }
+
+    @Test
+    public void testDefaultExportDomainPattern() {
+        Pattern pattern = RuleNameAnalyzer.defaultExportDomainPattern(
+            Arrays.asList("org_apache_cassandra_metrics_table_readlatency", "jvm"), true);
+        assertTrue(pattern.matcher("org.apache.cassandra.metrics").matches());
+        assertTrue(pattern.matcher("org.apache.Cassandra").matches());
+        assertTrue(pattern.matcher("org-apache").matches());
+        assertTrue(pattern.matcher("org").matches());
+        assertFalse(pattern.matcher("...").matches());
+        assertFalse(pattern.matcher("org.apache.kafka").matches());
+        assertFalse(pattern.matcher("java.lang").matches());
+        assertFalse(pattern.matcher("jvm").matches());
+
+        assertNull(RuleNameAnalyzer.defaultExportDomainPattern(Arrays.asList("jvm", "up"), false));
+        assertNull(RuleNameAnalyzer.defaultExportDomainPattern(Arrays.asList("a.b_c"), false));
+    }
+}
@@ -0,0 +1,54 @@
+package io.prometheus.jmx;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+
+@RunWith(Parameterized.class)
+public class RulePatternAnalyzerTest {
+    @Parameterized.Parameters(name = "{index}: testMatchesValue(expected={0} pattern={1}")
+    public static Iterable<Object[]> data() {
+        return Arrays.asList(new Object[][] {
+                { false, null }, { false, ".*" }, { false, "^.*" },
+                { false, "kafka.server<type=(.+), name=(.+)PerSec\\w*, topic=(.+)><>Count" },
+                { false, "kafka.(\\w+)<type=(.+), name=(.+)><>(Count|Value)" },
+                { false, "^hadoop<service=DataNode, name=DataNodeActivity-ams-hdd001-50010><>replaceBlockOpMinTime:" },
+                { false, "^com.bea<ServerRuntime=(.+), Name=(.+), Type=(.+)Runtime><>(.+):" },
+                { false, "\"kafka.server\"<type=\"(.+)\", name=\"(.+)-(\\w+)\"><>(Count|Value)" },
+                { false, "org.apache.cassandra.metrics<type=(\\S*)(?:, ((?!scope)\\S*)=(\\S*))?(?:, scope=(\\S*))?, name=(\\S*)><>(Count|Value)" },
+                { false, "^hadoop<.+-500(10)>" },
+                { false, "<>(\\w+)" },
+                { false, "kafka\\x2eserver<type=(\\w+)><>Count" },
+                { false, "\\pLatalina<type=(\\w+)><>\\u0043ount" },
+                // Patterns that look at the value.
+                { true, "org.apache.cassandra.metrics<type=(\\w+), name=(\\w+)><>Value: (\\d+)" },
+                { true, "^org.apache.activemq.artemis<broker=\"([^\"]*)\"><>([^:]*):\\s(.*)" },
+                { true, "hadoop<service=(.+)" },
+                { true, "<>Count[^,]" },
+                { true, "(\\w+)" },
+                { true, "<>Count$" },
+                { true, "<>Count|Value" },
+                { true, "<>(Count)\\1" },
+                { true, "(?x)<>Count" },
+                { true, "<>Count\\x3a (\\d+)" },
+                { true, "<>Count\\pL" },
+        });
+    }
+
+    private final boolean expected;
+    private final String pattern;
+
+    public RulePatternAnalyzerTest(boolean expected, String pattern) {
+        this.expected = expected;
+        this.pattern = pattern;
+    }
+
+    @Test
+    public void testMatchesValue() {
+        assertEquals(expected, RulePatternAnalyzer.matchesValue(pattern));
+    }
+}
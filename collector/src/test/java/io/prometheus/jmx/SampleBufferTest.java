@@ -0,0 +1,83 @@
+package io.prometheus.jmx;
+
+import io.prometheus.client.Collector.MetricFamilySamples;
+import io.prometheus.client.Collector.Type;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class SampleBufferTest {
+    private static final List<String> NONE = Collections.emptyList();
+
+    @Test
+    public void testReuseAfterReset() {
+        SampleBuffer buffer = new SampleBuffer();
+        buffer.reset();
+        for (int i = 0; i < 40; i++) {
+            buffer.addSample("a", Arrays.asList("i"), Arrays.asList(Integer.toString(i)), i, Type.GAUGE, "a help");
+            if (i == 0) {
+                buffer.addSample("b", NONE, NONE, 1.5, Type.COUNTER, "b help");
+            }
+        }
+        List<MetricFamilySamples> mfsList = buffer.toMetricFamilySamples();
+        assertEquals(2, mfsList.size());
+        assertEquals("a", mfsList.get(0).name);
+        assertEquals(40, mfsList.get(0).samples.size());
+        assertEquals(39.0, mfsList.get(0).samples.get(39).value, 0);
+        assertEquals(Arrays.asList("39"), mfsList.get(0).samples.get(39).labelValues);
+        assertEquals(new MetricFamilySamples("b", Type.COUNTER, "b help",
+            Arrays.asList(new MetricFamilySamples.Sample("b", NONE, NONE, 1.5))), mfsList.get(1));
+
+        long generation = buffer.getGeneration();
+        assertEquals(generation + 1, buffer.reset());
+        buffer.addSample("b", NONE, NONE, 2.5, Type.COUNTER, "b help");
+        mfsList = buffer.toMetricFamilySamples();
+        assertEquals(1, mfsList.size());
+        assertEquals(new MetricFamilySamples("b", Type.COUNTER, "b help",
+            Arrays.asList(new MetricFamilySamples.Sample("b", NONE, NONE, 2.5))), mfsList.get(0));
+    }
+
+    @Test
+    public void testReplayKeepsOrder() {
+        SampleBuffer buffer = new SampleBuffer();
+        buffer.addSample("a", NONE, NONE, 1, Type.GAUGE, "a");
+        buffer.addSample("b", NONE, NONE, 2, Type.GAUGE, "b");
+        buffer.addSample("a", Arrays.asList("l"), Arrays.asList("v"), 3, Type.GAUGE, "a");
+        SampleBuffer copy = new SampleBuffer();
+        buffer.replayTo(copy);
+        assertEquals(buffer.toMetricFamilySamples(), copy.toMetricFamilySamples());
+    }
+
+    @Test
+    public void testLabelNamesAreShared() throws Exception {
+        JmxCollector collector = new JmxCollector(
+            "\n---\nwhitelistObjectNames:\n- java.lang:type=MemoryPool,*\nrules:\n- pattern: '.*'");
+        // The cached rule matches are shared too, so two scrapes.
+        collector.collect();
+        List<MetricFamilySamples> mfsList = collector.collect();
+        List<String> labelNames = null;
+        int samples = 0;
+        for (MetricFamilySamples mfs : mfsList) {
+            for (MetricFamilySamples.Sample sample : mfs.samples) {
+                if (!sample.name.startsWith("java_lang_")) {
+                    continue;
+                }
+                if (labelNames == null) {
+                    labelNames = sample.labelNames;
+                }
+                assertSame(labelNames, sample.labelNames);
+                samples++;
+            }
+        }
+        assertEquals(Arrays.asList("type"), labelNames);
+        assertTrue(samples > 1);
+        assertSame(labelNames, collector.internLabelNames(new ArrayList<String>(labelNames)));
+    }
+}
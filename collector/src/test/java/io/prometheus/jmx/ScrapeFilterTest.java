@@ -0,0 +1,151 @@
+package io.prometheus.jmx;
+
+import io.prometheus.client.CollectorRegistry;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectInstance;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class ScrapeFilterTest {
+    private static Counting counting;
+
+    @BeforeClass
+    public static void OneTimeSetUp() throws Exception {
+        counting = Counting.registerBean(ManagementFactory.getPlatformMBeanServer());
+    }
+
+    @Test
+    public void testAttributeNames() {
+        assertNull(RulePatternAnalyzer.attributeNames(null));
+        assertNull(RulePatternAnalyzer.attributeNames(".*"));
+        assertNull(RulePatternAnalyzer.attributeNames("kafka.server<type=(.+)><>(.+)"));
+        assertNull(RulePatternAnalyzer.attributeNames("java.lang<type=Memory><HeapMemoryUsage>used"));
+        assertEquals(Arrays.asList("Count", "Value"),
+            RulePatternAnalyzer.attributeNames("kafka.server<type=(.+), name=(.+)><>(Count|Value)"));
+        assertEquals(Arrays.asList("Count:", "Value:"),
+            RulePatternAnalyzer.attributeNames("kafka.server<type=(.+), name=(.+)><>(?:Count|Value):"));
+        assertEquals(Arrays.asList("replaceBlockOpMinTime:"),
+            RulePatternAnalyzer.attributeNames("^hadoop<service=DataNode, name=(.+)><>replaceBlockOpMinTime:"));
+        assertEquals(Arrays.asList("Count"), RulePatternAnalyzer.attributeNames("><>Counts?"));
+        assertEquals(Arrays.asList("Count"), RulePatternAnalyzer.attributeNames("><>Count(\\w+)"));
+        assertEquals(Arrays.asList("Count"), RulePatternAnalyzer.attributeNames("><>Count(Value|Rate)?"));
+        assertNull(RulePatternAnalyzer.attributeNames("(?i)><>Count"));
+        assertNull(RulePatternAnalyzer.attributeNames(">\\<>Count"));
+    }
+
+    @Test
+    public void testDomainWildcard() {
+        assertNull(RulePatternAnalyzer.domainWildcard(null));
+        assertEquals("*kafka?server", RulePatternAnalyzer.domainWildcard("kafka.server"));
+        assertEquals("kafka?server", RulePatternAnalyzer.domainWildcard("^kafka.server"));
+        assertEquals("*kafka.*", RulePatternAnalyzer.domainWildcard("kafka\\.(\\w+)"));
+        assertEquals("*\"kafka?server\"", RulePatternAnalyzer.domainWildcard("\"kafka.server\""));
+        assertEquals("*org?apache?cassandra?metric*", RulePatternAnalyzer.domainWildcard("org.apache.cassandra.metrics?"));
+        assertEquals("*a?b", RulePatternAnalyzer.domainWildcard("a\\wb"));
+        // Characters given by their code are matched literally.
+        assertEquals("*kafka.server", RulePatternAnalyzer.domainWildcard(
+            RulePatternAnalyzer.domainPattern("kafka\\x2eserver<type=(.+)><>Count")));
+        assertEquals("*kafka?server", RulePatternAnalyzer.domainWildcard(
+            RulePatternAnalyzer.domainPattern("\\u006bafka.server<type=(.+)><>Count")));
+        assertEquals("*?atalina", RulePatternAnalyzer.domainWildcard(
+            RulePatternAnalyzer.domainPattern("\\pLatalina<type=(.+)><>Count")));
+        // Inline flags such as case insensitivity can't be expressed in a wildcard.
+        assertNull(RulePatternAnalyzer.domainPattern("(?i)KAFKA.server<type=(.+)><>(\\w+)"));
+        assertNull(RulePatternAnalyzer.domainWildcard("(?i)KAFKA.server"));
+    }
+
+    @Test
+    public void testRuleWithEscapesInItsDomainMatches() throws Exception {
+        JmxCollector jc = new JmxCollector(
+            "\n---\nrules:\n- pattern: '\\x63ounting<type=Test><>Count'\n  name: counting");
+        CollectorRegistry registry = new CollectorRegistry();
+        jc.register(registry);
+        assertNotNull(registry.getSampleValue("counting", new String[]{}, new String[]{}));
+    }
+
+    @Test
+    public void testCaseInsensitiveRuleMatchesLowerCaseDomain() throws Exception {
+        JmxCollector jc = new JmxCollector(
+            "\n---\nrules:\n- pattern: `(?i)COUNTING<TYPE=Test><>Count`\n  name: counting".replace('`','"'));
+        CollectorRegistry registry = new CollectorRegistry();
+        jc.register(registry);
+        assertNotNull(registry.getSampleValue("counting", new String[]{}, new String[]{}));
+    }
+
+    @Test
+    public void testBeansWithAngleBracketsInTheirNameAreScraped() throws Exception {
+        // The name is other<name="odd<type=Test"><>Count, which the pattern matches outside the domain.
+        ObjectName mbeanName = new ObjectName("other:name=\"odd<type=Test\"");
+        ObjectName plainName = new ObjectName("other:name=plain");
+        MBeanServer mbs = ManagementFactory.getPlatformMBeanServer();
+        mbs.registerMBean(new Counting(), mbeanName);
+        mbs.registerMBean(new Counting(), plainName);
+        try {
+            ScrapeFilter filter = new ScrapeFilter(Arrays.asList(
+                new ScrapeFilter.RuleFilter(null, new ObjectName("*odd:*"), null, false)));
+            assertTrue(filter.isNeeded(mbeanName));
+            assertFalse(filter.isNeeded(plainName));
+            Map<ObjectName, ObjectInstance> mBeans = new HashMap<ObjectName, ObjectInstance>();
+            filter.queryMBeans(mbs, new ObjectName("other:*"), mBeans);
+            assertEquals(Collections.singleton(mbeanName), mBeans.keySet());
+
+            JmxCollector jc = new JmxCollector(
+                "\n---\nrules:\n- pattern: 'odd<type=Test\"><>Count'\n  name: odd");
+            CollectorRegistry registry = new CollectorRegistry();
+            jc.register(registry);
+            assertNotNull(registry.getSampleValue("odd", new String[]{}, new String[]{}));
+        } finally {
+            mbs.unregisterMBean(mbeanName);
+            mbs.unregisterMBean(plainName);
+        }
+    }
+
+    @Test
+    public void testOnlyNeededAttributesAreFetched() throws Exception {
+        JmxCollector jc = new JmxCollector(
+            "\n---\nrules:\n- pattern: `^counting<type=Test><>Count`\n  name: counting".replace('`','"'));
+        CollectorRegistry registry = new CollectorRegistry();
+        jc.register(registry);
+        int expensiveReads = counting.expensiveReads.get();
+        assertNotNull(registry.getSampleValue("counting", new String[]{}, new String[]{}));
+        assertEquals(expensiveReads, counting.expensiveReads.get());
+
+        jc.scrapeFilterEnabled = false;
+        assertNotNull(registry.getSampleValue("counting", new String[]{}, new String[]{}));
+        assertEquals(expensiveReads + 1, counting.expensiveReads.get());
+    }
+
+    @Test
+    public void testOnlyBeansProducingRequestedNamesAreFetched() throws Exception {
+        JmxCollector jc = new JmxCollector(("\n---\nrules:\n- pattern: `^counting<type=Test><>Count`\n  name: counting"
+            + "\n- pattern: `^counting<type=(\\\\w+)><>Expensive`\n  name: expensive_$1"
+            + "\n- pattern: `^boolean<.*>`").replace('`','"'));
+        int countReads = counting.countReads.get();
+        int expensiveReads = counting.expensiveReads.get();
+        assertEquals(1, jc.collect(Collections.singleton("counting")).size());
+        assertEquals(countReads + 1, counting.countReads.get());
+        assertEquals(expensiveReads, counting.expensiveReads.get());
+
+        // Neither rule can produce it, and it isn't from the domain the default format rule applies to.
+        assertEquals(0, jc.collect(Collections.singleton("counting_type_Test_Expensive")).size());
+        assertEquals(countReads + 1, counting.countReads.get());
+        assertEquals(expensiveReads, counting.expensiveReads.get());
+
+        assertEquals(1, jc.collect(Collections.singleton("expensive_Test")).size());
+        assertEquals(countReads + 1, counting.countReads.get());
+        assertEquals(expensiveReads + 1, counting.expensiveReads.get());
+    }
+}
@@ -0,0 +1,54 @@
+package io.prometheus.jmx;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class SeriesRegistryTest {
+
+    @Test
+    public void testSeriesKeepTheirIds() {
+        SeriesRegistry registry = new SeriesRegistry();
+        SeriesRegistry.Series a = registry.get("a", Arrays.asList("l"), Arrays.asList("x"));
+        SeriesRegistry.Series b = registry.get("a", Arrays.asList("l"), Arrays.asList("y"));
+        SeriesRegistry.Series c = registry.get("c", new ArrayList<String>(), new ArrayList<String>());
+        assertTrue(a.id != b.id && b.id != c.id && a.id != c.id);
+
+        registry.nextScrape();
+        // Equal lists find the same series.
+        assertSame(a, registry.get("a", new ArrayList<String>(Arrays.asList("l")), Arrays.asList("x")));
+        assertSame(c, registry.get("c", new ArrayList<String>(), new ArrayList<String>()));
+        assertEquals(3, registry.size());
+    }
+
+    @Test
+    public void testUnusedSeriesExpire() {
+        SeriesRegistry registry = new SeriesRegistry();
+        List<String> labelNames = Arrays.asList("l");
+        SeriesRegistry.Series kept = registry.get("a", labelNames, Arrays.asList("kept"));
+        SeriesRegistry.Series gone = registry.get("a", labelNames, Arrays.asList("gone"));
+        for (int i = 0; i < 2 * SeriesRegistry.EXPIRE_AFTER_SCRAPES; i++) {
+            registry.nextScrape();
+            registry.get("a", labelNames, Arrays.asList("kept"));
+        }
+        assertEquals(1, registry.size());
+        assertSame(kept, registry.get("a", labelNames, Arrays.asList("kept")));
+        SeriesRegistry.Series back = registry.get("a", labelNames, Arrays.asList("gone"));
+        assertNotSame(gone, back);
+        assertTrue(back.id > gone.id);
+    }
+
+    @Test
+    public void testPrefixIsEscaped() {
+        assertEquals("a ", SeriesRegistry.encodePrefix("a", new ArrayList<String>(), new ArrayList<String>()));
+        assertEquals("a{l=\"q\\\"uote\\\\d\\n\",m=\"\",} ",
+            SeriesRegistry.encodePrefix("a", Arrays.asList("l", "m"), Arrays.asList("q\"uote\\d\n", "")));
+    }
+}
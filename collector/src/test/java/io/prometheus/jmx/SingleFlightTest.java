@@ -0,0 +1,212 @@
+package io.prometheus.jmx;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.StringWriter;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class SingleFlightTest {
+
+    @BeforeClass
+    public static void OneTimeSetUp() throws Exception {
+        Example.registerBeans(ManagementFactory.getPlatformMBeanServer());
+    }
+
+    /**
+     * A flight that blocks until released, and counts its runs.
+     */
+    private static class BlockingFlight extends SingleFlight<Object> {
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch released = new CountDownLatch(1);
+        final AtomicInteger runs = new AtomicInteger();
+        volatile RuntimeException toThrow;
+
+        protected Object run() {
+            runs.incrementAndGet();
+            started.countDown();
+            try {
+                released.await();
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+            if (toThrow != null) {
+                throw toThrow;
+            }
+            return new Object();
+        }
+    }
+
+    private static List<Future<Object>> getConcurrently(ExecutorService executor, final BlockingFlight flight,
+                                                        int callers) throws Exception {
+        List<Future<Object>> results = new ArrayList<Future<Object>>();
+        results.add(executor.submit(new Callable<Object>() {
+            public Object call() {
+                return flight.get();
+            }
+        }));
+        assertTrue(flight.started.await(10, TimeUnit.SECONDS));
+        double sharedBefore = SingleFlight.shared.get();
+        for (int i = 1; i < callers; i++) {
+            results.add(executor.submit(new Callable<Object>() {
+                public Object call() {
+                    return flight.get();
+                }
+            }));
+        }
+        // Wait for the callers to join the flight in progress.
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (SingleFlight.shared.get() < sharedBefore + callers - 1 && System.nanoTime() < deadline) {
+            Thread.sleep(1);
+        }
+        flight.released.countDown();
+        return results;
+    }
+
+    @Test
+    public void testConcurrentCallersShareARun() throws Exception {
+        ExecutorService executor = Executors.newCachedThreadPool();
+        try {
+            BlockingFlight flight = new BlockingFlight();
+            List<Future<Object>> results = getConcurrently(executor, flight, 4);
+            Object first = results.get(0).get(10, TimeUnit.SECONDS);
+            for (Future<Object> result : results) {
+                assertSame(first, result.get(10, TimeUnit.SECONDS));
+            }
+            assertEquals(1, flight.runs.get());
+
+            // Once done, the next caller runs again.
+            assertTrue(first != flight.get());
+            assertEquals(2, flight.runs.get());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testConcurrentCallersShareAnException() throws Exception {
+        ExecutorService executor = Executors.newCachedThreadPool();
+        try {
+            BlockingFlight flight = new BlockingFlight();
+            flight.toThrow = new IllegalStateException("scrape failed");
+            List<Future<Object>> results = getConcurrently(executor, flight, 3);
+            for (Future<Object> result : results) {
+                try {
+                    result.get(10, TimeUnit.SECONDS);
+                    fail();
+                } catch (java.util.concurrent.ExecutionException e) {
+                    assertSame(flight.toThrow, e.getCause());
+                }
+            }
+            assertEquals(1, flight.runs.get());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private static String config(boolean lowercase) {
+        return "whitelistObjectNames: [\"org.apache.cassandra.metrics:*\", \"hadoop:*\"]\n"
+            + "lowercaseOutputName: " + lowercase + "\n"
+            + "lowercaseOutputLabelNames: " + lowercase + "\n"
+            + "rules:\n"
+            + "- pattern: \"^hadoop<service=(\\\\w+), name=(\\\\w+)><>(\\\\w+):\"\n"
+            + "  name: Hadoop_$3\n"
+            + "  labels:\n"
+            + "    Service: $1\n"
+            + "- pattern: \".*\"\n";
+    }
+
+    /**
+     * Replaces the config file at once, so that a reload doesn't see it half written.
+     */
+    private static void writeConfig(File file, boolean lowercase, long mtime) throws Exception {
+        File temp = new File(file.getPath() + ".tmp");
+        FileWriter writer = new FileWriter(temp);
+        try {
+            writer.write(config(lowercase));
+        } finally {
+            writer.close();
+        }
+        assertTrue(temp.setLastModified(mtime));
+        assertTrue(temp.renameTo(file));
+    }
+
+    /**
+     * Scrapes from several threads while the config file is reloaded, and checks that every scrape sees either
+     * config in full.
+     */
+    @Test
+    public void testConcurrentCollectsAndReloads() throws Exception {
+        final TreeSet<String> upperCase = RuleIndexTest.output(new JmxCollector(config(false)).collect());
+        final TreeSet<String> lowerCase = RuleIndexTest.output(new JmxCollector(config(true)).collect());
+        assertTrue(!upperCase.equals(lowerCase));
+
+        File file = File.createTempFile("jmx_exporter", ".yaml");
+        file.deleteOnExit();
+        long mtime = System.currentTimeMillis();
+        writeConfig(file, false, mtime);
+        final JmxCollector collector = new JmxCollector(file);
+        double reloadsBefore = JmxCollector.configReloadSuccess.get();
+
+        final AtomicBoolean done = new AtomicBoolean();
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<Integer>> results = new ArrayList<Future<Integer>>();
+            for (int i = 0; i < 8; i++) {
+                final boolean text = i % 4 == 0;
+                results.add(executor.submit(new Callable<Integer>() {
+                    public Integer call() throws Exception {
+                        int scrapes = 0;
+                        while (!done.get()) {
+                            if (text) {
+                                StringWriter writer = new StringWriter();
+                                collector.writeText(writer);
+                                assertTrue(writer.toString().contains("jmx_scrape_error 0.0\n"));
+                            } else {
+                                TreeSet<String> output = RuleIndexTest.output(collector.collect());
+                                assertTrue(output.toString(), output.equals(upperCase) || output.equals(lowerCase));
+                            }
+                            scrapes++;
+                        }
+                        return scrapes;
+                    }
+                }));
+            }
+            for (int i = 1; i <= 50; i++) {
+                Thread.sleep(5);
+                writeConfig(file, i % 2 == 1, mtime + i * 1000);
+            }
+            done.set(true);
+            int scrapes = 0;
+            for (Future<Integer> result : results) {
+                scrapes += result.get(30, TimeUnit.SECONDS);
+            }
+            assertTrue(scrapes > 0);
+            assertTrue(JmxCollector.configReloadSuccess.get() > reloadsBefore);
+        } finally {
+            done.set(true);
+            executor.shutdownNow();
+        }
+
+        // The last config is in use once the file is seen to have changed.
+        assertEquals(upperCase, RuleIndexTest.output(collector.collect()));
+    }
+}
@@ -0,0 +1,135 @@
+package io.prometheus.jmx;
+
+import io.prometheus.client.Collector;
+import io.prometheus.client.Collector.MetricFamilySamples;
+import io.prometheus.client.Collector.Type;
+import io.prometheus.client.CollectorRegistry;
+import io.prometheus.client.Gauge;
+import io.prometheus.client.exporter.common.TextFormat;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.StringWriter;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that the streaming text output is byte for byte the same as that of simpleclient's TextFormat.
+ */
+public class StreamingTextWriterTest {
+
+    @BeforeClass
+    public static void OneTimeSetUp() throws Exception {
+        Example.registerBeans(ManagementFactory.getPlatformMBeanServer());
+    }
+
+    private static String textFormat(List<MetricFamilySamples> mfsList) throws Exception {
+        StringWriter writer = new StringWriter();
+        TextFormat.write004(writer, Collections.enumeration(mfsList));
+        return writer.toString();
+    }
+
+    // The scrape duration differs between scrapes.
+    private static String withoutDuration(String text) {
+        return text.replaceAll("(?m)^jmx_scrape_duration_seconds .*$", "jmx_scrape_duration_seconds");
+    }
+
+    @Test
+    public void testEscapingAndValues() throws Exception {
+        List<MetricFamilySamples> mfsList = Arrays.asList(
+            new MetricFamilySamples("a", Type.GAUGE, "help with \\ and\nnewline", Arrays.asList(
+                new MetricFamilySamples.Sample("a", Arrays.asList("l", "m"), Arrays.asList("q\"uote\\d\n", ""), 1.5),
+                new MetricFamilySamples.Sample("a", new ArrayList<String>(), new ArrayList<String>(), Double.NaN),
+                new MetricFamilySamples.Sample("a", Arrays.asList("l"), Arrays.asList("x"), Double.NEGATIVE_INFINITY))),
+            new MetricFamilySamples("b", Type.UNTYPED, "", new ArrayList<MetricFamilySamples.Sample>()),
+            new MetricFamilySamples("c", Type.COUNTER, "c", Arrays.asList(
+                new MetricFamilySamples.Sample("c", new ArrayList<String>(), new ArrayList<String>(), 1e300))));
+
+        StreamingTextWriter textWriter = new StreamingTextWriter();
+        // Interleaved, as they come from the mBeans.
+        textWriter.addSample("a", Arrays.asList("l", "m"), Arrays.asList("q\"uote\\d\n", ""), 1.5, Type.GAUGE, "help with \\ and\nnewline");
+        textWriter.addFamily(mfsList.get(1));
+        textWriter.addSample("c", new ArrayList<String>(), new ArrayList<String>(), 1e300, Type.COUNTER, "c");
+        textWriter.addSample("a", new ArrayList<String>(), new ArrayList<String>(), Double.NaN, Type.GAUGE, "help with \\ and\nnewline");
+        textWriter.addSample("a", Arrays.asList("l"), Arrays.asList("x"), Double.NEGATIVE_INFINITY, Type.GAUGE, "help with \\ and\nnewline");
+        StringWriter writer = new StringWriter();
+        textWriter.writeTo(writer);
+        assertEquals(textFormat(mfsList), writer.toString());
+
+        // The buffers are reused after a reset.
+        textWriter.reset();
+        for (MetricFamilySamples mfs : mfsList) {
+            textWriter.addFamily(mfs);
+        }
+        writer = new StringWriter();
+        textWriter.writeTo(writer);
+        assertEquals(textFormat(mfsList), writer.toString());
+    }
+
+    @Test
+    public void testValuesAreFormattedLikeCollector() {
+        double[] values = {0, -0.0, 1, -1, 0.5, 42, 9999999, 1.0E7, -1.0E7, 123456789, 1.0E-4, Long.MAX_VALUE,
+            Long.MIN_VALUE, Double.MAX_VALUE, Double.MIN_VALUE, Double.NaN, Double.POSITIVE_INFINITY};
+        for (double value : values) {
+            StringBuilder sb = new StringBuilder();
+            StreamingTextWriter.appendValue(sb, value);
+            assertEquals(Collector.doubleToGoString(value), sb.toString());
+        }
+    }
+
+    @Test
+    public void testWriteTextEqualsTextFormatOfCollect() throws Exception {
+        File[] files = new File("../example_configs").listFiles();
+        assertNotNull(files);
+        for (File file : files) {
+            JmxCollector collector = new JmxCollector(RuleIndexTest.exampleConfig(file, "regex"));
+            String expected = withoutDuration(textFormat(collector.collect()));
+            // Twice, to cover reusing the buffers.
+            for (int i = 0; i < 2; i++) {
+                StringWriter writer = new StringWriter();
+                collector.writeText(writer);
+                assertEquals(file.getName(), expected, withoutDuration(writer.toString()));
+            }
+        }
+    }
+
+    @Test
+    public void testSnapshotIsWrittenOnce() throws Exception {
+        JmxCollector collector = new JmxCollector("\n---\nbackgroundScrapeIntervalSeconds: 3600");
+        StringWriter first = new StringWriter();
+        JmxCollector.Snapshot snapshot = collector.writeSnapshotText(first);
+        assertNotNull(snapshot);
+        assertSame(snapshot, collector.getSnapshot());
+        StringWriter second = new StringWriter();
+        assertSame(snapshot, collector.writeSnapshotText(second));
+        assertEquals(first.toString(), second.toString());
+
+        // The same as the text format of collect(), which also ends with the age of the snapshot.
+        StringWriter writer = new StringWriter();
+        collector.writeText(writer);
+        String expected = textFormat(collector.collect());
+        assertEquals(expected.replaceAll("(?m)^jmx_scrape_snapshot_age_seconds .*$", ""),
+            writer.toString().replaceAll("(?m)^jmx_scrape_snapshot_age_seconds .*$", ""));
+    }
+
+    @Test
+    public void testCollectOthersLeavesTheCollectorOut() throws Exception {
+        CollectorRegistry registry = new CollectorRegistry();
+        JmxCollector collector = new JmxCollector("\n---\nrules:\n- pattern: `.*`".replace('`','"')).register(registry);
+        Gauge.build().name("other").help("other").register(registry).set(1);
+
+        List<MetricFamilySamples> others = collector.collectOthers(registry);
+        assertEquals(1, others.size());
+        assertEquals("other", others.get(0).name);
+        assertTrue(collector.collect().size() > 1);
+    }
+}
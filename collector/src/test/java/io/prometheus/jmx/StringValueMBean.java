@@ -0,0 +1,23 @@
+package io.prometheus.jmx;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+public interface StringValueMBean {
+    public String getVersion();
+}
+
+class StringValue implements StringValueMBean {
+
+    public static void registerBean(MBeanServer mbs)
+            throws javax.management.JMException {
+        ObjectName mbeanName = new ObjectName("stringvalue:type=Test");
+        StringValue mbean = new StringValue();
+        mbs.registerMBean(mbean, mbeanName);
+    }
+
+    // Contains characters of the bean name format.
+    public String getVersion() {
+        return "a>b";
+    }
+}
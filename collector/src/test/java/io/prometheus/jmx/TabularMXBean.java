@@ -0,0 +1,20 @@
+package io.prometheus.jmx;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+public interface TabularMXBean {
+    public Map<String, Long> getValues();
+}
+
+/**
+ * A bean whose attribute is exposed as TabularData with a row per key.
+ */
+class Tabular implements TabularMXBean {
+    public Map<String, Long> getValues() {
+        Map<String, Long> values = new LinkedHashMap<String, Long>();
+        values.put("a", 1L);
+        values.put("b", 2L);
+        return values;
+    }
+}
@@ -2,9 +2,9 @@ package io.prometheus.jmx;
 
 import java.io.File;
 import java.net.InetSocketAddress;
+import java.util.Map;
 
 import io.prometheus.client.CollectorRegistry;
-import io.prometheus.client.exporter.HTTPServer;
 
 public class WebServer {
 
@@ -27,7 +27,10 @@ public class WebServer {
      }
 
      new BuildInfoCollector().register();
-     new JmxCollector(new File(args[1])).register();
-     new HTTPServer(socket, CollectorRegistry.defaultRegistry);
+     Map<String, Object> yamlConfig = JmxCollector.readConfig(new File(args[1]));
+     final JmxCollector collector = new JmxCollector(new File(args[1]), yamlConfig).register();
+     MetricsHttpServer server = MetricsHttpServer.start(socket, CollectorRegistry.defaultRegistry, yamlConfig, false);
+     server.setJmxCollector(collector);
+     server.addHandler(QuarantineHttpHandler.PATH, new QuarantineHttpHandler(collector));
    }
 }
@@ -1,25 +1,20 @@
 package io.prometheus.jmx;
 
 import java.io.File;
-import java.io.FileNotFoundException;
-import java.io.FileReader;
 import java.lang.instrument.Instrumentation;
+import java.lang.management.ManagementFactory;
 import java.net.InetSocketAddress;
-import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.Set;
 import java.util.TreeMap;
 
-import org.yaml.snakeyaml.Yaml;
-
 import io.prometheus.client.CollectorRegistry;
-import io.prometheus.client.exporter.HTTPServer;
 import io.prometheus.jmx.custom.hotspot.DefaultExports;
 
 public class JavaAgent {
 
-   static HTTPServer server;
+   static MetricsHttpServer server;
 
    public static void agentmain(String agentArgument, Instrumentation instrumentation) throws Exception {
      premain(agentArgument, instrumentation);
@@ -57,25 +52,32 @@ public class JavaAgent {
        file = args[1];
      }
 
+     // Read once, for all the settings in it.
+     Map<String, Object> yamlConfig = JmxCollector.readConfig(new File(file));
+
      new BuildInfoCollector().register();
-     new JmxCollector(new File(file)).register();
-     
-     Map<String, String> globalLabels = getJVMLabels(new File(file));
-	 DefaultExports.initialize(globalLabels);
-     
-     server = new HTTPServer(socket, CollectorRegistry.defaultRegistry, true);
+     DefaultExports.initialize(getJVMLabels(yamlConfig));
+
+     // Registered last, so that it can leave out the families of rules that clash with the JVM metrics.
+     final JmxCollector collector = new JmxCollector(new File(file), yamlConfig).register();
+
+     if (Boolean.TRUE.equals(yamlConfig.get("registerBulkScraper"))) {
+       // Remote exporters can then scrape this JVM with a single call.
+       BulkScraper.register(ManagementFactory.getPlatformMBeanServer());
+     }
+
+     server = MetricsHttpServer.start(socket, CollectorRegistry.defaultRegistry, yamlConfig, true);
+     server.setJmxCollector(collector);
+     server.addHandler(QuarantineHttpHandler.PATH, new QuarantineHttpHandler(collector));
    }
 
    /**
     * Get the jvmLabels from the config yaml
-    * @param in
+    * @param yamlConfig
     * @return
-    * @throws FileNotFoundException 
     */
-	private static Map<String, String> getJVMLabels(File in) throws FileNotFoundException {
+	private static Map<String, String> getJVMLabels(Map<String, Object> yamlConfig) {
 		Map<String, String> globalLabels = new HashMap<String, String>();
-		@SuppressWarnings("unchecked")
-		Map<String, Object> yamlConfig = (Map<String, Object>) new Yaml().load(new FileReader(in));
 		if (yamlConfig.containsKey("jvmLabels")) {
 			@SuppressWarnings("unchecked")
 			TreeMap<String, Object> labels = new TreeMap<String, Object>(